@@ -0,0 +1,172 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.api.sparql11.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openjena.riot.Lang;
+
+import com.hp.hpl.jena.datatypes.TypeMapper;
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.query.DatasetFactory;
+import com.hp.hpl.jena.sparql.core.DatasetGraphFactory;
+import com.hp.hpl.jena.tdb.TDB;
+import com.hp.hpl.jena.tdb.TDBFactory;
+import com.hp.hpl.jena.tdb.base.file.Location;
+
+/**
+ * Synthetic graphs and datasets shared by the benchmarks.
+ *
+ * Graphs look like typical linked data: ten triples per subject over a small set of
+ * predicates, with plain, language tagged and typed literals and links between
+ * subjects, so that the text syntaxes can use prefixes and the binary one its
+ * dictionary, as they would with real data.
+ */
+public class BenchmarkData {
+
+	public static final String GRAPH_URI = "http://example.com/benchmark";
+	public static final String STORAGE_MEMORY = "memory";
+	public static final String STORAGE_TDB = "tdb";
+
+	private static final String NS = "http://example.com/resource/";
+	private static final String VOCAB = "http://example.com/vocab#";
+	private static final String XSD_INT = "http://www.w3.org/2001/XMLSchema#int";
+	private static final int BATCH_SIZE = 10000;
+
+	public static Triple triple(int i, int size) {
+		Node subject = Node.createURI(NS + ( i / 10 ));
+		Node predicate = Node.createURI(VOCAB + "p" + ( i % 10 ));
+		Node object = null;
+		switch (i % 4) {
+		case 0:
+			object = Node.createLiteral("value " + i);
+			break;
+		case 1:
+			object = Node.createLiteral("label " + i, "en", false);
+			break;
+		case 2:
+			object = Node.createLiteral(Integer.toString(i), null, TypeMapper.getInstance().getSafeTypeByName(XSD_INT));
+			break;
+		default:
+			object = Node.createURI(NS + ( ( i * 7L ) % Math.max(1, size / 10) ));
+		}
+		return new Triple(subject, predicate, object);
+	}
+
+	/**
+	 * @param storage {@link #STORAGE_MEMORY} or {@link #STORAGE_TDB}
+	 * @param dir where a TDB dataset keeps its files
+	 */
+	public static Dataset createDataset(String storage, File dir) {
+		if ( STORAGE_MEMORY.equals(storage) ) {
+			return DatasetFactory.create(DatasetGraphFactory.createMem());
+		} else if ( STORAGE_TDB.equals(storage) ) {
+			return TDBFactory.createDataset(new Location(dir.getAbsolutePath()));
+		} else {
+			throw new IllegalArgumentException(storage);
+		}
+	}
+
+	public static File createTempDir() throws IOException {
+		File dir = File.createTempFile("rdf-api-bench", "");
+		dir.delete();
+		dir.mkdirs();
+		return dir;
+	}
+
+	public static void fill(Dataset dataset, String uri, int size) {
+		Graph graph = dataset.getNamedModel(uri).getGraph();
+		List<Triple> batch = new ArrayList<Triple>(BATCH_SIZE);
+		for (int i = 0; i < size; i++) {
+			batch.add(triple(i, size));
+			if ( batch.size() >= BATCH_SIZE ) {
+				graph.getBulkUpdateHandler().add(batch);
+				batch.clear();
+			}
+		}
+		graph.getBulkUpdateHandler().add(batch);
+		TDB.sync(dataset);
+	}
+
+	/**
+	 * Serializes a graph the way a GET would.
+	 */
+	public static byte[] serialize(Dataset dataset, String uri, String mediaType) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new GetModelStreamingOutput(dataset, new GraphLockManager(), new GraphVersions(), new GraphCache(0), new GraphCatalog(dataset), uri, mediaType).write(out);
+		return out.toByteArray();
+	}
+
+	/**
+	 * @return the RIOT language for a media type, or null for {@link RDFMediaType#APPLICATION_RDF_BINARY}
+	 */
+	public static Lang lang(String mediaType) {
+		if ( RDFMediaType.APPLICATION_TURTLE_CURRENT.equals(mediaType) ) {
+			return Lang.TURTLE;
+		} else if ( RDFMediaType.APPLICATION_RDFXML.equals(mediaType) ) {
+			return Lang.RDFXML;
+		} else if ( RDFMediaType.APPLICATION_NTRIPLES.equals(mediaType) ) {
+			return Lang.NTRIPLES;
+		} else if ( RDFMediaType.APPLICATION_RDF_BINARY.equals(mediaType) ) {
+			return null;
+		} else {
+			throw new IllegalArgumentException(mediaType);
+		}
+	}
+
+	public static void delete(File file) {
+		File[] children = file.listFiles();
+		if ( children != null ) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	/**
+	 * Discards what is written to it, counting the bytes.
+	 */
+	public static class CountingOutputStream extends OutputStream {
+
+		private long count = 0;
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+	}
+
+}
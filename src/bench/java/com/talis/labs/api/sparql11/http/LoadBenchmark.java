@@ -0,0 +1,99 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.api.sparql11.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.hp.hpl.jena.query.Dataset;
+
+/**
+ * Uploads a document through {@link PutPostModelStreamingOutput}, as a POST does:
+ * parse, stage, then replace the graph. Every invocation replaces the graph loaded by
+ * the previous one, so the dataset does not grow.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class LoadBenchmark {
+
+	@Param({ RDFMediaType.APPLICATION_TURTLE_CURRENT, RDFMediaType.APPLICATION_RDFXML, RDFMediaType.APPLICATION_NTRIPLES, RDFMediaType.APPLICATION_RDF_BINARY })
+	public String mediaType;
+
+	@Param({ "1000", "10000", "100000", "1000000", "10000000" })
+	public int size;
+
+	@Param({ BenchmarkData.STORAGE_MEMORY, BenchmarkData.STORAGE_TDB })
+	public String storage;
+
+	private byte[] document = null;
+	private File dir = null;
+	private Dataset dataset = null;
+	private GraphLockManager locks = null;
+	private GraphVersions versions = null;
+	private DatasetShards shards = null;
+	private ParallelParser parser = null;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		Dataset source = BenchmarkData.createDataset(BenchmarkData.STORAGE_MEMORY, null);
+		BenchmarkData.fill(source, BenchmarkData.GRAPH_URI, size);
+		document = BenchmarkData.serialize(source, BenchmarkData.GRAPH_URI, mediaType);
+		source.close();
+
+		dir = BenchmarkData.createTempDir();
+		dataset = BenchmarkData.createDataset(storage, dir);
+		locks = new GraphLockManager();
+		versions = new GraphVersions();
+		// the catalog is built here, once, not by every upload
+		shards = new DatasetShards(dataset, locks, versions);
+		parser = new ParallelParser();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws InterruptedException {
+		shards.close();
+		dataset.close();
+		BenchmarkData.delete(dir);
+	}
+
+	@Benchmark
+	public long putPost() throws Exception {
+		BenchmarkData.CountingOutputStream out = new BenchmarkData.CountingOutputStream();
+		new PutPostModelStreamingOutput(dataset, locks, versions, shards.getCommitter(BenchmarkData.GRAPH_URI), shards.getReclaimer(), parser, null, BenchmarkData.GRAPH_URI, mediaType, new ByteArrayInputStream(document), true, null).write(out);
+		return out.getCount();
+	}
+
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.api.sparql11.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjena.atlas.lib.Sink;
+import org.openjena.riot.Lang;
+
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.sparql.core.Quad;
+
+/**
+ * How {@link ParallelParser} scales with the number of threads, 1 being RIOT on the
+ * calling thread: parsing N-Triples and N-Quads into a sink that only counts, and
+ * loading them through {@link GraphLoader} and {@link DatasetLoader}, where the parse
+ * overlaps with writing into the dataset.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ParallelParseBenchmark {
+
+	private static final int GRAPHS = 10;
+	private static final Set<String> NONE = Collections.emptySet();
+
+	@Param({ RDFMediaType.APPLICATION_NTRIPLES, RDFMediaType.APPLICATION_NQUADS })
+	public String mediaType;
+
+	@Param({ "1", "2", "4", "8" })
+	public int threads;
+
+	@Param({ "100000", "1000000" })
+	public int size;
+
+	@Param({ BenchmarkData.STORAGE_MEMORY, BenchmarkData.STORAGE_TDB })
+	public String storage;
+
+	private byte[] document = null;
+	private ParallelParser parser = null;
+	private File dir = null;
+	private Dataset dataset = null;
+	private DatasetShards shards = null;
+	private GraphLockManager locks = null;
+	private GraphVersions versions = null;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		Dataset source = BenchmarkData.createDataset(BenchmarkData.STORAGE_MEMORY, null);
+		BenchmarkData.fill(source, BenchmarkData.GRAPH_URI, size);
+		document = BenchmarkData.serialize(source, BenchmarkData.GRAPH_URI, RDFMediaType.APPLICATION_NTRIPLES);
+		source.close();
+		if ( RDFMediaType.APPLICATION_NQUADS.equals(mediaType) ) {
+			// the same triples spread over a few graphs
+			StringBuilder sb = new StringBuilder(document.length * 2);
+			int i = 0;
+			for (String line : new String(document, "UTF-8").split("\n")) {
+				sb.append(line, 0, line.lastIndexOf('.')).append('<').append(BenchmarkData.GRAPH_URI).append('/').append(i++ % GRAPHS).append("> .\n");
+			}
+			document = sb.toString().getBytes("UTF-8");
+		}
+		parser = new ParallelParser(threads, ParallelParser.DEFAULT_CHUNK_BYTES);
+
+		dir = BenchmarkData.createTempDir();
+		dataset = BenchmarkData.createDataset(storage, dir);
+		locks = new GraphLockManager();
+		versions = new GraphVersions();
+		shards = new DatasetShards(dataset, locks, versions) {
+			@Override
+			public ParallelParser getParser() {
+				return parser;
+			}
+		};
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws InterruptedException {
+		shards.close();
+		dataset.close();
+		BenchmarkData.delete(dir);
+	}
+
+	@Benchmark
+	public long parse() {
+		if ( RDFMediaType.APPLICATION_NTRIPLES.equals(mediaType) ) {
+			CountingSink<Triple> sink = new CountingSink<Triple>();
+			parser.parseTriples(new ByteArrayInputStream(document), BenchmarkData.GRAPH_URI, sink);
+			return sink.count;
+		}
+		CountingSink<Quad> sink = new CountingSink<Quad>();
+		parser.parseQuads(new ByteArrayInputStream(document), sink);
+		return sink.count;
+	}
+
+	/**
+	 * Replaces the graphs, as a POST does, so that the dataset does not grow.
+	 */
+	@Benchmark
+	public long load() {
+		if ( RDFMediaType.APPLICATION_NTRIPLES.equals(mediaType) ) {
+			GraphLoader loader = new GraphLoader(dataset, locks, versions, shards.getCommitter(BenchmarkData.GRAPH_URI), shards.getReclaimer());
+			return loader.load(BenchmarkData.GRAPH_URI, parser.triples(new ByteArrayInputStream(document), BenchmarkData.GRAPH_URI), true, null);
+		}
+		return new DatasetLoader(shards, locks, versions).load(Lang.NQUADS, new ByteArrayInputStream(document), true, NONE, NONE).size();
+	}
+
+	private static class CountingSink<T> implements Sink<T> {
+
+		private long count = 0;
+
+		@Override
+		public void send(T item) {
+			count++;
+		}
+
+		@Override
+		public void flush() { }
+
+		@Override
+		public void close() { }
+
+	}
+
+}
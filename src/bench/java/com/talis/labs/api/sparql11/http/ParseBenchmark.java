@@ -0,0 +1,99 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.api.sparql11.http;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjena.atlas.lib.Sink;
+import org.openjena.riot.Lang;
+import org.openjena.riot.RiotReader;
+
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.query.Dataset;
+
+/**
+ * Parses a document into a sink that only counts triples, to separate the cost of the
+ * syntax from the cost of storing triples measured by {@link LoadBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ParseBenchmark {
+
+	@Param({ RDFMediaType.APPLICATION_TURTLE_CURRENT, RDFMediaType.APPLICATION_RDFXML, RDFMediaType.APPLICATION_NTRIPLES, RDFMediaType.APPLICATION_RDF_BINARY })
+	public String mediaType;
+
+	@Param({ "1000", "10000", "100000", "1000000", "10000000" })
+	public int size;
+
+	private byte[] document = null;
+	private Lang lang = null;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		Dataset dataset = BenchmarkData.createDataset(BenchmarkData.STORAGE_MEMORY, null);
+		BenchmarkData.fill(dataset, BenchmarkData.GRAPH_URI, size);
+		document = BenchmarkData.serialize(dataset, BenchmarkData.GRAPH_URI, mediaType);
+		dataset.close();
+		lang = BenchmarkData.lang(mediaType);
+	}
+
+	@Benchmark
+	public long parse() {
+		CountingSink sink = new CountingSink();
+		if ( lang != null ) {
+			RiotReader.parseTriples(new ByteArrayInputStream(document), lang, BenchmarkData.GRAPH_URI, sink);
+		} else {
+			BinaryRDF.read(new ByteArrayInputStream(document), sink);
+		}
+		return sink.count;
+	}
+
+	private static class CountingSink implements Sink<Triple> {
+
+		private long count = 0;
+
+		@Override
+		public void send(Triple triple) {
+			count++;
+		}
+
+		@Override
+		public void flush() { }
+
+		@Override
+		public void close() { }
+
+	}
+
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.api.sparql11.http;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.hp.hpl.jena.query.Dataset;
+
+/**
+ * Serializes a whole graph through {@link GetModelStreamingOutput}, as a GET does when
+ * the graph is not cached: snapshot under the locks, then copy to the client.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class SerializeBenchmark {
+
+	@Param({ RDFMediaType.APPLICATION_TURTLE_CURRENT, RDFMediaType.APPLICATION_RDFXML, RDFMediaType.APPLICATION_NTRIPLES, RDFMediaType.APPLICATION_RDF_BINARY })
+	public String mediaType;
+
+	@Param({ "1000", "10000", "100000", "1000000", "10000000" })
+	public int size;
+
+	@Param({ BenchmarkData.STORAGE_MEMORY, BenchmarkData.STORAGE_TDB })
+	public String storage;
+
+	private File dir = null;
+	private Dataset dataset = null;
+	private GraphLockManager locks = null;
+	private GraphVersions versions = null;
+	private GraphCache cache = null;
+	private GraphCatalog catalog = null;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		dir = BenchmarkData.createTempDir();
+		dataset = BenchmarkData.createDataset(storage, dir);
+		BenchmarkData.fill(dataset, BenchmarkData.GRAPH_URI, size);
+		locks = new GraphLockManager();
+		versions = new GraphVersions();
+		// nothing is ever cached, every invocation serializes the graph
+		cache = new GraphCache(0);
+		catalog = new GraphCatalog(dataset);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		dataset.close();
+		BenchmarkData.delete(dir);
+	}
+
+	@Benchmark
+	public long getModel() throws Exception {
+		BenchmarkData.CountingOutputStream out = new BenchmarkData.CountingOutputStream();
+		new GetModelStreamingOutput(dataset, locks, versions, cache, catalog, BenchmarkData.GRAPH_URI, mediaType).write(out);
+		return out.getCount();
+	}
+
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.api.sparql11.http;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.rdf.model.Model;
+
+/**
+ * Compares the pretty Turtle and RDF/XML writers of Jena with those of {@link StreamingRDF}:
+ * the time to write a whole graph, and the time to its first byte, in milliseconds.
+ * Run with -prof gc (the default jmh.args) to compare how much they allocate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class WriterBenchmark {
+
+	@Param({ RDFMediaType.APPLICATION_TURTLE_CURRENT, RDFMediaType.APPLICATION_RDFXML })
+	public String mediaType;
+
+	@Param({ StreamingRDF.PRETTY, StreamingRDF.STREAMING })
+	public String writer;
+
+	@Param({ "1000", "10000", "100000", "1000000" })
+	public int size;
+
+	@Param({ BenchmarkData.STORAGE_MEMORY, BenchmarkData.STORAGE_TDB })
+	public String storage;
+
+	private File dir = null;
+	private Dataset dataset = null;
+	private Model model = null;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		dir = BenchmarkData.createTempDir();
+		dataset = BenchmarkData.createDataset(storage, dir);
+		BenchmarkData.fill(dataset, BenchmarkData.GRAPH_URI, size);
+		model = dataset.getNamedModel(BenchmarkData.GRAPH_URI);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		dataset.close();
+		BenchmarkData.delete(dir);
+	}
+
+	@Benchmark
+	public long write() {
+		BenchmarkData.CountingOutputStream out = new BenchmarkData.CountingOutputStream();
+		write(out);
+		return out.getCount();
+	}
+
+	@Benchmark
+	public boolean firstByte() {
+		try {
+			write(new FirstByteOutputStream());
+		} catch (FirstByteException e) {
+			return true;
+		}
+		return false;
+	}
+
+	private void write(OutputStream out) {
+		if ( StreamingRDF.STREAMING.equals(writer) ) {
+			StreamingRDF.write(model.getGraph(), model, out, mediaType);
+		} else {
+			model.write(out, RDFMediaType.APPLICATION_TURTLE_CURRENT.equals(mediaType) ? "TURTLE" : "RDF/XML");
+		}
+	}
+
+	/**
+	 * Stops a writer as soon as it writes, with an unchecked exception as the writers
+	 * that print would swallow an IOException.
+	 */
+	private static class FirstByteOutputStream extends OutputStream {
+
+		@Override
+		public void write(int b) {
+			throw new FirstByteException();
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			throw new FirstByteException();
+		}
+
+	}
+
+	private static class FirstByteException extends RuntimeException {
+
+		private static final long serialVersionUID = 1L;
+
+	}
+
+}
@@ -0,0 +1,489 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.api.sparql11.http;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.eclipse.jetty.server.Server;
+
+import com.sun.grizzly.http.SelectorThread;
+
+/**
+ * Starts JettyServer or GrizzlyServer in this JVM, on a free port and with a temporary
+ * TDB location deleted afterwards, drives a mix of concurrent GET/PUT/POST/DELETE
+ * requests on /http-rdf-update and reports throughput and latency percentiles per
+ * operation.
+ *
+ * The datasets, graph versions and caches of a server are static, so with server=both
+ * each server is load tested in a JVM of its own, one after the other, and neither
+ * starts warm from the other's run.
+ *
+ * Options are key=value arguments, see {@link #DEFAULTS}:
+ *
+ *   server    jetty, grizzly or both, one after the other
+ *   threads   concurrent clients
+ *   warmup    seconds of load before measuring
+ *   duration  seconds of measured load
+ *   graphs    number of graphs the requests are spread over
+ *   triples   triples per graph in PUT and POST bodies
+ *   mix       relative weights of the operations, e.g. get:70,put:10,post:10,delete:10
+ *   accept    media type asked for by GETs
+ *   seed      random seed, runs with the same seed issue the same sequence of requests
+ *   out       where to write the results as JSON
+ */
+public class LoadTest {
+
+	public static final String[][] DEFAULTS = {
+		{ "server", "both" },
+		{ "threads", "16" },
+		{ "warmup", "5" },
+		{ "duration", "30" },
+		{ "graphs", "100" },
+		{ "triples", "100" },
+		{ "mix", "get:70,put:10,post:10,delete:10" },
+		{ "accept", RDFMediaType.APPLICATION_NTRIPLES },
+		{ "seed", "42" },
+		{ "out", "target/loadtest.json" },
+	};
+
+	private static final String PATH = "/http-rdf-update";
+	private static final String GRAPH_URI = "http://example.com/loadtest/graph/";
+
+	public enum Operation { GET, PUT, POST, DELETE }
+
+	private Map<String, String> options = null;
+	private Operation[] operations = null;
+	private int[] weights = null;
+	private byte[] body = null;
+
+	public LoadTest(Map<String, String> options) throws IOException {
+		this.options = options;
+		parseMix(options.get("mix"));
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < getInt("triples"); i++) {
+			sb.append("<http://example.com/loadtest/s").append(i).append("> <http://www.w3.org/2000/01/rdf-schema#label> \"label ").append(i).append("\" .\n");
+		}
+		body = sb.toString().getBytes("UTF-8");
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new HashMap<String, String>();
+		for (String[] option : DEFAULTS) {
+			options.put(option[0], option[1]);
+		}
+		for (String arg : args) {
+			int i = arg.indexOf('=');
+			if ( ( i < 0 ) || !options.containsKey(arg.substring(0, i)) ) {
+				throw new IllegalArgumentException("Unknown option: " + arg);
+			}
+			options.put(arg.substring(0, i), arg.substring(i + 1));
+		}
+
+		String server = options.get("server");
+		List<String> entries = new ArrayList<String>();
+		if ( "both".equals(server) ) {
+			for (String one : new String[] { "jetty", "grizzly" }) {
+				File out = File.createTempFile("rdf-api-loadtest-" + one, ".json");
+				try {
+					fork(options, one, out);
+					entries.addAll(read(out));
+				} finally {
+					out.delete();
+				}
+			}
+		} else if ( "jetty".equals(server) || "grizzly".equals(server) ) {
+			File tdb = File.createTempFile("rdf-api-loadtest", "");
+			tdb.delete();
+			tdb.mkdirs();
+			System.clearProperty(DatasetResolver.LOCATIONS_PROPERTY);
+			System.setProperty(DatasetResolver.LOCATION_PROPERTY, tdb.getAbsolutePath());
+			try {
+				LoadTest test = new LoadTest(options);
+				List<Result> results = null;
+				if ( "jetty".equals(server) ) {
+					Server jetty = JettyServer.start(0);
+					try {
+						results = test.run("jetty", JettyServer.getPort(jetty));
+					} finally {
+						jetty.stop();
+					}
+				} else {
+					SelectorThread grizzly = GrizzlyServer.start(0);
+					try {
+						results = test.run("grizzly", grizzly.getPortLowLevel());
+					} finally {
+						grizzly.stopEndpoint();
+					}
+				}
+				print(results);
+				for (Result result : results) {
+					entries.add(result.toJson());
+				}
+			} finally {
+				delete(tdb);
+			}
+		} else {
+			throw new IllegalArgumentException("Unknown server: " + server);
+		}
+
+		write(entries, new File(options.get("out")));
+		System.exit(0);
+	}
+
+	/**
+	 * Load tests one server in another JVM, with the same JVM arguments, class path and
+	 * options, and its results written to out.
+	 */
+	private static void fork(Map<String, String> options, String server, File out) throws IOException, InterruptedException {
+		List<String> command = new ArrayList<String>();
+		command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+		command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+		command.add("-classpath");
+		command.add(System.getProperty("java.class.path"));
+		command.add(LoadTest.class.getName());
+		for (Map.Entry<String, String> option : options.entrySet()) {
+			if ( !"server".equals(option.getKey()) && !"out".equals(option.getKey()) ) {
+				command.add(option.getKey() + "=" + option.getValue());
+			}
+		}
+		command.add("server=" + server);
+		command.add("out=" + out.getAbsolutePath());
+
+		Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+		InputStream in = process.getInputStream();
+		byte[] buffer = new byte[8192];
+		int n;
+		while ( ( n = in.read(buffer) ) != -1 ) {
+			System.out.write(buffer, 0, n);
+		}
+		System.out.flush();
+		int status = process.waitFor();
+		if ( status != 0 ) {
+			throw new IOException("The " + server + " load test exited with " + status);
+		}
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if ( children != null ) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	public List<Result> run(String server, int port) throws Exception {
+		String base = "http://127.0.0.1:" + port + PATH;
+		int graphs = getInt("graphs");
+		HttpClient client = new DefaultHttpClient();
+		for (int i = 0; i < graphs; i++) {
+			execute(client, Operation.POST, base, i);
+		}
+
+		long start = System.currentTimeMillis();
+		long measureFrom = start + getInt("warmup") * 1000L;
+		long end = measureFrom + getInt("duration") * 1000L;
+		int threads = getInt("threads");
+		CountDownLatch done = new CountDownLatch(threads);
+		Worker[] workers = new Worker[threads];
+		for (int i = 0; i < threads; i++) {
+			workers[i] = new Worker(base, new Random(getInt("seed") + i), measureFrom, end, done);
+			new Thread(workers[i], "loadtest-" + server + "-" + i).start();
+		}
+		done.await();
+
+		List<Result> results = new ArrayList<Result>();
+		double seconds = ( end - measureFrom ) / 1000.0;
+		for (Operation operation : operations) {
+			LongList latencies = new LongList();
+			long errors = 0;
+			for (Worker worker : workers) {
+				latencies.addAll(worker.latencies.get(operation));
+				errors += worker.errors.get(operation)[0];
+			}
+			results.add(new Result(server, operation, latencies.sorted(), errors, seconds));
+		}
+		return results;
+	}
+
+	/**
+	 * @return the HTTP status code, or -1 if the request failed
+	 */
+	private int execute(HttpClient client, Operation operation, String base, int graph) {
+		HttpRequestBase request = null;
+		try {
+			String url = base + "?graph=" + URLEncoder.encode(GRAPH_URI + graph, "UTF-8");
+			switch (operation) {
+			case GET:
+				request = new HttpGet(url);
+				request.setHeader("Accept", options.get("accept"));
+				break;
+			case PUT:
+				HttpPut put = new HttpPut(url);
+				put.setEntity(entity());
+				request = put;
+				break;
+			case POST:
+				HttpPost post = new HttpPost(url);
+				post.setEntity(entity());
+				request = post;
+				break;
+			default:
+				request = new HttpDelete(url);
+			}
+			HttpResponse response = client.execute(request);
+			HttpEntity entity = response.getEntity();
+			if ( entity != null ) {
+				entity.consumeContent();
+			}
+			return response.getStatusLine().getStatusCode();
+		} catch (IOException e) {
+			if ( request != null ) {
+				request.abort();
+			}
+			return -1;
+		}
+	}
+
+	private ByteArrayEntity entity() {
+		ByteArrayEntity entity = new ByteArrayEntity(body);
+		entity.setContentType(RDFMediaType.APPLICATION_NTRIPLES);
+		return entity;
+	}
+
+	private Operation pick(Random random) {
+		int n = random.nextInt(weights[weights.length - 1]);
+		for (int i = 0; i < weights.length; i++) {
+			if ( n < weights[i] ) {
+				return operations[i];
+			}
+		}
+		return operations[operations.length - 1];
+	}
+
+	private void parseMix(String mix) {
+		String[] parts = mix.split(",");
+		operations = new Operation[parts.length];
+		weights = new int[parts.length];
+		int total = 0;
+		for (int i = 0; i < parts.length; i++) {
+			String[] kv = parts[i].split(":");
+			operations[i] = Operation.valueOf(kv[0].trim().toUpperCase(Locale.ENGLISH));
+			total += Integer.parseInt(kv[1].trim());
+			weights[i] = total;
+		}
+		if ( total <= 0 ) {
+			throw new IllegalArgumentException("Empty mix: " + mix);
+		}
+	}
+
+	private int getInt(String option) {
+		return Integer.parseInt(options.get(option));
+	}
+
+	private static void print(List<Result> results) {
+		System.out.println(String.format(Locale.ENGLISH, "%-8s %-7s %10s %8s %10s %9s %9s %9s %9s", "server", "op", "count", "errors", "ops/s", "p50 ms", "p99 ms", "p999 ms", "max ms"));
+		for (Result r : results) {
+			System.out.println(String.format(Locale.ENGLISH, "%-8s %-7s %10d %8d %10.1f %9.2f %9.2f %9.2f %9.2f", r.server, r.operation, r.count, r.errors, r.throughput, r.p50, r.p99, r.p999, r.max));
+		}
+	}
+
+	/**
+	 * Writes the results, one JSON object per line, as an array.
+	 */
+	private static void write(List<String> entries, File file) throws IOException {
+		if ( file.getParentFile() != null ) {
+			file.getParentFile().mkdirs();
+		}
+		PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+		try {
+			out.println("[");
+			for (int i = 0; i < entries.size(); i++) {
+				out.print("  " + entries.get(i));
+				out.println(( i < entries.size() - 1 ) ? "," : "");
+			}
+			out.println("]");
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * @return the results written by {@link #write(List, File)}
+	 */
+	private static List<String> read(File file) throws IOException {
+		List<String> entries = new ArrayList<String>();
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String line;
+			while ( ( line = in.readLine() ) != null ) {
+				line = line.trim();
+				if ( line.startsWith("{") ) {
+					entries.add(line.endsWith(",") ? line.substring(0, line.length() - 1) : line);
+				}
+			}
+		} finally {
+			in.close();
+		}
+		return entries;
+	}
+
+	private class Worker implements Runnable {
+
+		private String base = null;
+		private Random random = null;
+		private long measureFrom = 0;
+		private long end = 0;
+		private CountDownLatch done = null;
+		private Map<Operation, LongList> latencies = new HashMap<Operation, LongList>();
+		private Map<Operation, long[]> errors = new HashMap<Operation, long[]>();
+
+		public Worker(String base, Random random, long measureFrom, long end, CountDownLatch done) {
+			this.base = base;
+			this.random = random;
+			this.measureFrom = measureFrom;
+			this.end = end;
+			this.done = done;
+			for (Operation operation : Operation.values()) {
+				latencies.put(operation, new LongList());
+				errors.put(operation, new long[1]);
+			}
+		}
+
+		@Override
+		public void run() {
+			HttpClient client = new DefaultHttpClient();
+			int graphs = getInt("graphs");
+			try {
+				long now = System.currentTimeMillis();
+				while ( now < end ) {
+					Operation operation = pick(random);
+					long t0 = System.nanoTime();
+					int status = execute(client, operation, base, random.nextInt(graphs));
+					long elapsed = System.nanoTime() - t0;
+					now = System.currentTimeMillis();
+					if ( ( now >= measureFrom ) && ( now < end ) ) {
+						latencies.get(operation).add(elapsed);
+						// a GET or DELETE of a graph deleted by another client is expected to 404
+						if ( ( status < 200 ) || ( ( status >= 400 ) && ( status != 404 ) ) ) {
+							errors.get(operation)[0]++;
+						}
+					}
+				}
+			} finally {
+				client.getConnectionManager().shutdown();
+				done.countDown();
+			}
+		}
+
+	}
+
+	public static class Result {
+
+		private String server = null;
+		private Operation operation = null;
+		private long count = 0;
+		private long errors = 0;
+		private double throughput = 0;
+		private double p50 = 0;
+		private double p99 = 0;
+		private double p999 = 0;
+		private double max = 0;
+
+		public Result(String server, Operation operation, long[] sortedNanos, long errors, double seconds) {
+			this.server = server;
+			this.operation = operation;
+			this.count = sortedNanos.length;
+			this.errors = errors;
+			this.throughput = count / seconds;
+			this.p50 = percentile(sortedNanos, 0.5);
+			this.p99 = percentile(sortedNanos, 0.99);
+			this.p999 = percentile(sortedNanos, 0.999);
+			this.max = ( count == 0 ) ? 0 : sortedNanos[sortedNanos.length - 1] / 1e6;
+		}
+
+		public String toJson() {
+			return String.format(Locale.ENGLISH, "{ \"server\": \"%s\", \"operation\": \"%s\", \"count\": %d, \"errors\": %d, \"throughput\": %.3f, \"p50\": %.3f, \"p99\": %.3f, \"p999\": %.3f, \"max\": %.3f }",
+				server, operation, count, errors, throughput, p50, p99, p999, max);
+		}
+
+		private static double percentile(long[] sortedNanos, double p) {
+			if ( sortedNanos.length == 0 ) {
+				return 0;
+			}
+			int i = (int) Math.ceil(p * sortedNanos.length) - 1;
+			return sortedNanos[Math.max(0, i)] / 1e6;
+		}
+
+	}
+
+	private static class LongList {
+
+		private long[] values = new long[1024];
+		private int size = 0;
+
+		public void add(long value) {
+			if ( size == values.length ) {
+				values = Arrays.copyOf(values, size * 2);
+			}
+			values[size++] = value;
+		}
+
+		public void addAll(LongList other) {
+			for (int i = 0; i < other.size; i++) {
+				add(other.values[i]);
+			}
+		}
+
+		public long[] sorted() {
+			long[] result = Arrays.copyOf(values, size);
+			Arrays.sort(result);
+			return result;
+		}
+
+	}
+
+}
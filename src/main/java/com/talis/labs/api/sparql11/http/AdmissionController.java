@@ -0,0 +1,230 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.api.sparql11.http;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Limits how many reads and how many writes are served at once, so that under overload
+ * the server keeps working at its capacity and turns the excess away quickly, rather
+ * than piling requests up behind the dataset lock until it runs out of threads.
+ *
+ * Reads (GET, HEAD, OPTIONS) and writes have a {@link Limiter} each: a write storm can
+ * fill the write queue without taking a single read slot, and the other way round.
+ * See {@link AdmissionFilter} for how requests go through it.
+ */
+public class AdmissionController {
+
+	public static final int DEFAULT_READ_LIMIT = Integer.getInteger("rdf-api.admission.read.limit", 64);
+	public static final int DEFAULT_READ_QUEUE = Integer.getInteger("rdf-api.admission.read.queue", 256);
+	public static final long DEFAULT_READ_TARGET_MILLIS = Long.getLong("rdf-api.admission.read.target-ms", 0);
+	public static final int DEFAULT_WRITE_LIMIT = Integer.getInteger("rdf-api.admission.write.limit", 8);
+	public static final int DEFAULT_WRITE_QUEUE = Integer.getInteger("rdf-api.admission.write.queue", 64);
+	public static final long DEFAULT_WRITE_TARGET_MILLIS = Long.getLong("rdf-api.admission.write.target-ms", 0);
+	public static final long DEFAULT_QUEUE_TIMEOUT_MILLIS = Long.getLong("rdf-api.admission.queue-timeout-ms", 5000);
+
+	private Limiter reads = null;
+	private Limiter writes = null;
+
+	public AdmissionController() {
+		this(new Limiter("read", DEFAULT_READ_LIMIT, DEFAULT_READ_QUEUE, DEFAULT_QUEUE_TIMEOUT_MILLIS, DEFAULT_READ_TARGET_MILLIS),
+			new Limiter("write", DEFAULT_WRITE_LIMIT, DEFAULT_WRITE_QUEUE, DEFAULT_QUEUE_TIMEOUT_MILLIS, DEFAULT_WRITE_TARGET_MILLIS));
+	}
+
+	public AdmissionController(Limiter reads, Limiter writes) {
+		this.reads = reads;
+		this.writes = writes;
+	}
+
+	/**
+	 * @return the limiter requests with that HTTP method go through
+	 */
+	public Limiter getLimiter(String method) {
+		return ( "GET".equals(method) || "HEAD".equals(method) || "OPTIONS".equals(method) ) ? reads : writes;
+	}
+
+	public Limiter getReads() {
+		return reads;
+	}
+
+	public Limiter getWrites() {
+		return writes;
+	}
+
+	/**
+	 * Writes the state of both limiters in the Prometheus text format, see {@link Metrics}.
+	 */
+	public void write(Writer out) throws IOException {
+		write(out, "rdf_api_admission_limit", "gauge", "Requests allowed to run at once, by class", reads.getLimit(), writes.getLimit());
+		write(out, "rdf_api_admission_in_flight", "gauge", "Requests running, by class", reads.getInFlight(), writes.getInFlight());
+		write(out, "rdf_api_admission_queued", "gauge", "Requests waiting to run, by class", reads.getQueued(), writes.getQueued());
+		write(out, "rdf_api_admission_rejected_total", "counter", "Requests turned away, by class", reads.getRejected(), writes.getRejected());
+	}
+
+	private static void write(Writer out, String name, String type, String help, long read, long write) throws IOException {
+		out.write("# HELP " + name + " " + help + "\n");
+		out.write("# TYPE " + name + " " + type + "\n");
+		out.write(name + "{class=\"read\"} " + read + "\n");
+		out.write(name + "{class=\"write\"} " + write + "\n");
+	}
+
+	/**
+	 * Lets up to a limit of requests run at once and queues up to a number of others,
+	 * for a while. Requests finding the queue full, or still queued when their time is
+	 * up, are rejected.
+	 *
+	 * With a latency target the limit adapts (additive increase, multiplicative
+	 * decrease, between 1 and the configured limit): a request slower than the target
+	 * cuts the limit by a tenth, at most once per target period so that a burst of slow
+	 * requests counts once, while requests within the target raise it by about one per
+	 * limit's worth of requests, as long as the limit is actually being used.
+	 */
+	public static class Limiter {
+
+		private static final double DECREASE = 0.9;
+		private static final double EWMA_WEIGHT = 0.2;
+
+		private String name = null;
+		private int maxLimit = 0;
+		private int maxQueue = 0;
+		private long timeoutMillis = 0;
+		private long targetNanos = 0;
+
+		private double limit = 0;
+		private int inFlight = 0;
+		private int queued = 0;
+		private long rejected = 0;
+		private double latency = 0;
+		private long lastDecrease = 0;
+
+		/**
+		 * @param targetMillis the latency to adapt the limit to, 0 for a fixed limit
+		 */
+		public Limiter(String name, int limit, int maxQueue, long timeoutMillis, long targetMillis) {
+			if ( limit < 1 ) {
+				throw new IllegalArgumentException("The " + name + " limit must be at least 1: " + limit);
+			}
+			this.name = name;
+			this.maxLimit = limit;
+			this.limit = limit;
+			this.maxQueue = maxQueue;
+			this.timeoutMillis = timeoutMillis;
+			this.targetNanos = targetMillis * 1000000L;
+		}
+
+		/**
+		 * Waits, if need be and if there is room in the queue, for the request to be
+		 * allowed to run. A request admitted must be {@link #release(long)}d.
+		 *
+		 * @return false if the request is rejected
+		 */
+		public synchronized boolean acquire() {
+			// queued requests go first
+			if ( ( queued == 0 ) && ( inFlight < (int) limit ) ) {
+				inFlight++;
+				return true;
+			}
+			if ( queued >= maxQueue ) {
+				rejected++;
+				return false;
+			}
+			queued++;
+			try {
+				long deadline = System.currentTimeMillis() + timeoutMillis;
+				while ( inFlight >= (int) limit ) {
+					long remaining = deadline - System.currentTimeMillis();
+					if ( remaining <= 0 ) {
+						rejected++;
+						return false;
+					}
+					try {
+						wait(remaining);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						rejected++;
+						return false;
+					}
+				}
+				inFlight++;
+				return true;
+			} finally {
+				queued--;
+			}
+		}
+
+		/**
+		 * @param nanos how long the request ran for, once admitted
+		 */
+		public synchronized void release(long nanos) {
+			int before = (int) limit;
+			latency = ( latency == 0 ) ? nanos : latency + EWMA_WEIGHT * ( nanos - latency );
+			if ( targetNanos > 0 ) {
+				long now = System.nanoTime();
+				if ( nanos > targetNanos ) {
+					if ( now - lastDecrease >= targetNanos ) {
+						limit = Math.max(1, limit * DECREASE);
+						lastDecrease = now;
+					}
+				} else if ( inFlight >= before ) {
+					limit = Math.min(maxLimit, limit + 1 / limit);
+				}
+			}
+			inFlight--;
+			if ( (int) limit > before ) {
+				notifyAll();
+			} else if ( inFlight < (int) limit ) {
+				notify();
+			}
+		}
+
+		/**
+		 * @return an estimate of the seconds after which a rejected request is likely to be admitted, at least 1
+		 */
+		public synchronized long getRetryAfterSeconds() {
+			double seconds = latency * ( queued + 1 ) / Math.max(1, (int) limit) / 1e9;
+			return Math.max(1, (long) Math.ceil(seconds));
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public synchronized int getLimit() {
+			return (int) limit;
+		}
+
+		public synchronized int getInFlight() {
+			return inFlight;
+		}
+
+		public synchronized int getQueued() {
+			return queued;
+		}
+
+		public synchronized long getRejected() {
+			return rejected;
+		}
+
+		@Override
+		public synchronized String toString() {
+			return "Limiter[" + name + ", limit=" + (int) limit + ", inFlight=" + inFlight + ", queued=" + queued + ", rejected=" + rejected + "]";
+		}
+
+	}
+
+}
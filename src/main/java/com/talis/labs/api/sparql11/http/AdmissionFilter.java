@@ -0,0 +1,83 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.api.sparql11.http;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.ext.ContextResolver;
+import javax.ws.rs.ext.Providers;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.jersey.spi.CloseableService;
+import com.sun.jersey.spi.container.ContainerRequest;
+import com.sun.jersey.spi.container.ContainerRequestFilter;
+
+/**
+ * Admits every request through the {@link AdmissionController} before it gets to a
+ * resource, and rejects it with {@link #DEFAULT_REJECT_STATUS} (503 unless configured
+ * to be 429) and a Retry-After header if it cannot be admitted. Registered after
+ * {@link MetricsFilter}, so that rejections are counted too, see {@link JettyServer}.
+ *
+ * Streaming outputs do their work after the resource method has returned, so a request
+ * holds its place until Jersey is done with it: the place is given back by a
+ * {@link CloseableService}, which is closed whatever happens, including a client going
+ * away half way through a response. /metrics, /ready and /admin are never limited, they have to
+ * keep working when the server is overloaded.
+ */
+public class AdmissionFilter implements ContainerRequestFilter {
+
+	private static final Logger logger = LoggerFactory.getLogger(AdmissionFilter.class);
+
+	public static final int DEFAULT_REJECT_STATUS = Integer.getInteger("rdf-api.admission.reject-status", 503);
+
+	@Context
+	private Providers providers;
+
+	@Context
+	private CloseableService closeables;
+
+	@Override
+	public ContainerRequest filter(ContainerRequest request) {
+		if ( request.getPath(true).startsWith("metrics") || request.getPath(true).startsWith("ready") || request.getPath(true).startsWith("admin") ) {
+			return request;
+		}
+		ContextResolver<AdmissionController> resolver = providers.getContextResolver(AdmissionController.class, MediaType.WILDCARD_TYPE);
+		// a query is a read, even when it comes in a POST
+		String method = request.getPath(true).startsWith("sparql") ? "GET" : request.getMethod();
+		final AdmissionController.Limiter limiter = resolver.getContext(AdmissionController.class).getLimiter(method);
+		long start = System.nanoTime();
+		if ( !limiter.acquire() ) {
+			logger.debug("Rejected a {} request: {}", request.getMethod(), limiter);
+			throw new AdmissionRejectedException(DEFAULT_REJECT_STATUS, limiter.getRetryAfterSeconds());
+		}
+		RequestTimer.record(RequestTimer.ADMISSION, start);
+		final long admitted = System.nanoTime();
+		closeables.add(new Closeable() {
+			@Override
+			public void close() throws IOException {
+				limiter.release(System.nanoTime() - admitted);
+			}
+		});
+		return request;
+	}
+
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.api.sparql11.http;
+
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.ExceptionMapper;
+import javax.ws.rs.ext.Provider;
+
+/**
+ * Thrown by {@link AdmissionFilter} when a request cannot be admitted. It is not a
+ * WebApplicationException because Jersey logs those with a stack trace when the status
+ * is 5xx, which is the last thing an overloaded server needs to do for every request it
+ * turns away. For the same reason it has no stack trace of its own.
+ */
+public class AdmissionRejectedException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	private int status = 0;
+	private long retryAfterSeconds = 0;
+
+	public AdmissionRejectedException(int status, long retryAfterSeconds) {
+		super("Rejected, retry after " + retryAfterSeconds + "s");
+		this.status = status;
+		this.retryAfterSeconds = retryAfterSeconds;
+	}
+
+	@Override
+	public synchronized Throwable fillInStackTrace() {
+		return this;
+	}
+
+	public int getStatus() {
+		return status;
+	}
+
+	public long getRetryAfterSeconds() {
+		return retryAfterSeconds;
+	}
+
+	@Provider
+	public static class Mapper implements ExceptionMapper<AdmissionRejectedException> {
+
+		@Override
+		public Response toResponse(AdmissionRejectedException e) {
+			return Response.status(e.getStatus()).header("Retry-After", e.getRetryAfterSeconds()).build();
+		}
+
+	}
+
+}
@@ -0,0 +1,366 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.api.sparql11.http;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.openjena.atlas.lib.Sink;
+import org.openjena.riot.RiotException;
+
+import com.hp.hpl.jena.datatypes.TypeMapper;
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.rdf.model.AnonId;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+
+/**
+ * A compact binary serialization of RDF triples, see {@link RDFMediaType#APPLICATION_RDF_BINARY},
+ * for service to service transfers where nobody needs to read the bytes.
+ *
+ * A document is the magic bytes "RDFB" and a version byte, followed by triple records
+ * (a 1 byte and three terms) and terminated by a 0 byte. Every term is written as a
+ * reference into a dictionary both sides build as the stream goes: reference 0 means a
+ * new term follows and takes the next free slot, any other value n is the term in slot
+ * n - 1. IRIs are split after their last '/' or '#' and the namespace goes through a
+ * second dictionary in the same way, so repeated IRIs cost a couple of bytes and
+ * repeated namespaces are only written once. Numbers are unsigned LEB128 varints and
+ * strings are UTF-8 prefixed by their length in bytes.
+ *
+ * Dictionaries stop growing after {@link #MAX_TERMS} and {@link #MAX_NAMESPACES}
+ * entries, past that new terms are written inline each time. Blank node labels are
+ * scoped to the document, as they are with the text syntaxes.
+ */
+public class BinaryRDF {
+
+	public static final int VERSION = 1;
+	public static final int MAX_TERMS = 100000;
+	public static final int MAX_NAMESPACES = 10000;
+
+	private static final byte[] MAGIC = { 'R', 'D', 'F', 'B' };
+	private static final int MAX_STRING_LENGTH = 16 * 1024 * 1024;
+
+	private static final int END = 0;
+	private static final int TRIPLE = 1;
+
+	private static final int IRI = 1;
+	private static final int BLANK = 2;
+	private static final int PLAIN_LITERAL = 3;
+	private static final int LANG_LITERAL = 4;
+	private static final int TYPED_LITERAL = 5;
+
+	private static final String UTF8 = "UTF-8";
+
+	/**
+	 * Writes all the triples of a graph. The output stream is flushed but not closed.
+	 */
+	public static void write(Graph graph, OutputStream out) {
+		Writer writer = new Writer(out);
+		ExtendedIterator<Triple> iter = graph.find(Node.ANY, Node.ANY, Node.ANY);
+		try {
+			while ( iter.hasNext() ) {
+				writer.send(iter.next());
+			}
+		} finally {
+			iter.close();
+		}
+		writer.close();
+	}
+
+	/**
+	 * Parses a document and sends its triples to the sink, as they are read.
+	 *
+	 * @throws RiotException if the input is not a valid document
+	 */
+	public static void read(InputStream in, Sink<Triple> sink) throws RiotException {
+		new Reader(in).read(sink);
+	}
+
+	/**
+	 * Writes triples as they are sent. Closing the writer terminates the document and
+	 * flushes the underlying output stream, which is left open.
+	 */
+	public static class Writer implements Sink<Triple> {
+
+		private OutputStream out = null;
+		private Map<Node, Integer> terms = new HashMap<Node, Integer>();
+		private Map<String, Integer> namespaces = new HashMap<String, Integer>();
+
+		public Writer(OutputStream out) {
+			this.out = new BufferedOutputStream(out);
+			try {
+				this.out.write(MAGIC);
+				this.out.write(VERSION);
+			} catch (IOException e) {
+				throw new RiotException(e);
+			}
+		}
+
+		@Override
+		public void send(Triple triple) {
+			try {
+				out.write(TRIPLE);
+				writeTerm(triple.getSubject());
+				writeTerm(triple.getPredicate());
+				writeTerm(triple.getObject());
+			} catch (IOException e) {
+				throw new RiotException(e);
+			}
+		}
+
+		@Override
+		public void flush() {
+			try {
+				out.flush();
+			} catch (IOException e) {
+				throw new RiotException(e);
+			}
+		}
+
+		@Override
+		public void close() {
+			try {
+				out.write(END);
+			} catch (IOException e) {
+				throw new RiotException(e);
+			}
+			flush();
+		}
+
+		private void writeTerm(Node node) throws IOException {
+			Integer id = terms.get(node);
+			if ( id != null ) {
+				writeNumber(id + 1);
+				return;
+			}
+			writeNumber(0);
+			if ( node.isURI() ) {
+				String uri = node.getURI();
+				int split = Math.max(uri.lastIndexOf('/'), uri.lastIndexOf('#')) + 1;
+				out.write(IRI);
+				writeNamespace(uri.substring(0, split));
+				writeString(uri.substring(split));
+			} else if ( node.isBlank() ) {
+				out.write(BLANK);
+				writeString(node.getBlankNodeLabel());
+			} else if ( node.isLiteral() ) {
+				String lang = node.getLiteralLanguage();
+				String datatype = node.getLiteralDatatypeURI();
+				if ( datatype != null ) {
+					out.write(TYPED_LITERAL);
+					writeString(node.getLiteralLexicalForm());
+					writeTerm(Node.createURI(datatype));
+				} else if ( ( lang != null ) && ( lang.length() > 0 ) ) {
+					out.write(LANG_LITERAL);
+					writeString(node.getLiteralLexicalForm());
+					writeString(lang);
+				} else {
+					out.write(PLAIN_LITERAL);
+					writeString(node.getLiteralLexicalForm());
+				}
+			} else {
+				throw new RiotException("Not an RDF term: " + node);
+			}
+			if ( terms.size() < MAX_TERMS ) {
+				terms.put(node, terms.size());
+			}
+		}
+
+		private void writeNamespace(String namespace) throws IOException {
+			Integer id = namespaces.get(namespace);
+			if ( id != null ) {
+				writeNumber(id + 1);
+				return;
+			}
+			writeNumber(0);
+			writeString(namespace);
+			if ( namespaces.size() < MAX_NAMESPACES ) {
+				namespaces.put(namespace, namespaces.size());
+			}
+		}
+
+		private void writeString(String str) throws IOException {
+			byte[] bytes = str.getBytes(UTF8);
+			writeNumber(bytes.length);
+			out.write(bytes);
+		}
+
+		private void writeNumber(int n) throws IOException {
+			while ( ( n & ~0x7F ) != 0 ) {
+				out.write(( n & 0x7F ) | 0x80);
+				n >>>= 7;
+			}
+			out.write(n);
+		}
+
+	}
+
+	/**
+	 * Reads a document, see {@link BinaryRDF#read(InputStream, Sink)}.
+	 */
+	public static class Reader {
+
+		private InputStream in = null;
+		private List<Node> terms = new ArrayList<Node>();
+		private List<String> namespaces = new ArrayList<String>();
+		private String scope = UUID.randomUUID().toString();
+
+		public Reader(InputStream in) {
+			this.in = new BufferedInputStream(in);
+		}
+
+		public void read(Sink<Triple> sink) throws RiotException {
+			try {
+				for (int i = 0; i < MAGIC.length; i++) {
+					if ( readByte() != MAGIC[i] ) {
+						throw new RiotException("Not a binary RDF document");
+					}
+				}
+				int version = readByte();
+				if ( version != VERSION ) {
+					throw new RiotException("Unsupported binary RDF version: " + version);
+				}
+				int record;
+				while ( ( record = readByte() ) == TRIPLE ) {
+					sink.send(new Triple(readTerm(), readTerm(), readTerm()));
+				}
+				if ( record != END ) {
+					throw new RiotException("Unexpected record type: " + record);
+				}
+				sink.flush();
+			} catch (EOFException e) {
+				throw new RiotException("Truncated binary RDF document");
+			} catch (IOException e) {
+				throw new RiotException(e);
+			}
+		}
+
+		private Node readTerm() throws IOException {
+			int ref = readNumber();
+			if ( ref > 0 ) {
+				if ( ref > terms.size() ) {
+					throw new RiotException("Unknown term reference: " + ref);
+				}
+				return terms.get(ref - 1);
+			}
+			Node node = null;
+			int kind = readByte();
+			switch (kind) {
+			case IRI:
+				String namespace = readNamespace();
+				node = Node.createURI(namespace + readString());
+				break;
+			case BLANK:
+				node = Node.createAnon(new AnonId(scope + ":" + readString()));
+				break;
+			case PLAIN_LITERAL:
+				node = Node.createLiteral(readString());
+				break;
+			case LANG_LITERAL:
+				String lex = readString();
+				node = Node.createLiteral(lex, readString(), false);
+				break;
+			case TYPED_LITERAL:
+				String lexical = readString();
+				Node datatype = readTerm();
+				if ( !datatype.isURI() ) {
+					throw new RiotException("Datatype is not an IRI: " + datatype);
+				}
+				node = Node.createLiteral(lexical, null, TypeMapper.getInstance().getSafeTypeByName(datatype.getURI()));
+				break;
+			default:
+				throw new RiotException("Unknown term kind: " + kind);
+			}
+			if ( terms.size() < MAX_TERMS ) {
+				terms.add(node);
+			}
+			return node;
+		}
+
+		private String readNamespace() throws IOException {
+			int ref = readNumber();
+			if ( ref > 0 ) {
+				if ( ref > namespaces.size() ) {
+					throw new RiotException("Unknown namespace reference: " + ref);
+				}
+				return namespaces.get(ref - 1);
+			}
+			String namespace = readString();
+			if ( namespaces.size() < MAX_NAMESPACES ) {
+				namespaces.add(namespace);
+			}
+			return namespace;
+		}
+
+		private String readString() throws IOException {
+			int length = readNumber();
+			if ( length > MAX_STRING_LENGTH ) {
+				throw new RiotException("String too long: " + length);
+			}
+			byte[] bytes = new byte[length];
+			int read = 0;
+			while ( read < length ) {
+				int n = in.read(bytes, read, length - read);
+				if ( n < 0 ) {
+					throw new EOFException();
+				}
+				read += n;
+			}
+			try {
+				return new String(bytes, UTF8);
+			} catch (UnsupportedEncodingException e) {
+				throw new RiotException(e);
+			}
+		}
+
+		private int readNumber() throws IOException {
+			int n = 0;
+			for (int shift = 0; shift < 32; shift += 7) {
+				int b = readByte();
+				n |= ( b & 0x7F ) << shift;
+				if ( ( b & 0x80 ) == 0 ) {
+					if ( n < 0 ) {
+						break;
+					}
+					return n;
+				}
+			}
+			throw new RiotException("Malformed number");
+		}
+
+		private int readByte() throws IOException {
+			int b = in.read();
+			if ( b < 0 ) {
+				throw new EOFException();
+			}
+			return b;
+		}
+
+	}
+
+}
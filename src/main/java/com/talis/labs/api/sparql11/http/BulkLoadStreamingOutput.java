@@ -0,0 +1,97 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.api.sparql11.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Map;
+import java.util.Set;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.openjena.riot.Lang;
+import org.openjena.riot.RiotException;
+
+/**
+ * Loads a quad document with a {@link DatasetLoader} and reports, one line per graph,
+ * how many quads went into each.
+ */
+public class BulkLoadStreamingOutput implements StreamingOutput {
+
+	private String mediaType = null;
+	private DatasetShards shards = null;
+	private GraphLockManager locks = null;
+	private GraphVersions versions = null;
+	private Metrics metrics = null;
+	private InputStream in = null;
+	private boolean clean = false;
+	private Set<String> replace = null;
+	private Set<String> merge = null;
+
+	public BulkLoadStreamingOutput(DatasetShards shards, GraphLockManager locks, GraphVersions versions, Metrics metrics, String mediaType, InputStream in, boolean clean, Set<String> replace, Set<String> merge) {
+		this.shards = shards;
+		this.locks = locks;
+		this.versions = versions;
+		this.metrics = metrics;
+		this.mediaType = mediaType;
+		this.in = in;
+		this.clean = clean;
+		this.replace = replace;
+		this.merge = merge;
+	}
+
+	@Override
+	public void write(OutputStream output) throws IOException, WebApplicationException {
+		Lang lang = null;
+		if (RDFMediaType.APPLICATION_NQUADS.equals(mediaType)) {
+			lang = Lang.NQUADS;
+		} else if (RDFMediaType.APPLICATION_TRIG.equals(mediaType)) {
+			lang = Lang.TRIG;
+		} else {
+			throw new WebApplicationException(Response.Status.BAD_REQUEST);
+		}
+
+		Map<String, Long> counts = null;
+		try {
+			counts = new DatasetLoader(shards, locks, versions).load(lang, in, clean, replace, merge);
+		} catch (WebApplicationException e) {
+			throw e;
+		} catch (RiotException e) {
+			throw new WebApplicationException(e, Response.Status.BAD_REQUEST);
+		} catch (Exception e) {
+			throw new WebApplicationException(e, Response.Status.INTERNAL_SERVER_ERROR);
+		}
+
+		Writer writer = new OutputStreamWriter(output, "UTF-8");
+		long total = 0;
+		for (Map.Entry<String, Long> entry : counts.entrySet()) {
+			writer.write(entry.getKey() + " " + entry.getValue() + "\n");
+			total += entry.getValue();
+		}
+		if ( metrics != null ) {
+			metrics.triplesLoaded(mediaType, total);
+		}
+		RequestTimer.recordTriples(total);
+		writer.flush();
+	}
+
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.api.sparql11.http;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.graph.TripleMatch;
+import com.hp.hpl.jena.graph.compose.MultiUnion;
+import com.hp.hpl.jena.graph.impl.WrappedGraph;
+import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.query.QueryExecException;
+import com.hp.hpl.jena.shared.Lock;
+import com.hp.hpl.jena.sparql.core.DatasetGraphCollection;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+import com.hp.hpl.jena.util.iterator.WrappedIterator;
+
+/**
+ * The graphs of the {@link GraphCatalog} as a dataset for SPARQL queries, each under its
+ * own URI rather than the name of its current generation, from whichever shard it is
+ * in. The default graph is empty unless it is given, as the merge of some graphs, and
+ * the named graphs can be limited to some of them, as FROM and FROM NAMED do.
+ *
+ * It has to be read with the read lock of its datasets held, see {@link #lock()}. A
+ * query then sees the graphs as they are, except that a write that is moved in in
+ * several batches, a big merge, can be seen half way. Replacing a graph, which swaps in
+ * a new generation, is seen all at once.
+ *
+ * Every triple read goes through {@link #check()}, so that a query that has run out of
+ * time, or been cancelled, stops at the next triple rather than at the next result,
+ * even while it is sorting or joining.
+ *
+ * Nothing is looked up in the catalog before {@link #lock()}, the default graph
+ * included, so that a graph replaced in between is not read in a generation that has
+ * gone to the trash.
+ */
+public class CatalogDatasetGraph extends DatasetGraphCollection {
+
+	private DatasetShards shards = null;
+	private Collection<String> defaults = null;
+	private Set<String> named = null;
+	private Graph defaultGraph = null;
+	private List<Dataset> locked = null;
+	private long timeoutMillis = 0;
+	private long deadline = 0;
+	private volatile boolean cancelled = false;
+
+	/**
+	 * @param defaults the graphs merged into the default graph, empty for an empty default graph
+	 * @param named the named graphs, or null for all of them
+	 * @param timeoutMillis how long the dataset can be read for once locked, 0 for ever
+	 */
+	public CatalogDatasetGraph(DatasetShards shards, Collection<String> defaults, Collection<String> named, long timeoutMillis) {
+		this.shards = shards;
+		this.defaults = new LinkedHashSet<String>(defaults);
+		this.named = ( named != null ) ? new LinkedHashSet<String>(named) : null;
+		this.timeoutMillis = timeoutMillis;
+		// only the shards a query can read from, in order, as every reader of several shards does
+		Set<Integer> used = new TreeSet<Integer>();
+		if ( named == null ) {
+			for (int shard = 0; shard < shards.size(); shard++) {
+				used.add(shard);
+			}
+		} else {
+			for (String uri : named) {
+				used.add(shards.getShard(uri));
+			}
+		}
+		for (String uri : defaults) {
+			used.add(shards.getShard(uri));
+		}
+		locked = new ArrayList<Dataset>(used.size());
+		for (int shard : used) {
+			locked.add(shards.getDataset(shard));
+		}
+	}
+
+	/**
+	 * Takes the read lock of the datasets the graphs are in, and starts the clock.
+	 */
+	public void lock() {
+		for (Dataset dataset : locked) {
+			dataset.getLock().enterCriticalSection(Lock.READ);
+		}
+		if ( timeoutMillis > 0 ) {
+			deadline = System.nanoTime() + timeoutMillis * 1000000;
+		}
+	}
+
+	public void unlock() {
+		List<Dataset> reversed = new ArrayList<Dataset>(locked);
+		Collections.reverse(reversed);
+		for (Dataset dataset : reversed) {
+			dataset.getLock().leaveCriticalSection();
+		}
+	}
+
+	/**
+	 * Stops the query reading the dataset at the next triple, e.g. once its client has gone.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	/**
+	 * @return how much longer the dataset can be read for, in milliseconds and at least 1, or 0 for ever
+	 */
+	public long getRemainingMillis() {
+		if ( deadline == 0 ) {
+			return 0;
+		}
+		return Math.max(1, ( deadline - System.nanoTime() ) / 1000000);
+	}
+
+	/**
+	 * @throws CancelledException once the dataset has been cancelled
+	 * @throws TimeoutException once the dataset has been read for longer than allowed
+	 */
+	public void check() {
+		if ( cancelled ) {
+			throw new CancelledException("Query cancelled");
+		}
+		if ( ( deadline != 0 ) && ( System.nanoTime() - deadline > 0 ) ) {
+			throw new TimeoutException();
+		}
+	}
+
+	/**
+	 * Made on first use, with the lock held.
+	 */
+	@Override
+	public Graph getDefaultGraph() {
+		if ( defaultGraph == null ) {
+			if ( defaults.isEmpty() ) {
+				defaultGraph = Graph.emptyGraph;
+			} else if ( defaults.size() == 1 ) {
+				defaultGraph = graph(defaults.iterator().next());
+			} else {
+				MultiUnion union = new MultiUnion();
+				for (String uri : defaults) {
+					union.addGraph(graph(uri));
+				}
+				defaultGraph = union;
+			}
+		}
+		return defaultGraph;
+	}
+
+	@Override
+	public Graph getGraph(Node node) {
+		if ( !containsGraph(node) ) {
+			return Graph.emptyGraph;
+		}
+		return graph(node.getURI());
+	}
+
+	@Override
+	public boolean containsGraph(Node node) {
+		return node.isURI() && ( ( named == null ) || named.contains(node.getURI()) ) && shards.getCatalog().contains(node.getURI());
+	}
+
+	@Override
+	public Iterator<Node> listGraphNodes() {
+		final Iterator<String> uris = ( named != null ) ? named.iterator() : new Iterator<String>() {
+			private Iterator<GraphCatalog.Entry> entries = shards.getCatalog().list(null, null);
+
+			@Override
+			public boolean hasNext() {
+				return entries.hasNext();
+			}
+
+			@Override
+			public String next() {
+				return entries.next().getUri();
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+		// graphs named in FROM NAMED but not there are left out
+		return new Iterator<Node>() {
+			private Node next = null;
+
+			@Override
+			public boolean hasNext() {
+				while ( ( next == null ) && uris.hasNext() ) {
+					String uri = uris.next();
+					if ( shards.getCatalog().contains(uri) ) {
+						next = Node.createURI(uri);
+					}
+				}
+				return next != null;
+			}
+
+			@Override
+			public Node next() {
+				if ( !hasNext() ) {
+					throw new NoSuchElementException();
+				}
+				Node node = next;
+				next = null;
+				return node;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	private Graph graph(String uri) {
+		Dataset dataset = shards.getDataset(uri);
+		return new CheckedGraph(dataset.asDatasetGraph().getGraph(shards.getCatalog().getNode(uri)));
+	}
+
+	/**
+	 * Thrown from inside a query that has been cancelled.
+	 */
+	public static class CancelledException extends QueryExecException {
+
+		private static final long serialVersionUID = 1L;
+
+		public CancelledException(String message) {
+			super(message);
+		}
+
+	}
+
+	/**
+	 * Thrown from inside a query that has run out of time.
+	 */
+	public static class TimeoutException extends CancelledException {
+
+		private static final long serialVersionUID = 1L;
+
+		public TimeoutException() {
+			super("Query timed out");
+		}
+
+	}
+
+	private class CheckedGraph extends WrappedGraph {
+
+		public CheckedGraph(Graph base) {
+			super(base);
+		}
+
+		@Override
+		public ExtendedIterator<Triple> find(TripleMatch m) {
+			return new CheckedIterator(base.find(m));
+		}
+
+		@Override
+		public ExtendedIterator<Triple> find(Node s, Node p, Node o) {
+			return new CheckedIterator(base.find(s, p, o));
+		}
+
+	}
+
+	private class CheckedIterator extends WrappedIterator<Triple> {
+
+		public CheckedIterator(Iterator<Triple> base) {
+			super(base);
+		}
+
+		@Override
+		public boolean hasNext() {
+			check();
+			return super.hasNext();
+		}
+
+	}
+
+}
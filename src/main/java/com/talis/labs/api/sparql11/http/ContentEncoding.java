@@ -0,0 +1,190 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.api.sparql11.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+/**
+ * Negotiation and streaming implementation of the gzip and deflate content codings.
+ *
+ * The minimum size worth compressing and the compression level can be set with the
+ * rdf-api.compression.min-size and rdf-api.compression.level system properties.
+ */
+public class ContentEncoding {
+
+	public static final String GZIP = "gzip";
+	public static final String DEFLATE = "deflate";
+	public static final String IDENTITY = "identity";
+
+	public static final int DEFAULT_MIN_SIZE = 1024;
+	public static final int MIN_SIZE = Integer.getInteger("rdf-api.compression.min-size", DEFAULT_MIN_SIZE);
+	public static final int LEVEL = Integer.getInteger("rdf-api.compression.level", Deflater.DEFAULT_COMPRESSION);
+
+	private static final int BUFFER_SIZE = 8 * 1024;
+
+	/**
+	 * @return the preferred supported coding listed in an Accept-Encoding header, or null for no coding
+	 */
+	public static String negotiate(String acceptEncoding) {
+		if ( acceptEncoding == null ) {
+			return null;
+		}
+		String best = null;
+		float bestQ = 0;
+		for (String coding : acceptEncoding.split(",")) {
+			String[] parts = coding.split(";");
+			String name = parts[0].trim().toLowerCase();
+			float q = 1;
+			for (int i = 1; i < parts.length; i++) {
+				String param = parts[i].trim();
+				if ( param.startsWith("q=") ) {
+					try {
+						q = Float.parseFloat(param.substring(2));
+					} catch (NumberFormatException e) {
+						q = 0;
+					}
+				}
+			}
+			if ( "*".equals(name) || "x-gzip".equals(name) ) {
+				name = GZIP;
+			}
+			// prefer gzip over deflate on ties, deflate is implemented inconsistently by clients
+			if ( ( GZIP.equals(name) || DEFLATE.equals(name) ) && ( ( q > bestQ ) || ( ( q == bestQ ) && GZIP.equals(name) ) ) && ( q > 0 ) ) {
+				best = name;
+				bestQ = q;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * @return a stream that compresses to out with the given coding, or null for no coding;
+	 * callers must call finish() on it, which also releases the compressor even if it
+	 * fails, but not close() it
+	 */
+	public static DeflaterOutputStream encode(OutputStream out, String coding) throws IOException {
+		if ( GZIP.equals(coding) ) {
+			return new GZIPOutputStream(out, BUFFER_SIZE) {
+				{
+					def.setLevel(LEVEL);
+				}
+				@Override
+				public void finish() throws IOException {
+					try {
+						super.finish();
+					} finally {
+						def.end();
+					}
+				}
+			};
+		} else if ( DEFLATE.equals(coding) ) {
+			return new DeflaterOutputStream(out, new Deflater(LEVEL), BUFFER_SIZE) {
+				@Override
+				public void finish() throws IOException {
+					try {
+						super.finish();
+					} finally {
+						def.end();
+					}
+				}
+			};
+		}
+		return null;
+	}
+
+	/**
+	 * @return a stream that decompresses a request body sent with the given Content-Encoding
+	 * @throws WebApplicationException with 415 if the coding is not supported
+	 */
+	public static InputStream decode(InputStream in, String contentEncoding) throws IOException, WebApplicationException {
+		if ( contentEncoding == null ) {
+			return in;
+		}
+		String coding = contentEncoding.trim().toLowerCase();
+		if ( ( coding.length() == 0 ) || IDENTITY.equals(coding) ) {
+			return in;
+		} else if ( GZIP.equals(coding) || "x-gzip".equals(coding) ) {
+			return new GZIPInputStream(in, BUFFER_SIZE);
+		} else if ( DEFLATE.equals(coding) ) {
+			return new InflaterInputStream(in);
+		}
+		throw new WebApplicationException(Response.Status.UNSUPPORTED_MEDIA_TYPE);
+	}
+
+	/**
+	 * @return a streaming output which compresses what the given one writes
+	 */
+	public static StreamingOutput encode(final StreamingOutput output, final String coding) {
+		return new StreamingOutput() {
+			@Override
+			public void write(OutputStream out) throws IOException, WebApplicationException {
+				DeflaterOutputStream encoded = encode(out, coding);
+				if ( encoded == null ) {
+					output.write(out);
+					return;
+				}
+				boolean written = false;
+				try {
+					output.write(encoded);
+					written = true;
+				} finally {
+					if ( written ) {
+						// the container closes out
+						encoded.finish();
+					} else {
+						release(encoded);
+					}
+				}
+			}
+		};
+	}
+
+	/**
+	 * Releases the compressor of a stream whose writer failed, without hiding why it did.
+	 */
+	private static void release(DeflaterOutputStream encoded) {
+		try {
+			encoded.finish();
+		} catch (IOException e) {
+			// the output is broken already
+		}
+	}
+
+	/**
+	 * @return a streaming output which compresses the given bytes
+	 */
+	public static StreamingOutput encode(final byte[] content, final String coding) {
+		return encode(new StreamingOutput() {
+			@Override
+			public void write(OutputStream out) throws IOException {
+				out.write(content);
+			}
+		}, coding);
+	}
+
+}
@@ -0,0 +1,446 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.api.sparql11.http;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.locks.ReadWriteLock;
+
+import org.openjena.atlas.lib.Sink;
+import org.openjena.riot.Lang;
+import org.openjena.riot.RiotException;
+import org.openjena.riot.RiotReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.shared.Lock;
+import com.hp.hpl.jena.sparql.core.DatasetGraph;
+import com.hp.hpl.jena.sparql.core.Quad;
+import com.hp.hpl.jena.tdb.TDB;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+
+/**
+ * Loads a quad document (N-Quads, TriG) into the named graphs it mentions, in one pass.
+ *
+ * Like {@link GraphLoader}, quads are parsed as they arrive and written in batches into
+ * staging graphs, one per target graph, and nothing is published unless the whole
+ * document parses. A graph being replaced is staged in a new generation of it, see
+ * {@link GraphCatalog}, which becomes the current one in a single step while the old
+ * one is removed in the background, so that neither readers nor a crash ever see it
+ * half replaced. Graphs are then published in groups holding about a batch worth of
+ * triples: the write locks of every graph in a group are taken together, the triples
+ * of the graphs added to are moved under a single dataset write lock, and the graphs
+ * replaced are swapped together, so loading many small graphs costs a lock acquisition
+ * and a sync per batch rather than per graph. Each graph is published atomically, the
+ * document as a whole is not.
+ *
+ * With several {@link DatasetShards} every graph is staged in, and published from, the
+ * shard it belongs to, and groups never span shards.
+ */
+public class DatasetLoader {
+
+	private static final Logger logger = LoggerFactory.getLogger(DatasetLoader.class);
+
+	private DatasetShards shards = null;
+	private GraphLockManager locks = null;
+	private GraphVersions versions = null;
+	private int batchSize = GraphLoader.DEFAULT_BATCH_SIZE;
+
+	public DatasetLoader(Dataset dataset, GraphLockManager locks, GraphVersions versions) {
+		this(dataset, locks, versions, GraphLoader.DEFAULT_BATCH_SIZE);
+	}
+
+	public DatasetLoader(Dataset dataset, GraphLockManager locks, GraphVersions versions, int batchSize) {
+		this(new DatasetShards(dataset, locks, versions), locks, versions, batchSize);
+	}
+
+	public DatasetLoader(DatasetShards shards, GraphLockManager locks, GraphVersions versions) {
+		this(shards, locks, versions, GraphLoader.DEFAULT_BATCH_SIZE);
+	}
+
+	public DatasetLoader(DatasetShards shards, GraphLockManager locks, GraphVersions versions, int batchSize) {
+		this.shards = shards;
+		this.locks = locks;
+		this.versions = versions;
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * A graph is replaced if it is in replace, or if clean is set and it is not in merge.
+	 * Otherwise the triples loaded are added to it.
+	 *
+	 * @return the number of quads loaded into each graph, in the order the graphs were first seen
+	 * @throws RiotException if the document cannot be parsed or has quads in the default graph
+	 */
+	public Map<String, Long> load(Lang lang, InputStream in, boolean clean, Set<String> replace, Set<String> merge) {
+		String prefix = GraphLoader.STAGING_GRAPH_PREFIX + UUID.randomUUID() + ":";
+		StagingSink sink = new StagingSink(prefix, clean, replace, merge);
+		long start = System.nanoTime();
+		try {
+			if ( lang == Lang.NQUADS ) {
+				// one quad per line, parsed on several cores
+				shards.getParser().parseQuads(in, sink);
+			} else {
+				RiotReader.parseQuads(in, lang, null, sink);
+			}
+			sink.flush();
+			RequestTimer.record(RequestTimer.PARSE, start);
+		} catch (RuntimeException e) {
+			logger.info("Parsing quads failed, discarding {} staged graphs", sink.getGraphs().size());
+			for (List<Staged> staged : byShard(sink.getGraphs().values())) {
+				if ( !staged.isEmpty() ) {
+					new Mover(staged).discard();
+				}
+			}
+			throw e;
+		}
+
+		List<List<Staged>> groups = byShard(new ArrayList<Staged>());
+		long[] sizes = new long[shards.size()];
+		for (Staged staged : sink.getGraphs().values()) {
+			List<Staged> group = groups.get(staged.shard);
+			group.add(staged);
+			sizes[staged.shard] += staged.count;
+			if ( sizes[staged.shard] >= batchSize ) {
+				publish(group);
+				group.clear();
+				sizes[staged.shard] = 0;
+			}
+		}
+		for (List<Staged> group : groups) {
+			if ( !group.isEmpty() ) {
+				publish(group);
+			}
+		}
+
+		Map<String, Long> counts = new LinkedHashMap<String, Long>();
+		for (Staged staged : sink.getGraphs().values()) {
+			counts.put(staged.uri, staged.count);
+		}
+		logger.info("Loaded {} quads into {} graphs", sink.getCount(), counts.size());
+
+		return counts;
+	}
+
+	private List<List<Staged>> byShard(Collection<Staged> graphs) {
+		List<List<Staged>> result = new ArrayList<List<Staged>>(shards.size());
+		for (int shard = 0; shard < shards.size(); shard++) {
+			result.add(new ArrayList<Staged>());
+		}
+		for (Staged staged : graphs) {
+			result.get(staged.shard).add(staged);
+		}
+		return result;
+	}
+
+	/**
+	 * Publishes graphs that are all in the same shard.
+	 */
+	private void publish(List<Staged> group) {
+		List<String> uris = new ArrayList<String>(group.size());
+		List<Staged> added = new ArrayList<Staged>();
+		Map<String, Long> generations = new LinkedHashMap<String, Long>();
+		Map<String, GraphCatalog.Change> changes = new HashMap<String, GraphCatalog.Change>();
+		for (Staged staged : group) {
+			uris.add(staged.uri);
+			if ( staged.replace ) {
+				generations.put(staged.uri, staged.generation);
+				changes.put(staged.uri, staged.change);
+			} else {
+				added.add(staged);
+			}
+		}
+		Dataset dataset = shards.getDataset(group.get(0).shard);
+		if ( !generations.isEmpty() ) {
+			// the new generations are on disk before TDB says they are current
+			sync(dataset);
+		}
+		List<ReadWriteLock> graphLocks = locks.getLocks(uris);
+		for (ReadWriteLock graphLock : graphLocks) {
+			graphLock.writeLock().lock();
+		}
+		try {
+			if ( !added.isEmpty() ) {
+				for (Staged staged : added) {
+					// the generation of a graph only changes under its write lock
+					staged.target = shards.getCatalog().getNode(staged.uri);
+				}
+				try {
+					new Mover(added).publish();
+				} catch (RuntimeException e) {
+					recount(dataset, added);
+					throw e;
+				}
+				for (Staged staged : added) {
+					shards.getCatalog().update(staged.uri, staged.change);
+				}
+			}
+			if ( generations.isEmpty() ) {
+				sync(dataset);
+			} else {
+				// syncs what has just been added too
+				long start = System.nanoTime();
+				shards.getReclaimer().trash(dataset, shards.getCatalog(), generations, changes);
+				RequestTimer.record(RequestTimer.SWAP, start);
+			}
+			for (String uri : uris) {
+				versions.bump(uri);
+			}
+		} finally {
+			Collections.reverse(graphLocks);
+			for (ReadWriteLock graphLock : graphLocks) {
+				graphLock.writeLock().unlock();
+			}
+		}
+	}
+
+	private void recount(Dataset dataset, List<Staged> group) {
+		Lock lock = dataset.getLock();
+		try {
+			lock.enterCriticalSection(Lock.READ);
+			for (Staged staged : group) {
+				shards.getCatalog().recount(staged.uri, dataset.asDatasetGraph().getGraph(staged.target));
+			}
+		} finally {
+			lock.leaveCriticalSection();
+		}
+	}
+
+	private void sync(Dataset dataset) {
+		Lock lock = dataset.getLock();
+		try {
+			lock.enterCriticalSection(Lock.WRITE);
+			long start = System.nanoTime();
+			TDB.sync(dataset);
+			RequestTimer.record(RequestTimer.SYNC, start);
+		} finally {
+			lock.leaveCriticalSection();
+		}
+	}
+
+	private static class Staged {
+
+		private String uri = null;
+		private Node target = null;
+		private Node staging = null;
+		private int shard = 0;
+		private long count = 0;
+		private boolean replace = false;
+		private long generation = 0;
+		private GraphCatalog.Change change = new GraphCatalog.Change(false);
+
+		public Staged(String uri, Node staging, int shard) {
+			this.uri = uri;
+			this.staging = staging;
+			this.shard = shard;
+		}
+
+		/**
+		 * A graph being replaced, staged in a new generation of it.
+		 */
+		public Staged(String uri, long generation, int shard) {
+			this(uri, GraphCatalog.node(uri, generation), shard);
+			this.replace = true;
+			this.generation = generation;
+		}
+
+	}
+
+	/**
+	 * Moves triples of several graphs of the same shard, up to a batch at a time across
+	 * all of them, each batch under one dataset write lock.
+	 */
+	private class Mover {
+
+		private Dataset dataset = null;
+		private List<Staged> graphs = null;
+		private int next = 0;
+
+		public Mover(List<Staged> graphs) {
+			this.dataset = shards.getDataset(graphs.get(0).shard);
+			this.graphs = graphs;
+		}
+
+		public void publish() {
+			long start = System.nanoTime();
+			while ( moveBatch(true) ) { }
+			RequestTimer.record(RequestTimer.ADD, start);
+		}
+
+		public void discard() {
+			while ( moveBatch(false) ) { }
+		}
+
+		/**
+		 * Moves the staged triples into their target graphs, or just drops them.
+		 */
+		private boolean moveBatch(boolean publish) {
+			Lock lock = dataset.getLock();
+			try {
+				lock.enterCriticalSection(Lock.WRITE);
+				DatasetGraph dsg = dataset.asDatasetGraph();
+				int moved = 0;
+				for ( ; ( next < graphs.size() ) && ( moved < batchSize ); next++) {
+					Staged staged = graphs.get(next);
+					moved += move(dsg.getGraph(staged.staging), publish ? dsg.getGraph(staged.target) : null, staged.change, batchSize - moved);
+					if ( moved >= batchSize ) {
+						break;
+					}
+				}
+				return moved > 0;
+			} finally {
+				lock.leaveCriticalSection();
+			}
+		}
+
+		/**
+		 * @return the number of triples moved, less than max only if the source is now empty
+		 */
+		private int move(Graph from, Graph to, GraphCatalog.Change change, int max) {
+			List<Triple> batch = new ArrayList<Triple>(Math.min(max, batchSize));
+			ExtendedIterator<Triple> iter = from.find(Node.ANY, Node.ANY, Node.ANY);
+			try {
+				while ( iter.hasNext() && ( batch.size() < max ) ) {
+					batch.add(iter.next());
+				}
+			} finally {
+				iter.close();
+			}
+			if ( to != null ) {
+				if ( change != null ) {
+					change.adding(batch, to);
+				}
+				to.getBulkUpdateHandler().add(batch);
+			}
+			from.getBulkUpdateHandler().delete(batch);
+			return batch.size();
+		}
+
+	}
+
+	/**
+	 * Writes parsed quads into the staging graph of their target graph, in the shard of
+	 * the target graph, taking the write lock of each shard once per batch.
+	 */
+	private class StagingSink implements Sink<Quad> {
+
+		private String prefix = null;
+		private boolean clean = false;
+		private Set<String> replace = null;
+		private Set<String> merge = null;
+		private Map<Node, Staged> graphs = new LinkedHashMap<Node, Staged>();
+		private Map<Node, Staged> shadows = new HashMap<Node, Staged>();
+		private List<List<Quad>> batches = null;
+		private int batched = 0;
+		private long count = 0;
+
+		public StagingSink(String prefix, boolean clean, Set<String> replace, Set<String> merge) {
+			this.prefix = prefix;
+			this.clean = clean;
+			this.replace = replace;
+			this.merge = merge;
+			this.batches = new ArrayList<List<Quad>>(shards.size());
+			for (int shard = 0; shard < shards.size(); shard++) {
+				batches.add(new ArrayList<Quad>());
+			}
+		}
+
+		@Override
+		public void send(Quad quad) {
+			Node graph = quad.getGraph();
+			if ( ( graph == null ) || quad.isDefaultGraph() || !graph.isURI() ) {
+				throw new RiotException("Quads must be in a named graph: " + quad);
+			}
+			Staged staged = graphs.get(graph);
+			if ( staged == null ) {
+				if ( graph.getURI().startsWith(GraphLoader.STAGING_GRAPH_PREFIX) ) {
+					throw new RiotException("Reserved graph name: " + graph.getURI());
+				}
+				String uri = graph.getURI();
+				if ( replace.contains(uri) || ( clean && !merge.contains(uri) ) ) {
+					staged = new Staged(uri, shards.getCatalog().allocate(uri), shards.getShard(uri));
+					shadows.put(staged.staging, staged);
+				} else {
+					staged = new Staged(uri, Node.createURI(prefix + graphs.size()), shards.getShard(uri));
+				}
+				graphs.put(graph, staged);
+			}
+			staged.count++;
+			batches.get(staged.shard).add(new Quad(staged.staging, quad.getSubject(), quad.getPredicate(), quad.getObject()));
+			batched++;
+			count++;
+			if ( batched >= batchSize ) {
+				flush();
+			}
+		}
+
+		@Override
+		public void flush() {
+			for (int shard = 0; shard < batches.size(); shard++) {
+				List<Quad> batch = batches.get(shard);
+				if ( batch.isEmpty() ) {
+					continue;
+				}
+				Dataset dataset = shards.getDataset(shard);
+				Lock lock = dataset.getLock();
+				try {
+					lock.enterCriticalSection(Lock.WRITE);
+					DatasetGraph dsg = dataset.asDatasetGraph();
+					for (Quad quad : batch) {
+						// the triples of a new generation are counted as they are written
+						Staged staged = shadows.get(quad.getGraph());
+						if ( ( staged != null ) && !dsg.contains(quad) ) {
+							staged.change.added(quad.asTriple());
+						}
+						dsg.add(quad);
+					}
+				} finally {
+					lock.leaveCriticalSection();
+				}
+				batch.clear();
+			}
+			batched = 0;
+		}
+
+		@Override
+		public void close() {
+			flush();
+		}
+
+		public Map<Node, Staged> getGraphs() {
+			return graphs;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+	}
+
+}
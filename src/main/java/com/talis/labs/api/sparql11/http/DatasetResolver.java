@@ -16,6 +16,11 @@
 
 package com.talis.labs.api.sparql11.http;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
 import javax.ws.rs.ext.ContextResolver;
 import javax.ws.rs.ext.Provider;
 
@@ -26,21 +31,119 @@ import com.hp.hpl.jena.query.Dataset;
 import com.hp.hpl.jena.tdb.TDBFactory;
 import com.hp.hpl.jena.tdb.base.file.Location;
 
+/**
+ * Opens the TDB datasets graphs are sharded across, see {@link DatasetShards}. They are
+ * listed, in order, in {@link #LOCATIONS_PROPERTY}, e.g. /disk1/TDB,/disk2/TDB; without
+ * it there is a single dataset at {@link #LOCATION_PROPERTY}. Changing the number of
+ * locations moves graphs between shards, which has to be done offline with
+ * {@link ShardRebalancer}.
+ *
+ * The {@link GraphCatalog} is saved on shutdown, to {@link #CATALOG_FILE_PROPERTY} (by
+ * default next to the first dataset), once the removal of deleted graphs has stopped,
+ * and read back when the datasets are opened again. Without it, e.g. after a crash or
+ * after the datasets have been changed with other tools and the file deleted, or if
+ * the generations of the graphs it holds are not those recorded in the datasets, the
+ * catalog is rebuilt by reading every graph once.
+ */
 @Provider
-public class DatasetResolver implements ContextResolver<Dataset> {
+public class DatasetResolver implements ContextResolver<DatasetShards> {
 
 	private static final Logger logger = LoggerFactory.getLogger(DatasetResolver.class);
 
-	private static Dataset dataset = null;
+	public static final String LOCATION_PROPERTY = "rdf-api.tdb.location";
+	public static final String LOCATIONS_PROPERTY = "rdf-api.tdb.locations";
+	public static final String DEFAULT_LOCATION = "TDB";
+	public static final String CATALOG_FILE_PROPERTY = "rdf-api.catalog.file";
+	public static final String DEFAULT_CATALOG_FILE = "graph-catalog.txt";
+
+	private static DatasetShards shards = null;
 	
 	@Override
-	public Dataset getContext(Class<?> type) {
-		if ( dataset == null ) {
-			dataset = TDBFactory.createDataset(new Location("TDB"));
-			logger.info("Dataset {} created", dataset);
+	public DatasetShards getContext(Class<?> type) {
+		return get();
+	}
+
+	// concurrent first requests must not open the same location twice
+	private static synchronized DatasetShards get() {
+		if ( shards == null ) {
+			Metrics metrics = new MetricsResolver().getContext(Metrics.class);
+			List<Dataset> datasets = new ArrayList<Dataset>();
+			for (String location : getLocations()) {
+				Dataset tdb = TDBFactory.createDataset(new Location(location));
+				datasets.add(new MeteredDataset(tdb, metrics));
+				logger.info("Dataset {} created at {}", tdb, location);
+			}
+			final File file = getCatalogFile();
+			shards = new DatasetShards(datasets, new GraphLockManagerResolver().getContext(GraphLockManager.class), new GraphVersionsResolver().getContext(GraphVersions.class), openCatalog(datasets, file));
+			final DatasetShards opened = shards;
+			// one hook, as hooks run concurrently and the catalog must not change while it is saved
+			Runtime.getRuntime().addShutdownHook(new Thread("rdf-api-shards") {
+				@Override
+				public void run() {
+					try {
+						opened.close();
+					} catch (InterruptedException e) {
+						logger.warn("Interrupted while stopping the removal of deleted graphs, not saving the graph catalog");
+						return;
+					}
+					try {
+						opened.save(file);
+					} catch (IOException e) {
+						logger.warn("Cannot save the graph catalog to {}", file, e);
+					}
+				}
+			});
 		} 
 
-		return dataset;
+		return shards;
+	}
+
+	private static GraphCatalog openCatalog(List<Dataset> datasets, File file) {
+		GraphCatalog catalog = new GraphCatalog();
+		boolean loaded = false;
+		try {
+			loaded = catalog.load(file);
+		} catch (IOException e) {
+			logger.warn("Cannot read the graph catalog from {}", file, e);
+		}
+		if ( loaded && !catalog.agrees(datasets) ) {
+			logger.warn("The graph catalog in {} does not agree with the datasets, rebuilding it", file);
+			catalog = new GraphCatalog();
+			loaded = false;
+		}
+		if ( !loaded ) {
+			long start = System.currentTimeMillis();
+			for (Dataset dataset : datasets) {
+				catalog.scan(dataset);
+			}
+			logger.info("Catalog of {} graphs built in {}ms", catalog.size(), System.currentTimeMillis() - start);
+		}
+		return catalog;
+	}
+
+	private static File getCatalogFile() {
+		String name = System.getProperty(CATALOG_FILE_PROPERTY);
+		return ( name != null ) ? new File(name) : new File(getLocations().get(0), DEFAULT_CATALOG_FILE);
+	}
+
+	/**
+	 * @return the configured locations, one per shard
+	 */
+	public static List<String> getLocations() {
+		return parseLocations(System.getProperty(LOCATIONS_PROPERTY, System.getProperty(LOCATION_PROPERTY, DEFAULT_LOCATION)));
+	}
+
+	public static List<String> parseLocations(String value) {
+		List<String> locations = new ArrayList<String>();
+		for (String location : value.split(",")) {
+			if ( location.trim().length() > 0 ) {
+				locations.add(location.trim());
+			}
+		}
+		if ( locations.isEmpty() ) {
+			throw new IllegalArgumentException("No TDB location in " + value);
+		}
+		return locations;
 	}
 	
 }
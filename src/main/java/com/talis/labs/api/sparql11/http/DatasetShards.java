@@ -0,0 +1,158 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.api.sparql11.http;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.shared.Lock;
+
+/**
+ * The TDB datasets graphs are stored in, each graph in exactly one of them as decided
+ * by a {@link ShardRing}.
+ *
+ * Each shard has its own dataset lock, its own syncs and its own {@link GroupCommitter},
+ * so writes to graphs in different shards do not wait for each other. With a single
+ * shard this is just the one dataset. The {@link GraphCatalog} and the
+ * {@link GraphReclaimer} cover all the shards; graphs left in the trash of a shard are
+ * queued for removal as soon as the shards are opened.
+ */
+public class DatasetShards {
+
+	private List<Dataset> datasets = null;
+	private List<GroupCommitter> committers = null;
+	private GraphCatalog catalog = null;
+	private GraphReclaimer reclaimer = new GraphReclaimer();
+	private ParallelParser parser = new ParallelParser();
+	private ShardRing ring = null;
+
+	public DatasetShards(Dataset dataset, GraphLockManager locks, GraphVersions versions) {
+		this(Collections.singletonList(dataset), locks, versions);
+	}
+
+	public DatasetShards(List<Dataset> datasets, GraphLockManager locks, GraphVersions versions) {
+		this(datasets, locks, versions, scan(datasets));
+	}
+
+	/**
+	 * @param catalog the graphs already in the datasets
+	 */
+	public DatasetShards(List<Dataset> datasets, GraphLockManager locks, GraphVersions versions, GraphCatalog catalog) {
+		this.datasets = new ArrayList<Dataset>(datasets);
+		this.catalog = catalog;
+		this.ring = new ShardRing(datasets.size());
+		this.committers = new ArrayList<GroupCommitter>(datasets.size());
+		for (Dataset dataset : datasets) {
+			committers.add(new GroupCommitter(dataset, locks, versions, catalog));
+			reclaimer.resume(dataset, catalog);
+		}
+	}
+
+	private static GraphCatalog scan(List<Dataset> datasets) {
+		GraphCatalog catalog = new GraphCatalog();
+		for (Dataset dataset : datasets) {
+			catalog.scan(dataset);
+		}
+		return catalog;
+	}
+
+	public int size() {
+		return datasets.size();
+	}
+
+	public int getShard(String uri) {
+		return ring.shard(uri);
+	}
+
+	public Dataset getDataset(int shard) {
+		return datasets.get(shard);
+	}
+
+	public Dataset getDataset(String uri) {
+		return datasets.get(ring.shard(uri));
+	}
+
+	public List<Dataset> getDatasets() {
+		return Collections.unmodifiableList(datasets);
+	}
+
+	public GraphCatalog getCatalog() {
+		return catalog;
+	}
+
+	public GraphReclaimer getReclaimer() {
+		return reclaimer;
+	}
+
+	public ParallelParser getParser() {
+		return parser;
+	}
+
+	public GroupCommitter getCommitter(String uri) {
+		return committers.get(ring.shard(uri));
+	}
+
+	public long getGroups() {
+		long groups = 0;
+		for (GroupCommitter committer : committers) {
+			groups += committer.getGroups();
+		}
+		return groups;
+	}
+
+	public long getWrites() {
+		long writes = 0;
+		for (GroupCommitter committer : committers) {
+			writes += committer.getWrites();
+		}
+		return writes;
+	}
+
+	/**
+	 * Stops the removal of deleted graphs, see {@link GraphReclaimer#close()}. To be
+	 * called before the datasets are closed; the datasets themselves are left open.
+	 */
+	public void close() throws InterruptedException {
+		reclaimer.close();
+	}
+
+	/**
+	 * Saves the catalog, see {@link GraphCatalog#save(File)}, with the write lock of
+	 * every dataset held, in shard order, so that no write syncs while it is saved. To
+	 * be called after {@link #close()}, so that no removal is going on either.
+	 */
+	public void save(File file) throws IOException {
+		List<Lock> held = new ArrayList<Lock>(datasets.size());
+		try {
+			for (Dataset dataset : datasets) {
+				Lock lock = dataset.getLock();
+				lock.enterCriticalSection(Lock.WRITE);
+				held.add(lock);
+			}
+			catalog.save(file);
+		} finally {
+			for (int i = held.size() - 1; i >= 0; i--) {
+				held.get(i).leaveCriticalSection();
+			}
+		}
+	}
+
+}
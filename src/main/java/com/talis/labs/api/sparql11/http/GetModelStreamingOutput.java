@@ -16,47 +16,136 @@
 
 package com.talis.labs.api.sparql11.http;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
 
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.StreamingOutput;
 
+import org.openjena.riot.RiotException;
+
 import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.rdf.model.Model;
 import com.hp.hpl.jena.shared.Lock;
 
+/**
+ * Writes a graph for a GET. The pretty writers, and the binary and N-Triples ones, go
+ * through a {@link #snapshot()} taken under the read locks, which are released before
+ * the client is written to. The streaming writers, see {@link StreamingRDF}, are not
+ * spooled first: they serialize on a thread of their own, with the read locks held, into
+ * a window of at most {@link #DEFAULT_WINDOW_BYTES} that the request thread sends on to
+ * the client as it fills, so the first byte goes out at once whatever the size of the
+ * graph. A client slower than the serializer never holds it up: once the window is full
+ * the rest of the graph is spooled as a snapshot would be, and sent after the window, so
+ * the read locks are held for as long as the graph takes to serialize and no longer.
+ */
 public class GetModelStreamingOutput implements StreamingOutput {
 
+	public static final int DEFAULT_WINDOW_BYTES = Integer.getInteger("rdf-api.get.window-bytes", 1024 * 1024);
+	private static final int CHUNK_BYTES = 8192;
+
+	private static ExecutorService executor = null;
+
 	private String uri = null;
 	private String mediaType = null;
 	private Dataset dataset = null;
+	private GraphLockManager locks = null;
+	private GraphVersions versions = null;
+	private GraphCache cache = null;
+	private GraphCatalog catalog = null;
+	private SpoolOutputStream snapshot = null;
+	private int windowBytes = DEFAULT_WINDOW_BYTES;
 	
-	public GetModelStreamingOutput(Dataset dataset, String uri, String mediaType) {
+	public GetModelStreamingOutput(Dataset dataset, GraphLockManager locks, GraphVersions versions, GraphCache cache, GraphCatalog catalog, String uri, String mediaType) {
+		this(dataset, locks, versions, cache, catalog, uri, mediaType, DEFAULT_WINDOW_BYTES);
+	}
+
+	/**
+	 * @param windowBytes how much of a graph written by a streaming writer is kept in memory for the client
+	 */
+	public GetModelStreamingOutput(Dataset dataset, GraphLockManager locks, GraphVersions versions, GraphCache cache, GraphCatalog catalog, String uri, String mediaType, int windowBytes) {
 		this.dataset = dataset;
+		this.locks = locks;
+		this.versions = versions;
+		this.cache = cache;
+		this.catalog = catalog;
 		this.uri = uri;
 		this.mediaType = mediaType;
+		this.windowBytes = windowBytes;
 	}
 	
+	/**
+	 * Takes a snapshot of the graph now, rather than when the response is written, so
+	 * that its size is known and errors are raised before any header is sent.
+	 * 
+	 * @return the size of the snapshot in bytes
+	 */
+	public long snapshot() throws WebApplicationException {
+		if ( snapshot == null ) {
+			SpoolOutputStream spool = new SpoolOutputStream(Math.max(SpoolOutputStream.DEFAULT_THRESHOLD, cache.getMaxEntryBytes()));
+			long start = System.nanoTime();
+			try {
+				snapshot(spool);
+				RequestTimer.record(RequestTimer.SERIALIZE, start);
+			} catch (WebApplicationException e) {
+				spool.dispose();
+				throw e;
+			}
+			snapshot = spool;
+		}
+		return snapshot.size();
+	}
+
 	@Override
 	public void write(OutputStream output) throws IOException, WebApplicationException {
+		if ( ( snapshot == null ) && StreamingRDF.isStreaming(mediaType) ) {
+			stream(output);
+			return;
+		}
+		snapshot();
+		try {
+			// the lock has been released, a slow client now only holds up itself
+			snapshot.writeTo(output);
+		} finally {
+			snapshot.dispose();
+		}
+	}
+
+	/**
+	 * Deletes the snapshot, for responses whose body is never written (HEAD, errors).
+	 */
+	public void dispose() {
+		if ( snapshot != null ) {
+			snapshot.dispose();
+		}
+	}
+
+	private void snapshot(SpoolOutputStream snapshot) throws WebApplicationException {
+		ReadWriteLock graphLock = locks.getLock(uri);
+		graphLock.readLock().lock();
 		Lock lock = dataset.getLock();
 		try {
-			lock.enterCriticalSection(false);
-			if (dataset.containsNamedModel(uri)) {
-				String lang = null;
-				if (RDFMediaType.APPLICATION_TURTLE_CURRENT.equals(mediaType)) {
-					lang = "TURTLE";
-				} else if (RDFMediaType.APPLICATION_RDFXML.equals(mediaType)) {
-					lang = "RDF/XML";
-				} else if (RDFMediaType.APPLICATION_NTRIPLES.equals(mediaType)) {
-					lang = "N-TRIPLE";
-				} else {
-					throw new WebApplicationException(Response.Status.BAD_REQUEST);
-				}
-				dataset.getNamedModel(uri).write(output, lang);
-			} else {
-				throw new WebApplicationException(Response.Status.NOT_FOUND);
+			lock.enterCriticalSection(Lock.READ);
+			serialize(snapshot);
+			catalog.measured(uri, mediaType, snapshot.size());
+			if ( snapshot.isInMemory() ) {
+				// still under the graph read lock, so the version matches what has been written
+				cache.put(uri, mediaType, versions.get(uri).getNumber(), snapshot.toByteArray());
 			}
 		} catch (WebApplicationException e) {
 			throw e;
@@ -64,7 +153,308 @@ public class GetModelStreamingOutput implements StreamingOutput {
 			throw new WebApplicationException(e, Response.Status.INTERNAL_SERVER_ERROR);
 		} finally {
 			lock.leaveCriticalSection();
+			graphLock.readLock().unlock();
 		}		
 	}
 
+	/**
+	 * Writes the graph to the client as it is serialized, without waiting for a snapshot.
+	 */
+	private void stream(OutputStream output) throws IOException, WebApplicationException {
+		final Window window = new Window(windowBytes);
+		final RequestTimer timer = RequestTimer.get();
+		Future<Void> result = getExecutor().submit(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				// serializing is timed as part of the request all the same
+				RequestTimer.bind(timer);
+				try {
+					fill(window);
+				} finally {
+					window.finish();
+					RequestTimer.stop();
+				}
+				return null;
+			}
+		});
+		IOException failure = null;
+		try {
+			for (byte[] chunk = window.take(); chunk != null; chunk = window.take()) {
+				output.write(chunk);
+			}
+		} catch (IOException e) {
+			// the client has gone, the serializer stops at its next write
+			failure = e;
+			window.abandon();
+		}
+		try {
+			result.get();
+			// not before: a graph that has gone by the time it is read can still be answered 404
+			if ( failure == null ) {
+				window.writeOverflowTo(output);
+				output.flush();
+			}
+		} catch (IOException e) {
+			failure = e;
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if ( failure != null ) {
+				// stopped because the client has gone
+			} else if ( cause instanceof RuntimeException ) {
+				throw (RuntimeException) cause;
+			} else if ( cause instanceof Error ) {
+				throw (Error) cause;
+			} else {
+				throw new WebApplicationException(cause, Response.Status.INTERNAL_SERVER_ERROR);
+			}
+		} catch (InterruptedException e) {
+			window.abandon();
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} finally {
+			window.abandon();
+		}
+		if ( failure != null ) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * Serializes the graph into the window, under the read locks, on a thread of the
+	 * executor.
+	 */
+	private void fill(Window window) throws IOException, WebApplicationException {
+		// what fits in the cache is kept on the way, to be cached as a snapshot would be
+		TeeOutputStream tee = new TeeOutputStream(new BufferedOutputStream(window, CHUNK_BYTES), cache.getMaxEntryBytes());
+		long start = System.nanoTime();
+		ReadWriteLock graphLock = locks.getLock(uri);
+		graphLock.readLock().lock();
+		Lock lock = dataset.getLock();
+		try {
+			lock.enterCriticalSection(Lock.READ);
+			serialize(tee);
+			tee.flush();
+			catalog.measured(uri, mediaType, tee.getCount());
+			if ( tee.getCopy() != null ) {
+				cache.put(uri, mediaType, versions.get(uri).getNumber(), tee.getCopy());
+			}
+		} catch (RiotException e) {
+			// the client has gone
+			if ( e.getCause() instanceof IOException ) {
+				throw (IOException) e.getCause();
+			}
+			throw new WebApplicationException(e, Response.Status.INTERNAL_SERVER_ERROR);
+		} catch (WebApplicationException e) {
+			throw e;
+		} catch (RuntimeException e) {
+			throw new WebApplicationException(e, Response.Status.INTERNAL_SERVER_ERROR);
+		} finally {
+			lock.leaveCriticalSection();
+			graphLock.readLock().unlock();
+			RequestTimer.record(RequestTimer.SERIALIZE, start);
+		}
+	}
+
+	/**
+	 * Writes the current generation of the graph, to be called with the read locks held.
+	 */
+	private void serialize(OutputStream out) throws WebApplicationException {
+		if ( !catalog.contains(uri) ) {
+			throw new WebApplicationException(Response.Status.NOT_FOUND);
+		}
+		// the media type can ask for the streaming writer, see StreamingRDF
+		String type = StreamingRDF.getMediaType(mediaType);
+		String lang = null;
+		if (RDFMediaType.APPLICATION_TURTLE_CURRENT.equals(type)) {
+			lang = "TURTLE";
+		} else if (RDFMediaType.APPLICATION_RDFXML.equals(type)) {
+			lang = "RDF/XML";
+		} else if (RDFMediaType.APPLICATION_NTRIPLES.equals(type)) {
+			lang = "N-TRIPLE";
+		} else if (!RDFMediaType.APPLICATION_RDF_BINARY.equals(type)) {
+			throw new WebApplicationException(Response.Status.BAD_REQUEST);
+		}
+		Model model = dataset.getNamedModel(catalog.getNode(uri).getURI());
+		if ( StreamingRDF.isStreaming(mediaType) ) {
+			StreamingRDF.write(model.getGraph(), model, out, type);
+		} else if ( lang != null ) {
+			model.write(out, lang);
+		} else {
+			BinaryRDF.write(model.getGraph(), out);
+		}
+	}
+
+	private static synchronized ExecutorService getExecutor() {
+		if ( executor == null ) {
+			executor = Executors.newCachedThreadPool(new ThreadFactory() {
+				private AtomicInteger count = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "rdf-api-serialize-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return executor;
+	}
+
+	/**
+	 * The graph as serialized and not yet sent to the client. Up to a window of it is
+	 * kept in memory for the client to take as it comes; once the window is full the rest
+	 * goes to an overflow spool, to be sent after the window, so that the serializer, and
+	 * the locks it holds, never wait for the client.
+	 */
+	private static class Window extends OutputStream {
+
+		private int capacity = 0;
+		private LinkedList<byte[]> chunks = new LinkedList<byte[]>();
+		private int size = 0;
+		private SpoolOutputStream overflow = null;
+		private boolean finished = false;
+		private boolean abandoned = false;
+
+		public Window(int capacity) {
+			this.capacity = capacity;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			SpoolOutputStream spool = null;
+			synchronized (this) {
+				if ( abandoned ) {
+					throw new IOException("The client has gone");
+				}
+				// a write bigger than the window still goes in once the window is empty
+				if ( ( overflow == null ) && ( ( size == 0 ) || ( size + len <= capacity ) ) ) {
+					chunks.add(Arrays.copyOfRange(b, off, off + len));
+					size += len;
+					notifyAll();
+					return;
+				}
+				if ( overflow == null ) {
+					overflow = new SpoolOutputStream();
+				}
+				spool = overflow;
+			}
+			// only the serializer writes to the overflow, and it is only read once it has finished
+			spool.write(b, off, len);
+		}
+
+		/**
+		 * @return the next chunk written to the window, or null once the serializer has finished and every chunk has been taken
+		 */
+		public synchronized byte[] take() throws IOException {
+			while ( chunks.isEmpty() && !finished ) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException();
+				}
+			}
+			if ( chunks.isEmpty() ) {
+				return null;
+			}
+			byte[] chunk = chunks.removeFirst();
+			size -= chunk.length;
+			return chunk;
+		}
+
+		/**
+		 * Writes what did not fit in the window, once every chunk has been taken.
+		 */
+		public void writeOverflowTo(OutputStream output) throws IOException {
+			SpoolOutputStream spool = null;
+			synchronized (this) {
+				spool = overflow;
+			}
+			if ( spool != null ) {
+				spool.writeTo(output);
+			}
+		}
+
+		/**
+		 * Called by the serializer once it has written everything it will.
+		 */
+		public synchronized void finish() {
+			finished = true;
+			dispose();
+			notifyAll();
+		}
+
+		/**
+		 * Called once the client has gone, or has been sent everything: the chunks are
+		 * dropped, writes fail and the overflow is deleted as soon as the serializer has
+		 * finished with it.
+		 */
+		public synchronized void abandon() {
+			abandoned = true;
+			chunks.clear();
+			size = 0;
+			dispose();
+			notifyAll();
+		}
+
+		private void dispose() {
+			if ( finished && abandoned && ( overflow != null ) ) {
+				overflow.dispose();
+				overflow = null;
+			}
+		}
+
+	}
+
+	/**
+	 * Counts the bytes written through it and keeps a copy of them, as long as there are
+	 * no more than a limit.
+	 */
+	private static class TeeOutputStream extends FilterOutputStream {
+
+		private ByteArrayOutputStream copy = new ByteArrayOutputStream();
+		private int limit = 0;
+		private long count = 0;
+
+		public TeeOutputStream(OutputStream out, int limit) {
+			super(out);
+			this.limit = limit;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+			if ( copy != null ) {
+				if ( count > limit ) {
+					copy = null;
+				} else {
+					copy.write(b, off, len);
+				}
+			}
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * @return what has been written, or null if it was more than the limit
+		 */
+		public byte[] getCopy() {
+			return ( copy != null ) ? copy.toByteArray() : null;
+		}
+
+	}
+
 }
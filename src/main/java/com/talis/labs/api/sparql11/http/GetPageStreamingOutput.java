@@ -0,0 +1,145 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.api.sparql11.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.locks.ReadWriteLock;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.shared.Lock;
+
+/**
+ * Writes one page of a graph, see {@link GraphPager}. The page is read under the locks
+ * and serialized after they have been released.
+ */
+public class GetPageStreamingOutput implements StreamingOutput {
+
+	private String uri = null;
+	private String mediaType = null;
+	private Dataset dataset = null;
+	private GraphLockManager locks = null;
+	private GraphCatalog catalog = null;
+	private long offset = 0;
+	private int limit = GraphPager.DEFAULT_LIMIT;
+	private String cursor = null;
+	private String next = null;
+	private SpoolOutputStream snapshot = null;
+
+	public GetPageStreamingOutput(Dataset dataset, GraphLockManager locks, GraphCatalog catalog, String uri, String mediaType, long offset, int limit, String cursor) {
+		this.dataset = dataset;
+		this.locks = locks;
+		this.catalog = catalog;
+		this.uri = uri;
+		this.mediaType = mediaType;
+		this.offset = offset;
+		this.limit = limit;
+		this.cursor = cursor;
+	}
+
+	/**
+	 * @return the size of the serialized page in bytes
+	 */
+	public long snapshot() throws WebApplicationException {
+		if ( snapshot == null ) {
+			long start = System.nanoTime();
+			String lang = null;
+			if (RDFMediaType.APPLICATION_TURTLE_CURRENT.equals(mediaType)) {
+				lang = "TURTLE";
+			} else if (RDFMediaType.APPLICATION_RDFXML.equals(mediaType)) {
+				lang = "RDF/XML";
+			} else if (RDFMediaType.APPLICATION_NTRIPLES.equals(mediaType)) {
+				lang = "N-TRIPLE";
+			} else if (!RDFMediaType.APPLICATION_RDF_BINARY.equals(mediaType)) {
+				throw new WebApplicationException(Response.Status.BAD_REQUEST);
+			}
+
+			GraphPager.Page page = page();
+			next = page.getNext();
+			SpoolOutputStream spool = new SpoolOutputStream();
+			if ( lang != null ) {
+				Model model = ModelFactory.createDefaultModel();
+				for (Triple triple : page.getTriples()) {
+					model.getGraph().add(triple);
+				}
+				model.write(spool, lang);
+			} else {
+				BinaryRDF.Writer writer = new BinaryRDF.Writer(spool);
+				for (Triple triple : page.getTriples()) {
+					writer.send(triple);
+				}
+				writer.close();
+			}
+			snapshot = spool;
+			RequestTimer.record(RequestTimer.SERIALIZE, start);
+		}
+		return snapshot.size();
+	}
+
+	/**
+	 * @return the continuation token for the next page, or null if this is the last page
+	 */
+	public String getNext() {
+		return next;
+	}
+
+	@Override
+	public void write(OutputStream output) throws IOException, WebApplicationException {
+		snapshot();
+		try {
+			snapshot.writeTo(output);
+		} finally {
+			snapshot.dispose();
+		}
+	}
+
+	/**
+	 * Deletes the snapshot, for responses whose body is never written (HEAD, errors).
+	 */
+	public void dispose() {
+		if ( snapshot != null ) {
+			snapshot.dispose();
+		}
+	}
+
+	private GraphPager.Page page() throws WebApplicationException {
+		ReadWriteLock graphLock = locks.getLock(uri);
+		graphLock.readLock().lock();
+		Lock lock = dataset.getLock();
+		try {
+			lock.enterCriticalSection(Lock.READ);
+			if (catalog.contains(uri)) {
+				return new GraphPager(dataset.asDatasetGraph()).page(catalog.getNode(uri).getURI(), offset, limit, cursor);
+			} else {
+				throw new WebApplicationException(Response.Status.NOT_FOUND);
+			}
+		} catch (IllegalArgumentException e) {
+			throw new WebApplicationException(e, Response.Status.BAD_REQUEST);
+		} finally {
+			lock.leaveCriticalSection();
+			graphLock.readLock().unlock();
+		}
+	}
+
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.api.sparql11.http;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A byte bounded LRU cache of serialized graphs, keyed by graph URI and media type.
+ *
+ * Every entry remembers the version of the graph it was serialized from and is
+ * only returned for that version. Entries are also dropped as soon as the graph
+ * changes, since the cache listens to {@link GraphVersions}.
+ */
+public class GraphCache implements GraphVersions.Listener {
+
+	public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+	private long maxBytes = DEFAULT_MAX_BYTES;
+	private long bytes = 0;
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private final Set<String> mediaTypes = new CopyOnWriteArraySet<String>();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	public GraphCache() {
+		this(DEFAULT_MAX_BYTES);
+	}
+
+	public GraphCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * @return the largest serialization worth caching, so that a single graph cannot flush the whole cache
+	 */
+	public int getMaxEntryBytes() {
+		return (int) Math.min(Integer.MAX_VALUE, maxBytes / 16);
+	}
+
+	/**
+	 * @return the cached bytes, or null if there is nothing cached for that version of the graph
+	 */
+	public byte[] get(String uri, String mediaType, long version) {
+		String key = key(uri, mediaType);
+		synchronized (entries) {
+			Entry entry = entries.get(key);
+			if ( ( entry != null ) && ( entry.version == version ) ) {
+				hits.incrementAndGet();
+				return entry.bytes;
+			}
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	public void put(String uri, String mediaType, long version, byte[] content) {
+		if ( content.length > getMaxEntryBytes() ) {
+			return;
+		}
+		mediaTypes.add(mediaType);
+		String key = key(uri, mediaType);
+		synchronized (entries) {
+			Entry previous = entries.put(key, new Entry(version, content));
+			if ( previous != null ) {
+				bytes -= previous.bytes.length;
+			}
+			bytes += content.length;
+			Iterator<Map.Entry<String, Entry>> iter = entries.entrySet().iterator();
+			while ( ( bytes > maxBytes ) && iter.hasNext() ) {
+				bytes -= iter.next().getValue().bytes.length;
+				iter.remove();
+				evictions.incrementAndGet();
+			}
+		}
+	}
+
+	public void invalidate(String uri) {
+		synchronized (entries) {
+			for (String mediaType : mediaTypes) {
+				Entry entry = entries.remove(key(uri, mediaType));
+				if ( entry != null ) {
+					bytes -= entry.bytes.length;
+				}
+			}
+		}
+	}
+
+	@Override
+	public void graphChanged(String uri, GraphVersions.Version version) {
+		invalidate(uri);
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	public long getBytes() {
+		synchronized (entries) {
+			return bytes;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "GraphCache[bytes=" + getBytes() + ", hits=" + getHits() + ", misses=" + getMisses() + ", evictions=" + getEvictions() + "]";
+	}
+
+	private static String key(String uri, String mediaType) {
+		return mediaType + " " + uri;
+	}
+
+	private static class Entry {
+
+		private long version = 0;
+		private byte[] bytes = null;
+
+		public Entry(long version, byte[] bytes) {
+			this.version = version;
+			this.bytes = bytes;
+		}
+
+	}
+
+}
@@ -0,0 +1,566 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.api.sparql11.http;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hp.hpl.jena.datatypes.xsd.XSDDatatype;
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.shared.Lock;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+
+/**
+ * Every graph there is, with how many triples it has and about how big it is, so that
+ * existence checks, HEAD requests and the listing of graphs need neither a lock nor a
+ * TDB lookup. Versions and last modified times are kept by {@link GraphVersions}.
+ *
+ * Writers update the catalog while they still hold the graph write lock, so under the
+ * graph read lock it agrees with TDB. Triple counts are exact, byte sizes are those of
+ * the graph in N-Triples, estimated from the triples written. The exact size of a
+ * graph in a media type is also remembered once it has been serialized, until the next
+ * write.
+ *
+ * A graph exists as long as it has at least one triple, as in TDB.
+ *
+ * The catalog also knows where each graph is in TDB. At first a graph is stored under
+ * its own URI, but once a big graph has been deleted or replaced, its triples stay
+ * there while a {@link GraphReclaimer} removes them in the background, and the graph is
+ * stored under a new name, {@link #GENERATION_GRAPH_PREFIX} followed by the generation
+ * and the URI. A generation only changes under the graph write lock. Which generation
+ * is current is recorded in TDB too, in {@link #GENERATIONS_GRAPH}, so that generations
+ * being written but not yet current are told apart from it after a crash.
+ */
+public class GraphCatalog {
+
+	private static final Logger logger = LoggerFactory.getLogger(GraphCatalog.class);
+
+	public static final String GENERATION_GRAPH_PREFIX = "urn:x-rdf-api:generation:";
+	public static final String GENERATIONS_GRAPH = "urn:x-rdf-api:generations";
+
+	private static final Node GENERATIONS = Node.createURI(GENERATIONS_GRAPH);
+	private static final Node GENERATION = Node.createURI("urn:x-rdf-api:generation");
+
+	private final ConcurrentSkipListMap<String, Entry> entries = new ConcurrentSkipListMap<String, Entry>();
+	private final ConcurrentMap<String, Long> generations = new ConcurrentHashMap<String, Long>();
+	private final ConcurrentMap<String, Long> allocated = new ConcurrentHashMap<String, Long>();
+	private final AtomicLong changes = new AtomicLong();
+	private volatile File saved = null;
+
+	public GraphCatalog() {
+	}
+
+	/**
+	 * A catalog of the graphs already in a dataset.
+	 */
+	public GraphCatalog(Dataset dataset) {
+		scan(dataset);
+	}
+
+	public boolean contains(String uri) {
+		return entries.containsKey(uri);
+	}
+
+	/**
+	 * @return the name of the graph in TDB, to be called with the graph lock held
+	 */
+	public Node getNode(String uri) {
+		return node(uri, getGeneration(uri));
+	}
+
+	public long getGeneration(String uri) {
+		Long generation = generations.get(uri);
+		return ( generation != null ) ? generation : 0;
+	}
+
+	/**
+	 * Hands out a generation of a graph that has never been used, to be written before
+	 * it becomes the current one with {@link #moveTo(String, long)}, if it ever does.
+	 */
+	public synchronized long allocate(String uri) {
+		Long last = allocated.get(uri);
+		long generation = Math.max(getGeneration(uri), ( last != null ) ? last : 0) + 1;
+		allocated.put(uri, generation);
+		return generation;
+	}
+
+	/**
+	 * Makes sure a generation found in TDB is never handed out again.
+	 */
+	public synchronized void reserve(String uri, long generation) {
+		Long last = allocated.get(uri);
+		if ( ( last == null ) || ( last < generation ) ) {
+			allocated.put(uri, generation);
+		}
+	}
+
+	/**
+	 * Forgets a graph and makes another generation of it the current one, leaving the
+	 * triples of the previous generation where they are, for a {@link GraphReclaimer} to
+	 * remove. To be called with the graph write lock held, once the new generation has
+	 * been recorded in TDB, see {@link GraphReclaimer#trash(Dataset, GraphCatalog, String, long, Change)}.
+	 *
+	 * @return the name the triples of the previous generation are under in TDB
+	 */
+	public Node moveTo(String uri, long generation) {
+		Node previous = getNode(uri);
+		entries.remove(uri);
+		generations.put(uri, generation);
+		changed();
+		return previous;
+	}
+
+	/**
+	 * @return the name of a generation of a graph in TDB
+	 */
+	public static Node node(String uri, long generation) {
+		return Node.createURI(( generation == 0 ) ? uri : GENERATION_GRAPH_PREFIX + generation + ":" + uri);
+	}
+
+	/**
+	 * @return the current generation of the graphs of a dataset not at generation 0, to be called with the dataset lock held
+	 */
+	public static Map<String, Long> getGenerations(Dataset dataset) {
+		Map<String, Long> current = new HashMap<String, Long>();
+		ExtendedIterator<Triple> iter = dataset.asDatasetGraph().getGraph(GENERATIONS).find(Node.ANY, GENERATION, Node.ANY);
+		try {
+			while ( iter.hasNext() ) {
+				Triple triple = iter.next();
+				current.put(triple.getSubject().getURI(), Long.parseLong(triple.getObject().getLiteralLexicalForm()));
+			}
+		} finally {
+			iter.close();
+		}
+		return current;
+	}
+
+	/**
+	 * Records the current generation of a graph in a dataset, to be called with the
+	 * dataset write lock held and followed by a sync.
+	 */
+	public static void setGeneration(Dataset dataset, String uri, long generation) {
+		Graph graph = dataset.asDatasetGraph().getGraph(GENERATIONS);
+		Node subject = Node.createURI(uri);
+		graph.getBulkUpdateHandler().remove(subject, GENERATION, Node.ANY);
+		if ( generation > 0 ) {
+			graph.add(new Triple(subject, GENERATION, Node.createLiteral(Long.toString(generation), null, XSDDatatype.XSDlong)));
+		}
+	}
+
+	/**
+	 * @return the URI of the graph stored in TDB under the given name, or null if it is one of ours, such as a staging graph
+	 */
+	public static String getUri(String name) {
+		if ( name.startsWith(GENERATION_GRAPH_PREFIX) ) {
+			return name.substring(name.indexOf(':', GENERATION_GRAPH_PREFIX.length()) + 1);
+		}
+		return ( name.startsWith(GraphLoader.STAGING_GRAPH_PREFIX) || name.equals(GraphReclaimer.TRASH_GRAPH) || name.equals(GENERATIONS_GRAPH) ) ? null : name;
+	}
+
+	/**
+	 * @return the generation of the graph stored in TDB under the given name
+	 */
+	public static long getGeneration(Node name) {
+		String uri = name.getURI();
+		if ( uri.startsWith(GENERATION_GRAPH_PREFIX) ) {
+			return Long.parseLong(uri.substring(GENERATION_GRAPH_PREFIX.length(), uri.indexOf(':', GENERATION_GRAPH_PREFIX.length())));
+		}
+		return 0;
+	}
+
+	/**
+	 * @return the entry of the graph, or null if there is no such graph
+	 */
+	public Entry get(String uri) {
+		return entries.get(uri);
+	}
+
+	/**
+	 * @param prefix only the graphs whose URI starts with it, or all of them if it is null
+	 * @param after only the graphs whose URI comes after it, or all of them if it is null
+	 * @return the graphs, in URI order; the iterator sees writes made while it is in use, or not
+	 */
+	public Iterator<Entry> list(String prefix, String after) {
+		String from = prefix;
+		boolean inclusive = true;
+		if ( ( after != null ) && ( ( from == null ) || ( after.compareTo(from) >= 0 ) ) ) {
+			from = after;
+			inclusive = false;
+		}
+		ConcurrentNavigableMap<String, Entry> map = entries;
+		if ( prefix != null ) {
+			String to = prefix + Character.MAX_VALUE;
+			if ( from.compareTo(to) >= 0 ) {
+				return Collections.<Entry>emptyList().iterator();
+			}
+			map = map.subMap(from, inclusive, to, false);
+		} else if ( from != null ) {
+			map = map.tailMap(from, inclusive);
+		}
+		return map.values().iterator();
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @return the number of triples in all the graphs
+	 */
+	public long getTriples() {
+		long triples = 0;
+		for (Entry entry : entries.values()) {
+			triples += entry.triples;
+		}
+		return triples;
+	}
+
+	/**
+	 * Records a write, to be called with the graph write lock held.
+	 */
+	public void update(String uri, Change change) {
+		Entry previous = entries.get(uri);
+		long triples = change.triples;
+		long bytes = change.bytes;
+		if ( !change.replace && ( previous != null ) ) {
+			triples += previous.triples;
+			bytes += previous.bytes;
+		}
+		if ( triples > 0 ) {
+			entries.put(uri, new Entry(uri, triples, bytes));
+		} else {
+			entries.remove(uri);
+		}
+		changed();
+	}
+
+	/**
+	 * Records that a graph has been dropped, to be called with the graph write lock held.
+	 */
+	public void remove(String uri) {
+		entries.remove(uri);
+		changed();
+	}
+
+	/**
+	 * Counts a graph again, after a write that failed half way. To be called with the
+	 * graph write lock and the dataset lock held.
+	 */
+	public void recount(String uri, Graph graph) {
+		Change change = new Change(true);
+		ExtendedIterator<Triple> iter = graph.find(Node.ANY, Node.ANY, Node.ANY);
+		try {
+			while ( iter.hasNext() ) {
+				change.added(iter.next());
+			}
+		} finally {
+			iter.close();
+		}
+		update(uri, change);
+	}
+
+	/**
+	 * Remembers the exact size of the graph in a media type, to be called with the
+	 * graph read lock held.
+	 */
+	public void measured(String uri, String mediaType, long bytes) {
+		Entry entry = entries.get(uri);
+		if ( entry != null ) {
+			entry.sizes.put(mediaType, bytes);
+		}
+	}
+
+	/**
+	 * Adds the graphs of a dataset, reading each of them once. Only the current
+	 * generation of a graph is counted, but no new generation will reuse the name of
+	 * another one, whether it is in the trash or was left behind by a crash.
+	 */
+	public void scan(Dataset dataset) {
+		List<String> names = new ArrayList<String>();
+		Lock lock = dataset.getLock();
+		try {
+			lock.enterCriticalSection(Lock.READ);
+			for (Iterator<String> iter = dataset.listNames(); iter.hasNext(); ) {
+				names.add(iter.next());
+			}
+			for (Map.Entry<String, Long> generation : getGenerations(dataset).entrySet()) {
+				generations.put(generation.getKey(), generation.getValue());
+				reserve(generation.getKey(), generation.getValue());
+			}
+			Set<Node> trash = GraphReclaimer.getTrash(dataset);
+			for (Node node : trash) {
+				String uri = getUri(node.getURI());
+				if ( uri != null ) {
+					reserve(uri, getGeneration(node));
+				}
+			}
+			for (String name : names) {
+				String uri = getUri(name);
+				if ( uri == null ) {
+					continue;
+				}
+				Node node = Node.createURI(name);
+				reserve(uri, getGeneration(node));
+				if ( !trash.contains(node) && ( getGeneration(node) == getGeneration(uri) ) ) {
+					recount(uri, dataset.asDatasetGraph().getGraph(node));
+				}
+			}
+		} finally {
+			lock.leaveCriticalSection();
+		}
+	}
+
+	/**
+	 * Saves the catalog, e.g. on shutdown, to be read back with {@link #load(File)}. To be
+	 * called with the write lock of every dataset held, see {@link DatasetShards#save(File)}.
+	 * The file is deleted again as soon as the catalog changes, as it would no longer
+	 * agree with TDB.
+	 */
+	public synchronized void save(File file) throws IOException {
+		saved = file;
+		long before = changes.get();
+		File tmp = new File(file.getPath() + ".tmp");
+		Writer out = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+		try {
+			for (Entry entry : entries.values()) {
+				out.write(entry.uri + "\t" + entry.triples + "\t" + entry.bytes + "\t" + getGeneration(entry.uri) + "\n");
+			}
+			// and the generations of deleted graphs
+			for (Map.Entry<String, Long> generation : generations.entrySet()) {
+				if ( !entries.containsKey(generation.getKey()) ) {
+					out.write(generation.getKey() + "\t0\t0\t" + generation.getValue() + "\n");
+				}
+			}
+		} finally {
+			out.close();
+		}
+		if ( !tmp.renameTo(file) ) {
+			file.delete();
+			if ( !tmp.renameTo(file) ) {
+				throw new IOException("Cannot rename " + tmp + " to " + file);
+			}
+		}
+		if ( changes.get() != before ) {
+			changed();
+			return;
+		}
+		logger.info("Saved {} graphs to {}", entries.size(), file);
+	}
+
+	/**
+	 * @return whether the current generations of the graphs are those recorded in the
+	 * datasets, as they are unless a graph was replaced or deleted after the catalog was
+	 * saved, see {@link #load(File)}
+	 */
+	public boolean agrees(List<Dataset> datasets) {
+		Map<String, Long> recorded = new HashMap<String, Long>();
+		for (Dataset dataset : datasets) {
+			Lock lock = dataset.getLock();
+			try {
+				lock.enterCriticalSection(Lock.READ);
+				recorded.putAll(getGenerations(dataset));
+			} finally {
+				lock.leaveCriticalSection();
+			}
+		}
+		return recorded.equals(new HashMap<String, Long>(generations));
+	}
+
+	// a saved catalog no longer agrees with TDB, it must not be read on the next start
+	private void changed() {
+		changes.incrementAndGet();
+		File file = saved;
+		if ( ( file != null ) && file.delete() ) {
+			logger.warn("The graphs changed after the catalog was saved, deleted {}", file);
+		}
+	}
+
+	/**
+	 * Reads a saved catalog and deletes the file, so that it is never read again once
+	 * the graphs may have changed: after a crash the catalog has to be rebuilt with
+	 * {@link #scan(Dataset)}. Check that it {@link #agrees(List)} with the datasets
+	 * before using it.
+	 *
+	 * @return false if there was no saved catalog
+	 */
+	public synchronized boolean load(File file) throws IOException {
+		if ( !file.exists() ) {
+			return false;
+		}
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String line = null;
+			while ( ( line = in.readLine() ) != null ) {
+				String[] fields = line.split("\t");
+				if ( fields.length < 3 ) {
+					continue;
+				}
+				if ( Long.parseLong(fields[1]) > 0 ) {
+					entries.put(fields[0], new Entry(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2])));
+				}
+				if ( ( fields.length > 3 ) && ( Long.parseLong(fields[3]) > 0 ) ) {
+					generations.put(fields[0], Long.parseLong(fields[3]));
+				}
+			}
+		} finally {
+			in.close();
+		}
+		if ( !file.delete() ) {
+			throw new IOException("Cannot delete " + file + ", it would be stale after a crash");
+		}
+		logger.info("Loaded {} graphs from {}", entries.size(), file);
+		return true;
+	}
+
+	/**
+	 * @return about how many bytes the triple takes in N-Triples
+	 */
+	static long estimate(Triple triple) {
+		return estimate(triple.getSubject()) + estimate(triple.getPredicate()) + estimate(triple.getObject()) + 5;
+	}
+
+	private static long estimate(Node node) {
+		if ( node.isURI() ) {
+			return node.getURI().length() + 2;
+		} else if ( node.isLiteral() ) {
+			long length = node.getLiteralLexicalForm().length() + 2;
+			if ( ( node.getLiteralLanguage() != null ) && ( node.getLiteralLanguage().length() > 0 ) ) {
+				length += node.getLiteralLanguage().length() + 1;
+			}
+			if ( node.getLiteralDatatypeURI() != null ) {
+				length += node.getLiteralDatatypeURI().length() + 4;
+			}
+			return length;
+		} else if ( node.isBlank() ) {
+			return node.getBlankNodeLabel().length() + 2;
+		}
+		return node.toString().length();
+	}
+
+	/**
+	 * The triples a write adds to a graph, counted while they are being added.
+	 */
+	public static class Change {
+
+		private boolean replace = false;
+		private long triples = 0;
+		private long bytes = 0;
+
+		/**
+		 * @param replace whether the write replaces the graph, rather than adding to it
+		 */
+		public Change(boolean replace) {
+			this.replace = replace;
+		}
+
+		/**
+		 * Counts the triples about to be added to a graph, leaving out those it already
+		 * has. To be called before adding them, with the dataset lock held.
+		 */
+		public void adding(List<Triple> batch, Graph target) {
+			for (Triple triple : batch) {
+				if ( replace || !target.contains(triple) ) {
+					added(triple);
+				}
+			}
+		}
+
+		/**
+		 * Counts a triple that was not in the graph and has been added to it.
+		 */
+		public void added(Triple triple) {
+			triples++;
+			bytes += estimate(triple);
+		}
+
+		/**
+		 * Counts a triple that was in the graph and has been removed from it.
+		 */
+		public void removed(Triple triple) {
+			triples--;
+			bytes -= estimate(triple);
+		}
+
+		public long getTriples() {
+			return triples;
+		}
+
+	}
+
+	public static class Entry {
+
+		private String uri = null;
+		private long triples = 0;
+		private long bytes = 0;
+		private final ConcurrentMap<String, Long> sizes = new ConcurrentHashMap<String, Long>();
+
+		private Entry(String uri, long triples, long bytes) {
+			this.uri = uri;
+			this.triples = triples;
+			this.bytes = bytes;
+		}
+
+		public String getUri() {
+			return uri;
+		}
+
+		public long getTriples() {
+			return triples;
+		}
+
+		/**
+		 * @return about how many bytes the graph takes in N-Triples
+		 */
+		public long getBytes() {
+			return bytes;
+		}
+
+		/**
+		 * @return the exact size of the graph in the media type, or -1 if it is not known
+		 */
+		public long getSize(String mediaType) {
+			Long size = sizes.get(mediaType);
+			return ( size != null ) ? size : -1;
+		}
+
+	}
+
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.api.sparql11.http;
+
+import java.util.concurrent.locks.ReadWriteLock;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hp.hpl.jena.query.Dataset;
+
+/**
+ * Deletes a named graph, straight from TDB rather than through a SPARQL DROP.
+ *
+ * A graph is first put in the trash, which is quick: from then on the graph does not
+ * exist, writes go to a new generation of it in the {@link GraphCatalog}, and a restart
+ * finishes the delete if it is interrupted. Graphs of up to
+ * {@link #DEFAULT_BACKGROUND_TRIPLES} triples are then removed there and then, a chunk
+ * at a time with the dataset write lock released in between, holding the graph write
+ * lock throughout. The triples of bigger graphs are removed in the background by a
+ * {@link GraphReclaimer}.
+ */
+public class GraphDeleter {
+
+	private static final Logger logger = LoggerFactory.getLogger(GraphDeleter.class);
+
+	public static final long DEFAULT_BACKGROUND_TRIPLES = Long.getLong("rdf-api.delete.background-triples", 100000);
+
+	private Dataset dataset = null;
+	private GraphLockManager locks = null;
+	private GraphVersions versions = null;
+	private GraphCatalog catalog = null;
+	private GraphReclaimer reclaimer = null;
+	private long backgroundTriples = DEFAULT_BACKGROUND_TRIPLES;
+
+	public GraphDeleter(Dataset dataset, GraphLockManager locks, GraphVersions versions, GraphCatalog catalog, GraphReclaimer reclaimer) {
+		this(dataset, locks, versions, catalog, reclaimer, DEFAULT_BACKGROUND_TRIPLES);
+	}
+
+	/**
+	 * @param backgroundTriples graphs with more triples than this are removed in the background
+	 */
+	public GraphDeleter(Dataset dataset, GraphLockManager locks, GraphVersions versions, GraphCatalog catalog, GraphReclaimer reclaimer, long backgroundTriples) {
+		this.dataset = dataset;
+		this.locks = locks;
+		this.versions = versions;
+		this.catalog = catalog;
+		this.reclaimer = reclaimer;
+		this.backgroundTriples = backgroundTriples;
+	}
+
+	/**
+	 * @param ifMatch the value of an If-Match header, or null
+	 * @return the removal going on in the background, or null if the graph has already been removed
+	 * @throws WebApplicationException with 404 if there is no such graph, or 412 if If-Match fails
+	 */
+	public GraphReclaimer.Job delete(String uri, String ifMatch) {
+		ReadWriteLock graphLock = locks.getLock(uri);
+		graphLock.writeLock().lock();
+		try {
+			GraphCatalog.Entry entry = catalog.get(uri);
+			if ( entry == null ) {
+				throw new WebApplicationException(Response.Status.NOT_FOUND);
+			}
+			versions.checkIfMatch(uri, ifMatch, true);
+			long start = System.nanoTime();
+			GraphReclaimer.Job job = null;
+			if ( entry.getTriples() > backgroundTriples ) {
+				job = reclaimer.trash(dataset, catalog, uri, catalog.allocate(uri), null);
+				logger.info("Deleted {}, removing its {} triples in the background", uri, entry.getTriples());
+			} else {
+				job = reclaimer.remove(dataset, catalog, uri, catalog.allocate(uri));
+			}
+			RequestTimer.record(RequestTimer.DROP, start);
+			versions.bump(uri);
+			return job;
+		} finally {
+			graphLock.writeLock().unlock();
+		}
+	}
+
+}
@@ -0,0 +1,368 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.api.sparql11.http;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.locks.ReadWriteLock;
+
+import org.openjena.atlas.lib.Sink;
+import org.openjena.riot.Lang;
+import org.openjena.riot.RiotReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.shared.Lock;
+import com.hp.hpl.jena.tdb.TDB;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+
+/**
+ * Loads an RDF document into a named graph without materializing it on the heap.
+ *
+ * Triples are parsed as they arrive and written, in batches, into a hidden staging
+ * graph in the same dataset. Only once the whole document has been parsed successfully
+ * is it published. If parsing fails, the staging graph is dropped and the target graph
+ * is left untouched.
+ *
+ * A load that merges with the graph is moved from the staging graph into it. The move
+ * holds the write lock of the target graph throughout, but takes the dataset
+ * write lock one batch at a time, so that operations on other graphs can proceed
+ * in between.
+ *
+ * A load that replaces the graph is not moved at all: it is staged in a new
+ * generation of the graph (see {@link GraphCatalog}), the shadow, while readers go on
+ * reading the current one without waiting. Once it is synced the shadow becomes the
+ * current generation in one short step under the graph write lock, and the previous
+ * generation is put in the trash, for a {@link GraphReclaimer} to remove in the
+ * background. Small loads replacing small graphs are handed to the
+ * {@link GroupCommitter} all the same, the shadow serving as their staging graph.
+ *
+ * The {@link GraphCatalog} is the one of the {@link GroupCommitter}, if there is one,
+ * and otherwise must be given: it is shared with everything else that reads and writes
+ * the dataset, never built by scanning it here. So is the {@link GraphReclaimer}, whose
+ * thread outlives any one load.
+ */
+public class GraphLoader {
+
+	private static final Logger logger = LoggerFactory.getLogger(GraphLoader.class);
+
+	public static final String STAGING_GRAPH_PREFIX = "urn:x-rdf-api:staging:";
+	public static final int DEFAULT_BATCH_SIZE = 10000;
+
+	private Dataset dataset = null;
+	private GraphLockManager locks = null;
+	private GraphVersions versions = null;
+	private GroupCommitter committer = null;
+	private GraphCatalog catalog = null;
+	private GraphReclaimer reclaimer = null;
+	private int batchSize = DEFAULT_BATCH_SIZE;
+
+	/**
+	 * @param reclaimer removes the generations replaced by loads
+	 */
+	public GraphLoader(Dataset dataset, GraphLockManager locks, GraphVersions versions, GraphCatalog catalog, GraphReclaimer reclaimer) {
+		this(dataset, locks, versions, catalog, reclaimer, DEFAULT_BATCH_SIZE);
+	}
+
+	public GraphLoader(Dataset dataset, GraphLockManager locks, GraphVersions versions, GraphCatalog catalog, GraphReclaimer reclaimer, int batchSize) {
+		this(dataset, locks, versions, catalog, null, reclaimer, batchSize);
+	}
+
+	/**
+	 * @param committer publishes small loads together with others
+	 * @param reclaimer removes the generations replaced by loads
+	 */
+	public GraphLoader(Dataset dataset, GraphLockManager locks, GraphVersions versions, GroupCommitter committer, GraphReclaimer reclaimer) {
+		this(dataset, locks, versions, committer, reclaimer, DEFAULT_BATCH_SIZE);
+	}
+
+	public GraphLoader(Dataset dataset, GraphLockManager locks, GraphVersions versions, GroupCommitter committer, GraphReclaimer reclaimer, int batchSize) {
+		this(dataset, locks, versions, committer.getCatalog(), committer, reclaimer, batchSize);
+	}
+
+	/**
+	 * @param catalog the catalog of the dataset, the one of the committer if there is one
+	 * @param committer publishes small loads together with others, or null to publish each load on its own
+	 * @param reclaimer removes the generations replaced by loads, shared by the loaders of the dataset
+	 */
+	public GraphLoader(Dataset dataset, GraphLockManager locks, GraphVersions versions, GraphCatalog catalog, GroupCommitter committer, GraphReclaimer reclaimer, int batchSize) {
+		if ( ( committer != null ) && ( committer.getCatalog() != catalog ) ) {
+			throw new IllegalArgumentException("The catalog is not the one of the committer");
+		}
+		if ( reclaimer == null ) {
+			throw new IllegalArgumentException("No reclaimer");
+		}
+		this.dataset = dataset;
+		this.locks = locks;
+		this.versions = versions;
+		this.committer = committer;
+		this.catalog = catalog;
+		this.reclaimer = reclaimer;
+		this.batchSize = batchSize;
+	}
+
+	public long load(String uri, Lang lang, InputStream in, boolean clean) {
+		return load(uri, lang, in, clean, null);
+	}
+
+	/**
+	 * @param ifMatch the value of an If-Match header, checked against the graph version just before publishing, or null
+	 * @return the number of triples parsed from the input stream
+	 */
+	public long load(final String uri, final Lang lang, final InputStream in, boolean clean, String ifMatch) {
+		return load(uri, new TripleSource() {
+			@Override
+			public void parse(Sink<Triple> sink) {
+				RiotReader.parseTriples(in, lang, uri, sink);
+			}
+		}, clean, ifMatch);
+	}
+
+	/**
+	 * Loads triples from a parser RIOT does not know about, such as {@link BinaryRDF}.
+	 *
+	 * @return the number of triples sent by the source
+	 */
+	public long load(String uri, TripleSource source, boolean clean, String ifMatch) {
+		long generation = clean ? catalog.allocate(uri) : 0;
+		Node staging = clean ? GraphCatalog.node(uri, generation) : Node.createURI(STAGING_GRAPH_PREFIX + UUID.randomUUID());
+		BatchingSink sink = new BatchingSink(staging, clean);
+		long start = System.nanoTime();
+		try {
+			source.parse(sink);
+			sink.flush();
+			RequestTimer.record(RequestTimer.PARSE, start);
+		} catch (RuntimeException e) {
+			logger.info("Parsing into {} failed, discarding staged triples", uri);
+			discard(staging);
+			throw e;
+		}
+		// in a group, replacing a graph means clearing it too
+		GraphCatalog.Entry entry = clean ? catalog.get(uri) : null;
+		if ( ( committer != null ) && committer.accepts(sink.getCount() + ( ( entry != null ) ? entry.getTriples() : 0 )) ) {
+			committer.commit(new GroupCommitter.Write(staging, uri, clean, ifMatch, sink.getCount()));
+		} else if ( clean ) {
+			swap(staging, generation, uri, ifMatch, sink.getChange());
+		} else {
+			publish(staging, uri, ifMatch);
+		}
+		logger.info("Loaded {} triples into {}", sink.getCount(), uri);
+
+		return sink.getCount();
+	}
+
+	private void publish(Node staging, String uri, String ifMatch) {
+		ReadWriteLock graphLock = locks.getLock(uri);
+		graphLock.writeLock().lock();
+		try {
+			Node target = catalog.getNode(uri);
+			try {
+				versions.checkIfMatch(uri, ifMatch, catalog.contains(uri));
+			} catch (RuntimeException e) {
+				discard(staging);
+				throw e;
+			}
+			GraphCatalog.Change change = new GraphCatalog.Change(false);
+			try {
+				long start = System.nanoTime();
+				while ( moveBatch(staging, target, change) ) { }
+				RequestTimer.record(RequestTimer.ADD, start);
+			} catch (RuntimeException e) {
+				recount(uri);
+				throw e;
+			}
+			catalog.update(uri, change);
+			sync();
+			versions.bump(uri);
+		} finally {
+			graphLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Makes the shadow the current generation of the graph. The triples are synced
+	 * first, so that they are on disk before TDB says the shadow is current.
+	 */
+	private void swap(Node shadow, long generation, String uri, String ifMatch, GraphCatalog.Change change) {
+		sync();
+		ReadWriteLock graphLock = locks.getLock(uri);
+		boolean matched = false;
+		graphLock.writeLock().lock();
+		try {
+			versions.checkIfMatch(uri, ifMatch, catalog.contains(uri));
+			matched = true;
+			long start = System.nanoTime();
+			reclaimer.trash(dataset, catalog, uri, generation, change);
+			RequestTimer.record(RequestTimer.SWAP, start);
+			versions.bump(uri);
+		} finally {
+			graphLock.writeLock().unlock();
+			// readers are not kept waiting while a shadow nobody will see is removed
+			if ( !matched ) {
+				discard(shadow);
+			}
+		}
+	}
+
+	private void discard(Node staging) {
+		while ( moveBatch(staging, null, null) ) { }
+	}
+
+	private void recount(String uri) {
+		Lock lock = dataset.getLock();
+		try {
+			lock.enterCriticalSection(Lock.READ);
+			catalog.recount(uri, dataset.asDatasetGraph().getGraph(catalog.getNode(uri)));
+		} finally {
+			lock.leaveCriticalSection();
+		}
+	}
+
+	private void sync() {
+		Lock lock = dataset.getLock();
+		try {
+			lock.enterCriticalSection(Lock.WRITE);
+			long start = System.nanoTime();
+			TDB.sync(dataset);
+			RequestTimer.record(RequestTimer.SYNC, start);
+		} finally {
+			lock.leaveCriticalSection();
+		}
+	}
+
+	/**
+	 * Moves one batch of triples from one graph to another under the dataset write
+	 * lock, so that neither the copy nor the TDB iterators need to hold the whole
+	 * graph. If to is null triples are simply removed.
+	 *
+	 * @param change counts the triples added to the target graph, if not null
+	 * @return false if there was nothing left to move
+	 */
+	private boolean moveBatch(Node from, Node to, GraphCatalog.Change change) {
+		List<Triple> batch = new ArrayList<Triple>(batchSize);
+		Lock lock = dataset.getLock();
+		try {
+			lock.enterCriticalSection(Lock.WRITE);
+			Graph source = dataset.asDatasetGraph().getGraph(from);
+			ExtendedIterator<Triple> iter = source.find(Node.ANY, Node.ANY, Node.ANY);
+			try {
+				while ( iter.hasNext() && ( batch.size() < batchSize ) ) {
+					batch.add(iter.next());
+				}
+			} finally {
+				iter.close();
+			}
+			if ( batch.isEmpty() ) {
+				return false;
+			}
+			if ( to != null ) {
+				Graph target = dataset.asDatasetGraph().getGraph(to);
+				if ( change != null ) {
+					change.adding(batch, target);
+				}
+				target.getBulkUpdateHandler().add(batch);
+			}
+			source.getBulkUpdateHandler().delete(batch);
+			return true;
+		} finally {
+			lock.leaveCriticalSection();
+		}
+	}
+
+	/**
+	 * Parses a document, sending triples to the sink as they are read.
+	 */
+	public interface TripleSource {
+
+		void parse(Sink<Triple> sink);
+
+	}
+
+	/**
+	 * Collects parsed triples and writes them into the staging graph, taking the
+	 * dataset write lock once per batch.
+	 */
+	private class BatchingSink implements Sink<Triple> {
+
+		private Node graph = null;
+		private List<Triple> batch = null;
+		private long count = 0;
+		private GraphCatalog.Change change = null;
+
+		/**
+		 * @param counted whether to count the distinct triples written, for the {@link GraphCatalog}
+		 */
+		public BatchingSink(Node graph, boolean counted) {
+			this.graph = graph;
+			this.batch = new ArrayList<Triple>(batchSize);
+			this.change = counted ? new GraphCatalog.Change(false) : null;
+		}
+
+		@Override
+		public void send(Triple triple) {
+			batch.add(triple);
+			count++;
+			if ( batch.size() >= batchSize ) {
+				flush();
+			}
+		}
+
+		@Override
+		public void flush() {
+			if ( batch.isEmpty() ) {
+				return;
+			}
+			Lock lock = dataset.getLock();
+			try {
+				lock.enterCriticalSection(Lock.WRITE);
+				Graph target = dataset.asDatasetGraph().getGraph(graph);
+				if ( change != null ) {
+					change.adding(new ArrayList<Triple>(new LinkedHashSet<Triple>(batch)), target);
+				}
+				target.getBulkUpdateHandler().add(batch);
+			} finally {
+				lock.leaveCriticalSection();
+			}
+			batch.clear();
+		}
+
+		@Override
+		public void close() {
+			flush();
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * @return the distinct triples written, if they were counted
+		 */
+		public GraphCatalog.Change getChange() {
+			return change;
+		}
+
+	}
+
+}
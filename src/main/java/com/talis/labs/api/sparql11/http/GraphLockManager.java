@@ -0,0 +1,120 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.api.sparql11.http;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Striped read/write locks keyed by graph URI.
+ *
+ * A graph lock gives isolation between operations on the same graph (e.g. a GET
+ * never sees a half published PUT) while operations on different graphs only
+ * contend for the dataset lock, which is held for short, bounded sections.
+ * Graph locks must always be acquired before the dataset lock.
+ */
+public class GraphLockManager {
+
+	public static final int DEFAULT_STRIPES = 256;
+
+	private ReadWriteLock[] locks = null;
+
+	public GraphLockManager() {
+		this(DEFAULT_STRIPES);
+	}
+
+	public GraphLockManager(int stripes) {
+		locks = new ReadWriteLock[stripes];
+		for (int i = 0; i < stripes; i++) {
+			locks[i] = new TimedReadWriteLock();
+		}
+	}
+
+	public ReadWriteLock getLock(String uri) {
+		return locks[stripe(uri)];
+	}
+
+	/**
+	 * Returns the locks covering several graphs, each once, in the order they must be
+	 * acquired in so that two threads locking overlapping sets cannot deadlock.
+	 */
+	public List<ReadWriteLock> getLocks(Collection<String> uris) {
+		SortedSet<Integer> stripes = new TreeSet<Integer>();
+		for (String uri : uris) {
+			stripes.add(stripe(uri));
+		}
+		List<ReadWriteLock> result = new ArrayList<ReadWriteLock>(stripes.size());
+		for (int stripe : stripes) {
+			result.add(locks[stripe]);
+		}
+		return result;
+	}
+
+	int stripe(String uri) {
+		int h = uri.hashCode();
+		h ^= (h >>> 20) ^ (h >>> 12);
+		h ^= (h >>> 7) ^ (h >>> 4);
+		return (h & 0x7fffffff) % locks.length;
+	}
+
+	/**
+	 * Records how long lock() waited in the request being served, see {@link RequestTimer}.
+	 */
+	private static class TimedReadWriteLock extends ReentrantReadWriteLock {
+
+		private static final long serialVersionUID = 1L;
+
+		private final ReentrantReadWriteLock.ReadLock readLock = new ReentrantReadWriteLock.ReadLock(this) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public void lock() {
+				long start = System.nanoTime();
+				super.lock();
+				RequestTimer.record(RequestTimer.GRAPH_LOCK, start);
+			}
+		};
+
+		private final ReentrantReadWriteLock.WriteLock writeLock = new ReentrantReadWriteLock.WriteLock(this) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public void lock() {
+				long start = System.nanoTime();
+				super.lock();
+				RequestTimer.record(RequestTimer.GRAPH_LOCK, start);
+			}
+		};
+
+		@Override
+		public ReentrantReadWriteLock.ReadLock readLock() {
+			return readLock;
+		}
+
+		@Override
+		public ReentrantReadWriteLock.WriteLock writeLock() {
+			return writeLock;
+		}
+
+	}
+
+}
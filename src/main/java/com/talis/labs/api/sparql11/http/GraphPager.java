@@ -0,0 +1,216 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.api.sparql11.http;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.sparql.core.DatasetGraph;
+import com.hp.hpl.jena.tdb.base.record.Record;
+import com.hp.hpl.jena.tdb.index.RangeIndex;
+import com.hp.hpl.jena.tdb.index.TupleIndex;
+import com.hp.hpl.jena.tdb.index.TupleIndexRecord;
+import com.hp.hpl.jena.tdb.nodetable.NodeTable;
+import com.hp.hpl.jena.tdb.store.DatasetGraphTDB;
+import com.hp.hpl.jena.tdb.store.NodeId;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+
+/**
+ * Reads a graph one page at a time, in a deterministic order.
+ *
+ * With TDB, pages follow the order of the GSPO index and a continuation token is the
+ * key of the last quad returned: the next page seeks straight to it, so fetching page
+ * N does not cost scanning the N-1 before. Tokens stay valid across writes, the next
+ * page simply starts after the last triple returned. Numeric offsets, and any other
+ * kind of dataset, need a scan from the start of the graph.
+ *
+ * Callers must hold the graph and dataset read locks.
+ */
+public class GraphPager {
+
+	public static final int DEFAULT_LIMIT = 10000;
+	public static final int MAX_LIMIT = 100000;
+
+	// TDB labels an index with the natural order of its table and its own
+	private static final String INDEX = "GSPO->GSPO";
+	private static final int KEY_LENGTH = 4 * NodeId.SIZE;
+	private static final String KEY_TOKEN = "k";
+	private static final String OFFSET_TOKEN = "o";
+
+	private DatasetGraph dsg = null;
+
+	public GraphPager(DatasetGraph dsg) {
+		this.dsg = dsg;
+	}
+
+	/**
+	 * @param name the name of the graph in TDB, see {@link GraphCatalog#getNode(String)}
+	 * @param offset number of triples to skip after the cursor, if any
+	 * @param cursor a continuation token returned with a previous page, or null to start from the beginning
+	 * @throws IllegalArgumentException if the cursor is not valid
+	 */
+	public Page page(String name, long offset, int limit, String cursor) throws IllegalArgumentException {
+		Node graph = Node.createURI(name);
+		RangeIndex index = index();
+		if ( ( index != null ) && ( ( cursor == null ) || cursor.startsWith(KEY_TOKEN) ) ) {
+			return seek(index, graph, offset, limit, ( cursor == null ) ? null : decode(cursor.substring(KEY_TOKEN.length())));
+		}
+
+		if ( cursor != null ) {
+			if ( !cursor.startsWith(OFFSET_TOKEN) ) {
+				throw new IllegalArgumentException(cursor);
+			}
+			try {
+				offset += Long.parseLong(cursor.substring(OFFSET_TOKEN.length()));
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException(cursor);
+			}
+		}
+		return scan(graph, offset, limit);
+	}
+
+	private Page seek(RangeIndex index, Node graph, long offset, int limit, byte[] after) {
+		NodeTable nodes = ((DatasetGraphTDB)dsg).getQuadTable().getNodeTupleTable().getNodeTable();
+		NodeId g = nodes.getNodeIdForNode(graph);
+		List<Triple> triples = new ArrayList<Triple>();
+		if ( NodeId.doesNotExist(g) ) {
+			return new Page(triples, null);
+		}
+
+		byte[] min = new byte[KEY_LENGTH];
+		g.toBytes(min, 0);
+		if ( after != null ) {
+			System.arraycopy(after, 0, min, NodeId.SIZE, after.length);
+			increment(min, KEY_LENGTH);
+		}
+		byte[] max = new byte[KEY_LENGTH];
+		g.toBytes(max, 0);
+		increment(max, NodeId.SIZE);
+
+		Iterator<Record> iter = index.iterator(new Record(min, null), new Record(max, null));
+		for (long i = 0; ( i < offset ) && iter.hasNext(); i++) {
+			iter.next();
+		}
+		byte[] last = null;
+		while ( ( triples.size() < limit ) && iter.hasNext() ) {
+			last = iter.next().getKey();
+			triples.add(new Triple(node(nodes, last, 1), node(nodes, last, 2), node(nodes, last, 3)));
+		}
+		String next = null;
+		if ( ( last != null ) && iter.hasNext() ) {
+			byte[] key = new byte[KEY_LENGTH - NodeId.SIZE];
+			System.arraycopy(last, NodeId.SIZE, key, 0, key.length);
+			next = KEY_TOKEN + encode(key);
+		}
+		return new Page(triples, next);
+	}
+
+	private Page scan(Node graph, long offset, int limit) {
+		List<Triple> triples = new ArrayList<Triple>();
+		ExtendedIterator<Triple> iter = dsg.getGraph(graph).find(Node.ANY, Node.ANY, Node.ANY);
+		try {
+			for (long i = 0; ( i < offset ) && iter.hasNext(); i++) {
+				iter.next();
+			}
+			while ( ( triples.size() < limit ) && iter.hasNext() ) {
+				triples.add(iter.next());
+			}
+			return new Page(triples, iter.hasNext() ? OFFSET_TOKEN + ( offset + triples.size() ) : null);
+		} finally {
+			iter.close();
+		}
+	}
+
+	private RangeIndex index() {
+		if ( !( dsg instanceof DatasetGraphTDB ) ) {
+			return null;
+		}
+		for (TupleIndex index : ((DatasetGraphTDB)dsg).getQuadTable().getNodeTupleTable().getTupleTable().getIndexes()) {
+			if ( INDEX.equals(index.getLabel()) && ( index instanceof TupleIndexRecord ) ) {
+				return ((TupleIndexRecord)index).getRangeIndex();
+			}
+		}
+		return null;
+	}
+
+	private static Node node(NodeTable nodes, byte[] key, int slot) {
+		return nodes.getNodeForNodeId(NodeId.create(key, slot * NodeId.SIZE));
+	}
+
+	/**
+	 * Adds one to a big endian unsigned number made of the first len bytes of key.
+	 */
+	private static void increment(byte[] key, int len) {
+		for (int i = len - 1; i >= 0; i--) {
+			key[i]++;
+			if ( key[i] != 0 ) {
+				return;
+			}
+		}
+	}
+
+	private static String encode(byte[] bytes) {
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return sb.toString();
+	}
+
+	private static byte[] decode(String hex) throws IllegalArgumentException {
+		if ( hex.length() != ( KEY_LENGTH - NodeId.SIZE ) * 2 ) {
+			throw new IllegalArgumentException(hex);
+		}
+		byte[] bytes = new byte[hex.length() / 2];
+		for (int i = 0; i < bytes.length; i++) {
+			int hi = Character.digit(hex.charAt(2 * i), 16);
+			int lo = Character.digit(hex.charAt(2 * i + 1), 16);
+			if ( ( hi < 0 ) || ( lo < 0 ) ) {
+				throw new IllegalArgumentException(hex);
+			}
+			bytes[i] = (byte) ( ( hi << 4 ) | lo );
+		}
+		return bytes;
+	}
+
+	public static class Page {
+
+		private List<Triple> triples = null;
+		private String next = null;
+
+		public Page(List<Triple> triples, String next) {
+			this.triples = triples;
+			this.next = next;
+		}
+
+		public List<Triple> getTriples() {
+			return triples;
+		}
+
+		/**
+		 * @return the continuation token for the next page, or null if this is the last page
+		 */
+		public String getNext() {
+			return next;
+		}
+
+	}
+
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.api.sparql11.http;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+
+import javax.ws.rs.WebApplicationException;
+
+import org.openjena.riot.RiotParseException;
+import org.openjena.riot.tokens.Token;
+import org.openjena.riot.tokens.TokenType;
+import org.openjena.riot.tokens.Tokenizer;
+import org.openjena.riot.tokens.TokenizerFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.shared.Lock;
+import com.hp.hpl.jena.tdb.TDB;
+
+/**
+ * Applies a patch, a list of triples to add and triples to remove, to a named graph,
+ * at a cost that depends on the size of the patch rather than on the size of the graph.
+ *
+ * A patch is one change per line, A to add a triple and D to remove one, followed by
+ * the triple in N-Triples, as in RDF Patch:
+ *
+ * <pre>
+ * D &lt;http://example.com/s&gt; &lt;http://example.com/p&gt; "old" .
+ * A &lt;http://example.com/s&gt; &lt;http://example.com/p&gt; "new" .
+ * </pre>
+ *
+ * Changes apply in order, so a triple removed then added again is in the graph after.
+ * Blank nodes are refused, as there is no way to name the ones already in the graph.
+ *
+ * The patch is parsed first, as it arrives, and kept on the heap, so its size is
+ * limited to {@link #DEFAULT_MAX_TRIPLES} triples. It is then applied holding the graph
+ * write lock and the dataset write lock throughout: nobody sees half a patch. If it
+ * fails half way, what had been applied is undone.
+ */
+public class GraphPatcher {
+
+	private static final Logger logger = LoggerFactory.getLogger(GraphPatcher.class);
+
+	public static final int DEFAULT_MAX_TRIPLES = Integer.getInteger("rdf-api.patch.max-triples", 100000);
+
+	public static final String ADD = "A";
+	public static final String DELETE = "D";
+
+	private static final int REQUEST_ENTITY_TOO_LARGE = 413;
+
+	private Dataset dataset = null;
+	private GraphLockManager locks = null;
+	private GraphVersions versions = null;
+	private GraphCatalog catalog = null;
+	private int maxTriples = DEFAULT_MAX_TRIPLES;
+
+	public GraphPatcher(Dataset dataset, GraphLockManager locks, GraphVersions versions, GraphCatalog catalog) {
+		this(dataset, locks, versions, catalog, DEFAULT_MAX_TRIPLES);
+	}
+
+	public GraphPatcher(Dataset dataset, GraphLockManager locks, GraphVersions versions, GraphCatalog catalog, int maxTriples) {
+		this.dataset = dataset;
+		this.locks = locks;
+		this.versions = versions;
+		this.catalog = catalog;
+		this.maxTriples = maxTriples;
+	}
+
+	/**
+	 * @param ifMatch the value of an If-Match header, checked against the graph version just before patching, or null
+	 * @return the triples actually added and removed, leaving out those added that were already in the graph and those removed that were not
+	 * @throws RiotParseException if the patch is not well formed
+	 * @throws WebApplicationException with 413 if the patch is too big, or 412 if If-Match fails
+	 */
+	public Result patch(String uri, InputStream in, String ifMatch) {
+		long start = System.nanoTime();
+		Map<Triple, Boolean> changes = parse(in);
+		RequestTimer.record(RequestTimer.PARSE, start);
+		RequestTimer.recordTriples(changes.size());
+
+		Result result = null;
+		ReadWriteLock graphLock = locks.getLock(uri);
+		graphLock.writeLock().lock();
+		try {
+			versions.checkIfMatch(uri, ifMatch, catalog.contains(uri));
+			result = apply(uri, changes);
+			if ( result.isEmpty() ) {
+				// nothing changed, so neither does the version
+				return result;
+			}
+			sync();
+			versions.bump(uri);
+		} finally {
+			graphLock.writeLock().unlock();
+		}
+		logger.info("Patched {}: {}", uri, result);
+
+		return result;
+	}
+
+	/**
+	 * @return the last change to each triple, in order: true to add it, false to remove it
+	 */
+	Map<Triple, Boolean> parse(InputStream in) {
+		Map<Triple, Boolean> changes = new LinkedHashMap<Triple, Boolean>();
+		Tokenizer tokenizer = TokenizerFactory.makeTokenizerUTF8(in);
+		try {
+			while ( tokenizer.hasNext() ) {
+				Token op = tokenizer.next();
+				if ( !op.hasType(TokenType.KEYWORD) || !( ADD.equals(op.getImage()) || DELETE.equals(op.getImage()) ) ) {
+					throw new RiotParseException("Expected " + ADD + " or " + DELETE + ", got " + op, op.getLine(), op.getColumn());
+				}
+				Triple triple = new Triple(node(tokenizer, op), node(tokenizer, op), node(tokenizer, op));
+				Token dot = tokenizer.hasNext() ? tokenizer.next() : null;
+				if ( ( dot == null ) || !dot.hasType(TokenType.DOT) ) {
+					throw new RiotParseException("Expected . at the end of the triple", op.getLine(), op.getColumn());
+				}
+				// the last change wins, but it goes to the end, where it was made
+				changes.remove(triple);
+				changes.put(triple, ADD.equals(op.getImage()));
+				if ( changes.size() > maxTriples ) {
+					throw new WebApplicationException(REQUEST_ENTITY_TOO_LARGE);
+				}
+			}
+		} finally {
+			tokenizer.close();
+		}
+		return changes;
+	}
+
+	private static Node node(Tokenizer tokenizer, Token op) {
+		if ( !tokenizer.hasNext() ) {
+			throw new RiotParseException("Incomplete triple", op.getLine(), op.getColumn());
+		}
+		Token token = tokenizer.next();
+		if ( !token.isIRI() && !token.isBasicLiteral() && !token.hasType(TokenType.LITERAL_LANG) && !token.hasType(TokenType.LITERAL_DT) ) {
+			// no blank nodes, nor prefixed names or Turtle shorthands
+			throw new RiotParseException("Expected an IRI or a literal, got " + token, token.getLine(), token.getColumn());
+		}
+		return token.asNode();
+	}
+
+	private Result apply(String uri, Map<Triple, Boolean> changes) {
+		Result result = new Result();
+		GraphCatalog.Change change = new GraphCatalog.Change(false);
+		List<Triple> added = new ArrayList<Triple>();
+		List<Triple> removed = new ArrayList<Triple>();
+		Lock lock = dataset.getLock();
+		try {
+			lock.enterCriticalSection(Lock.WRITE);
+			long start = System.nanoTime();
+			Graph graph = dataset.asDatasetGraph().getGraph(catalog.getNode(uri));
+			try {
+				for (Map.Entry<Triple, Boolean> entry : changes.entrySet()) {
+					Triple triple = entry.getKey();
+					if ( entry.getValue() && !graph.contains(triple) ) {
+						graph.add(triple);
+						added.add(triple);
+						change.added(triple);
+					} else if ( !entry.getValue() && graph.contains(triple) ) {
+						graph.delete(triple);
+						removed.add(triple);
+						change.removed(triple);
+					}
+				}
+			} catch (RuntimeException e) {
+				logger.warn("Patching {} failed, undoing {} additions and {} removals", new Object[] { uri, added.size(), removed.size() });
+				undo(graph, added, removed);
+				catalog.recount(uri, graph);
+				throw e;
+			}
+			RequestTimer.record(RequestTimer.ADD, start);
+			catalog.update(uri, change);
+		} finally {
+			lock.leaveCriticalSection();
+		}
+		result.added = added.size();
+		result.removed = removed.size();
+		return result;
+	}
+
+	private static void undo(Graph graph, List<Triple> added, List<Triple> removed) {
+		Collections.reverse(added);
+		for (Triple triple : added) {
+			graph.delete(triple);
+		}
+		for (Triple triple : removed) {
+			graph.add(triple);
+		}
+	}
+
+	private void sync() {
+		Lock lock = dataset.getLock();
+		try {
+			lock.enterCriticalSection(Lock.WRITE);
+			long start = System.nanoTime();
+			TDB.sync(dataset);
+			RequestTimer.record(RequestTimer.SYNC, start);
+		} finally {
+			lock.leaveCriticalSection();
+		}
+	}
+
+	public static class Result {
+
+		private long added = 0;
+		private long removed = 0;
+
+		public long getAdded() {
+			return added;
+		}
+
+		public long getRemoved() {
+			return removed;
+		}
+
+		public boolean isEmpty() {
+			return ( added == 0 ) && ( removed == 0 );
+		}
+
+		@Override
+		public String toString() {
+			return "added " + added + ", removed " + removed;
+		}
+
+	}
+
+}
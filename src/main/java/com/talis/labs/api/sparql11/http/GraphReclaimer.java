@@ -0,0 +1,479 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.api.sparql11.http;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.shared.Lock;
+import com.hp.hpl.jena.tdb.TDB;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+import com.hp.hpl.jena.vocabulary.RDF;
+
+/**
+ * Removes the triples of deleted graphs in the background, one chunk at a time, taking
+ * the dataset write lock for each chunk only, so that a graph of any size can be deleted
+ * without stopping everything else for minutes.
+ *
+ * A graph to be removed is first put in the trash, a small graph of its own in the
+ * same dataset, which is synced before the delete is acknowledged: after a restart the
+ * {@link GraphCatalog} leaves the graphs in the trash out and they are removed again
+ * from the start. A graph leaves the trash once it is empty. Generations of graphs that
+ * never became current, because a load was interrupted, are put in the trash when the
+ * dataset is opened.
+ *
+ * The removals run on a thread of their own, started by the first one. {@link #close()}
+ * stops it between two chunks; it has to be called before the datasets are closed.
+ */
+public class GraphReclaimer {
+
+	private static final Logger logger = LoggerFactory.getLogger(GraphReclaimer.class);
+
+	public static final String TRASH_GRAPH = "urn:x-rdf-api:trash";
+	public static final int DEFAULT_CHUNK_SIZE = Integer.getInteger("rdf-api.delete.chunk-size", 10000);
+	public static final long DEFAULT_PAUSE_MILLIS = Long.getLong("rdf-api.delete.pause-ms", 10);
+	public static final int MAX_FINISHED = 100;
+
+	private static final Node TRASH = Node.createURI(TRASH_GRAPH);
+
+	private final BlockingQueue<Job> queue = new LinkedBlockingQueue<Job>();
+	private final LinkedList<Job> jobs = new LinkedList<Job>();
+	private int chunkSize = DEFAULT_CHUNK_SIZE;
+	private long pauseMillis = DEFAULT_PAUSE_MILLIS;
+	private Thread thread = null;
+	private volatile boolean closed = false;
+
+	// tells the thread to stop once the job before it is done
+	private final Job stop = new Job(null, null, null, 0);
+
+	public GraphReclaimer() {
+		this(DEFAULT_CHUNK_SIZE, DEFAULT_PAUSE_MILLIS);
+	}
+
+	public GraphReclaimer(int chunkSize, long pauseMillis) {
+		this.chunkSize = chunkSize;
+		this.pauseMillis = pauseMillis;
+	}
+
+	/**
+	 * Makes another generation of a graph the current one, in TDB and in the
+	 * {@link GraphCatalog}, puts the previous one in the trash and queues it for
+	 * removal. All of it happens under the dataset write lock, so that a query holding
+	 * the dataset read lock sees either generation but never a half removed one. To be
+	 * called with the graph write lock held.
+	 *
+	 * @param generation the new current generation, from {@link GraphCatalog#allocate(String)}
+	 * @param change what the new generation holds, or null if it is empty
+	 * @return the removal, or null if there is nothing to remove
+	 */
+	public Job trash(Dataset dataset, GraphCatalog catalog, String uri, long generation, GraphCatalog.Change change) {
+		List<Job> trashed = trash(dataset, catalog, Collections.singletonMap(uri, generation), Collections.singletonMap(uri, change));
+		return trashed.isEmpty() ? null : trashed.get(0);
+	}
+
+	/**
+	 * Does what {@link #trash(Dataset, GraphCatalog, String, long, GraphCatalog.Change)}
+	 * does for several graphs of the same dataset, under a single dataset write lock and
+	 * with a single sync. To be called with the write locks of all the graphs held.
+	 *
+	 * @param generations the new current generation of each graph
+	 * @param changes what each new generation holds, if anything
+	 * @return the removals
+	 */
+	public List<Job> trash(Dataset dataset, GraphCatalog catalog, Map<String, Long> generations, Map<String, GraphCatalog.Change> changes) {
+		Map<String, Long> triples = new HashMap<String, Long>();
+		for (String uri : generations.keySet()) {
+			if ( catalog.contains(uri) ) {
+				triples.put(uri, catalog.get(uri).getTriples());
+			}
+		}
+		List<Job> trashed = new ArrayList<Job>();
+		for (Map.Entry<String, Node> previous : move(dataset, catalog, generations, changes).entrySet()) {
+			trashed.add(submit(new Job(dataset, previous.getKey(), previous.getValue(), triples.get(previous.getKey()))));
+		}
+		return trashed;
+	}
+
+	/**
+	 * Deletes a graph there and then: it is put in the trash and moved to a new
+	 * generation as by {@link #trash(Dataset, GraphCatalog, String, long, GraphCatalog.Change)},
+	 * so that a restart finishes the removal if it is interrupted, but its triples are
+	 * removed on the calling thread, without pausing between chunks. To be called with
+	 * the graph write lock held.
+	 *
+	 * @param generation the new current generation, from {@link GraphCatalog#allocate(String)}
+	 * @return null, or the rest of the removal left to the background if it failed
+	 */
+	public Job remove(Dataset dataset, GraphCatalog catalog, String uri, long generation) {
+		GraphCatalog.Entry entry = catalog.get(uri);
+		Node name = move(dataset, catalog, Collections.singletonMap(uri, generation), Collections.<String, GraphCatalog.Change>emptyMap()).get(uri);
+		if ( name == null ) {
+			return null;
+		}
+		Job job = new Job(dataset, uri, name, entry.getTriples());
+		try {
+			job.remove(0);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (RuntimeException e) {
+			logger.warn("Cannot remove " + name + ", removing it in the background", e);
+		}
+		// unless it was stopped by close(), and stays in the trash until a restart
+		return ( job.finished == null ) ? submit(job) : null;
+	}
+
+	/**
+	 * @return the names of the previous generations, now in the trash, of the graphs that had one
+	 */
+	private static Map<String, Node> move(Dataset dataset, GraphCatalog catalog, Map<String, Long> generations, Map<String, GraphCatalog.Change> changes) {
+		Map<String, Node> previous = new LinkedHashMap<String, Node>();
+		for (String uri : generations.keySet()) {
+			if ( catalog.contains(uri) ) {
+				previous.put(uri, catalog.getNode(uri));
+			}
+		}
+		Lock lock = dataset.getLock();
+		try {
+			lock.enterCriticalSection(Lock.WRITE);
+			Graph trash = dataset.asDatasetGraph().getGraph(TRASH);
+			for (Node name : previous.values()) {
+				trash.add(new Triple(name, RDF.type.asNode(), TRASH));
+			}
+			for (Map.Entry<String, Long> generation : generations.entrySet()) {
+				GraphCatalog.setGeneration(dataset, generation.getKey(), generation.getValue());
+			}
+			TDB.sync(dataset);
+			for (Map.Entry<String, Long> generation : generations.entrySet()) {
+				catalog.moveTo(generation.getKey(), generation.getValue());
+				GraphCatalog.Change change = changes.get(generation.getKey());
+				if ( change != null ) {
+					catalog.update(generation.getKey(), change);
+				}
+			}
+		} finally {
+			lock.leaveCriticalSection();
+		}
+		return previous;
+	}
+
+	/**
+	 * Queues the graphs left in the trash of a dataset, by a restart for instance,
+	 * together with those left behind by loads that never finished: staging graphs and
+	 * generations that are not current.
+	 *
+	 * @param catalog told about the generations in the trash, so that they are not used again
+	 */
+	public void resume(Dataset dataset, GraphCatalog catalog) {
+		Set<Node> trash = null;
+		Lock lock = dataset.getLock();
+		try {
+			lock.enterCriticalSection(Lock.WRITE);
+			trash = getTrash(dataset);
+			Map<String, Long> current = GraphCatalog.getGenerations(dataset);
+			Graph graph = dataset.asDatasetGraph().getGraph(TRASH);
+			int left = 0;
+			for (Iterator<String> iter = dataset.listNames(); iter.hasNext(); ) {
+				Node name = Node.createURI(iter.next());
+				String uri = GraphCatalog.getUri(name.getURI());
+				boolean staging = name.getURI().startsWith(GraphLoader.STAGING_GRAPH_PREFIX);
+				if ( !trash.contains(name) && ( staging || ( ( uri != null ) && ( GraphCatalog.getGeneration(name) != ( current.containsKey(uri) ? current.get(uri) : 0 ) ) ) ) ) {
+					logger.warn("Trashing {}, left behind by an interrupted load", name);
+					graph.add(new Triple(name, RDF.type.asNode(), TRASH));
+					trash.add(name);
+					left++;
+				}
+			}
+			if ( left > 0 ) {
+				TDB.sync(dataset);
+			}
+		} finally {
+			lock.leaveCriticalSection();
+		}
+		for (Node name : trash) {
+			String uri = GraphCatalog.getUri(name.getURI());
+			if ( uri != null ) {
+				catalog.reserve(uri, GraphCatalog.getGeneration(name));
+			}
+			logger.info("Resuming the removal of {}", name);
+			submit(new Job(dataset, uri, name, -1));
+		}
+	}
+
+	/**
+	 * @return the names of the graphs in the trash, to be called with the dataset lock held
+	 */
+	public static Set<Node> getTrash(Dataset dataset) {
+		Set<Node> trash = new HashSet<Node>();
+		ExtendedIterator<Triple> iter = dataset.asDatasetGraph().getGraph(TRASH).find(Node.ANY, RDF.type.asNode(), TRASH);
+		try {
+			while ( iter.hasNext() ) {
+				trash.add(iter.next().getSubject());
+			}
+		} finally {
+			iter.close();
+		}
+		return trash;
+	}
+
+	/**
+	 * Removes up to max triples from a graph under the dataset write lock.
+	 *
+	 * @return the number of triples removed, 0 once the graph is empty
+	 */
+	public static int removeChunk(Dataset dataset, Node name, int max) {
+		List<Triple> chunk = new ArrayList<Triple>(max);
+		Lock lock = dataset.getLock();
+		try {
+			lock.enterCriticalSection(Lock.WRITE);
+			Graph graph = dataset.asDatasetGraph().getGraph(name);
+			ExtendedIterator<Triple> iter = graph.find(Node.ANY, Node.ANY, Node.ANY);
+			try {
+				while ( iter.hasNext() && ( chunk.size() < max ) ) {
+					chunk.add(iter.next());
+				}
+			} finally {
+				iter.close();
+			}
+			graph.getBulkUpdateHandler().delete(chunk);
+		} finally {
+			lock.leaveCriticalSection();
+		}
+		return chunk.size();
+	}
+
+	/**
+	 * @return the graphs waiting to be removed, being removed and the last ones removed, oldest first
+	 */
+	public List<Job> getJobs() {
+		synchronized (jobs) {
+			return new ArrayList<Job>(jobs);
+		}
+	}
+
+	/**
+	 * Stops the removals, waiting for the chunk being removed, if any. The graphs not
+	 * removed yet stay in the trash, to be removed after a restart.
+	 */
+	public void close() throws InterruptedException {
+		Thread running = null;
+		synchronized (this) {
+			closed = true;
+			running = thread;
+		}
+		queue.add(stop);
+		if ( running != null ) {
+			running.join();
+		}
+		synchronized (jobs) {
+			for (Job job : jobs) {
+				job.done.countDown();
+			}
+		}
+	}
+
+	private Job submit(Job job) {
+		synchronized (jobs) {
+			jobs.add(job);
+			prune();
+		}
+		queue.add(job);
+		synchronized (this) {
+			if ( closed ) {
+				job.done.countDown();
+			} else if ( thread == null ) {
+				thread = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						reclaim();
+					}
+				}, "rdf-api-reclaimer");
+				thread.setDaemon(true);
+				thread.start();
+			}
+		}
+		return job;
+	}
+
+	private void prune() {
+		int finished = 0;
+		for (Job job : jobs) {
+			if ( job.finished != null ) {
+				finished++;
+			}
+		}
+		for (Iterator<Job> iter = jobs.iterator(); iter.hasNext() && ( finished > MAX_FINISHED ); ) {
+			if ( iter.next().finished != null ) {
+				iter.remove();
+				finished--;
+			}
+		}
+	}
+
+	private void reclaim() {
+		try {
+			while ( !closed ) {
+				Job job = queue.take();
+				if ( job == stop ) {
+					break;
+				}
+				try {
+					job.remove(pauseMillis);
+				} catch (InterruptedException e) {
+					throw e;
+				} catch (Throwable e) {
+					// it stays in the trash, to be tried again after a restart
+					logger.error("Cannot remove " + job.name, e);
+					job.error = e.toString();
+					job.finished = new Date();
+				} finally {
+					job.done.countDown();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			// the next job submitted starts another thread, if this one is gone for good
+			synchronized (this) {
+				thread = null;
+			}
+		}
+	}
+
+	public class Job {
+
+		private Dataset dataset = null;
+		private String uri = null;
+		private Node name = null;
+		private long triples = 0;
+		private volatile long removed = 0;
+		private final Date created = new Date();
+		private volatile Date started = null;
+		private volatile Date finished = null;
+		private volatile String error = null;
+		private final CountDownLatch done = new CountDownLatch(1);
+
+		private Job(Dataset dataset, String uri, Node name, long triples) {
+			this.dataset = dataset;
+			this.uri = uri;
+			this.name = name;
+			this.triples = triples;
+		}
+
+		private void remove(long pauseMillis) throws InterruptedException {
+			started = new Date();
+			long start = System.nanoTime();
+			int n = 0;
+			while ( ( n = removeChunk(dataset, name, chunkSize) ) > 0 ) {
+				if ( closed ) {
+					return;
+				}
+				removed += n;
+				if ( pauseMillis > 0 ) {
+					Thread.sleep(pauseMillis);
+				}
+			}
+			Lock lock = dataset.getLock();
+			try {
+				lock.enterCriticalSection(Lock.WRITE);
+				TDB.sync(dataset);
+				dataset.asDatasetGraph().getGraph(TRASH).delete(new Triple(name, RDF.type.asNode(), TRASH));
+				TDB.sync(dataset);
+			} finally {
+				lock.leaveCriticalSection();
+			}
+			finished = new Date();
+			logger.info("Removed {} triples of {} in {}ms", new Object[] { removed, name, ( System.nanoTime() - start ) / 1000000 });
+		}
+
+		public String getUri() {
+			return uri;
+		}
+
+		public long getGeneration() {
+			return GraphCatalog.getGeneration(name);
+		}
+
+		/**
+		 * @return the number of triples to remove, or -1 if not known
+		 */
+		public long getTriples() {
+			return triples;
+		}
+
+		public long getRemoved() {
+			return removed;
+		}
+
+		public String getState() {
+			if ( error != null ) {
+				return "failed";
+			} else if ( finished != null ) {
+				return "done";
+			} else if ( started != null ) {
+				return "removing";
+			}
+			return "queued";
+		}
+
+		public Date getCreated() {
+			return created;
+		}
+
+		/**
+		 * @return when the job finished, or null
+		 */
+		public Date getFinished() {
+			return finished;
+		}
+
+		/**
+		 * @return why the job failed, or null
+		 */
+		public String getError() {
+			return error;
+		}
+
+		/**
+		 * Waits until the triples have been removed, the removal has failed or the
+		 * reclaimer has been closed.
+		 */
+		public void await() throws InterruptedException {
+			done.await();
+		}
+
+	}
+
+}
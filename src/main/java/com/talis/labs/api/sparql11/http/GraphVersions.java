@@ -0,0 +1,149 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.api.sparql11.http;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.Response;
+
+/**
+ * Keeps a version number and a last modified time for each graph, bumped by every
+ * write. Versions live in memory only: they are prefixed with the time this
+ * instance was created, so entity tags handed out before a restart never match.
+ */
+public class GraphVersions {
+
+	private final String epoch = Long.toHexString(System.currentTimeMillis());
+	private final long started = seconds(System.currentTimeMillis());
+	private final AtomicLong counter = new AtomicLong();
+	private final ConcurrentMap<String, Version> versions = new ConcurrentHashMap<String, Version>();
+	private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+	public void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	public Version get(String uri) {
+		Version version = versions.get(uri);
+		if ( version == null ) {
+			version = new Version(0, started);
+			Version previous = versions.putIfAbsent(uri, version);
+			if ( previous != null ) {
+				version = previous;
+			}
+		}
+		return version;
+	}
+
+	/**
+	 * Must be called after a write to the graph has completed, while still holding
+	 * the graph write lock.
+	 */
+	public Version bump(String uri) {
+		Version version = new Version(counter.incrementAndGet(), seconds(System.currentTimeMillis()));
+		versions.put(uri, version);
+		for (Listener listener : listeners) {
+			listener.graphChanged(uri, version);
+		}
+		return version;
+	}
+
+	/**
+	 * Checks an If-Match header against the current version of a graph, it must be
+	 * called while holding the graph write lock.
+	 *
+	 * @throws WebApplicationException with 412 if the precondition fails
+	 */
+	public void checkIfMatch(String uri, String ifMatch, boolean exists) throws WebApplicationException {
+		if ( ifMatch == null ) {
+			return;
+		}
+		String current = get(uri).getTag();
+		for (String tag : ifMatch.split(",")) {
+			tag = tag.trim();
+			if ( "*".equals(tag) ) {
+				if ( exists ) {
+					return;
+				}
+				continue;
+			}
+			if ( tag.startsWith("W/") ) {
+				continue; // If-Match uses the strong comparison function
+			}
+			if ( ( tag.length() > 1 ) && tag.startsWith("\"") && tag.endsWith("\"") ) {
+				tag = tag.substring(1, tag.length() - 1);
+			}
+			if ( tag.equals(current) || tag.startsWith(current + "-") ) {
+				return;
+			}
+		}
+		throw new WebApplicationException(Response.Status.PRECONDITION_FAILED);
+	}
+
+	private static long seconds(long millis) {
+		// HTTP dates have a one second resolution
+		return ( millis / 1000 ) * 1000;
+	}
+
+	/**
+	 * Notified of every write, while the graph write lock is held.
+	 */
+	public interface Listener {
+
+		public void graphChanged(String uri, Version version);
+
+	}
+
+	public class Version {
+
+		private long number = 0;
+		private long lastModified = 0;
+
+		private Version(long number, long lastModified) {
+			this.number = number;
+			this.lastModified = lastModified;
+		}
+
+		public long getNumber() {
+			return number;
+		}
+
+		public Date getLastModified() {
+			return new Date(lastModified);
+		}
+
+		public String getTag() {
+			return epoch + "-" + Long.toHexString(number);
+		}
+
+		/**
+		 * @return a strong entity tag for the representation of this version in the given media type
+		 */
+		public EntityTag getEntityTag(String mediaType) {
+			return new EntityTag(getTag() + "-" + Integer.toHexString(mediaType.hashCode()));
+		}
+
+	}
+
+}
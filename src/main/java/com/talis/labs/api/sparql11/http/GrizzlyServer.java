@@ -17,17 +17,116 @@
 package com.talis.labs.api.sparql11.http;
 
 import java.io.IOException;
-import java.util.HashMap;
+import java.net.InetAddress;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 
-import com.sun.jersey.api.container.grizzly.GrizzlyWebContainerFactory;
+import com.sun.grizzly.http.SelectorThread;
+import com.sun.grizzly.http.StatsThreadPool;
+import com.sun.grizzly.http.servlet.ServletAdapter;
+import com.sun.grizzly.standalone.StaticStreamAlgorithm;
+import com.sun.grizzly.util.DefaultThreadPool;
+import com.sun.jersey.spi.container.servlet.ServletContainer;
 
+/**
+ * Runs the API on Grizzly, set up as {@link ServerConfig} says. The selector thread is
+ * built here, as GrizzlyWebContainerFactory would, because it starts listening before
+ * it can be configured.
+ */
 public class GrizzlyServer {
 
+	public static final int DEFAULT_PORT = ServerConfig.DEFAULT_PORT;
+	public static final String DEFAULT_HOST = "127.0.0.1";
+
+	private static final String NAME = "Grizzly";
+
 	public static void main(String[] args) throws IllegalArgumentException, IOException {
-		final Map<String, String> initParams = new HashMap<String, String>();
-		initParams.put("com.sun.jersey.config.property.packages", "com.talis.labs.api.sparql11.http");
-		GrizzlyWebContainerFactory.create("http://127.0.0.1:8080/", initParams);
+		start(ServerConfig.load(args));
+	}
+
+	/**
+	 * @param port the port to listen on, or 0 for any free port, see {@link SelectorThread#getPortLowLevel()}
+	 */
+	public static SelectorThread start(int port) throws IllegalArgumentException, IOException {
+		ServerConfig config = new ServerConfig();
+		config.setPort(port);
+		return start(config);
+	}
+
+	public static SelectorThread start(ServerConfig config) throws IllegalArgumentException, IOException {
+		ServletAdapter adapter = new ServletAdapter();
+		for (Map.Entry<String, String> param : config.getInitParameters().entrySet()) {
+			adapter.addInitParameter(param.getKey(), param.getValue());
+		}
+		adapter.setServletInstance(new ServletContainer());
+		// start the application, and open the datasets, before the first request
+		adapter.setProperty(ServletAdapter.LOAD_ON_STARTUP, 1);
+		adapter.setContextPath("");
+		adapter.setResourcesContextPath("/");
+
+		SelectorThread selectorThread = new SelectorThread();
+		selectorThread.setAlgorithmClassName(StaticStreamAlgorithm.class.getName());
+		selectorThread.setAddress(InetAddress.getByName(( config.getHost() != null ) ? config.getHost() : DEFAULT_HOST));
+		selectorThread.setPort(config.getPort());
+		selectorThread.setAdapter(adapter);
+		configure(selectorThread, config);
+		try {
+			selectorThread.listen();
+		} catch (InstantiationException e) {
+			IOException ioe = new IOException();
+			ioe.initCause(e);
+			throw ioe;
+		}
+		if ( selectorThread.getThreadPool() instanceof StatsThreadPool ) {
+			// without thread pool statistics Grizzly 1.9.9 fails with a NullPointerException as soon as connections are accepted concurrently
+			selectorThread.enableMonitoring();
+		}
+		return selectorThread;
+	}
+
+	private static void configure(SelectorThread selectorThread, ServerConfig config) {
+		if ( ServerConfig.BLOCKING.equals(config.getConnector()) ) {
+			ServerConfig.ignored(NAME, "connector", config.getConnector());
+		}
+		if ( config.getAcceptors() > 0 ) {
+			ServerConfig.ignored(NAME, "acceptors", config.getAcceptors());
+		}
+		if ( config.getSelectors() > 0 ) {
+			selectorThread.setSelectorReadThreadsCount(config.getSelectors());
+		}
+		ExecutorService executor = config.isVirtualThreads() ? ServerConfig.newVirtualThreadExecutor() : null;
+		if ( executor != null ) {
+			selectorThread.setThreadPool(executor);
+		} else {
+			if ( config.isVirtualThreads() ) {
+				ServerConfig.ignored(NAME + " on Java " + System.getProperty("java.version"), "virtual-threads", true);
+			}
+			if ( config.getMinThreads() > 0 ) {
+				selectorThread.setCoreThreads(config.getMinThreads());
+			}
+			if ( config.getMaxThreads() > 0 ) {
+				selectorThread.setMaxThreads(config.getMaxThreads());
+			}
+			if ( config.getMaxQueued() > 0 ) {
+				selectorThread.setThreadPool(new StatsThreadPool(selectorThread.getCoreThreads(), selectorThread.getMaxThreads(), config.getMaxQueued(), DefaultThreadPool.DEFAULT_IDLE_THREAD_KEEPALIVE_TIMEOUT, TimeUnit.MILLISECONDS));
+			}
+		}
+		// Grizzly 1.9 sizes the response buffer with the header limit, and reads request headers into its buffer
+		if ( config.getOutputBufferBytes() > 0 ) {
+			selectorThread.setMaxHttpHeaderSize(config.getOutputBufferBytes());
+		}
+		if ( config.getRequestHeaderBytes() > 0 ) {
+			selectorThread.setBufferSize(config.getRequestHeaderBytes());
+		}
+		// idle connections are closed after the keep-alive timeout
+		int keepAliveMillis = ( config.getKeepAliveTimeoutMillis() > 0 ) ? config.getKeepAliveTimeoutMillis() : config.getIdleTimeoutMillis();
+		if ( keepAliveMillis > 0 ) {
+			selectorThread.setKeepAliveTimeoutInSeconds(Math.max(1, keepAliveMillis / 1000));
+		}
+		if ( config.getMaxKeepAliveRequests() > 0 ) {
+			selectorThread.setMaxKeepAliveRequests(config.getMaxKeepAliveRequests());
+		}
 	}
 
 }
@@ -0,0 +1,304 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.api.sparql11.http;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+
+import javax.ws.rs.WebApplicationException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.shared.Lock;
+import com.hp.hpl.jena.sparql.core.DatasetGraph;
+import com.hp.hpl.jena.tdb.TDB;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+
+/**
+ * Publishes small staged writes (see {@link GraphLoader}) in groups, each group under a
+ * single dataset write lock and a single TDB sync.
+ *
+ * There is no background thread: the first caller to find nobody committing becomes
+ * the leader, waits up to the window for more writes to arrive (or until the group is
+ * full), then commits everything pending on behalf of the others, who simply wait for
+ * their own write to be done. Writes arriving while a group is being committed form the
+ * next group, so under load writes are coalesced even with a window of zero, and an
+ * idle server adds no latency.
+ *
+ * Each write succeeds or fails on its own, e.g. a failed If-Match only fails the write
+ * it came with. Writes to the same graph are applied in the order they were submitted.
+ */
+public class GroupCommitter {
+
+	private static final Logger logger = LoggerFactory.getLogger(GroupCommitter.class);
+
+	public static final long DEFAULT_WINDOW_MILLIS = Long.getLong("rdf-api.group-commit.window-ms", 0);
+	public static final int DEFAULT_MAX_WRITES = Integer.getInteger("rdf-api.group-commit.max-writes", 64);
+	public static final int DEFAULT_MAX_TRIPLES = Integer.getInteger("rdf-api.group-commit.max-triples", GraphLoader.DEFAULT_BATCH_SIZE);
+
+	private Dataset dataset = null;
+	private GraphLockManager locks = null;
+	private GraphVersions versions = null;
+	private GraphCatalog catalog = null;
+	private long windowMillis = DEFAULT_WINDOW_MILLIS;
+	private int maxWrites = DEFAULT_MAX_WRITES;
+	private long maxTriples = DEFAULT_MAX_TRIPLES;
+
+	private final Object monitor = new Object();
+	private List<Write> pending = new ArrayList<Write>();
+	private long pendingTriples = 0;
+	private boolean committing = false;
+	private long groups = 0;
+	private long writes = 0;
+
+	public GroupCommitter(Dataset dataset, GraphLockManager locks, GraphVersions versions, GraphCatalog catalog) {
+		this(dataset, locks, versions, catalog, DEFAULT_WINDOW_MILLIS, DEFAULT_MAX_WRITES, DEFAULT_MAX_TRIPLES);
+	}
+
+	/**
+	 * @param windowMillis how long a leader waits for more writes before committing, trading latency for throughput
+	 * @param maxWrites the most writes in a group, 1 disables grouping
+	 * @param maxTriples the most staged triples in a group, larger writes are not grouped at all
+	 */
+	public GroupCommitter(Dataset dataset, GraphLockManager locks, GraphVersions versions, GraphCatalog catalog, long windowMillis, int maxWrites, long maxTriples) {
+		this.dataset = dataset;
+		this.locks = locks;
+		this.versions = versions;
+		this.catalog = catalog;
+		this.windowMillis = windowMillis;
+		this.maxWrites = maxWrites;
+		this.maxTriples = maxTriples;
+	}
+
+	public GraphCatalog getCatalog() {
+		return catalog;
+	}
+
+	/**
+	 * @return true if a write of that many triples should go through {@link #commit(Write)}
+	 */
+	public boolean accepts(long triples) {
+		return triples <= maxTriples;
+	}
+
+	/**
+	 * Publishes a staged write, possibly together with others, and waits until it is done.
+	 *
+	 * @throws RuntimeException whatever publishing this write failed with
+	 */
+	public void commit(Write write) {
+		List<Write> group = null;
+		long start = System.nanoTime();
+		synchronized (monitor) {
+			pending.add(write);
+			pendingTriples += write.size;
+			if ( isFull() ) {
+				monitor.notifyAll();
+			}
+			boolean interrupted = false;
+			while ( !write.done ) {
+				try {
+					if ( !committing ) {
+						committing = true;
+						long deadline = System.currentTimeMillis() + windowMillis;
+						long remaining = windowMillis;
+						while ( ( remaining > 0 ) && !isFull() ) {
+							try {
+								monitor.wait(remaining);
+							} catch (InterruptedException e) {
+								interrupted = true;
+							}
+							remaining = deadline - System.currentTimeMillis();
+						}
+						group = pending;
+						pending = new ArrayList<Write>();
+						pendingTriples = 0;
+						break;
+					}
+					monitor.wait();
+				} catch (InterruptedException e) {
+					// a submitted write gets published anyway, keep waiting so that the caller learns how it went
+					interrupted = true;
+				}
+			}
+			if ( interrupted ) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		// a follower waits here for the whole of its group to be committed, a leader only for the window
+		RequestTimer.record(RequestTimer.GROUP_COMMIT, start);
+
+		if ( group != null ) {
+			try {
+				apply(group);
+			} finally {
+				synchronized (monitor) {
+					committing = false;
+					groups++;
+					writes += group.size();
+					for (Write w : group) {
+						w.done = true;
+					}
+					monitor.notifyAll();
+				}
+			}
+		}
+
+		if ( write.failure != null ) {
+			throw write.failure;
+		}
+	}
+
+	private boolean isFull() {
+		return ( pending.size() >= maxWrites ) || ( pendingTriples >= maxTriples );
+	}
+
+	private void apply(List<Write> group) {
+		List<String> uris = new ArrayList<String>(group.size());
+		for (Write write : group) {
+			uris.add(write.uri);
+		}
+		List<ReadWriteLock> graphLocks = locks.getLocks(uris);
+		for (ReadWriteLock graphLock : graphLocks) {
+			graphLock.writeLock().lock();
+		}
+		Lock lock = dataset.getLock();
+		try {
+			lock.enterCriticalSection(Lock.WRITE);
+			DatasetGraph dsg = dataset.asDatasetGraph();
+			for (Write write : group) {
+				Node target = catalog.getNode(write.uri);
+				try {
+					Graph staged = dsg.getGraph(write.staging);
+					try {
+						versions.checkIfMatch(write.uri, write.ifMatch, catalog.contains(write.uri));
+						GraphCatalog.Change change = new GraphCatalog.Change(write.clean);
+						long start = System.nanoTime();
+						if ( write.clean ) {
+							move(dsg.getGraph(target), null, null);
+							RequestTimer.record(RequestTimer.CLEAR, start);
+							start = System.nanoTime();
+						}
+						move(staged, dsg.getGraph(target), change);
+						RequestTimer.record(RequestTimer.ADD, start);
+						catalog.update(write.uri, change);
+					} finally {
+						move(staged, null, null);
+					}
+					versions.bump(write.uri);
+				} catch (WebApplicationException e) {
+					write.failure = e;
+				} catch (RuntimeException e) {
+					catalog.recount(write.uri, dsg.getGraph(target));
+					write.failure = e;
+				}
+			}
+			long start = System.nanoTime();
+			TDB.sync(dataset);
+			RequestTimer.record(RequestTimer.SYNC, start);
+		} catch (RuntimeException e) {
+			for (Write write : group) {
+				if ( write.failure == null ) {
+					write.failure = e;
+				}
+			}
+		} finally {
+			lock.leaveCriticalSection();
+			Collections.reverse(graphLocks);
+			for (ReadWriteLock graphLock : graphLocks) {
+				graphLock.writeLock().unlock();
+			}
+		}
+		logger.debug("Committed a group of {} writes", group.size());
+	}
+
+	private static void move(Graph from, Graph to, GraphCatalog.Change change) {
+		List<Triple> triples = new ArrayList<Triple>();
+		ExtendedIterator<Triple> iter = from.find(Node.ANY, Node.ANY, Node.ANY);
+		try {
+			while ( iter.hasNext() ) {
+				triples.add(iter.next());
+			}
+		} finally {
+			iter.close();
+		}
+		if ( to != null ) {
+			if ( change != null ) {
+				change.adding(triples, to);
+			}
+			to.getBulkUpdateHandler().add(triples);
+		}
+		from.getBulkUpdateHandler().delete(triples);
+	}
+
+	/**
+	 * @return the number of groups committed so far
+	 */
+	public long getGroups() {
+		synchronized (monitor) {
+			return groups;
+		}
+	}
+
+	/**
+	 * @return the number of writes committed so far
+	 */
+	public long getWrites() {
+		synchronized (monitor) {
+			return writes;
+		}
+	}
+
+	@Override
+	public String toString() {
+		synchronized (monitor) {
+			return "GroupCommitter[groups=" + groups + ", writes=" + writes + ", pending=" + pending.size() + "]";
+		}
+	}
+
+	/**
+	 * A write whose triples have been parsed into a staging graph and are waiting to be
+	 * published into their target graph.
+	 */
+	public static class Write {
+
+		private Node staging = null;
+		private String uri = null;
+		private boolean clean = false;
+		private String ifMatch = null;
+		private long size = 0;
+		private boolean done = false;
+		private RuntimeException failure = null;
+
+		public Write(Node staging, String uri, boolean clean, String ifMatch, long size) {
+			this.staging = staging;
+			this.uri = uri;
+			this.clean = clean;
+			this.ifMatch = ifMatch;
+			this.size = size;
+		}
+
+	}
+
+}
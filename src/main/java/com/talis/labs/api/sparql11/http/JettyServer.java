@@ -16,22 +16,116 @@
 
 package com.talis.labs.api.sparql11.http;
 
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
+import org.eclipse.jetty.server.AbstractConnector;
 import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.bio.SocketConnector;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.thread.ExecutorThreadPool;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
 
 import com.sun.jersey.spi.container.servlet.ServletContainer;
 
+/**
+ * Runs the API on Jetty, set up as {@link ServerConfig} says.
+ */
 public class JettyServer {
 
+	public static final int DEFAULT_PORT = ServerConfig.DEFAULT_PORT;
+
+	private static final String NAME = "Jetty";
+
 	public static void main(String[] args) throws Exception {
+		start(ServerConfig.load(args));
+	}
+
+	/**
+	 * @param port the port to listen on, or 0 for any free port, see {@link #getPort(Server)}
+	 */
+	public static Server start(int port) throws Exception {
+		ServerConfig config = new ServerConfig();
+		config.setPort(port);
+		return start(config);
+	}
+
+	public static Server start(ServerConfig config) throws Exception {
 		ServletHolder sh = new ServletHolder(ServletContainer.class);
-		sh.setInitParameter("com.sun.jersey.config.property.resourceConfigClass", "com.sun.jersey.api.core.PackagesResourceConfig");
-		sh.setInitParameter("com.sun.jersey.config.property.packages", "com.talis.labs.api.sparql11.http");
-		Server server = new Server(8080);
+		for (Map.Entry<String, String> param : config.getInitParameters().entrySet()) {
+			sh.setInitParameter(param.getKey(), param.getValue());
+		}
+		// start the application, and open the datasets, before the first request
+		sh.setInitOrder(1);
+		Server server = new Server();
+		server.addConnector(connector(config));
+		server.setThreadPool(threadPool(config));
 		ServletContextHandler context = new ServletContextHandler(server, "/", ServletContextHandler.SESSIONS);
 		context.addServlet(sh, "/*");
 		server.start();
+		return server;
+	}
+
+	public static int getPort(Server server) {
+		return server.getConnectors()[0].getLocalPort();
+	}
+
+	private static AbstractConnector connector(ServerConfig config) {
+		AbstractConnector connector = null;
+		if ( ServerConfig.BLOCKING.equals(config.getConnector()) ) {
+			connector = new SocketConnector();
+		} else {
+			connector = new SelectChannelConnector();
+			// Jetty 7 has a select set per acceptor
+			if ( ( config.getSelectors() > 0 ) && ( config.getAcceptors() == 0 ) ) {
+				connector.setAcceptors(config.getSelectors());
+			}
+		}
+		connector.setHost(config.getHost());
+		connector.setPort(config.getPort());
+		if ( config.getAcceptors() > 0 ) {
+			connector.setAcceptors(config.getAcceptors());
+		}
+		if ( config.getOutputBufferBytes() > 0 ) {
+			connector.setResponseBufferSize(config.getOutputBufferBytes());
+		}
+		if ( config.getRequestHeaderBytes() > 0 ) {
+			connector.setRequestHeaderSize(config.getRequestHeaderBytes());
+		}
+		if ( config.getIdleTimeoutMillis() > 0 ) {
+			connector.setMaxIdleTime(config.getIdleTimeoutMillis());
+		}
+		if ( config.getKeepAliveTimeoutMillis() > 0 ) {
+			ServerConfig.ignored(NAME, "keep-alive-timeout-ms", config.getKeepAliveTimeoutMillis());
+		}
+		if ( config.getMaxKeepAliveRequests() > 0 ) {
+			ServerConfig.ignored(NAME, "max-keep-alive-requests", config.getMaxKeepAliveRequests());
+		}
+		return connector;
+	}
+
+	private static ThreadPool threadPool(ServerConfig config) {
+		if ( config.isVirtualThreads() ) {
+			ExecutorService executor = ServerConfig.newVirtualThreadExecutor();
+			if ( executor != null ) {
+				return new ExecutorThreadPool(executor);
+			}
+			ServerConfig.ignored(NAME + " on Java " + System.getProperty("java.version"), "virtual-threads", true);
+		}
+		QueuedThreadPool pool = new QueuedThreadPool();
+		if ( config.getMinThreads() > 0 ) {
+			pool.setMinThreads(config.getMinThreads());
+		}
+		if ( config.getMaxThreads() > 0 ) {
+			pool.setMaxThreads(config.getMaxThreads());
+		}
+		if ( config.getMaxQueued() > 0 ) {
+			pool.setMaxQueued(config.getMaxQueued());
+		}
+		return pool;
 	}
 
 }
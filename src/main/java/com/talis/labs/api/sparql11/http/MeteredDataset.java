@@ -0,0 +1,130 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.api.sparql11.http;
+
+import java.util.Iterator;
+
+import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.shared.Lock;
+import com.hp.hpl.jena.sparql.core.DatasetGraph;
+
+/**
+ * A dataset whose lock records in {@link Metrics} how long callers wait for it and how
+ * long they hold it. Everything else is passed straight through.
+ *
+ * Only the outermost critical section of a thread is timed, re-entering the lock while
+ * holding it costs nothing extra.
+ */
+public class MeteredDataset implements Dataset {
+
+	private Dataset dataset = null;
+	private Lock lock = null;
+
+	public MeteredDataset(Dataset dataset, Metrics metrics) {
+		this.dataset = dataset;
+		this.lock = new MeteredLock(dataset.getLock(), metrics);
+	}
+
+	@Override
+	public Model getDefaultModel() {
+		return dataset.getDefaultModel();
+	}
+
+	@Override
+	public Model getNamedModel(String uri) {
+		return dataset.getNamedModel(uri);
+	}
+
+	@Override
+	public boolean containsNamedModel(String uri) {
+		return dataset.containsNamedModel(uri);
+	}
+
+	@Override
+	public Iterator<String> listNames() {
+		return dataset.listNames();
+	}
+
+	@Override
+	public Lock getLock() {
+		return lock;
+	}
+
+	@Override
+	public DatasetGraph asDatasetGraph() {
+		return dataset.asDatasetGraph();
+	}
+
+	@Override
+	public void close() {
+		dataset.close();
+	}
+
+	@Override
+	public String toString() {
+		return dataset.toString();
+	}
+
+	private static class MeteredLock implements Lock {
+
+		private Lock lock = null;
+		private Metrics metrics = null;
+
+		// depth, when the outermost section was entered, 1 if it is a read lock
+		private ThreadLocal<long[]> state = new ThreadLocal<long[]>() {
+			@Override
+			protected long[] initialValue() {
+				return new long[3];
+			}
+		};
+
+		public MeteredLock(Lock lock, Metrics metrics) {
+			this.lock = lock;
+			this.metrics = metrics;
+		}
+
+		@Override
+		public void enterCriticalSection(boolean readLockRequested) {
+			long[] held = state.get();
+			if ( held[0] > 0 ) {
+				lock.enterCriticalSection(readLockRequested);
+				held[0]++;
+				return;
+			}
+			long start = System.nanoTime();
+			lock.enterCriticalSection(readLockRequested);
+			long now = System.nanoTime();
+			metrics.lockAcquired(readLockRequested, now - start);
+			RequestTimer.record(RequestTimer.LOCK, start);
+			held[0] = 1;
+			held[1] = now;
+			held[2] = readLockRequested ? 1 : 0;
+		}
+
+		@Override
+		public void leaveCriticalSection() {
+			long[] held = state.get();
+			lock.leaveCriticalSection();
+			if ( ( held[0] > 0 ) && ( --held[0] == 0 ) ) {
+				metrics.lockReleased(held[2] == 1, System.nanoTime() - held[1]);
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.api.sparql11.http;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters, gauges and latency histograms for the HTTP API, written out in the
+ * Prometheus text exposition format by {@link Sparql11HttpRdfMetricsResource}.
+ *
+ * Recording is lock free: a map lookup and an atomic increment or two. Histograms have
+ * fixed buckets, so observing a value never allocates. Label values are restricted to
+ * small known sets (HTTP methods, the media types we serve), anything else is recorded
+ * as "other", so that a client cannot make the number of series grow without bound.
+ */
+public class Metrics {
+
+	public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	/**
+	 * Upper bounds of the histogram buckets, in seconds.
+	 */
+	public static final double[] BUCKETS = { 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60 };
+
+	public static final String OTHER = "other";
+	public static final String NONE = "none";
+
+	private static final Set<String> METHODS = new HashSet<String>(Arrays.asList("GET", "HEAD", "PUT", "POST", "DELETE", "OPTIONS", "PATCH"));
+	private static final Set<String> MEDIA_TYPES = new HashSet<String>(Arrays.asList(
+		RDFMediaType.APPLICATION_RDFXML, RDFMediaType.APPLICATION_TURTLE_CURRENT, RDFMediaType.APPLICATION_TURTLE_IDEAL,
+		RDFMediaType.APPLICATION_N3, RDFMediaType.TEXT_N3, RDFMediaType.APPLICATION_NTRIPLES, RDFMediaType.TEXT_NTRIPLES,
+		RDFMediaType.APPLICATION_NQUADS, RDFMediaType.APPLICATION_TRIG, RDFMediaType.APPLICATION_RDF_BINARY, RDFMediaType.APPLICATION_RDF_PATCH,
+		RDFMediaType.APPLICATION_SPARQL_QUERY, RDFMediaType.APPLICATION_SPARQL_RESULTS_XML, RDFMediaType.APPLICATION_SPARQL_RESULTS_JSON,
+		"application/x-www-form-urlencoded", "application/xml", "application/vnd.sun.wadl+xml"));
+
+	private final Family<Histogram> requestDuration = new Family<Histogram>("rdf_api_request_duration_seconds", "histogram", "Time from the request being dispatched to the response being written, by method and media type");
+	private final Family<AtomicLong> responses = new Family<AtomicLong>("rdf_api_responses_total", "counter", "Responses sent, by method and status code");
+	private final Family<AtomicLong> inFlight = new Family<AtomicLong>("rdf_api_requests_in_flight", "gauge", "Requests being processed, by method");
+	private final Family<AtomicLong> bytesIn = new Family<AtomicLong>("rdf_api_request_bytes_total", "counter", "Bytes of request bodies read, before decompression, by method");
+	private final Family<AtomicLong> bytesOut = new Family<AtomicLong>("rdf_api_response_bytes_total", "counter", "Bytes of response bodies written, after compression, by method");
+	private final Family<AtomicLong> triples = new Family<AtomicLong>("rdf_api_triples_loaded_total", "counter", "Triples parsed from request bodies and written into TDB, by media type");
+	private final Family<Histogram> lockWait = new Family<Histogram>("rdf_api_dataset_lock_wait_seconds", "histogram", "Time spent waiting for the dataset lock, by mode");
+	private final Family<Histogram> lockHold = new Family<Histogram>("rdf_api_dataset_lock_hold_seconds", "histogram", "Time the dataset lock was held for, by mode");
+	private final Family<AtomicLong> queriesCancelled = new Family<AtomicLong>("rdf_api_queries_cancelled_total", "counter", "SPARQL queries stopped before the end of their results, by reason");
+
+	public void requestStarted(String method) {
+		inFlight.get(label("method", method(method))).incrementAndGet();
+	}
+
+	/**
+	 * @param mediaType the media type of the request body if there was one, otherwise of the response, or null
+	 */
+	public void requestFinished(String method, String mediaType, int status, long nanos, long requestBytes, long responseBytes) {
+		method = method(method);
+		String m = label("method", method);
+		inFlight.get(m).decrementAndGet();
+		requestDuration.get(m + "," + label("media_type", mediaType(mediaType))).observe(nanos);
+		responses.get(m + "," + label("code", Integer.toString(status))).incrementAndGet();
+		if ( requestBytes > 0 ) {
+			bytesIn.get(m).addAndGet(requestBytes);
+		}
+		if ( responseBytes > 0 ) {
+			bytesOut.get(m).addAndGet(responseBytes);
+		}
+	}
+
+	public void triplesLoaded(String mediaType, long count) {
+		triples.get(label("media_type", mediaType(mediaType))).addAndGet(count);
+	}
+
+	public void lockAcquired(boolean readLock, long waitNanos) {
+		lockWait.get(label("mode", readLock ? "read" : "write")).observe(waitNanos);
+	}
+
+	public void lockReleased(boolean readLock, long holdNanos) {
+		lockHold.get(label("mode", readLock ? "read" : "write")).observe(holdNanos);
+	}
+
+	/**
+	 * @param reason timeout or disconnect
+	 */
+	public void queryCancelled(String reason) {
+		queriesCancelled.get(label("reason", reason)).incrementAndGet();
+	}
+
+	public void write(Writer out) throws IOException {
+		requestDuration.write(out);
+		responses.write(out);
+		inFlight.write(out);
+		bytesIn.write(out);
+		bytesOut.write(out);
+		triples.write(out);
+		lockWait.write(out);
+		lockHold.write(out);
+		queriesCancelled.write(out);
+	}
+
+	/**
+	 * Writes a single unlabelled value, for numbers kept elsewhere such as the {@link GraphCache} statistics.
+	 */
+	public static void write(Writer out, String name, String type, String help, double value) throws IOException {
+		out.write("# HELP " + name + " " + help + "\n");
+		out.write("# TYPE " + name + " " + type + "\n");
+		out.write(name + " " + format(value) + "\n");
+	}
+
+	private static String method(String method) {
+		return ( ( method != null ) && METHODS.contains(method) ) ? method : OTHER;
+	}
+
+	private static String mediaType(String mediaType) {
+		if ( mediaType == null ) {
+			return NONE;
+		}
+		int i = mediaType.indexOf(';');
+		String type = ( ( i < 0 ) ? mediaType : mediaType.substring(0, i) ).trim().toLowerCase(Locale.ENGLISH);
+		return MEDIA_TYPES.contains(type) ? type : OTHER;
+	}
+
+	// values only ever come from the fixed sets above, status codes or our own reasons, nothing to escape
+	private static String label(String name, String value) {
+		return name + "=\"" + value + "\"";
+	}
+
+	private static String format(double value) {
+		if ( value == Math.rint(value) && !Double.isInfinite(value) ) {
+			return Long.toString((long) value);
+		}
+		return Double.toString(value);
+	}
+
+	/**
+	 * All the series of one metric, keyed by their labels.
+	 */
+	private static class Family<T> {
+
+		private String name = null;
+		private String type = null;
+		private String help = null;
+		private ConcurrentMap<String, T> series = new ConcurrentHashMap<String, T>();
+
+		public Family(String name, String type, String help) {
+			this.name = name;
+			this.type = type;
+			this.help = help;
+		}
+
+		@SuppressWarnings("unchecked")
+		public T get(String labels) {
+			T metric = series.get(labels);
+			if ( metric == null ) {
+				metric = (T) ( "histogram".equals(type) ? new Histogram() : new AtomicLong() );
+				T existing = series.putIfAbsent(labels, metric);
+				if ( existing != null ) {
+					metric = existing;
+				}
+			}
+			return metric;
+		}
+
+		public void write(Writer out) throws IOException {
+			if ( series.isEmpty() ) {
+				return;
+			}
+			out.write("# HELP " + name + " " + help + "\n");
+			out.write("# TYPE " + name + " " + type + "\n");
+			for (Map.Entry<String, T> entry : new TreeMap<String, T>(series).entrySet()) {
+				if ( entry.getValue() instanceof Histogram ) {
+					((Histogram) entry.getValue()).write(out, name, entry.getKey());
+				} else {
+					out.write(name + "{" + entry.getKey() + "} " + ((AtomicLong) entry.getValue()).get() + "\n");
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * A histogram with the fixed {@link Metrics#BUCKETS}, plus one for everything larger.
+	 */
+	public static class Histogram {
+
+		private static final long[] BOUNDS = new long[BUCKETS.length];
+
+		static {
+			for (int i = 0; i < BUCKETS.length; i++) {
+				BOUNDS[i] = (long) ( BUCKETS[i] * 1e9 );
+			}
+		}
+
+		private AtomicLongArray counts = new AtomicLongArray(BUCKETS.length + 1);
+		private AtomicLong sum = new AtomicLong();
+
+		public void observe(long nanos) {
+			int i = 0;
+			while ( ( i < BOUNDS.length ) && ( nanos > BOUNDS[i] ) ) {
+				i++;
+			}
+			counts.incrementAndGet(i);
+			sum.addAndGet(nanos);
+		}
+
+		public long getCount() {
+			long count = 0;
+			for (int i = 0; i < counts.length(); i++) {
+				count += counts.get(i);
+			}
+			return count;
+		}
+
+		public void write(Writer out, String name, String labels) throws IOException {
+			// Prometheus buckets are cumulative
+			long cumulative = 0;
+			for (int i = 0; i < BUCKETS.length; i++) {
+				cumulative += counts.get(i);
+				out.write(name + "_bucket{" + labels + ",le=\"" + BUCKETS[i] + "\"} " + cumulative + "\n");
+			}
+			cumulative += counts.get(BUCKETS.length);
+			out.write(name + "_bucket{" + labels + ",le=\"+Inf\"} " + cumulative + "\n");
+			out.write(name + "_sum{" + labels + "} " + ( sum.get() / 1e9 ) + "\n");
+			out.write(name + "_count{" + labels + "} " + cumulative + "\n");
+		}
+
+	}
+
+}
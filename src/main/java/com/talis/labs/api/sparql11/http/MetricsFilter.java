@@ -0,0 +1,256 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.api.sparql11.http;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.ext.ContextResolver;
+import javax.ws.rs.ext.Providers;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.jersey.spi.CloseableService;
+import com.sun.jersey.spi.container.ContainerRequest;
+import com.sun.jersey.spi.container.ContainerRequestFilter;
+import com.sun.jersey.spi.container.ContainerResponse;
+import com.sun.jersey.spi.container.ContainerResponseFilter;
+import com.sun.jersey.spi.container.ContainerResponseWriter;
+
+/**
+ * Records every request in {@link Metrics}. Registered as both a request and a response
+ * filter, see {@link JettyServer}.
+ *
+ * Streaming outputs do their work while the response is being written, after the
+ * response filters have run, so the request is only considered finished when Jersey is
+ * done with it and closes the {@link CloseableService}, which it does whatever happens,
+ * including a client going away half way through a response. Request and response
+ * bodies are counted as they go through, on the wire, i.e. compressed if they are.
+ *
+ * Each request also gets a {@link RequestTimer}. Its phases are sent back in a
+ * Server-Timing header if the request has a X-Server-Timing header: the header goes out
+ * with the first byte of the body, so it covers the parse, lock and publish phases of a
+ * PUT or POST and the serialization of a GET, but not the transfer of the body itself.
+ * Requests slower than {@link #DEFAULT_SLOW_REQUEST_MILLIS} are logged, with all their
+ * phases, to the {@link #SLOW_REQUEST_LOGGER} logger, which can be routed to a file of
+ * its own.
+ */
+public class MetricsFilter implements ContainerRequestFilter, ContainerResponseFilter {
+
+	public static final String SLOW_REQUEST_LOGGER = "com.talis.labs.api.sparql11.http.slow-requests";
+	public static final long DEFAULT_SLOW_REQUEST_MILLIS = Long.getLong("rdf-api.slow-request-ms", 10000);
+	public static final String SERVER_TIMING = "Server-Timing";
+	public static final String SERVER_TIMING_REQUEST = "X-Server-Timing";
+
+	private static final Logger slowRequests = LoggerFactory.getLogger(SLOW_REQUEST_LOGGER);
+
+	private static final String START = MetricsFilter.class.getName() + ".start";
+	private static final String REQUEST_BYTES = MetricsFilter.class.getName() + ".requestBytes";
+	private static final String TIMER = MetricsFilter.class.getName() + ".timer";
+	private static final String WRITER = MetricsFilter.class.getName() + ".writer";
+
+	@Context
+	private Providers providers;
+
+	@Context
+	private CloseableService closeables;
+
+	@Override
+	public ContainerRequest filter(ContainerRequest request) {
+		getMetrics().requestStarted(request.getMethod());
+		CountingInputStream in = new CountingInputStream(request.getEntityInputStream());
+		request.setEntityInputStream(in);
+		request.getProperties().put(REQUEST_BYTES, in);
+		long start = System.nanoTime();
+		request.getProperties().put(START, start);
+		request.getProperties().put(TIMER, RequestTimer.start(start));
+		MeteredResponseWriter writer = new MeteredResponseWriter(request, getMetrics());
+		request.getProperties().put(WRITER, writer);
+		closeables.add(writer);
+		return request;
+	}
+
+	@Override
+	public ContainerResponse filter(ContainerRequest request, ContainerResponse response) {
+		MeteredResponseWriter writer = (MeteredResponseWriter) request.getProperties().get(WRITER);
+		if ( ( writer != null ) && ( response.getContainerResponseWriter() != writer ) ) {
+			writer.wrap(response);
+		}
+		return response;
+	}
+
+	private Metrics getMetrics() {
+		ContextResolver<Metrics> resolver = providers.getContextResolver(Metrics.class, MediaType.WILDCARD_TYPE);
+		return resolver.getContext(Metrics.class);
+	}
+
+	private static class MeteredResponseWriter implements ContainerResponseWriter, Closeable {
+
+		private ContainerResponseWriter writer = null;
+		private ContainerRequest request = null;
+		private Metrics metrics = null;
+		private int status = 0;
+		private String mediaType = null;
+		private CountingOutputStream out = null;
+
+		public MeteredResponseWriter(ContainerRequest request, Metrics metrics) {
+			this.request = request;
+			this.metrics = metrics;
+		}
+
+		public void wrap(ContainerResponse response) {
+			writer = response.getContainerResponseWriter();
+			status = response.getStatus();
+			response.setContainerResponseWriter(this);
+		}
+
+		@Override
+		public OutputStream writeStatusAndHeaders(long contentLength, ContainerResponse response) throws IOException {
+			status = response.getStatus();
+			RequestTimer timer = (RequestTimer) request.getProperties().get(TIMER);
+			if ( ( timer != null ) && ( request.getHeaderValue(SERVER_TIMING_REQUEST) != null ) ) {
+				response.getHttpHeaders().putSingle(SERVER_TIMING, timer.toServerTiming(System.nanoTime()));
+			}
+			Object contentType = response.getHttpHeaders().getFirst(HttpHeaders.CONTENT_TYPE);
+			mediaType = ( request.getMediaType() != null ) ? request.getMediaType().toString() : ( contentType != null ) ? contentType.toString() : null;
+			out = new CountingOutputStream(writer.writeStatusAndHeaders(contentLength, response));
+			return out;
+		}
+
+		@Override
+		public void finish() throws IOException {
+			writer.finish();
+		}
+
+		@Override
+		public void close() {
+			long nanos = System.nanoTime() - (Long) request.getProperties().get(START);
+			CountingInputStream in = (CountingInputStream) request.getProperties().get(REQUEST_BYTES);
+			long responseBytes = ( out == null ) ? 0 : out.getCount();
+			metrics.requestFinished(request.getMethod(), mediaType, status, nanos, in.getCount(), responseBytes);
+			RequestTimer timer = (RequestTimer) request.getProperties().get(TIMER);
+			if ( ( timer != null ) && ( DEFAULT_SLOW_REQUEST_MILLIS >= 0 ) && ( nanos >= DEFAULT_SLOW_REQUEST_MILLIS * 1000000L ) ) {
+				logSlowRequest(timer, nanos, in.getCount(), responseBytes);
+			}
+			RequestTimer.stop();
+		}
+
+		private void logSlowRequest(RequestTimer timer, long nanos, long requestBytes, long responseBytes) {
+			String graph = request.getQueryParameters().getFirst("graph");
+			StringBuilder sb = new StringBuilder();
+			sb.append(request.getMethod()).append(' ').append(( graph != null ) ? graph : request.getPath());
+			sb.append(' ').append(status).append(' ').append(nanos / 1000000).append("ms");
+			sb.append(" in=").append(requestBytes).append("B out=").append(responseBytes).append('B');
+			if ( timer.getTriples() >= 0 ) {
+				sb.append(" triples=").append(timer.getTriples());
+			}
+			if ( timer.toString().length() > 0 ) {
+				sb.append(" : ").append(timer);
+			}
+			slowRequests.warn(sb.toString());
+		}
+
+	}
+
+	private static class CountingInputStream extends FilterInputStream {
+
+		private volatile long count = 0;
+		private long marked = 0;
+
+		public CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if ( b >= 0 ) {
+				count++;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if ( n > 0 ) {
+				count += n;
+			}
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			count += skipped;
+			return skipped;
+		}
+
+		@Override
+		public synchronized void mark(int readlimit) {
+			super.mark(readlimit);
+			marked = count;
+		}
+
+		// bytes read again after a reset are only counted once
+		@Override
+		public synchronized void reset() throws IOException {
+			super.reset();
+			count = marked;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+	}
+
+	private static class CountingOutputStream extends FilterOutputStream {
+
+		private long count = 0;
+
+		public CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+	}
+
+}
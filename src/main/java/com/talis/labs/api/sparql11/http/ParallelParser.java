@@ -0,0 +1,362 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.api.sparql11.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjena.atlas.AtlasException;
+import org.openjena.atlas.lib.Sink;
+import org.openjena.riot.ErrorHandler;
+import org.openjena.riot.ErrorHandlerFactory;
+import org.openjena.riot.Lang;
+import org.openjena.riot.RiotException;
+import org.openjena.riot.RiotReader;
+import org.openjena.riot.lang.LangNQuads;
+import org.openjena.riot.lang.LangNTriples;
+import org.openjena.riot.lang.LangRIOT;
+import org.openjena.riot.system.IRIResolver;
+import org.openjena.riot.system.ParserProfile;
+import org.openjena.riot.system.ParserProfileBase;
+import org.openjena.riot.system.PrefixMap;
+import org.openjena.riot.system.Prologue;
+import org.openjena.riot.tokens.TokenizerFactory;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.rdf.model.AnonId;
+import com.hp.hpl.jena.sparql.core.Quad;
+
+/**
+ * Parses N-Triples and N-Quads on several cores. Both have one triple or quad per line,
+ * so the input is cut into chunks of whole lines, about {@link #DEFAULT_CHUNK_BYTES}
+ * each, which are parsed by a pool of {@link #DEFAULT_THREADS} threads while the next
+ * ones are read. What they parse is sent to the sink in document order, from the
+ * calling thread, so the sink needs no locking and sees exactly what a single RIOT
+ * parser would have sent it.
+ *
+ * A syntax error is reported as the first error of the document, with its line number
+ * in the document, and nothing after it is sent to the sink. Blank node labels are
+ * scoped to the document, as they are with RIOT, whichever chunk they are in.
+ *
+ * Only a few chunks per thread are read ahead, so memory does not grow with the
+ * document. A document that fits in one chunk is parsed on the calling thread.
+ */
+public class ParallelParser {
+
+	public static final int DEFAULT_THREADS = Integer.getInteger("rdf-api.parse.threads", Runtime.getRuntime().availableProcessors());
+	public static final int DEFAULT_CHUNK_BYTES = Integer.getInteger("rdf-api.parse.chunk-bytes", 1024 * 1024);
+
+	private static final AtomicInteger pools = new AtomicInteger();
+
+	private int threads = 0;
+	private int chunkBytes = 0;
+	private ExecutorService executor = null;
+
+	public ParallelParser() {
+		this(DEFAULT_THREADS, DEFAULT_CHUNK_BYTES);
+	}
+
+	/**
+	 * @param threads how many chunks are parsed at once, 1 to parse on the calling thread only
+	 */
+	public ParallelParser(int threads, int chunkBytes) {
+		this.threads = Math.max(1, threads);
+		this.chunkBytes = chunkBytes;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * @throws RiotException if the document cannot be parsed
+	 */
+	public void parseTriples(InputStream in, String base, Sink<Triple> sink) {
+		parse(in, Lang.NTRIPLES, base, sink);
+	}
+
+	/**
+	 * @throws RiotException if the document cannot be parsed
+	 */
+	public void parseQuads(InputStream in, Sink<Quad> sink) {
+		parse(in, Lang.NQUADS, null, sink);
+	}
+
+	/**
+	 * @return a source for {@link GraphLoader} that parses an N-Triples document
+	 */
+	public GraphLoader.TripleSource triples(final InputStream in, final String base) {
+		return new GraphLoader.TripleSource() {
+			@Override
+			public void parse(Sink<Triple> sink) {
+				parseTriples(in, base, sink);
+			}
+		};
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T> void parse(InputStream in, Lang lang, String base, Sink<T> sink) {
+		if ( threads == 1 ) {
+			if ( lang == Lang.NTRIPLES ) {
+				RiotReader.parseTriples(in, lang, base, (Sink<Triple>) sink);
+			} else {
+				RiotReader.parseQuads(in, lang, base, (Sink<Quad>) sink);
+			}
+			return;
+		}
+
+		String document = UUID.randomUUID().toString() + ":";
+		LinkedList<Future<List<T>>> pending = new LinkedList<Future<List<T>>>();
+		try {
+			byte[] buffer = new byte[chunkBytes];
+			int filled = 0;
+			long line = 1;
+			boolean first = true;
+			while ( true ) {
+				int read = fill(in, buffer, filled);
+				boolean eof = ( read < 0 );
+				filled += Math.max(0, read);
+				if ( !eof && ( filled < buffer.length ) ) {
+					continue;
+				}
+				int end = eof ? filled : lastLineEnd(buffer, filled);
+				if ( end < 0 ) {
+					// a line longer than a chunk, the chunk grows to hold it
+					buffer = Arrays.copyOf(buffer, buffer.length * 2);
+					continue;
+				}
+				if ( first && eof ) {
+					// small enough for one chunk: no point in handing it over
+					send(new Chunk<T>(lang, document, buffer, end, line).call(), sink);
+					return;
+				}
+				first = false;
+				if ( end > 0 ) {
+					pending.add(getExecutor().submit(new Chunk<T>(lang, document, Arrays.copyOf(buffer, end), end, line)));
+					line += lines(buffer, end);
+				}
+				if ( eof ) {
+					break;
+				}
+				System.arraycopy(buffer, end, buffer, 0, filled - end);
+				filled -= end;
+				// a few chunks ahead per thread, no more
+				while ( pending.size() >= threads * 2 ) {
+					send(pending.removeFirst().get(), sink);
+				}
+			}
+			while ( !pending.isEmpty() ) {
+				send(pending.removeFirst().get(), sink);
+			}
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if ( cause instanceof RuntimeException ) {
+				throw (RuntimeException) cause;
+			} else if ( cause instanceof Error ) {
+				throw (Error) cause;
+			}
+			throw new RiotException(cause);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RiotException(e);
+		} catch (IOException e) {
+			throw new AtlasException(e);
+		} finally {
+			// chunks after an error are not wanted any more
+			for (Future<List<T>> future : pending) {
+				future.cancel(true);
+			}
+		}
+	}
+
+	private static <T> void send(List<T> items, Sink<T> sink) {
+		for (T item : items) {
+			sink.send(item);
+		}
+	}
+
+	private synchronized ExecutorService getExecutor() {
+		if ( executor == null ) {
+			final int pool = pools.incrementAndGet();
+			executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+				private AtomicInteger count = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "rdf-api-parser-" + pool + "-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return executor;
+	}
+
+	/**
+	 * Reads until the buffer is full or the input ends.
+	 *
+	 * @return the number of bytes read, or -1 at the end of the input
+	 */
+	private static int fill(InputStream in, byte[] buffer, int from) throws IOException {
+		int total = 0;
+		while ( from + total < buffer.length ) {
+			int read = in.read(buffer, from + total, buffer.length - from - total);
+			if ( read < 0 ) {
+				return ( total > 0 ) ? total : -1;
+			}
+			total += read;
+		}
+		return total;
+	}
+
+	/**
+	 * @return the length of the buffer up to and including its last '\n', or -1
+	 */
+	private static int lastLineEnd(byte[] buffer, int length) {
+		for (int i = length - 1; i >= 0; i--) {
+			if ( buffer[i] == '\n' ) {
+				return i + 1;
+			}
+		}
+		return -1;
+	}
+
+	private static long lines(byte[] buffer, int length) {
+		long lines = 0;
+		for (int i = 0; i < length; i++) {
+			if ( buffer[i] == '\n' ) {
+				lines++;
+			}
+		}
+		return lines;
+	}
+
+	/**
+	 * Parses whole lines of a document, with line numbers counted from where they are in
+	 * the document.
+	 */
+	private static class Chunk<T> implements Callable<List<T>> {
+
+		private Lang lang = null;
+		private String document = null;
+		private byte[] bytes = null;
+		private int length = 0;
+		private long line = 0;
+
+		public Chunk(Lang lang, String document, byte[] bytes, int length, long line) {
+			this.lang = lang;
+			this.document = document;
+			this.bytes = bytes;
+			this.length = length;
+			this.line = line;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public List<T> call() {
+			final List<T> items = new ArrayList<T>();
+			Sink<T> collector = new Sink<T>() {
+				@Override
+				public void send(T item) {
+					items.add(item);
+				}
+
+				@Override
+				public void flush() { }
+
+				@Override
+				public void close() { }
+			};
+			ParserProfile profile = new DocumentProfile(document, new LineErrorHandler(line - 1));
+			LangRIOT parser = null;
+			if ( lang == Lang.NTRIPLES ) {
+				parser = new LangNTriples(TokenizerFactory.makeTokenizerUTF8(new ByteArrayInputStream(bytes, 0, length)), profile, (Sink<Triple>) collector);
+			} else {
+				parser = new LangNQuads(TokenizerFactory.makeTokenizerUTF8(new ByteArrayInputStream(bytes, 0, length)), profile, (Sink<Quad>) collector);
+			}
+			parser.parse();
+			return items;
+		}
+
+	}
+
+	/**
+	 * The profile RIOT uses for N-Triples and N-Quads, except that blank nodes are
+	 * named after the document and their label, so that the same label is the same blank
+	 * node in every chunk of a document.
+	 */
+	private static class DocumentProfile extends ParserProfileBase {
+
+		private String document = null;
+
+		public DocumentProfile(String document, ErrorHandler handler) {
+			super(new Prologue(new PrefixMap(), IRIResolver.createNoResolve()), handler);
+			this.document = document;
+		}
+
+		@Override
+		public Node createBlankNode(Node scope, String label, long line, long col) {
+			return Node.createAnon(new AnonId(document + label));
+		}
+
+	}
+
+	/**
+	 * Reports errors as RIOT does, with the line numbers of the chunk moved to those of
+	 * the document.
+	 */
+	private static class LineErrorHandler implements ErrorHandler {
+
+		private ErrorHandler handler = ErrorHandlerFactory.errorHandlerStd;
+		private long offset = 0;
+
+		public LineErrorHandler(long offset) {
+			this.offset = offset;
+		}
+
+		@Override
+		public void warning(String message, long line, long col) {
+			handler.warning(message, ( line > 0 ) ? line + offset : line, col);
+		}
+
+		@Override
+		public void error(String message, long line, long col) {
+			handler.error(message, ( line > 0 ) ? line + offset : line, col);
+		}
+
+		@Override
+		public void fatal(String message, long line, long col) {
+			handler.fatal(message, ( line > 0 ) ? line + offset : line, col);
+		}
+
+	}
+
+}
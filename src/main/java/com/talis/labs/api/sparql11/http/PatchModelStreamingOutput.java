@@ -0,0 +1,80 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.api.sparql11.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.openjena.riot.RiotException;
+
+import com.hp.hpl.jena.query.Dataset;
+
+/**
+ * Applies a patch with a {@link GraphPatcher} and reports how many triples were added
+ * and removed.
+ */
+public class PatchModelStreamingOutput implements StreamingOutput {
+
+	private String uri = null;
+	private Dataset dataset = null;
+	private GraphLockManager locks = null;
+	private GraphVersions versions = null;
+	private GraphCatalog catalog = null;
+	private Metrics metrics = null;
+	private InputStream in = null;
+	private String ifMatch = null;
+
+	public PatchModelStreamingOutput(Dataset dataset, GraphLockManager locks, GraphVersions versions, GraphCatalog catalog, Metrics metrics, String uri, InputStream in, String ifMatch) {
+		this.dataset = dataset;
+		this.locks = locks;
+		this.versions = versions;
+		this.catalog = catalog;
+		this.metrics = metrics;
+		this.uri = uri;
+		this.in = in;
+		this.ifMatch = ifMatch;
+	}
+
+	@Override
+	public void write(OutputStream output) throws IOException, WebApplicationException {
+		GraphPatcher.Result result = null;
+		try {
+			result = new GraphPatcher(dataset, locks, versions, catalog).patch(uri, in, ifMatch);
+		} catch (WebApplicationException e) {
+			throw e;
+		} catch (RiotException e) {
+			throw new WebApplicationException(e, Response.Status.BAD_REQUEST);
+		} catch (Exception e) {
+			throw new WebApplicationException(e, Response.Status.INTERNAL_SERVER_ERROR);
+		}
+		if ( metrics != null ) {
+			metrics.triplesLoaded(RDFMediaType.APPLICATION_RDF_PATCH, result.getAdded());
+		}
+
+		Writer writer = new OutputStreamWriter(output, "UTF-8");
+		writer.write("added " + result.getAdded() + "\nremoved " + result.getRemoved() + "\n");
+		writer.flush();
+	}
+
+}
@@ -24,55 +24,85 @@ import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.StreamingOutput;
 
+import org.openjena.atlas.lib.Sink;
+import org.openjena.riot.Lang;
+import org.openjena.riot.RiotException;
+
+import com.hp.hpl.jena.graph.Triple;
 import com.hp.hpl.jena.query.Dataset;
-import com.hp.hpl.jena.rdf.model.Model;
-import com.hp.hpl.jena.rdf.model.ModelFactory;
-import com.hp.hpl.jena.shared.Lock;
 
 public class PutPostModelStreamingOutput implements StreamingOutput {
 
 	private String uri = null;
 	private String mediaType = null;
 	private Dataset dataset = null;
+	private GraphLockManager locks = null;
+	private GraphVersions versions = null;
+	private GroupCommitter committer = null;
+	private GraphReclaimer reclaimer = null;
+	private ParallelParser parser = null;
+	private Metrics metrics = null;
 	private InputStream in = null;
 	private boolean clean = false;
+	private String ifMatch = null;
 	
-	public PutPostModelStreamingOutput(Dataset dataset, String uri, String mediaType, InputStream in, boolean clean) {
+	/**
+	 * @param committer the group committer of the shard of the graph, whose catalog the load updates
+	 */
+	public PutPostModelStreamingOutput(Dataset dataset, GraphLockManager locks, GraphVersions versions, GroupCommitter committer, GraphReclaimer reclaimer, ParallelParser parser, Metrics metrics, String uri, String mediaType, InputStream in, boolean clean, String ifMatch) {
 		this.dataset = dataset;
+		this.locks = locks;
+		this.versions = versions;
+		this.committer = committer;
+		this.reclaimer = reclaimer;
+		this.parser = parser;
+		this.metrics = metrics;
 		this.uri = uri;
 		this.mediaType = mediaType;
 		this.in = in;
 		this.clean = clean;
+		this.ifMatch = ifMatch;
 	}
 	
 	@Override
 	public void write(OutputStream output) throws IOException, WebApplicationException {
-		String lang = null;
+		Lang lang = null;
 		if (RDFMediaType.APPLICATION_TURTLE_CURRENT.equals(mediaType)) {
-			lang = "TURTLE";
+			lang = Lang.TURTLE;
 		} else if (RDFMediaType.APPLICATION_RDFXML.equals(mediaType)) {
-			lang = "RDF/XML";
+			lang = Lang.RDFXML;
 		} else if (RDFMediaType.APPLICATION_NTRIPLES.equals(mediaType)) {
-			lang = "N-TRIPLE";
-		} else {
+			lang = Lang.NTRIPLES;
+		} else if (!RDFMediaType.APPLICATION_RDF_BINARY.equals(mediaType)) {
 			throw new WebApplicationException(Response.Status.BAD_REQUEST);
 		}
-		Model model = ModelFactory.createDefaultModel();
-		model.read(in, "", lang);
 
-		Lock lock = dataset.getLock();
 		try {
-			lock.enterCriticalSection(true);
-			if ( clean ) {
-				if (dataset.containsNamedModel(uri)) {
-					dataset.getNamedModel(uri).removeAll();
-				}
+			GraphLoader loader = new GraphLoader(dataset, locks, versions, committer, reclaimer);
+			long count = 0;
+			if ( lang == Lang.NTRIPLES ) {
+				// one triple per line, parsed on several cores
+				count = loader.load(uri, parser.triples(in, uri), clean, ifMatch);
+			} else if ( lang != null ) {
+				count = loader.load(uri, lang, in, clean, ifMatch);
+			} else {
+				count = loader.load(uri, new GraphLoader.TripleSource() {
+					@Override
+					public void parse(Sink<Triple> sink) {
+						BinaryRDF.read(in, sink);
+					}
+				}, clean, ifMatch);
+			}
+			if ( metrics != null ) {
+				metrics.triplesLoaded(mediaType, count);
 			}
-			dataset.getNamedModel(uri).add(model);
+			RequestTimer.recordTriples(count);
+		} catch (WebApplicationException e) {
+			throw e;
+		} catch (RiotException e) {
+			throw new WebApplicationException(e, Response.Status.BAD_REQUEST);
 		} catch (Exception e) {
 			throw new WebApplicationException(e, Response.Status.INTERNAL_SERVER_ERROR);
-		} finally {
-			lock.leaveCriticalSection();
 		}
 	}
 
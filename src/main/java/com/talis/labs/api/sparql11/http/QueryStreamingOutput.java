@@ -0,0 +1,361 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.api.sparql11.http;
+
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hp.hpl.jena.query.DatasetFactory;
+import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.query.QueryExecution;
+import com.hp.hpl.jena.query.QueryExecutionFactory;
+import com.hp.hpl.jena.query.ResultSetFormatter;
+
+/**
+ * Runs a SELECT or ASK query over a {@link CatalogDatasetGraph} and writes the results
+ * in XML or JSON, a row at a time as the query produces them, rather than collecting
+ * them first.
+ *
+ * The query runs on a thread of its own, with the read lock of the datasets held, and
+ * writes into a window of at most {@link #DEFAULT_WINDOW_BYTES} that the request thread
+ * sends on to the client. A client slower than the query holds the query up once the
+ * window is full, but only until the query has run for its timeout: the lock is never
+ * held for longer than that, whatever the client does, and the end of the results is
+ * sent from the window after it has been released. The deadline is checked for every
+ * triple read and every write. The query is also stopped when the client goes away, as
+ * soon as writing to it fails. A query that times out before anything has been written
+ * is answered 503, otherwise the response is cut short.
+ */
+public class QueryStreamingOutput implements StreamingOutput {
+
+	private static final Logger logger = LoggerFactory.getLogger(QueryStreamingOutput.class);
+
+	public static final int DEFAULT_WINDOW_BYTES = Integer.getInteger("rdf-api.query.window-bytes", 1024 * 1024);
+	private static final int CHUNK_BYTES = 8192;
+
+	private static ExecutorService executor = null;
+
+	private DatasetShards shards = null;
+	private Metrics metrics = null;
+	private Query query = null;
+	private String mediaType = null;
+	private Collection<String> defaults = null;
+	private Collection<String> named = null;
+	private long timeoutMillis = 0;
+	private int windowBytes = DEFAULT_WINDOW_BYTES;
+
+	/**
+	 * @param defaults the graphs merged into the default graph
+	 * @param named the named graphs, or null for all of them
+	 * @param timeoutMillis how long the query can run for, 0 for ever
+	 */
+	public QueryStreamingOutput(DatasetShards shards, Metrics metrics, Query query, String mediaType, Collection<String> defaults, Collection<String> named, long timeoutMillis) {
+		this(shards, metrics, query, mediaType, defaults, named, timeoutMillis, DEFAULT_WINDOW_BYTES);
+	}
+
+	/**
+	 * @param windowBytes how far the query can get ahead of the client
+	 */
+	public QueryStreamingOutput(DatasetShards shards, Metrics metrics, Query query, String mediaType, Collection<String> defaults, Collection<String> named, long timeoutMillis, int windowBytes) {
+		this.shards = shards;
+		this.metrics = metrics;
+		this.query = query;
+		this.mediaType = mediaType;
+		this.defaults = defaults;
+		this.named = named;
+		this.timeoutMillis = timeoutMillis;
+		this.windowBytes = windowBytes;
+	}
+
+	@Override
+	public void write(OutputStream output) throws IOException, WebApplicationException {
+		final boolean xml = RDFMediaType.APPLICATION_SPARQL_RESULTS_XML.equals(mediaType);
+		if ( !xml && !RDFMediaType.APPLICATION_SPARQL_RESULTS_JSON.equals(mediaType) ) {
+			throw new WebApplicationException(Response.Status.NOT_ACCEPTABLE);
+		}
+
+		final CatalogDatasetGraph dsg = new CatalogDatasetGraph(shards, defaults, named, timeoutMillis);
+		final Window window = new Window(dsg, windowBytes);
+		final RequestTimer timer = RequestTimer.get();
+
+		long start = System.nanoTime();
+		Future<Void> result = getExecutor().submit(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				// the lock is timed as part of the request all the same
+				RequestTimer.bind(timer);
+				try {
+					run(dsg, new CancellingOutputStream(new BufferedOutputStream(window, CHUNK_BYTES), dsg), xml);
+				} finally {
+					window.finish();
+					RequestTimer.stop();
+				}
+				return null;
+			}
+		});
+		IOException failure = null;
+		try {
+			for (byte[] chunk = window.take(); chunk != null; chunk = window.take()) {
+				output.write(chunk);
+			}
+		} catch (IOException e) {
+			// the client has gone, the query stops at its next triple or write
+			failure = e;
+			dsg.cancel();
+			window.abandon();
+		}
+		try {
+			result.get();
+			// not before: a query that fails before anything is written can still be answered with an error
+			if ( failure == null ) {
+				output.flush();
+			}
+		} catch (IOException e) {
+			failure = e;
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if ( failure != null ) {
+				// cancelled because the client has gone, see below
+			} else if ( cause instanceof CatalogDatasetGraph.TimeoutException ) {
+				logger.info("Query timed out after {}ms: {}", timeoutMillis, query);
+				if ( metrics != null ) {
+					metrics.queryCancelled("timeout");
+				}
+				throw new WebApplicationException(cause, Response.Status.SERVICE_UNAVAILABLE);
+			} else if ( cause instanceof RuntimeException ) {
+				throw (RuntimeException) cause;
+			} else if ( cause instanceof Error ) {
+				throw (Error) cause;
+			} else {
+				throw new WebApplicationException(cause);
+			}
+		} catch (InterruptedException e) {
+			dsg.cancel();
+			window.abandon();
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} finally {
+			RequestTimer.record(RequestTimer.QUERY, start);
+		}
+		if ( failure != null ) {
+			logger.info("Query cancelled, the client has gone: {}", query);
+			if ( metrics != null ) {
+				metrics.queryCancelled("disconnect");
+			}
+			throw failure;
+		}
+	}
+
+	private void run(CatalogDatasetGraph dsg, OutputStream out, boolean xml) throws IOException {
+		dsg.lock();
+		QueryExecution qexec = QueryExecutionFactory.create(query, DatasetFactory.create(dsg));
+		try {
+			if ( query.isAskType() ) {
+				boolean result = qexec.execAsk();
+				if ( xml ) {
+					ResultSetFormatter.outputAsXML(out, result);
+				} else {
+					ResultSetFormatter.outputAsJSON(out, result);
+				}
+			} else if ( xml ) {
+				ResultSetFormatter.outputAsXML(out, qexec.execSelect());
+			} else {
+				ResultSetFormatter.outputAsJSON(out, qexec.execSelect());
+			}
+			out.flush();
+		} finally {
+			qexec.close();
+			dsg.unlock();
+		}
+	}
+
+	private static synchronized ExecutorService getExecutor() {
+		if ( executor == null ) {
+			executor = Executors.newCachedThreadPool(new ThreadFactory() {
+				private AtomicInteger count = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "rdf-api-query-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return executor;
+	}
+
+	/**
+	 * The result writers print, and printing does not throw, so a query is stopped from
+	 * here: once it has run out of time, and as soon as a write fails.
+	 */
+	private static class CancellingOutputStream extends FilterOutputStream {
+
+		private CatalogDatasetGraph dsg = null;
+		private IOException failure = null;
+
+		public CancellingOutputStream(OutputStream out, CatalogDatasetGraph dsg) {
+			super(out);
+			this.dsg = dsg;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			check();
+			try {
+				out.write(b, off, len);
+			} catch (IOException e) {
+				fail(e);
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			check();
+			try {
+				out.flush();
+			} catch (IOException e) {
+				fail(e);
+			}
+		}
+
+		private void check() throws IOException {
+			if ( failure != null ) {
+				throw failure;
+			}
+			dsg.check();
+		}
+
+		private void fail(IOException e) throws IOException {
+			failure = e;
+			dsg.cancel();
+			throw e;
+		}
+
+	}
+
+	/**
+	 * The results written by the query and not yet sent to the client, at most a window
+	 * of them. A query that finds the window full waits for the client, but no longer
+	 * than its deadline.
+	 */
+	private static class Window extends OutputStream {
+
+		private CatalogDatasetGraph dsg = null;
+		private int capacity = 0;
+		private LinkedList<byte[]> chunks = new LinkedList<byte[]>();
+		private int size = 0;
+		private boolean finished = false;
+		private boolean abandoned = false;
+
+		public Window(CatalogDatasetGraph dsg, int capacity) {
+			this.dsg = dsg;
+			this.capacity = capacity;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public synchronized void write(byte[] b, int off, int len) throws IOException {
+			// a write bigger than the window still goes in once the window is empty
+			while ( !abandoned && ( size > 0 ) && ( size + len > capacity ) ) {
+				dsg.check();
+				try {
+					wait(dsg.getRemainingMillis());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException();
+				}
+			}
+			if ( abandoned ) {
+				throw new IOException("The client has gone");
+			}
+			chunks.add(Arrays.copyOfRange(b, off, off + len));
+			size += len;
+			notifyAll();
+		}
+
+		/**
+		 * @return the next chunk written, or null once the query has finished and every chunk has been taken
+		 */
+		public synchronized byte[] take() throws IOException {
+			while ( chunks.isEmpty() && !finished ) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException();
+				}
+			}
+			if ( chunks.isEmpty() ) {
+				return null;
+			}
+			byte[] chunk = chunks.removeFirst();
+			size -= chunk.length;
+			notifyAll();
+			return chunk;
+		}
+
+		/**
+		 * Called by the query once it has written everything it will.
+		 */
+		public synchronized void finish() {
+			finished = true;
+			notifyAll();
+		}
+
+		/**
+		 * Called once the client has gone: the chunks are dropped and writes fail.
+		 */
+		public synchronized void abandon() {
+			abandoned = true;
+			chunks.clear();
+			size = 0;
+			notifyAll();
+		}
+
+	}
+
+}
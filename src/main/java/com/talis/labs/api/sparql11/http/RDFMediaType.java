@@ -41,11 +41,23 @@ public class RDFMediaType {
     public final static String APPLICATION_NTRIPLES = "application/n-triples";
     public final static MediaType APPLICATION_NTRIPLES_TYPE = new MediaType("application","n-triples");
 
-    public final static String APPLICATION_SPARQL_RESULTS_XML = "application/sparql-result+xml";
-    public final static MediaType APPLICATION_SPARQL_RESULTS_XML_TYPE = new MediaType("application","sparql-result+xml");
+    public final static String APPLICATION_NQUADS = "application/n-quads";
+    public final static MediaType APPLICATION_NQUADS_TYPE = new MediaType("application","n-quads");
 
-    public final static String APPLICATION_SPARQL_RESULTS_JSON = "application/sparql-result+json";
-    public final static MediaType APPLICATION_SPARQL_RESULTS_JSON_TYPE = new MediaType("application","sparql-result+json");
+    public final static String APPLICATION_TRIG = "application/trig";
+    public final static MediaType APPLICATION_TRIG_TYPE = new MediaType("application","trig");
+
+    public final static String APPLICATION_RDF_BINARY = "application/x-rdf-binary";
+    public final static MediaType APPLICATION_RDF_BINARY_TYPE = new MediaType("application","x-rdf-binary");
+
+    public final static String APPLICATION_RDF_PATCH = "application/rdf-patch";
+    public final static MediaType APPLICATION_RDF_PATCH_TYPE = new MediaType("application","rdf-patch");
+
+    public final static String APPLICATION_SPARQL_RESULTS_XML = "application/sparql-results+xml";
+    public final static MediaType APPLICATION_SPARQL_RESULTS_XML_TYPE = new MediaType("application","sparql-results+xml");
+
+    public final static String APPLICATION_SPARQL_RESULTS_JSON = "application/sparql-results+json";
+    public final static MediaType APPLICATION_SPARQL_RESULTS_JSON_TYPE = new MediaType("application","sparql-results+json");
 
     public final static String APPLICATION_SPARQL_QUERY_X = "application/x-sparql-query";
     public final static MediaType APPLICATION_SPARQL_QUERY_X_TYPE = new MediaType("application","x-sparql-query");
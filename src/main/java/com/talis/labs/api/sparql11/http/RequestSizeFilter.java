@@ -0,0 +1,115 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.api.sparql11.http;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+
+import com.sun.jersey.api.core.ResourceConfig;
+import com.sun.jersey.spi.container.ContainerRequest;
+import com.sun.jersey.spi.container.ContainerRequestFilter;
+
+/**
+ * Rejects request bodies larger than {@link #MAX_REQUEST_BYTES} (an init parameter, see
+ * {@link ServerConfig}, or else a system property of the same name) with 413. A body
+ * announcing its length is rejected before anything is read, a chunked one as soon as
+ * it goes over, which fails the parse and so discards what was staged.
+ */
+public class RequestSizeFilter implements ContainerRequestFilter {
+
+	public static final String MAX_REQUEST_BYTES = "rdf-api.server.max-request-bytes";
+
+	private static final int REQUEST_ENTITY_TOO_LARGE = 413;
+
+	@Context
+	private ResourceConfig config;
+
+	private long max = -1;
+
+	@Override
+	public ContainerRequest filter(ContainerRequest request) {
+		long max = getMax();
+		if ( max > 0 ) {
+			String length = request.getHeaderValue(HttpHeaders.CONTENT_LENGTH);
+			try {
+				if ( ( length != null ) && ( Long.parseLong(length.trim()) > max ) ) {
+					throw new WebApplicationException(REQUEST_ENTITY_TOO_LARGE);
+				}
+			} catch (NumberFormatException e) {
+				throw new WebApplicationException(Response.Status.BAD_REQUEST);
+			}
+			request.setEntityInputStream(new LimitedInputStream(request.getEntityInputStream(), max));
+		}
+		return request;
+	}
+
+	private long getMax() {
+		if ( max < 0 ) {
+			Object value = config.getProperty(MAX_REQUEST_BYTES);
+			max = ( value != null ) ? Long.parseLong(value.toString().trim()) : Long.getLong(MAX_REQUEST_BYTES, 0);
+		}
+		return max;
+	}
+
+	private static class LimitedInputStream extends FilterInputStream {
+
+		private long remaining = 0;
+
+		public LimitedInputStream(InputStream in, long max) {
+			super(in);
+			this.remaining = max;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if ( b >= 0 ) {
+				count(1);
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if ( n > 0 ) {
+				count(n);
+			}
+			return n;
+		}
+
+		private void count(long n) {
+			remaining -= n;
+			if ( remaining < 0 ) {
+				throw new WebApplicationException(REQUEST_ENTITY_TOO_LARGE);
+			}
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+
+	}
+
+}
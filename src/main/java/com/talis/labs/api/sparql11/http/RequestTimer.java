@@ -0,0 +1,190 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.api.sparql11.http;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Where the time of one request went, phase by phase: parsing, waiting for locks,
+ * clearing and adding triples, syncing, serializing and so on.
+ *
+ * {@link MetricsFilter} binds a timer to the thread serving each request, so that the
+ * code doing the work can record a phase without being handed anything, and recording
+ * outside a request (tests, benchmarks, tools) does nothing. A phase recorded more than
+ * once, e.g. one lock wait per batch, adds up. Phases nest, a lock wait is also part of
+ * the phase which waited for it, so they do not sum to the total.
+ *
+ * A timer is only ever used by the thread it is bound to and is not thread safe.
+ */
+public class RequestTimer {
+
+	public static final String ADMISSION = "admission";
+	public static final String PARSE = "parse";
+	public static final String GROUP_COMMIT = "group-commit";
+	public static final String GRAPH_LOCK = "graph-lock";
+	public static final String LOCK = "lock";
+	public static final String CLEAR = "clear";
+	public static final String ADD = "add";
+	public static final String SYNC = "sync";
+	public static final String SWAP = "swap";
+	public static final String QUERY = "query";
+	public static final String DROP = "drop";
+	public static final String SERIALIZE = "serialize";
+	public static final String TOTAL = "total";
+
+	private static final ThreadLocal<RequestTimer> current = new ThreadLocal<RequestTimer>();
+
+	private long start = 0;
+	// phase -> { nanos, times }
+	private Map<String, long[]> phases = new LinkedHashMap<String, long[]>();
+	private long triples = -1;
+
+	public RequestTimer() {
+		this(System.nanoTime());
+	}
+
+	public RequestTimer(long start) {
+		this.start = start;
+	}
+
+	/**
+	 * Binds a new timer to the current thread, replacing any left over from a previous request.
+	 */
+	public static RequestTimer start(long start) {
+		RequestTimer timer = new RequestTimer(start);
+		current.set(timer);
+		return timer;
+	}
+
+	/**
+	 * Binds the timer of a request to the current thread, one doing part of the work of
+	 * that request while the thread serving it waits, or unbinds it if null.
+	 */
+	public static void bind(RequestTimer timer) {
+		if ( timer != null ) {
+			current.set(timer);
+		} else {
+			current.remove();
+		}
+	}
+
+	public static void stop() {
+		current.remove();
+	}
+
+	/**
+	 * @return the timer of the request the current thread is serving, or null
+	 */
+	public static RequestTimer get() {
+		return current.get();
+	}
+
+	/**
+	 * Adds the time since start, a {@link System#nanoTime()}, to a phase of the current request, if any.
+	 */
+	public static void record(String phase, long start) {
+		RequestTimer timer = current.get();
+		if ( timer != null ) {
+			timer.add(phase, System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Notes how many triples the current request loaded, if there is one.
+	 */
+	public static void recordTriples(long count) {
+		RequestTimer timer = current.get();
+		if ( timer != null ) {
+			timer.triples = ( timer.triples < 0 ) ? count : timer.triples + count;
+		}
+	}
+
+	public void add(String phase, long nanos) {
+		long[] entry = phases.get(phase);
+		if ( entry == null ) {
+			entry = new long[2];
+			phases.put(phase, entry);
+		}
+		entry[0] += nanos;
+		entry[1]++;
+	}
+
+	/**
+	 * @return the nanoseconds spent in a phase so far, 0 if it has not been recorded
+	 */
+	public long getNanos(String phase) {
+		long[] entry = phases.get(phase);
+		return ( entry == null ) ? 0 : entry[0];
+	}
+
+	/**
+	 * @return how many times a phase has been recorded
+	 */
+	public long getTimes(String phase) {
+		long[] entry = phases.get(phase);
+		return ( entry == null ) ? 0 : entry[1];
+	}
+
+	/**
+	 * @return the number of triples loaded, or -1 if the request did not load any
+	 */
+	public long getTriples() {
+		return triples;
+	}
+
+	public long getElapsed(long now) {
+		return now - start;
+	}
+
+	/**
+	 * @return the phases recorded so far and the total up to now as the value of a
+	 *         Server-Timing header, durations in milliseconds
+	 */
+	public String toServerTiming(long now) {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, long[]> phase : phases.entrySet()) {
+			sb.append(phase.getKey()).append(";dur=").append(millis(phase.getValue()[0])).append(", ");
+		}
+		sb.append(TOTAL).append(";dur=").append(millis(now - start));
+		return sb.toString();
+	}
+
+	/**
+	 * @return the phases recorded so far, e.g. "parse=1200.125ms lock=3.500ms/12", with the number of times a phase was recorded if more than once
+	 */
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, long[]> phase : phases.entrySet()) {
+			if ( sb.length() > 0 ) {
+				sb.append(' ');
+			}
+			sb.append(phase.getKey()).append('=').append(millis(phase.getValue()[0])).append("ms");
+			if ( phase.getValue()[1] > 1 ) {
+				sb.append('/').append(phase.getValue()[1]);
+			}
+		}
+		return sb.toString();
+	}
+
+	private static String millis(long nanos) {
+		return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+	}
+
+}
@@ -0,0 +1,304 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.api.sparql11.http;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * How {@link JettyServer} and {@link GrizzlyServer} are set up: where they listen, their
+ * connector, acceptor and selector threads, worker pool, buffers, timeouts and limits.
+ *
+ * Every setting is a rdf-api.server.* system property, 0 (or unset) leaving the
+ * container's own default. A properties file, named by -Drdf-api.config or given as
+ * the first argument to main, can hold these and any other rdf-api.* setting (admission
+ * limits, the TDB location, group commit...): it is copied into the system properties
+ * at startup, without overriding those given on the command line.
+ *
+ * Not every container has every knob. Jetty 7 has one select set per acceptor, so
+ * selectors is ignored in favour of acceptors, and it has no keep-alive timeout or
+ * request count of its own, the idle timeout applies to kept alive connections too.
+ * Grizzly 1.9 is NIO only, has a single acceptor, sizes its response buffer with its
+ * header limit and its request header buffer with its buffer size, and closes idle
+ * connections after the keep-alive timeout, which the idle timeout stands in for if
+ * there is none. What does not apply is logged and ignored.
+ *
+ * With virtual threads, on a runtime that has them (looked up by reflection, this code
+ * still runs on older ones), each request is handled on a virtual thread of its own
+ * instead of a bounded pool of platform threads, so requests blocked on TDB I/O or on
+ * a lock do not hold on to a platform thread. The worker pool settings are then
+ * ignored, and {@link AdmissionController} is what bounds concurrency.
+ */
+public class ServerConfig {
+
+	private static final Logger logger = LoggerFactory.getLogger(ServerConfig.class);
+
+	public static final String CONFIG_PROPERTY = "rdf-api.config";
+	public static final String PREFIX = "rdf-api.server.";
+	public static final int DEFAULT_PORT = 8080;
+	public static final String NIO = "nio";
+	public static final String BLOCKING = "blocking";
+
+	private String host = null;
+	private int port = DEFAULT_PORT;
+	private String connector = NIO;
+	private int acceptors = 0;
+	private int selectors = 0;
+	private int minThreads = 0;
+	private int maxThreads = 0;
+	private int maxQueued = 0;
+	private boolean virtualThreads = false;
+	private int outputBufferBytes = 0;
+	private int requestHeaderBytes = 0;
+	private long maxRequestBytes = 0;
+	private int idleTimeoutMillis = 0;
+	private int keepAliveTimeoutMillis = 0;
+	private int maxKeepAliveRequests = 0;
+
+	/**
+	 * Reads the rdf-api.server.* system properties.
+	 */
+	public ServerConfig() {
+		host = System.getProperty(PREFIX + "host");
+		port = Integer.getInteger(PREFIX + "port", DEFAULT_PORT);
+		connector = System.getProperty(PREFIX + "connector", NIO);
+		acceptors = Integer.getInteger(PREFIX + "acceptors", 0);
+		selectors = Integer.getInteger(PREFIX + "selectors", 0);
+		minThreads = Integer.getInteger(PREFIX + "min-threads", 0);
+		maxThreads = Integer.getInteger(PREFIX + "max-threads", 0);
+		maxQueued = Integer.getInteger(PREFIX + "max-queued", 0);
+		virtualThreads = Boolean.getBoolean(PREFIX + "virtual-threads");
+		outputBufferBytes = Integer.getInteger(PREFIX + "output-buffer-bytes", 0);
+		requestHeaderBytes = Integer.getInteger(PREFIX + "request-header-bytes", 0);
+		maxRequestBytes = Long.getLong(PREFIX + "max-request-bytes", 0);
+		idleTimeoutMillis = Integer.getInteger(PREFIX + "idle-timeout-ms", 0);
+		keepAliveTimeoutMillis = Integer.getInteger(PREFIX + "keep-alive-timeout-ms", 0);
+		maxKeepAliveRequests = Integer.getInteger(PREFIX + "max-keep-alive-requests", 0);
+		if ( !NIO.equals(connector) && !BLOCKING.equals(connector) ) {
+			throw new IllegalArgumentException("Unknown connector, expected " + NIO + " or " + BLOCKING + ": " + connector);
+		}
+	}
+
+	/**
+	 * Copies the properties file named by the first argument, or by -Drdf-api.config, if
+	 * any, into the system properties and reads the server settings.
+	 */
+	public static ServerConfig load(String[] args) throws IOException {
+		String file = ( ( args != null ) && ( args.length > 0 ) ) ? args[0] : System.getProperty(CONFIG_PROPERTY);
+		if ( file != null ) {
+			Properties properties = new Properties();
+			InputStream in = new FileInputStream(file);
+			try {
+				properties.load(in);
+			} finally {
+				in.close();
+			}
+			for (String name : properties.stringPropertyNames()) {
+				if ( System.getProperty(name) == null ) {
+					System.setProperty(name, properties.getProperty(name).trim());
+				}
+			}
+			logger.info("Loaded {} settings from {}", properties.size(), file);
+		}
+		return new ServerConfig();
+	}
+
+	/**
+	 * @return the Jersey servlet init parameters both servers share
+	 */
+	public Map<String, String> getInitParameters() {
+		Map<String, String> params = new HashMap<String, String>();
+		if ( maxRequestBytes > 0 ) {
+			params.put(RequestSizeFilter.MAX_REQUEST_BYTES, String.valueOf(maxRequestBytes));
+		}
+		// not a package scan: the application opens the datasets as it starts
+		params.put("javax.ws.rs.Application", Sparql11HttpRdfUpdateApplication.class.getName());
+		params.put("com.sun.jersey.spi.container.ContainerRequestFilters", MetricsFilter.class.getName() + "," + RequestSizeFilter.class.getName() + "," + AdmissionFilter.class.getName());
+		params.put("com.sun.jersey.spi.container.ContainerResponseFilters", MetricsFilter.class.getName());
+		return params;
+	}
+
+	/**
+	 * @return an executor running each task on a new virtual thread, or null if this runtime does not have virtual threads
+	 */
+	public static ExecutorService newVirtualThreadExecutor() {
+		try {
+			Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) method.invoke(null);
+		} catch (NoSuchMethodException e) {
+			return null;
+		} catch (Exception e) {
+			// e.g. a preview feature which has not been enabled
+			logger.warn("Virtual threads are not available: {}", e.toString());
+			return null;
+		}
+	}
+
+	/**
+	 * Logs a setting the server being started has no use for.
+	 */
+	static void ignored(String server, String setting, Object value) {
+		logger.warn("{} ignores {}{}={}", new Object[] { server, PREFIX, setting, value });
+	}
+
+	/**
+	 * @return the address to listen on, or null for the server's default: all of them for
+	 * {@link JettyServer}, {@link GrizzlyServer#DEFAULT_HOST} for GrizzlyServer
+	 */
+	public String getHost() {
+		return host;
+	}
+
+	public void setHost(String host) {
+		this.host = host;
+	}
+
+	/**
+	 * @return the port to listen on, 0 for any free port
+	 */
+	public int getPort() {
+		return port;
+	}
+
+	public void setPort(int port) {
+		this.port = port;
+	}
+
+	/**
+	 * @return {@link #NIO} or {@link #BLOCKING}
+	 */
+	public String getConnector() {
+		return connector;
+	}
+
+	public void setConnector(String connector) {
+		this.connector = connector;
+	}
+
+	public int getAcceptors() {
+		return acceptors;
+	}
+
+	public void setAcceptors(int acceptors) {
+		this.acceptors = acceptors;
+	}
+
+	public int getSelectors() {
+		return selectors;
+	}
+
+	public void setSelectors(int selectors) {
+		this.selectors = selectors;
+	}
+
+	public int getMinThreads() {
+		return minThreads;
+	}
+
+	public void setMinThreads(int minThreads) {
+		this.minThreads = minThreads;
+	}
+
+	public int getMaxThreads() {
+		return maxThreads;
+	}
+
+	public void setMaxThreads(int maxThreads) {
+		this.maxThreads = maxThreads;
+	}
+
+	/**
+	 * @return the most requests waiting for a worker thread
+	 */
+	public int getMaxQueued() {
+		return maxQueued;
+	}
+
+	public void setMaxQueued(int maxQueued) {
+		this.maxQueued = maxQueued;
+	}
+
+	public boolean isVirtualThreads() {
+		return virtualThreads;
+	}
+
+	public void setVirtualThreads(boolean virtualThreads) {
+		this.virtualThreads = virtualThreads;
+	}
+
+	public int getOutputBufferBytes() {
+		return outputBufferBytes;
+	}
+
+	public void setOutputBufferBytes(int outputBufferBytes) {
+		this.outputBufferBytes = outputBufferBytes;
+	}
+
+	public int getRequestHeaderBytes() {
+		return requestHeaderBytes;
+	}
+
+	public void setRequestHeaderBytes(int requestHeaderBytes) {
+		this.requestHeaderBytes = requestHeaderBytes;
+	}
+
+	/**
+	 * @return the largest request body accepted, see {@link RequestSizeFilter}
+	 */
+	public long getMaxRequestBytes() {
+		return maxRequestBytes;
+	}
+
+	public void setMaxRequestBytes(long maxRequestBytes) {
+		this.maxRequestBytes = maxRequestBytes;
+	}
+
+	public int getIdleTimeoutMillis() {
+		return idleTimeoutMillis;
+	}
+
+	public void setIdleTimeoutMillis(int idleTimeoutMillis) {
+		this.idleTimeoutMillis = idleTimeoutMillis;
+	}
+
+	public int getKeepAliveTimeoutMillis() {
+		return keepAliveTimeoutMillis;
+	}
+
+	public void setKeepAliveTimeoutMillis(int keepAliveTimeoutMillis) {
+		this.keepAliveTimeoutMillis = keepAliveTimeoutMillis;
+	}
+
+	public int getMaxKeepAliveRequests() {
+		return maxKeepAliveRequests;
+	}
+
+	public void setMaxKeepAliveRequests(int maxKeepAliveRequests) {
+		this.maxKeepAliveRequests = maxKeepAliveRequests;
+	}
+
+}
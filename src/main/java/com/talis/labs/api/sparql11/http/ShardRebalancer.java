@@ -0,0 +1,312 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.api.sparql11.http;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.tdb.TDB;
+import com.hp.hpl.jena.tdb.TDBFactory;
+import com.hp.hpl.jena.tdb.base.file.Location;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+
+/**
+ * Moves graphs between shards after the list of TDB locations has changed, see
+ * {@link DatasetResolver}. The server must not be running.
+ *
+ *   java ShardRebalancer from=TDB0,TDB1 [to=TDB0,TDB1,TDB2] [journal=rebalance.journal] [dry-run=true]
+ *
+ * from is the old list of locations and to the new one, by default the configured
+ * {@link DatasetResolver#LOCATIONS_PROPERTY} (set with -D or in a -Drdf-api.config file).
+ * A location in both lists is the same dataset. Every graph whose shard in the new
+ * layout is a different dataset is copied there in batches, the copy is synced and
+ * written to the journal, and only then is the graph deleted from where it was. A run
+ * that stops half way can simply be run again, with the same from and to: graphs
+ * already copied are not copied twice, they are only deleted from their old shard. The
+ * journal starts with the layouts it was written for, and a run with other ones refuses
+ * to resume it, since the graphs it lists were copied to where those layouts put them.
+ * The journal is deleted when a run finishes. Only the current generation of a graph moves, with the record of which one
+ * it is (see {@link GraphCatalog}): graphs in the trash of a shard (see
+ * {@link GraphReclaimer}) and generations left behind by interrupted loads are left
+ * where they are, the server removes them.
+ *
+ * Because shards are hashed consistently, adding a location at the end of the list only
+ * moves the graphs that now belong to it. Reordering locations moves almost everything.
+ */
+public class ShardRebalancer {
+
+	private static final Logger logger = LoggerFactory.getLogger(ShardRebalancer.class);
+
+	public static final String DEFAULT_JOURNAL = "rebalance.journal";
+
+	private static final String LAYOUT = "layout ";
+	private static final String COPIED = "copied ";
+
+	private List<Dataset> from = null;
+	private List<Dataset> to = null;
+	private ShardRing ring = null;
+	private String layout = null;
+	private File journal = null;
+	private int batchSize = GraphLoader.DEFAULT_BATCH_SIZE;
+	private boolean dryRun = false;
+	private long graphs = 0;
+	private long triples = 0;
+
+	/**
+	 * @param layout names the from and to layouts, see {@link #layout(List, List)}
+	 */
+	public ShardRebalancer(List<Dataset> from, List<Dataset> to, String layout, File journal, int batchSize, boolean dryRun) {
+		this.from = from;
+		this.to = to;
+		this.ring = new ShardRing(to.size());
+		this.layout = layout;
+		this.journal = journal;
+		this.batchSize = batchSize;
+		this.dryRun = dryRun;
+	}
+
+	public static void main(String[] args) throws IOException {
+		Map<String, String> options = new HashMap<String, String>();
+		for (String arg : args) {
+			int i = arg.indexOf('=');
+			if ( i < 0 ) {
+				throw new IllegalArgumentException("Expected key=value, not " + arg);
+			}
+			options.put(arg.substring(0, i), arg.substring(i + 1));
+		}
+		if ( !options.containsKey("from") ) {
+			System.err.println("Usage: ShardRebalancer from=<old locations> [to=<new locations>] [journal=<file>] [dry-run=true]");
+			System.exit(1);
+		}
+		ServerConfig.load(null);
+		List<String> oldLocations = DatasetResolver.parseLocations(options.get("from"));
+		List<String> newLocations = options.containsKey("to") ? DatasetResolver.parseLocations(options.get("to")) : DatasetResolver.getLocations();
+		logger.info("Rebalancing {} shards into {}", oldLocations, newLocations);
+
+		// a location in both layouts must be opened once
+		Map<String, Dataset> opened = new HashMap<String, Dataset>();
+		List<Dataset> from = open(oldLocations, opened);
+		List<Dataset> to = open(newLocations, opened);
+		String journal = options.containsKey("journal") ? options.get("journal") : DEFAULT_JOURNAL;
+		ShardRebalancer rebalancer = new ShardRebalancer(from, to, layout(oldLocations, newLocations), new File(journal), GraphLoader.DEFAULT_BATCH_SIZE, Boolean.parseBoolean(options.get("dry-run")));
+		try {
+			rebalancer.run();
+		} finally {
+			for (Dataset dataset : opened.values()) {
+				dataset.close();
+			}
+		}
+		logger.info("Moved {} graphs, {} triples", rebalancer.getGraphs(), rebalancer.getTriples());
+	}
+
+	/**
+	 * @return the old and new lists of locations, as canonical paths
+	 */
+	public static String layout(List<String> oldLocations, List<String> newLocations) throws IOException {
+		return "from=" + canonical(oldLocations) + " to=" + canonical(newLocations);
+	}
+
+	private static String canonical(List<String> locations) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		for (String location : locations) {
+			if ( sb.length() > 0 ) {
+				sb.append(',');
+			}
+			sb.append(new File(location).getCanonicalPath());
+		}
+		return sb.toString();
+	}
+
+	private static List<Dataset> open(List<String> locations, Map<String, Dataset> opened) throws IOException {
+		List<Dataset> datasets = new ArrayList<Dataset>();
+		for (String location : locations) {
+			String path = new File(location).getCanonicalPath();
+			Dataset dataset = opened.get(path);
+			if ( dataset == null ) {
+				dataset = TDBFactory.createDataset(new Location(path));
+				opened.put(path, dataset);
+			}
+			datasets.add(dataset);
+		}
+		return datasets;
+	}
+
+	public void run() throws IOException {
+		Set<String> copied = readJournal();
+		boolean resumed = journal.exists();
+		Writer out = dryRun ? null : new OutputStreamWriter(new FileOutputStream(journal, true), "UTF-8");
+		try {
+			if ( ( out != null ) && !resumed ) {
+				out.write(LAYOUT + layout + "\n");
+				out.flush();
+			}
+			for (int shard = 0; shard < from.size(); shard++) {
+				Dataset source = from.get(shard);
+				List<String> names = new ArrayList<String>();
+				for (Iterator<String> iter = source.listNames(); iter.hasNext(); ) {
+					names.add(iter.next());
+				}
+				Set<Node> trash = GraphReclaimer.getTrash(source);
+				Map<String, Long> generations = GraphCatalog.getGenerations(source);
+				for (String name : names) {
+					if ( name.startsWith(GraphLoader.STAGING_GRAPH_PREFIX) ) {
+						logger.warn("Skipping staging graph {} left behind by an interrupted load", name);
+						continue;
+					}
+					// deleted graphs are removed by the server, where they are
+					String uri = GraphCatalog.getUri(name);
+					if ( ( uri == null ) || trash.contains(Node.createURI(name)) ) {
+						continue;
+					}
+					long generation = GraphCatalog.getGeneration(Node.createURI(name));
+					if ( generation != ( generations.containsKey(uri) ? generations.get(uri) : 0 ) ) {
+						logger.warn("Skipping {}, a generation of {} left behind by an interrupted load", name, uri);
+						continue;
+					}
+					Dataset target = to.get(ring.shard(uri));
+					if ( target == source ) {
+						continue;
+					}
+					if ( dryRun ) {
+						logger.info("Would move {} from shard {} to shard {}", new Object[] { name, shard, ring.shard(uri) });
+						graphs++;
+						continue;
+					}
+					if ( !copied.contains(name) ) {
+						Graph graph = target.asDatasetGraph().getGraph(Node.createURI(name));
+						// a previous run may have stopped half way through the copy
+						while ( deleteBatch(graph) > 0 ) { }
+						triples += copy(source.asDatasetGraph().getGraph(Node.createURI(name)), graph);
+						GraphCatalog.setGeneration(target, uri, generation);
+						TDB.sync(target);
+						out.write(COPIED + name + "\n");
+						out.flush();
+					}
+					while ( deleteBatch(source.asDatasetGraph().getGraph(Node.createURI(name))) > 0 ) { }
+					GraphCatalog.setGeneration(source, uri, 0);
+					TDB.sync(source);
+					graphs++;
+					logger.info("Moved {} from shard {} to shard {}", new Object[] { name, shard, ring.shard(uri) });
+				}
+			}
+		} finally {
+			if ( out != null ) {
+				out.close();
+			}
+		}
+		// every graph is where it belongs, what was copied no longer matters
+		if ( !dryRun && !journal.delete() ) {
+			logger.warn("Could not delete {}", journal);
+		}
+	}
+
+	/**
+	 * @throws IllegalStateException if the journal was written for other layouts
+	 */
+	private Set<String> readJournal() throws IOException {
+		Set<String> copied = new HashSet<String>();
+		if ( !journal.exists() ) {
+			return copied;
+		}
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(journal), "UTF-8"));
+		try {
+			String line = in.readLine();
+			String written = ( ( line != null ) && line.startsWith(LAYOUT) ) ? line.substring(LAYOUT.length()) : null;
+			if ( !layout.equals(written) ) {
+				throw new IllegalStateException(journal + " belongs to an interrupted rebalance " + ( ( written != null ) ? written : "of unknown layouts" ) + ", run that one again to finish it first");
+			}
+			while ( ( line = in.readLine() ) != null ) {
+				if ( line.startsWith(COPIED) ) {
+					copied.add(line.substring(COPIED.length()));
+				}
+			}
+		} finally {
+			in.close();
+		}
+		logger.info("{} graphs already copied according to {}", copied.size(), journal);
+		return copied;
+	}
+
+	/**
+	 * Copies a graph a batch at a time, the source is left as it is.
+	 */
+	private long copy(Graph from, Graph to) {
+		long count = 0;
+		List<Triple> batch = new ArrayList<Triple>(batchSize);
+		ExtendedIterator<Triple> iter = from.find(Node.ANY, Node.ANY, Node.ANY);
+		try {
+			while ( iter.hasNext() ) {
+				batch.add(iter.next());
+				if ( batch.size() >= batchSize ) {
+					to.getBulkUpdateHandler().add(batch);
+					count += batch.size();
+					batch.clear();
+				}
+			}
+		} finally {
+			iter.close();
+		}
+		to.getBulkUpdateHandler().add(batch);
+		return count + batch.size();
+	}
+
+	/**
+	 * @return the number of triples deleted, 0 once the graph is empty
+	 */
+	private int deleteBatch(Graph graph) {
+		List<Triple> batch = new ArrayList<Triple>(batchSize);
+		ExtendedIterator<Triple> iter = graph.find(Node.ANY, Node.ANY, Node.ANY);
+		try {
+			while ( iter.hasNext() && ( batch.size() < batchSize ) ) {
+				batch.add(iter.next());
+			}
+		} finally {
+			iter.close();
+		}
+		graph.getBulkUpdateHandler().delete(batch);
+		return batch.size();
+	}
+
+	public long getGraphs() {
+		return graphs;
+	}
+
+	public long getTriples() {
+		return triples;
+	}
+
+}
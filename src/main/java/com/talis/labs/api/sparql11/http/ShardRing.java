@@ -0,0 +1,113 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.api.sparql11.http;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Maps graph URIs to shards by consistent hashing.
+ *
+ * Every shard owns {@link #POINTS_PER_SHARD} points on a ring of 64 bit hashes and a
+ * graph belongs to the shard owning the first point at or after the hash of its URI.
+ * Going from n to n + 1 shards only moves about 1 / (n + 1) of the graphs, all of them
+ * to the new shard. Shards are known by their position in the layout, not by their
+ * location, so a shard can be moved to another disk without moving any graph.
+ */
+public class ShardRing {
+
+	public static final int POINTS_PER_SHARD = 128;
+
+	private int shards = 0;
+	private long[] points = null;
+	private int[] owners = null;
+
+	public ShardRing(int shards) {
+		if ( shards < 1 ) {
+			throw new IllegalArgumentException("At least one shard is needed: " + shards);
+		}
+		this.shards = shards;
+		TreeMap<Long, Integer> ring = new TreeMap<Long, Integer>();
+		for (int shard = 0; shard < shards; shard++) {
+			for (int point = 0; point < POINTS_PER_SHARD; point++) {
+				Long hash = hash(shard + "#" + point);
+				if ( !ring.containsKey(hash) ) {
+					ring.put(hash, shard);
+				}
+			}
+		}
+		points = new long[ring.size()];
+		owners = new int[ring.size()];
+		int i = 0;
+		for (Map.Entry<Long, Integer> entry : ring.entrySet()) {
+			points[i] = entry.getKey();
+			owners[i] = entry.getValue();
+			i++;
+		}
+	}
+
+	public int size() {
+		return shards;
+	}
+
+	/**
+	 * @return the shard the graph belongs to, from 0 to {@link #size()} - 1
+	 */
+	public int shard(String uri) {
+		if ( shards == 1 ) {
+			return 0;
+		}
+		long hash = hash(uri);
+		int lo = 0;
+		int hi = points.length;
+		while ( lo < hi ) {
+			int mid = ( lo + hi ) >>> 1;
+			if ( points[mid] < hash ) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return owners[( lo == points.length ) ? 0 : lo];
+	}
+
+	/**
+	 * FNV-1a over the UTF-8 bytes, then the MurmurHash3 finalizer to spread short keys
+	 * over the whole ring. It must never change: it decides where graphs are stored.
+	 */
+	static long hash(String s) {
+		byte[] bytes = null;
+		try {
+			bytes = s.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+		long h = 0xcbf29ce484222325L;
+		for (byte b : bytes) {
+			h ^= ( b & 0xff );
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb93fe1a85ec3L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+}
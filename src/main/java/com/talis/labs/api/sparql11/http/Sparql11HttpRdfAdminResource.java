@@ -0,0 +1,84 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.api.sparql11.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.ext.ContextResolver;
+import javax.ws.rs.ext.Providers;
+
+/**
+ * The state of background work. /admin/deletes lists the graphs whose triples are
+ * being removed by the {@link GraphReclaimer}, one per line, tab separated: URI,
+ * generation, state (queued, removing, done or failed), triples removed, triples to
+ * remove (-1 if not known), when the graph was deleted and when the removal finished.
+ * Like /metrics it is never subject to admission control.
+ */
+@Path("/admin")
+public class Sparql11HttpRdfAdminResource {
+
+	@Context
+	private Providers providers;
+
+	@GET
+	@Path("deletes")
+	@Produces(MediaType.TEXT_PLAIN)
+	public Response doGetDeletes() {
+		ContextResolver<DatasetShards> resolver = providers.getContextResolver(DatasetShards.class, MediaType.WILDCARD_TYPE);
+		final List<GraphReclaimer.Job> jobs = resolver.getContext(DatasetShards.class).getReclaimer().getJobs();
+		StreamingOutput so = new StreamingOutput() {
+			@Override
+			public void write(OutputStream output) throws IOException, WebApplicationException {
+				Writer writer = new OutputStreamWriter(output, "UTF-8");
+				for (GraphReclaimer.Job job : jobs) {
+					writer.write(job.getUri() + "\t" + job.getGeneration() + "\t" + job.getState() + "\t" + job.getRemoved() + "\t" + job.getTriples() + "\t" + format(job.getCreated()) + "\t" + format(job.getFinished()));
+					if ( job.getError() != null ) {
+						writer.write("\t" + job.getError());
+					}
+					writer.write("\n");
+				}
+				writer.flush();
+			}
+		};
+		return Response.ok(so).build();
+	}
+
+	private static String format(Date date) {
+		if ( date == null ) {
+			return "-";
+		}
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return format.format(date);
+	}
+
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.api.sparql11.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.POST;
+import javax.ws.rs.PUT;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.ext.ContextResolver;
+import javax.ws.rs.ext.Providers;
+
+import org.apache.xerces.util.URI;
+import org.apache.xerces.util.URI.MalformedURIException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Loads many named graphs from a single quad document. PUT replaces every graph in the
+ * document and POST adds to them; either can be overridden for some graphs by listing
+ * them in replace or merge query parameters.
+ */
+@Path("/http-rdf-update/bulk")
+public class Sparql11HttpRdfBulkLoadResource {
+
+	private static final Logger logger = LoggerFactory.getLogger(Sparql11HttpRdfBulkLoadResource.class);
+
+	@Context
+	private Providers providers;
+
+	@Context
+	private HttpHeaders headers;
+
+	@POST
+	@Consumes({ RDFMediaType.APPLICATION_NQUADS, RDFMediaType.APPLICATION_TRIG })
+	@Produces(MediaType.TEXT_PLAIN)
+	public Response doPost(@QueryParam("replace") final List<String> replace, @QueryParam("merge") final List<String> merge, final InputStream in) {
+		logger.info("POST bulk load, replace = {}", replace);
+		return load(false, replace, merge, in);
+	}
+
+	@PUT
+	@Consumes({ RDFMediaType.APPLICATION_NQUADS, RDFMediaType.APPLICATION_TRIG })
+	@Produces(MediaType.TEXT_PLAIN)
+	public Response doPut(@QueryParam("replace") final List<String> replace, @QueryParam("merge") final List<String> merge, final InputStream in) {
+		logger.info("PUT bulk load, merge = {}", merge);
+		return load(true, replace, merge, in);
+	}
+
+	private Response load(boolean clean, List<String> replace, List<String> merge, InputStream in) {
+		Set<String> replaced = validateUris(replace);
+		Set<String> merged = validateUris(merge);
+		String mediaType = headers.getMediaType().getType() + "/" + headers.getMediaType().getSubtype();
+		StreamingOutput so = new BulkLoadStreamingOutput(getShards(), getGraphLocks(), getGraphVersions(), getMetrics(), mediaType, decode(in), clean, replaced, merged);
+		return Response.ok(so).build();
+	}
+
+	/**
+	 * Decompresses request bodies sent with a Content-Encoding, as they are read.
+	 */
+	private InputStream decode(InputStream in) throws WebApplicationException {
+		try {
+			return ContentEncoding.decode(in, headers.getRequestHeaders().getFirst(HttpHeaders.CONTENT_ENCODING));
+		} catch (IOException e) {
+			throw new WebApplicationException(e, Response.Status.BAD_REQUEST);
+		}
+	}
+
+	private DatasetShards getShards() {
+		ContextResolver<DatasetShards> resolver = providers.getContextResolver(DatasetShards.class, MediaType.WILDCARD_TYPE);
+		return resolver.getContext(DatasetShards.class);
+	}
+
+	private GraphLockManager getGraphLocks() {
+		ContextResolver<GraphLockManager> resolver = providers.getContextResolver(GraphLockManager.class, MediaType.WILDCARD_TYPE);
+		return resolver.getContext(GraphLockManager.class);
+	}
+
+	private GraphVersions getGraphVersions() {
+		ContextResolver<GraphVersions> resolver = providers.getContextResolver(GraphVersions.class, MediaType.WILDCARD_TYPE);
+		return resolver.getContext(GraphVersions.class);
+	}
+
+	private Metrics getMetrics() {
+		ContextResolver<Metrics> resolver = providers.getContextResolver(Metrics.class, MediaType.WILDCARD_TYPE);
+		return resolver.getContext(Metrics.class);
+	}
+
+	private Set<String> validateUris(List<String> uris) throws WebApplicationException {
+		Set<String> result = new HashSet<String>();
+		for (String uri : uris) {
+			try {
+				new URI(uri);
+			} catch (MalformedURIException e) {
+				throw new WebApplicationException(Response.Status.BAD_REQUEST);
+			}
+			result.add(uri);
+		}
+		return result;
+	}
+
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.api.sparql11.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TimeZone;
+
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.core.UriInfo;
+import javax.ws.rs.ext.ContextResolver;
+import javax.ws.rs.ext.Providers;
+
+/**
+ * Lists the graphs, from the {@link GraphCatalog}, one per line in URI order: URI,
+ * number of triples, estimated size in N-Triples, last modified time and version, tab
+ * separated. Graphs can be limited to those whose URI starts with a prefix; with a
+ * limit, the list comes in pages linked with a Link rel="next" header.
+ */
+@Path("/http-rdf-update/graphs")
+public class Sparql11HttpRdfGraphsResource {
+
+	public static final int MAX_LIMIT = 100000;
+
+	@Context
+	private Providers providers;
+
+	@Context
+	private UriInfo uriInfo;
+
+	@GET
+	@Produces(MediaType.TEXT_PLAIN)
+	public Response doGet(@QueryParam("prefix") final String prefix, @QueryParam("after") final String after, @DefaultValue("-1") @QueryParam("limit") final int limit) {
+		if ( ( limit == 0 ) || ( limit < -1 ) || ( limit > MAX_LIMIT ) ) {
+			throw new WebApplicationException(Response.Status.BAD_REQUEST);
+		}
+		GraphCatalog catalog = getShards().getCatalog();
+		final GraphVersions versions = getGraphVersions();
+		Iterator<GraphCatalog.Entry> iter = catalog.list(prefix, after);
+		if ( limit < 0 ) {
+			return Response.ok(new Listing(iter, versions)).build();
+		}
+
+		// a page is small enough to be read first, to know whether there is a next one
+		List<GraphCatalog.Entry> page = new ArrayList<GraphCatalog.Entry>();
+		while ( iter.hasNext() && ( page.size() < limit ) ) {
+			page.add(iter.next());
+		}
+		ResponseBuilder rb = Response.ok(new Listing(page.iterator(), versions));
+		if ( iter.hasNext() ) {
+			String next = uriInfo.getRequestUriBuilder().replaceQueryParam("after", page.get(page.size() - 1).getUri()).build().toString();
+			rb.header("Link", "<" + next + ">; rel=\"next\"");
+		}
+		return rb.build();
+	}
+
+	private DatasetShards getShards() {
+		ContextResolver<DatasetShards> resolver = providers.getContextResolver(DatasetShards.class, MediaType.WILDCARD_TYPE);
+		return resolver.getContext(DatasetShards.class);
+	}
+
+	private GraphVersions getGraphVersions() {
+		ContextResolver<GraphVersions> resolver = providers.getContextResolver(GraphVersions.class, MediaType.WILDCARD_TYPE);
+		return resolver.getContext(GraphVersions.class);
+	}
+
+	private static class Listing implements StreamingOutput {
+
+		private Iterator<GraphCatalog.Entry> iter = null;
+		private GraphVersions versions = null;
+
+		public Listing(Iterator<GraphCatalog.Entry> iter, GraphVersions versions) {
+			this.iter = iter;
+			this.versions = versions;
+		}
+
+		@Override
+		public void write(OutputStream output) throws IOException, WebApplicationException {
+			SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+			format.setTimeZone(TimeZone.getTimeZone("UTC"));
+			Writer writer = new OutputStreamWriter(output, "UTF-8");
+			while ( iter.hasNext() ) {
+				GraphCatalog.Entry entry = iter.next();
+				GraphVersions.Version version = versions.get(entry.getUri());
+				writer.write(entry.getUri() + "\t" + entry.getTriples() + "\t" + entry.getBytes() + "\t" + format.format(version.getLastModified()) + "\t" + version.getTag() + "\n");
+			}
+			writer.flush();
+		}
+
+	}
+
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.api.sparql11.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.ext.ContextResolver;
+import javax.ws.rs.ext.Providers;
+
+/**
+ * Exposes {@link Metrics}, together with the statistics of the {@link GraphCache}, the
+ * {@link GroupCommitter} and the {@link AdmissionController}, for Prometheus (or anything that reads its text format)
+ * to scrape.
+ */
+@Path("/metrics")
+public class Sparql11HttpRdfMetricsResource {
+
+	@Context
+	private Providers providers;
+
+	@GET
+	@Produces(MediaType.TEXT_PLAIN)
+	public Response doGet() {
+		final Metrics metrics = getContext(Metrics.class);
+		final GraphCache cache = getContext(GraphCache.class);
+		final DatasetShards shards = getContext(DatasetShards.class);
+		final AdmissionController admission = getContext(AdmissionController.class);
+		StreamingOutput so = new StreamingOutput() {
+			@Override
+			public void write(OutputStream output) throws IOException, WebApplicationException {
+				Writer out = new OutputStreamWriter(output, "UTF-8");
+				metrics.write(out);
+				Metrics.write(out, "rdf_api_graph_cache_hits_total", "counter", "GETs answered from the graph cache", cache.getHits());
+				Metrics.write(out, "rdf_api_graph_cache_misses_total", "counter", "GETs that had to serialize the graph", cache.getMisses());
+				Metrics.write(out, "rdf_api_graph_cache_evictions_total", "counter", "Entries evicted from the graph cache", cache.getEvictions());
+				Metrics.write(out, "rdf_api_graph_cache_bytes", "gauge", "Bytes held by the graph cache", cache.getBytes());
+				Metrics.write(out, "rdf_api_group_commit_groups_total", "counter", "Groups of writes committed together", shards.getGroups());
+				Metrics.write(out, "rdf_api_group_commit_writes_total", "counter", "Writes committed in groups", shards.getWrites());
+				Metrics.write(out, "rdf_api_graphs", "gauge", "Graphs in the catalog", shards.getCatalog().size());
+				Metrics.write(out, "rdf_api_triples", "gauge", "Triples in all the graphs in the catalog", shards.getCatalog().getTriples());
+				admission.write(out);
+				out.flush();
+			}
+		};
+		return Response.ok(so, Metrics.CONTENT_TYPE).build();
+	}
+
+	private <T> T getContext(Class<T> type) {
+		ContextResolver<T> resolver = providers.getContextResolver(type, MediaType.WILDCARD_TYPE);
+		return resolver.getContext(type);
+	}
+
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.api.sparql11.http;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.FormParam;
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.ContextResolver;
+import javax.ws.rs.ext.Providers;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.query.QueryFactory;
+import com.hp.hpl.jena.query.QueryParseException;
+import com.hp.hpl.jena.query.Syntax;
+import com.hp.hpl.jena.sparql.algebra.Algebra;
+import com.hp.hpl.jena.sparql.algebra.OpVisitorBase;
+import com.hp.hpl.jena.sparql.algebra.OpWalker;
+import com.hp.hpl.jena.sparql.algebra.op.OpService;
+
+/**
+ * A read only SPARQL endpoint over the graphs in the {@link GraphCatalog}, for SELECT and
+ * ASK queries, sent as a query parameter, a form or the body of a POST. The results are
+ * streamed in XML or JSON as the query produces them, see {@link QueryStreamingOutput}.
+ *
+ * The default-graph-uri and named-graph-uri parameters, or else the FROM and FROM NAMED
+ * of the query, choose the graphs the query sees. Without either, the default graph is
+ * empty and every graph is a named graph, to be queried with GRAPH.
+ *
+ * Queries run for at most rdf-api.query.timeout-ms and return at most
+ * rdf-api.query.max-rows rows; the timeout and max-rows parameters can ask for less.
+ */
+@Path("/sparql")
+public class Sparql11HttpRdfQueryResource {
+
+	public static final long DEFAULT_TIMEOUT_MILLIS = Long.getLong("rdf-api.query.timeout-ms", 30000);
+	public static final long DEFAULT_MAX_ROWS = Long.getLong("rdf-api.query.max-rows", 100000);
+
+	private static final Logger logger = LoggerFactory.getLogger(Sparql11HttpRdfQueryResource.class);
+
+	@Context
+	private Providers providers;
+
+	@GET
+	@Produces(RDFMediaType.APPLICATION_SPARQL_RESULTS_XML)
+	public Response doGetXML(@QueryParam("query") final String query, @QueryParam("default-graph-uri") final List<String> defaults, @QueryParam("named-graph-uri") final List<String> named, @QueryParam("timeout") final Long timeout, @QueryParam("max-rows") final Long maxRows) {
+		return doQuery(query, RDFMediaType.APPLICATION_SPARQL_RESULTS_XML, defaults, named, timeout, maxRows);
+	}
+
+	@GET
+	@Produces(RDFMediaType.APPLICATION_SPARQL_RESULTS_JSON)
+	public Response doGetJSON(@QueryParam("query") final String query, @QueryParam("default-graph-uri") final List<String> defaults, @QueryParam("named-graph-uri") final List<String> named, @QueryParam("timeout") final Long timeout, @QueryParam("max-rows") final Long maxRows) {
+		return doQuery(query, RDFMediaType.APPLICATION_SPARQL_RESULTS_JSON, defaults, named, timeout, maxRows);
+	}
+
+	@POST
+	@Consumes({ RDFMediaType.APPLICATION_SPARQL_QUERY, RDFMediaType.APPLICATION_SPARQL_QUERY_X })
+	@Produces(RDFMediaType.APPLICATION_SPARQL_RESULTS_XML)
+	public Response doPostXML(final String query, @QueryParam("default-graph-uri") final List<String> defaults, @QueryParam("named-graph-uri") final List<String> named, @QueryParam("timeout") final Long timeout, @QueryParam("max-rows") final Long maxRows) {
+		return doQuery(query, RDFMediaType.APPLICATION_SPARQL_RESULTS_XML, defaults, named, timeout, maxRows);
+	}
+
+	@POST
+	@Consumes({ RDFMediaType.APPLICATION_SPARQL_QUERY, RDFMediaType.APPLICATION_SPARQL_QUERY_X })
+	@Produces(RDFMediaType.APPLICATION_SPARQL_RESULTS_JSON)
+	public Response doPostJSON(final String query, @QueryParam("default-graph-uri") final List<String> defaults, @QueryParam("named-graph-uri") final List<String> named, @QueryParam("timeout") final Long timeout, @QueryParam("max-rows") final Long maxRows) {
+		return doQuery(query, RDFMediaType.APPLICATION_SPARQL_RESULTS_JSON, defaults, named, timeout, maxRows);
+	}
+
+	@POST
+	@Consumes(MediaType.APPLICATION_FORM_URLENCODED)
+	@Produces(RDFMediaType.APPLICATION_SPARQL_RESULTS_XML)
+	public Response doPostFormXML(@FormParam("query") final String query, @FormParam("default-graph-uri") final List<String> defaults, @FormParam("named-graph-uri") final List<String> named, @FormParam("timeout") final Long timeout, @FormParam("max-rows") final Long maxRows) {
+		return doQuery(query, RDFMediaType.APPLICATION_SPARQL_RESULTS_XML, defaults, named, timeout, maxRows);
+	}
+
+	@POST
+	@Consumes(MediaType.APPLICATION_FORM_URLENCODED)
+	@Produces(RDFMediaType.APPLICATION_SPARQL_RESULTS_JSON)
+	public Response doPostFormJSON(@FormParam("query") final String query, @FormParam("default-graph-uri") final List<String> defaults, @FormParam("named-graph-uri") final List<String> named, @FormParam("timeout") final Long timeout, @FormParam("max-rows") final Long maxRows) {
+		return doQuery(query, RDFMediaType.APPLICATION_SPARQL_RESULTS_JSON, defaults, named, timeout, maxRows);
+	}
+
+	private Response doQuery(String queryString, String mediaType, List<String> defaults, List<String> named, Long timeout, Long maxRows) {
+		logger.info("Query, {}", queryString);
+		Query query = parse(queryString);
+		limit(query, maxRows);
+
+		Collection<String> defaultGraphs = new ArrayList<String>();
+		Collection<String> namedGraphs = null;
+		if ( !defaults.isEmpty() || !named.isEmpty() ) {
+			defaultGraphs = defaults;
+			namedGraphs = named;
+		} else if ( query.hasDatasetDescription() ) {
+			defaultGraphs = query.getGraphURIs();
+			namedGraphs = query.getNamedGraphURIs();
+		}
+
+		QueryStreamingOutput output = new QueryStreamingOutput(getShards(), getMetrics(), query, mediaType, defaultGraphs, namedGraphs, timeout(timeout));
+		return Response.ok(output).type(mediaType).build();
+	}
+
+	/**
+	 * Parses a query, which must be a SELECT or ASK without SERVICE: this endpoint only
+	 * reads from the local graphs.
+	 */
+	static Query parse(String queryString) {
+		if ( queryString == null ) {
+			throw new WebApplicationException(Response.Status.BAD_REQUEST);
+		}
+		Query query = null;
+		try {
+			query = QueryFactory.create(queryString, Syntax.syntaxSPARQL_11);
+		} catch (QueryParseException e) {
+			throw new WebApplicationException(e, Response.Status.BAD_REQUEST);
+		}
+		if ( !query.isSelectType() && !query.isAskType() ) {
+			throw new WebApplicationException(Response.Status.BAD_REQUEST);
+		}
+		final boolean[] service = new boolean[] { false };
+		OpWalker.walk(Algebra.compile(query), new OpVisitorBase() {
+			@Override
+			public void visit(OpService op) {
+				service[0] = true;
+			}
+		});
+		if ( service[0] ) {
+			throw new WebApplicationException(Response.Status.BAD_REQUEST);
+		}
+		return query;
+	}
+
+	/**
+	 * Caps the number of rows of a SELECT query to the max-rows asked for, or the server's.
+	 */
+	static void limit(Query query, Long maxRows) {
+		if ( ( maxRows != null ) && ( maxRows <= 0 ) ) {
+			throw new WebApplicationException(Response.Status.BAD_REQUEST);
+		}
+		long max = DEFAULT_MAX_ROWS;
+		if ( ( maxRows != null ) && ( ( max <= 0 ) || ( maxRows < max ) ) ) {
+			max = maxRows;
+		}
+		if ( query.isSelectType() && ( max > 0 ) && ( ( query.getLimit() == Query.NOLIMIT ) || ( query.getLimit() > max ) ) ) {
+			query.setLimit(max);
+		}
+	}
+
+	static long timeout(Long timeout) {
+		if ( ( timeout != null ) && ( timeout <= 0 ) ) {
+			throw new WebApplicationException(Response.Status.BAD_REQUEST);
+		}
+		if ( ( timeout != null ) && ( ( DEFAULT_TIMEOUT_MILLIS <= 0 ) || ( timeout < DEFAULT_TIMEOUT_MILLIS ) ) ) {
+			return timeout;
+		}
+		return DEFAULT_TIMEOUT_MILLIS;
+	}
+
+	private DatasetShards getShards() {
+		ContextResolver<DatasetShards> resolver = providers.getContextResolver(DatasetShards.class, MediaType.WILDCARD_TYPE);
+		return resolver.getContext(DatasetShards.class);
+	}
+
+	private Metrics getMetrics() {
+		ContextResolver<Metrics> resolver = providers.getContextResolver(Metrics.class, MediaType.WILDCARD_TYPE);
+		return resolver.getContext(Metrics.class);
+	}
+
+}
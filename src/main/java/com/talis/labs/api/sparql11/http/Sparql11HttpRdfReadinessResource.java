@@ -0,0 +1,52 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.api.sparql11.http;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.ContextResolver;
+import javax.ws.rs.ext.Providers;
+
+/**
+ * For load balancers to poll: 200 once the datasets are open and warmed up (see
+ * {@link Warmup}), 503 with a Retry-After until then. Like /metrics it is never
+ * subject to admission control.
+ */
+@Path("/ready")
+public class Sparql11HttpRdfReadinessResource {
+
+	public static final int RETRY_AFTER_SECONDS = 5;
+
+	@Context
+	private Providers providers;
+
+	@GET
+	@Produces(MediaType.TEXT_PLAIN)
+	public Response doGet() {
+		ContextResolver<Warmup> resolver = providers.getContextResolver(Warmup.class, MediaType.WILDCARD_TYPE);
+		Warmup warmup = resolver.getContext(Warmup.class);
+		if ( warmup.isReady() ) {
+			return Response.ok(warmup.getStatus() + "\n").build();
+		}
+		return Response.status(Response.Status.SERVICE_UNAVAILABLE).header("Retry-After", RETRY_AFTER_SECONDS).entity(warmup.getStatus() + "\n").build();
+	}
+
+}
@@ -35,11 +35,28 @@ public class Sparql11HttpRdfUpdateApplication extends Application {
 		logger.info("Constructing a new Sparql11HttpRdfUpdateApplication...");
 
 		classes.add(Sparql11HttpRdfUpdateResource.class);
+		classes.add(Sparql11HttpRdfBulkLoadResource.class);
+		classes.add(Sparql11HttpRdfGraphsResource.class);
+		classes.add(Sparql11HttpRdfQueryResource.class);
+		classes.add(Sparql11HttpRdfMetricsResource.class);
+		classes.add(Sparql11HttpRdfReadinessResource.class);
+		classes.add(Sparql11HttpRdfAdminResource.class);
+		classes.add(AdmissionRejectedException.Mapper.class);
 //		classes.add(ModelMessageBodyReader.class);
 //		classes.add(ModelMessageBodyWriter.class);
 		
 		DatasetResolver datasetResolver = new DatasetResolver();
 		singletons.add(datasetResolver);
+		singletons.add(new GraphLockManagerResolver());
+		singletons.add(new GraphVersionsResolver());
+		singletons.add(new GraphCacheResolver());
+		singletons.add(new MetricsResolver());
+		singletons.add(new AdmissionControllerResolver());
+		singletons.add(new WarmupResolver());
+
+		// open the datasets now rather than on the first request, then warm them up, see /ready
+		DatasetShards shards = datasetResolver.getContext(DatasetShards.class);
+		new WarmupResolver().getContext(Warmup.class).start(shards, new GraphLockManagerResolver().getContext(GraphLockManager.class));
 	}
 	
 	@Override
@@ -16,11 +16,16 @@
 
 package com.talis.labs.api.sparql11.http;
 
+import java.io.Closeable;
+import java.io.IOException;
 import java.io.InputStream;
+import java.util.Date;
 
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
 import javax.ws.rs.GET;
+import javax.ws.rs.HEAD;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
 import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
@@ -28,10 +33,14 @@ import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
 import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.core.UriInfo;
 import javax.ws.rs.ext.ContextResolver;
 import javax.ws.rs.ext.Providers;
 
@@ -40,18 +49,28 @@ import org.apache.xerces.util.URI.MalformedURIException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.hp.hpl.jena.query.Dataset;
-import com.hp.hpl.jena.shared.Lock;
-import com.hp.hpl.jena.update.UpdateAction;
+import com.sun.jersey.spi.CloseableService;
 
 @Path("/http-rdf-update")
 public class Sparql11HttpRdfUpdateResource {
 
+	public static final String TRIPLES_HEADER = "X-Triple-Count";
+	public static final String ESTIMATED_LENGTH_HEADER = "X-Estimated-Length";
+
 	private static final Logger logger = LoggerFactory.getLogger(Sparql11HttpRdfUpdateResource.class);
 	
 	@Context 
 	private Providers providers;
 
+	@Context
+	private HttpHeaders headers;
+
+	@Context
+	private UriInfo uriInfo;
+
+	@Context
+	private CloseableService closeables;
+
 	@GET 
 	@Produces(MediaType.TEXT_PLAIN)
 	public Response doGetPlain() {
@@ -61,126 +80,401 @@ public class Sparql11HttpRdfUpdateResource {
 	
 	@GET 
 	@Produces("application/rdf+xml")
-	public StreamingOutput doGetXML(@QueryParam("graph") final String uri) {
+	public Response doGetXML(@QueryParam("graph") final String uri, @QueryParam("offset") final Long offset, @QueryParam("limit") final Integer limit, @QueryParam("cursor") final String cursor, @Context Request request) {
 		logger.info("GET, uri = {}", uri);
 		validateUri(uri);
-		return new GetModelStreamingOutput(getDataset(), uri, RDFMediaType.APPLICATION_RDFXML); 
+		if ( ( offset != null ) || ( limit != null ) || ( cursor != null ) ) {
+			return doGetPage(uri, RDFMediaType.APPLICATION_RDFXML, offset, limit, cursor, request);
+		}
+		return doGet(uri, variant(RDFMediaType.APPLICATION_RDFXML), request);
 	}
 
 	@GET
 	@Produces("application/x-turtle")
-	public StreamingOutput doGetTurtle(@QueryParam("graph") final String uri) {
+	public Response doGetTurtle(@QueryParam("graph") final String uri, @QueryParam("offset") final Long offset, @QueryParam("limit") final Integer limit, @QueryParam("cursor") final String cursor, @Context Request request) {
 		logger.info("GET, uri = {}", uri);
 		validateUri(uri);
-		return new GetModelStreamingOutput(getDataset(), uri, RDFMediaType.APPLICATION_TURTLE_CURRENT); 
+		if ( ( offset != null ) || ( limit != null ) || ( cursor != null ) ) {
+			return doGetPage(uri, RDFMediaType.APPLICATION_TURTLE_CURRENT, offset, limit, cursor, request);
+		}
+		return doGet(uri, variant(RDFMediaType.APPLICATION_TURTLE_CURRENT), request);
 	}
 
 	@GET
 	@Produces("application/n-triples")
-	public StreamingOutput doGetNTriples(@QueryParam("graph") final String uri) {
+	public Response doGetNTriples(@QueryParam("graph") final String uri, @QueryParam("offset") final Long offset, @QueryParam("limit") final Integer limit, @QueryParam("cursor") final String cursor, @Context Request request) {
 		logger.info("GET, uri = {}", uri);
 		validateUri(uri);
-		return new GetModelStreamingOutput(getDataset(), uri, RDFMediaType.APPLICATION_NTRIPLES); 
+		if ( ( offset != null ) || ( limit != null ) || ( cursor != null ) ) {
+			return doGetPage(uri, RDFMediaType.APPLICATION_NTRIPLES, offset, limit, cursor, request);
+		}
+		return doGet(uri, RDFMediaType.APPLICATION_NTRIPLES, request);
+	}
+
+	@GET
+	@Produces(RDFMediaType.APPLICATION_RDF_BINARY)
+	public Response doGetBinary(@QueryParam("graph") final String uri, @QueryParam("offset") final Long offset, @QueryParam("limit") final Integer limit, @QueryParam("cursor") final String cursor, @Context Request request) {
+		logger.info("GET, uri = {}", uri);
+		validateUri(uri);
+		if ( ( offset != null ) || ( limit != null ) || ( cursor != null ) ) {
+			return doGetPage(uri, RDFMediaType.APPLICATION_RDF_BINARY, offset, limit, cursor, request);
+		}
+		return doGet(uri, RDFMediaType.APPLICATION_RDF_BINARY, request);
+	}
+
+	@HEAD
+	@Produces("application/rdf+xml")
+	public Response doHeadXML(@QueryParam("graph") final String uri, @QueryParam("offset") final Long offset, @QueryParam("limit") final Integer limit, @QueryParam("cursor") final String cursor, @Context Request request) {
+		validateUri(uri);
+		if ( ( offset != null ) || ( limit != null ) || ( cursor != null ) ) {
+			return doGetPage(uri, RDFMediaType.APPLICATION_RDFXML, offset, limit, cursor, request);
+		}
+		return doHead(uri, variant(RDFMediaType.APPLICATION_RDFXML), request);
+	}
+
+	@HEAD
+	@Produces("application/x-turtle")
+	public Response doHeadTurtle(@QueryParam("graph") final String uri, @QueryParam("offset") final Long offset, @QueryParam("limit") final Integer limit, @QueryParam("cursor") final String cursor, @Context Request request) {
+		validateUri(uri);
+		if ( ( offset != null ) || ( limit != null ) || ( cursor != null ) ) {
+			return doGetPage(uri, RDFMediaType.APPLICATION_TURTLE_CURRENT, offset, limit, cursor, request);
+		}
+		return doHead(uri, variant(RDFMediaType.APPLICATION_TURTLE_CURRENT), request);
+	}
+
+	@HEAD
+	@Produces("application/n-triples")
+	public Response doHeadNTriples(@QueryParam("graph") final String uri, @QueryParam("offset") final Long offset, @QueryParam("limit") final Integer limit, @QueryParam("cursor") final String cursor, @Context Request request) {
+		validateUri(uri);
+		if ( ( offset != null ) || ( limit != null ) || ( cursor != null ) ) {
+			return doGetPage(uri, RDFMediaType.APPLICATION_NTRIPLES, offset, limit, cursor, request);
+		}
+		return doHead(uri, RDFMediaType.APPLICATION_NTRIPLES, request);
+	}
+
+	@HEAD
+	@Produces(RDFMediaType.APPLICATION_RDF_BINARY)
+	public Response doHeadBinary(@QueryParam("graph") final String uri, @QueryParam("offset") final Long offset, @QueryParam("limit") final Integer limit, @QueryParam("cursor") final String cursor, @Context Request request) {
+		validateUri(uri);
+		if ( ( offset != null ) || ( limit != null ) || ( cursor != null ) ) {
+			return doGetPage(uri, RDFMediaType.APPLICATION_RDF_BINARY, offset, limit, cursor, request);
+		}
+		return doHead(uri, RDFMediaType.APPLICATION_RDF_BINARY, request);
 	}
 
 	@POST 
 	@Consumes(RDFMediaType.APPLICATION_RDFXML)
 	@Produces(MediaType.TEXT_PLAIN)
-	public Response doPostXML(@QueryParam("graph") final String uri, final InputStream in) {
+	public Response doPostXML(@QueryParam("graph") final String uri, @HeaderParam("If-Match") final String ifMatch, final InputStream in) {
 		logger.info("POST to {}", uri);
 		validateUri(uri);
-		Dataset dataset = getDataset();
-		StreamingOutput so = new PutPostModelStreamingOutput(dataset, uri, RDFMediaType.APPLICATION_RDFXML, in, true);
+		DatasetShards shards = getShards();
+		StreamingOutput so = new PutPostModelStreamingOutput(shards.getDataset(uri), getGraphLocks(), getGraphVersions(), shards.getCommitter(uri), shards.getReclaimer(), shards.getParser(), getMetrics(), uri, RDFMediaType.APPLICATION_RDFXML, decode(in), true, ifMatch);
 		return Response.status(Response.Status.CREATED).header(HttpHeaders.LOCATION, uri).entity(so).build();
 	}
 
 	@POST 
 	@Consumes(RDFMediaType.APPLICATION_TURTLE_CURRENT)
 	@Produces(MediaType.TEXT_PLAIN)
-	public Response doPostTurtle(@QueryParam("graph") final String uri, final InputStream in) {
+	public Response doPostTurtle(@QueryParam("graph") final String uri, @HeaderParam("If-Match") final String ifMatch, final InputStream in) {
 		logger.info("POST to {}", uri);
 		validateUri(uri);
-		Dataset dataset = getDataset();
-		StreamingOutput so = new PutPostModelStreamingOutput(dataset, uri, RDFMediaType.APPLICATION_TURTLE_CURRENT, in, true);
+		DatasetShards shards = getShards();
+		StreamingOutput so = new PutPostModelStreamingOutput(shards.getDataset(uri), getGraphLocks(), getGraphVersions(), shards.getCommitter(uri), shards.getReclaimer(), shards.getParser(), getMetrics(), uri, RDFMediaType.APPLICATION_TURTLE_CURRENT, decode(in), true, ifMatch);
 		return Response.status(Response.Status.CREATED).header(HttpHeaders.LOCATION, uri).entity(so).build();
 	}
 	
 	@POST 
 	@Consumes(RDFMediaType.APPLICATION_NTRIPLES)
 	@Produces(MediaType.TEXT_PLAIN)
-	public Response doPostNTriples(@QueryParam("graph") final String uri, final InputStream in) {
+	public Response doPostNTriples(@QueryParam("graph") final String uri, @HeaderParam("If-Match") final String ifMatch, final InputStream in) {
 		logger.info("POST to {}", uri);
 		validateUri(uri);
-		Dataset dataset = getDataset();
-		StreamingOutput so = new PutPostModelStreamingOutput(dataset, uri, RDFMediaType.APPLICATION_NTRIPLES, in, true);
+		DatasetShards shards = getShards();
+		StreamingOutput so = new PutPostModelStreamingOutput(shards.getDataset(uri), getGraphLocks(), getGraphVersions(), shards.getCommitter(uri), shards.getReclaimer(), shards.getParser(), getMetrics(), uri, RDFMediaType.APPLICATION_NTRIPLES, decode(in), true, ifMatch);
+		return Response.status(Response.Status.CREATED).header(HttpHeaders.LOCATION, uri).entity(so).build();
+	}
+	
+	@POST 
+	@Consumes(RDFMediaType.APPLICATION_RDF_BINARY)
+	@Produces(MediaType.TEXT_PLAIN)
+	public Response doPostBinary(@QueryParam("graph") final String uri, @HeaderParam("If-Match") final String ifMatch, final InputStream in) {
+		logger.info("POST to {}", uri);
+		validateUri(uri);
+		DatasetShards shards = getShards();
+		StreamingOutput so = new PutPostModelStreamingOutput(shards.getDataset(uri), getGraphLocks(), getGraphVersions(), shards.getCommitter(uri), shards.getReclaimer(), shards.getParser(), getMetrics(), uri, RDFMediaType.APPLICATION_RDF_BINARY, decode(in), true, ifMatch);
 		return Response.status(Response.Status.CREATED).header(HttpHeaders.LOCATION, uri).entity(so).build();
 	}
 	
 	@PUT
 	@Consumes(RDFMediaType.APPLICATION_RDFXML)
 	@Produces(MediaType.TEXT_PLAIN)
-	public Response doPutXML(@QueryParam("graph") final String uri, final InputStream in) {
+	public Response doPutXML(@QueryParam("graph") final String uri, @HeaderParam("If-Match") final String ifMatch, final InputStream in) {
 		validateUri(uri);
-		Dataset dataset = getDataset();
-		StreamingOutput so = new PutPostModelStreamingOutput(dataset, uri, RDFMediaType.APPLICATION_RDFXML, in, false);
+		DatasetShards shards = getShards();
+		StreamingOutput so = new PutPostModelStreamingOutput(shards.getDataset(uri), getGraphLocks(), getGraphVersions(), shards.getCommitter(uri), shards.getReclaimer(), shards.getParser(), getMetrics(), uri, RDFMediaType.APPLICATION_RDFXML, decode(in), false, ifMatch);
 		return Response.status(Response.Status.CREATED).entity(so).build();
 	}
 
 	@PUT
 	@Consumes(RDFMediaType.APPLICATION_TURTLE_CURRENT)
 	@Produces(MediaType.TEXT_PLAIN)
-	public Response doPutTurtle(@QueryParam("graph") final String uri, final InputStream in) {
+	public Response doPutTurtle(@QueryParam("graph") final String uri, @HeaderParam("If-Match") final String ifMatch, final InputStream in) {
 		validateUri(uri);
-		Dataset dataset = getDataset();
-		StreamingOutput so = new PutPostModelStreamingOutput(dataset, uri, RDFMediaType.APPLICATION_TURTLE_CURRENT, in, false);
+		DatasetShards shards = getShards();
+		StreamingOutput so = new PutPostModelStreamingOutput(shards.getDataset(uri), getGraphLocks(), getGraphVersions(), shards.getCommitter(uri), shards.getReclaimer(), shards.getParser(), getMetrics(), uri, RDFMediaType.APPLICATION_TURTLE_CURRENT, decode(in), false, ifMatch);
 		return Response.status(Response.Status.CREATED).entity(so).build();
 	}
 
 	@PUT
 	@Consumes(RDFMediaType.APPLICATION_NTRIPLES)
 	@Produces(MediaType.TEXT_PLAIN)
-	public Response doPutNTriples(@QueryParam("graph") final String uri, final InputStream in) {
+	public Response doPutNTriples(@QueryParam("graph") final String uri, @HeaderParam("If-Match") final String ifMatch, final InputStream in) {
+		validateUri(uri);
+		DatasetShards shards = getShards();
+		StreamingOutput so = new PutPostModelStreamingOutput(shards.getDataset(uri), getGraphLocks(), getGraphVersions(), shards.getCommitter(uri), shards.getReclaimer(), shards.getParser(), getMetrics(), uri, RDFMediaType.APPLICATION_NTRIPLES, decode(in), false, ifMatch);
+		return Response.status(Response.Status.CREATED).entity(so).build();
+	}
+
+	@PUT
+	@Consumes(RDFMediaType.APPLICATION_RDF_BINARY)
+	@Produces(MediaType.TEXT_PLAIN)
+	public Response doPutBinary(@QueryParam("graph") final String uri, @HeaderParam("If-Match") final String ifMatch, final InputStream in) {
 		validateUri(uri);
-		Dataset dataset = getDataset();
-		StreamingOutput so = new PutPostModelStreamingOutput(dataset, uri, RDFMediaType.APPLICATION_NTRIPLES, in, false);
+		DatasetShards shards = getShards();
+		StreamingOutput so = new PutPostModelStreamingOutput(shards.getDataset(uri), getGraphLocks(), getGraphVersions(), shards.getCommitter(uri), shards.getReclaimer(), shards.getParser(), getMetrics(), uri, RDFMediaType.APPLICATION_RDF_BINARY, decode(in), false, ifMatch);
 		return Response.status(Response.Status.CREATED).entity(so).build();
 	}
 
+	/**
+	 * Adds and removes triples, see {@link GraphPatcher}. Like POST, a patch to a graph
+	 * that does not exist creates it.
+	 */
+	@PATCH
+	@Consumes(RDFMediaType.APPLICATION_RDF_PATCH)
+	@Produces(MediaType.TEXT_PLAIN)
+	public Response doPatch(@QueryParam("graph") final String uri, @HeaderParam("If-Match") final String ifMatch, final InputStream in) {
+		logger.info("PATCH to {}", uri);
+		validateUri(uri);
+		DatasetShards shards = getShards();
+		StreamingOutput so = new PatchModelStreamingOutput(shards.getDataset(uri), getGraphLocks(), getGraphVersions(), shards.getCatalog(), getMetrics(), uri, decode(in), ifMatch);
+		return Response.ok(so).build();
+	}
+
+	/**
+	 * Small graphs are deleted right away (204), big ones are gone right away but their
+	 * triples are removed in the background (202), see {@link GraphDeleter}.
+	 */
 	@DELETE 
 	@Produces(MediaType.TEXT_PLAIN)
-	public Response doDelete(@QueryParam("graph") final String uri) {
+	public Response doDelete(@QueryParam("graph") final String uri, @HeaderParam("If-Match") final String ifMatch) {
 		validateUri(uri);
 
-		Dataset dataset = getDataset();
-		Lock lock = dataset.getLock();
+		DatasetShards shards = getShards();
+		if ( !shards.getCatalog().contains(uri) ) {
+			throw new WebApplicationException(Response.Status.NOT_FOUND);
+		}
+		GraphReclaimer.Job job = null;
 		try {
-			lock.enterCriticalSection(true);
-			if (dataset.containsNamedModel(uri)) {
-				UpdateAction.parseExecute("DROP GRAPH <" + uri + ">", dataset);
-			} else {
-				throw new WebApplicationException(Response.Status.NOT_FOUND);
-			}
+			job = new GraphDeleter(shards.getDataset(uri), getGraphLocks(), getGraphVersions(), shards.getCatalog(), shards.getReclaimer()).delete(uri, ifMatch);
 		} catch (WebApplicationException e) {
 			throw e;
 		} catch (Exception e) {
-			e.printStackTrace();
+			logger.error("Cannot delete " + uri, e);
 			throw new WebApplicationException(e, Response.Status.INTERNAL_SERVER_ERROR);
-		} finally {
-			lock.leaveCriticalSection();
 		}
-		
+
+		if ( job != null ) {
+			return Response.status(Response.Status.ACCEPTED).header(HttpHeaders.LOCATION, uriInfo.getBaseUriBuilder().path(Sparql11HttpRdfAdminResource.class).path("deletes").build()).build();
+		}
 		return Response.status(Response.Status.NO_CONTENT).build();
 	}
 
-	private Dataset getDataset() {
-		logger.info ("PROVIDERS >>>>>>>>>>>>>" + providers);
-		ContextResolver<Dataset> ds = providers.getContextResolver(Dataset.class, MediaType.WILDCARD_TYPE);
-		logger.info ("DATASET >>>>>>>>>>>>>" + ds);
-		Dataset dataset = ds.getContext(Dataset.class);
-		
-		return dataset;
+	/**
+	 * The media type with the writer asked for in the Accept header, or the default one,
+	 * see {@link StreamingRDF}.
+	 */
+	private String variant(String mediaType) {
+		MediaType type = MediaType.valueOf(mediaType);
+		for (MediaType accepted : headers.getAcceptableMediaTypes()) {
+			if ( accepted.isCompatible(type) && accepted.getParameters().containsKey(StreamingRDF.WRITER_PARAMETER) ) {
+				return StreamingRDF.variant(mediaType, accepted.getParameters().get(StreamingRDF.WRITER_PARAMETER));
+			}
+		}
+		return StreamingRDF.variant(mediaType, null);
+	}
+
+	private Response doGet(String uri, String mediaType, Request request) {
+		getWarmup().touched(uri);
+		DatasetShards shards = getShards();
+		GraphCatalog.Entry entry = shards.getCatalog().get(uri);
+		if ( entry == null ) {
+			throw new WebApplicationException(Response.Status.NOT_FOUND);
+		}
+		GraphVersions.Version version = getGraphVersions().get(uri);
+		String coding = coding(entry, entry.getSize(mediaType));
+		EntityTag etag = version.getEntityTag(( coding == null ) ? mediaType : mediaType + ";" + coding);
+		Date lastModified = version.getLastModified();
+
+		// answered from the version alone, without touching TDB
+		ResponseBuilder rb = request.evaluatePreconditions(lastModified, etag);
+		if ( rb == null ) {
+			GraphCache cache = getGraphCache();
+			byte[] cached = cache.get(uri, mediaType, version.getNumber());
+			if ( cached != null ) {
+				rb = Response.ok(( coding != null ) ? ContentEncoding.encode(cached, coding) : cached);
+			} else {
+				final GetModelStreamingOutput so = new GetModelStreamingOutput(shards.getDataset(uri), getGraphLocks(), getGraphVersions(), cache, shards.getCatalog(), uri, mediaType);
+				closeables.add(new Closeable() {
+					@Override
+					public void close() {
+						so.dispose();
+					}
+				});
+				if ( !StreamingRDF.isStreaming(mediaType) ) {
+					so.snapshot();
+				}
+				// otherwise written straight to the client, without a Content-Length
+				rb = Response.ok(( coding != null ) ? ContentEncoding.encode(so, coding) : so);
+			}
+			if ( coding != null ) {
+				rb.header(HttpHeaders.CONTENT_ENCODING, coding);
+			}
+		}
+
+		return rb.tag(etag).lastModified(lastModified).header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING).build();
+	}
+
+	/**
+	 * @return the coding a graph is sent with: the negotiated one, unless the graph is too
+	 * small to be worth compressing, going by its size in the media type if it is known
+	 * and by the estimate in the catalog otherwise. It is decided before the
+	 * preconditions are evaluated, so that the ETag names the coding actually applied.
+	 */
+	private String coding(GraphCatalog.Entry entry, long size) {
+		String coding = ContentEncoding.negotiate(headers.getRequestHeaders().getFirst(HttpHeaders.ACCEPT_ENCODING));
+		if ( ( coding != null ) && ( ( ( size >= 0 ) ? size : entry.getBytes() ) < ContentEncoding.MIN_SIZE ) ) {
+			return null;
+		}
+		return coding;
+	}
+
+	/**
+	 * Answers a HEAD from the {@link GraphCatalog}, without reading the graph. The
+	 * Content-Length is only sent when the exact size is known, because the graph has
+	 * been serialized in that media type since it last changed (otherwise Jetty says 0,
+	 * as it does for any HEAD whose GET would be chunked); the number of triples and an
+	 * estimate of the size in N-Triples are always sent.
+	 */
+	private Response doHead(String uri, String mediaType, Request request) {
+		GraphCatalog.Entry entry = getShards().getCatalog().get(uri);
+		if ( entry == null ) {
+			throw new WebApplicationException(Response.Status.NOT_FOUND);
+		}
+		GraphVersions.Version version = getGraphVersions().get(uri);
+		long size = entry.getSize(mediaType);
+		String coding = coding(entry, size);
+		EntityTag etag = version.getEntityTag(( coding == null ) ? mediaType : mediaType + ";" + coding);
+		Date lastModified = version.getLastModified();
+
+		ResponseBuilder rb = request.evaluatePreconditions(lastModified, etag);
+		if ( rb == null ) {
+			rb = Response.ok();
+			if ( coding != null ) {
+				rb.header(HttpHeaders.CONTENT_ENCODING, coding);
+			} else if ( size >= 0 ) {
+				rb.header(HttpHeaders.CONTENT_LENGTH, size);
+			}
+			rb.header(TRIPLES_HEADER, entry.getTriples()).header(ESTIMATED_LENGTH_HEADER, entry.getBytes());
+		}
+
+		return rb.tag(etag).lastModified(lastModified).header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING).build();
+	}
+
+	/**
+	 * Returns one page of a graph, with a Link to the next page if there is one.
+	 */
+	private Response doGetPage(String uri, String mediaType, Long offset, Integer limit, String cursor, Request request) {
+		if ( ( ( offset != null ) && ( offset < 0 ) ) || ( ( limit != null ) && ( ( limit <= 0 ) || ( limit > GraphPager.MAX_LIMIT ) ) ) ) {
+			throw new WebApplicationException(Response.Status.BAD_REQUEST);
+		}
+		getWarmup().touched(uri);
+		DatasetShards shards = getShards();
+		GraphCatalog.Entry entry = shards.getCatalog().get(uri);
+		if ( entry == null ) {
+			throw new WebApplicationException(Response.Status.NOT_FOUND);
+		}
+		GraphVersions.Version version = getGraphVersions().get(uri);
+		// a page is no bigger than the graph
+		String coding = coding(entry, -1);
+		EntityTag etag = version.getEntityTag(mediaType + ";" + coding + ";" + offset + ";" + limit + ";" + cursor);
+		Date lastModified = version.getLastModified();
+
+		ResponseBuilder rb = request.evaluatePreconditions(lastModified, etag);
+		if ( rb == null ) {
+			final GetPageStreamingOutput so = new GetPageStreamingOutput(shards.getDataset(uri), getGraphLocks(), shards.getCatalog(), uri, mediaType, ( offset == null ) ? 0 : offset, ( limit == null ) ? GraphPager.DEFAULT_LIMIT : limit, cursor);
+			closeables.add(new Closeable() {
+				@Override
+				public void close() {
+					so.dispose();
+				}
+			});
+			// the snapshot has to be taken here, it is what finds the next page
+			so.snapshot();
+			rb = Response.ok(( coding != null ) ? ContentEncoding.encode(so, coding) : so);
+			if ( coding != null ) {
+				rb.header(HttpHeaders.CONTENT_ENCODING, coding);
+			}
+			if ( so.getNext() != null ) {
+				String next = uriInfo.getRequestUriBuilder().replaceQueryParam("offset").replaceQueryParam("cursor", so.getNext()).build().toString();
+				rb.header("Link", "<" + next + ">; rel=\"next\"");
+			}
+		}
+
+		return rb.tag(etag).lastModified(lastModified).header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING).build();
+	}
+
+	/**
+	 * Decompresses request bodies sent with a Content-Encoding, as they are read.
+	 */
+	private InputStream decode(InputStream in) throws WebApplicationException {
+		try {
+			return ContentEncoding.decode(in, headers.getRequestHeaders().getFirst(HttpHeaders.CONTENT_ENCODING));
+		} catch (IOException e) {
+			throw new WebApplicationException(e, Response.Status.BAD_REQUEST);
+		}
+	}
+
+	private DatasetShards getShards() {
+		ContextResolver<DatasetShards> resolver = providers.getContextResolver(DatasetShards.class, MediaType.WILDCARD_TYPE);
+		return resolver.getContext(DatasetShards.class);
+	}
+
+	private GraphLockManager getGraphLocks() {
+		ContextResolver<GraphLockManager> resolver = providers.getContextResolver(GraphLockManager.class, MediaType.WILDCARD_TYPE);
+		return resolver.getContext(GraphLockManager.class);
+	}
+
+	private GraphVersions getGraphVersions() {
+		ContextResolver<GraphVersions> resolver = providers.getContextResolver(GraphVersions.class, MediaType.WILDCARD_TYPE);
+		return resolver.getContext(GraphVersions.class);
+	}
+
+	private Metrics getMetrics() {
+		ContextResolver<Metrics> resolver = providers.getContextResolver(Metrics.class, MediaType.WILDCARD_TYPE);
+		return resolver.getContext(Metrics.class);
+	}
+
+	private GraphCache getGraphCache() {
+		ContextResolver<GraphCache> resolver = providers.getContextResolver(GraphCache.class, MediaType.WILDCARD_TYPE);
+		return resolver.getContext(GraphCache.class);
 	}
 	
+	private Warmup getWarmup() {
+		ContextResolver<Warmup> resolver = providers.getContextResolver(Warmup.class, MediaType.WILDCARD_TYPE);
+		return resolver.getContext(Warmup.class);
+	}
+
 	private void validateUri(String uri) throws WebApplicationException {
 		if ((uri == null) || (uri.length() == 0)) { 
 			throw new WebApplicationException(Response.Status.BAD_REQUEST); 
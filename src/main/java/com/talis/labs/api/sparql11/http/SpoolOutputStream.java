@@ -0,0 +1,139 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.api.sparql11.http;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * An output stream which keeps up to a given number of bytes in memory and
+ * overflows to a temporary file after that. It is used to take a snapshot of a
+ * graph while holding a lock and send it to a (possibly slow) client afterwards.
+ */
+public class SpoolOutputStream extends OutputStream {
+
+	public static final int DEFAULT_THRESHOLD = 1024 * 1024;
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private int threshold = DEFAULT_THRESHOLD;
+	private ByteArrayOutputStream memory = null;
+	private File file = null;
+	private OutputStream out = null;
+	private long size = 0;
+
+	public SpoolOutputStream() {
+		this(DEFAULT_THRESHOLD);
+	}
+
+	public SpoolOutputStream(int threshold) {
+		this.threshold = threshold;
+		this.memory = new ByteArrayOutputStream(Math.min(threshold, BUFFER_SIZE));
+		this.out = memory;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		overflow(1);
+		out.write(b);
+		size++;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		overflow(len);
+		out.write(b, off, len);
+		size += len;
+	}
+
+	@Override
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		out.close();
+	}
+
+	public long size() {
+		return size;
+	}
+
+	public boolean isInMemory() {
+		return file == null;
+	}
+
+	/**
+	 * @return a copy of the content, or null if it has overflowed to disk
+	 */
+	public byte[] toByteArray() {
+		return ( file == null ) ? memory.toByteArray() : null;
+	}
+
+	/**
+	 * Copies everything written so far to the given output stream.
+	 */
+	public void writeTo(OutputStream output) throws IOException {
+		out.flush();
+		if ( file == null ) {
+			memory.writeTo(output);
+		} else {
+			InputStream in = new FileInputStream(file);
+			try {
+				byte[] buffer = new byte[BUFFER_SIZE];
+				int n;
+				while ( ( n = in.read(buffer) ) != -1 ) {
+					output.write(buffer, 0, n);
+				}
+			} finally {
+				in.close();
+			}
+		}
+	}
+
+	/**
+	 * Releases the memory buffer and deletes the temporary file, if any.
+	 */
+	public void dispose() {
+		try {
+			out.close();
+		} catch (IOException e) {
+			// ignore
+		}
+		memory = null;
+		if ( file != null ) {
+			file.delete();
+			file = null;
+		}
+	}
+
+	private void overflow(int len) throws IOException {
+		if ( ( file == null ) && ( size + len > threshold ) ) {
+			file = File.createTempFile("rdf-api-", ".spool");
+			out = new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE);
+			memory.writeTo(out);
+			memory = null;
+		}
+	}
+
+}
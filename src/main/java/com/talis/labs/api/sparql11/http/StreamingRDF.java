@@ -0,0 +1,586 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.api.sparql11.http;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.openjena.atlas.lib.Sink;
+import org.openjena.riot.RiotException;
+
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.shared.InvalidPropertyURIException;
+import com.hp.hpl.jena.shared.PrefixMapping;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+import com.hp.hpl.jena.vocabulary.RDF;
+
+/**
+ * Turtle and RDF/XML writers that write triples in the order they come, e.g. the order
+ * of the TDB index, with only a window of triples in memory. The pretty writers group
+ * the whole graph by subject first, so their memory and the time to the first byte
+ * grow with the graph.
+ *
+ * Within a window of {@link #DEFAULT_WINDOW} triples, triples are grouped by subject
+ * and predicate; a subject whose triples span two windows is written twice, which
+ * means the same. IRIs are abbreviated with the prefixes of the graph and, in Turtle,
+ * with prefixes made up for new namespaces as they are seen, up to {@link #MAX_PREFIXES}.
+ *
+ * Which writer a GET uses is chosen by the writer parameter of the media type, e.g.
+ * Accept: application/x-turtle;writer=streaming, or else by rdf-api.writer.
+ */
+public class StreamingRDF {
+
+	public static final String WRITER_PARAMETER = "writer";
+	public static final String PRETTY = "pretty";
+	public static final String STREAMING = "streaming";
+	public static final String DEFAULT_WRITER = System.getProperty("rdf-api.writer", PRETTY);
+
+	public static final int DEFAULT_WINDOW = 1000;
+	public static final int MAX_PREFIXES = 1000;
+
+	private static final String STREAMING_SUFFIX = ";" + WRITER_PARAMETER + "=" + STREAMING;
+	private static final String RDF_NS = RDF.getURI();
+	private static final String UTF8 = "UTF-8";
+
+	/**
+	 * The media type a graph is written in with a writer, as used to key what is
+	 * cached or measured about it: only the streaming writer adds to the media type.
+	 *
+	 * @param writer the writer asked for, or null for the server default
+	 */
+	public static String variant(String mediaType, String writer) {
+		if ( writer == null ) {
+			writer = DEFAULT_WRITER;
+		}
+		if ( STREAMING.equals(writer) && ( RDFMediaType.APPLICATION_TURTLE_CURRENT.equals(mediaType) || RDFMediaType.APPLICATION_RDFXML.equals(mediaType) ) ) {
+			return mediaType + STREAMING_SUFFIX;
+		}
+		return mediaType;
+	}
+
+	public static boolean isStreaming(String variant) {
+		return variant.endsWith(STREAMING_SUFFIX);
+	}
+
+	public static String getMediaType(String variant) {
+		return isStreaming(variant) ? variant.substring(0, variant.length() - STREAMING_SUFFIX.length()) : variant;
+	}
+
+	/**
+	 * Writes all the triples of a graph in Turtle or RDF/XML. The output stream is
+	 * flushed but not closed.
+	 */
+	public static void write(Graph graph, PrefixMapping prefixes, OutputStream out, String mediaType) {
+		Writer writer = null;
+		if ( RDFMediaType.APPLICATION_TURTLE_CURRENT.equals(mediaType) ) {
+			writer = new TurtleWriter(out, prefixes, DEFAULT_WINDOW);
+		} else if ( RDFMediaType.APPLICATION_RDFXML.equals(mediaType) ) {
+			writer = new RDFXMLWriter(out, prefixes, DEFAULT_WINDOW);
+		} else {
+			throw new IllegalArgumentException(mediaType);
+		}
+		ExtendedIterator<Triple> iter = graph.find(Node.ANY, Node.ANY, Node.ANY);
+		try {
+			while ( iter.hasNext() ) {
+				writer.send(iter.next());
+			}
+		} finally {
+			iter.close();
+		}
+		writer.close();
+	}
+
+	/**
+	 * Collects triples into a window, grouped by subject then predicate, and writes the
+	 * window out once it is full. Closing the writer ends the document and flushes the
+	 * underlying output stream, which is left open.
+	 */
+	public static abstract class Writer implements Sink<Triple> {
+
+		protected java.io.Writer out = null;
+		protected Map<String, String> prefixes = new HashMap<String, String>();
+		private Map<Node, Map<Node, List<Node>>> window = new LinkedHashMap<Node, Map<Node, List<Node>>>();
+		private int size = 0;
+		private int windowSize = 0;
+		private boolean started = false;
+
+		protected Writer(OutputStream out, PrefixMapping mapping, int windowSize) {
+			try {
+				this.out = new BufferedWriter(new OutputStreamWriter(out, UTF8));
+			} catch (UnsupportedEncodingException e) {
+				throw new RiotException(e);
+			}
+			this.windowSize = windowSize;
+			if ( mapping != null ) {
+				for (Map.Entry<String, String> entry : mapping.getNsPrefixMap().entrySet()) {
+					if ( isPrefix(entry.getKey()) && !prefixes.containsKey(entry.getValue()) ) {
+						prefixes.put(entry.getValue(), entry.getKey());
+					}
+				}
+			}
+		}
+
+		@Override
+		public void send(Triple triple) {
+			Map<Node, List<Node>> predicates = window.get(triple.getSubject());
+			if ( predicates == null ) {
+				predicates = new LinkedHashMap<Node, List<Node>>();
+				window.put(triple.getSubject(), predicates);
+			}
+			List<Node> objects = predicates.get(triple.getPredicate());
+			if ( objects == null ) {
+				objects = new ArrayList<Node>(1);
+				predicates.put(triple.getPredicate(), objects);
+			}
+			objects.add(triple.getObject());
+			if ( ++size >= windowSize ) {
+				flush();
+			}
+		}
+
+		/**
+		 * Writes out the window, without flushing the output stream.
+		 */
+		@Override
+		public void flush() {
+			try {
+				if ( !started ) {
+					started = true;
+					startDocument();
+				}
+				if ( size > 0 ) {
+					writeWindow(window);
+				}
+			} catch (IOException e) {
+				throw new RiotException(e);
+			}
+			window.clear();
+			size = 0;
+		}
+
+		@Override
+		public void close() {
+			flush();
+			try {
+				endDocument();
+				out.flush();
+			} catch (IOException e) {
+				throw new RiotException(e);
+			}
+		}
+
+		protected abstract boolean isPrefix(String prefix);
+
+		protected abstract void startDocument() throws IOException;
+
+		protected abstract void writeWindow(Map<Node, Map<Node, List<Node>>> window) throws IOException;
+
+		protected abstract void endDocument() throws IOException;
+
+		/**
+		 * A blank node label made of letters and digits only, the same for the same
+		 * blank node throughout the document.
+		 */
+		protected static String label(Node node) {
+			String id = node.getBlankNodeLabel();
+			StringBuilder sb = new StringBuilder(id.length() + 1);
+			sb.append('b');
+			for (int i = 0; i < id.length(); i++) {
+				char ch = id.charAt(i);
+				if ( ( ( ch >= 'a' ) && ( ch <= 'z' ) && ( ch != 'x' ) ) || ( ( ch >= 'A' ) && ( ch <= 'Z' ) ) || ( ( ch >= '0' ) && ( ch <= '9' ) ) ) {
+					sb.append(ch);
+				} else {
+					sb.append('x').append(Integer.toHexString(0x10000 | ch).substring(1));
+				}
+			}
+			return sb.toString();
+		}
+
+	}
+
+	/**
+	 * Writes Turtle, declaring a prefix for a new namespace before the window that first
+	 * uses it.
+	 */
+	public static class TurtleWriter extends Writer {
+
+		public TurtleWriter(OutputStream out, PrefixMapping mapping, int windowSize) {
+			super(out, mapping, windowSize);
+		}
+
+		@Override
+		protected boolean isPrefix(String prefix) {
+			return isName(prefix, 0, false);
+		}
+
+		@Override
+		protected void startDocument() throws IOException {
+			for (Map.Entry<String, String> entry : prefixes.entrySet()) {
+				writePrefix(entry.getValue(), entry.getKey());
+			}
+		}
+
+		@Override
+		protected void writeWindow(Map<Node, Map<Node, List<Node>>> window) throws IOException {
+			for (Map.Entry<Node, Map<Node, List<Node>>> subject : window.entrySet()) {
+				declare(subject.getKey());
+				for (Map.Entry<Node, List<Node>> predicate : subject.getValue().entrySet()) {
+					if ( !RDF.type.asNode().equals(predicate.getKey()) ) {
+						declare(predicate.getKey());
+					}
+					for (Node object : predicate.getValue()) {
+						declare(object.isLiteral() && ( object.getLiteralDatatypeURI() != null ) ? Node.createURI(object.getLiteralDatatypeURI()) : object);
+					}
+				}
+			}
+			for (Map.Entry<Node, Map<Node, List<Node>>> subject : window.entrySet()) {
+				writeTerm(subject.getKey());
+				boolean first = true;
+				for (Map.Entry<Node, List<Node>> predicate : subject.getValue().entrySet()) {
+					out.write(first ? " " : " ;\n    ");
+					first = false;
+					if ( RDF.type.asNode().equals(predicate.getKey()) ) {
+						out.write('a');
+					} else {
+						writeTerm(predicate.getKey());
+					}
+					boolean firstObject = true;
+					for (Node object : predicate.getValue()) {
+						out.write(firstObject ? " " : " , ");
+						firstObject = false;
+						writeTerm(object);
+					}
+				}
+				out.write(" .\n");
+			}
+		}
+
+		@Override
+		protected void endDocument() throws IOException {
+		}
+
+		/**
+		 * Makes up a prefix for the namespace of an IRI that can be abbreviated with one.
+		 */
+		private void declare(Node node) throws IOException {
+			if ( !node.isURI() || ( prefixes.size() >= MAX_PREFIXES ) ) {
+				return;
+			}
+			String uri = node.getURI();
+			int split = split(uri);
+			if ( split < 0 ) {
+				return;
+			}
+			String namespace = uri.substring(0, split);
+			if ( !prefixes.containsKey(namespace) ) {
+				String prefix = "ns" + prefixes.size();
+				while ( prefixes.containsValue(prefix) ) {
+					prefix = prefix + "_";
+				}
+				prefixes.put(namespace, prefix);
+				writePrefix(prefix, namespace);
+			}
+		}
+
+		private void writePrefix(String prefix, String namespace) throws IOException {
+			out.write("@prefix ");
+			out.write(prefix);
+			out.write(": ");
+			writeIRI(namespace);
+			out.write(" .\n");
+		}
+
+		private void writeTerm(Node node) throws IOException {
+			if ( node.isURI() ) {
+				String uri = node.getURI();
+				int split = split(uri);
+				String prefix = ( split >= 0 ) ? prefixes.get(uri.substring(0, split)) : null;
+				if ( prefix != null ) {
+					out.write(prefix);
+					out.write(':');
+					out.write(uri, split, uri.length() - split);
+				} else {
+					writeIRI(uri);
+				}
+			} else if ( node.isBlank() ) {
+				out.write("_:");
+				out.write(label(node));
+			} else if ( node.isLiteral() ) {
+				out.write('"');
+				writeString(node.getLiteralLexicalForm());
+				out.write('"');
+				String lang = node.getLiteralLanguage();
+				String datatype = node.getLiteralDatatypeURI();
+				if ( ( lang != null ) && ( lang.length() > 0 ) ) {
+					out.write('@');
+					out.write(lang);
+				} else if ( datatype != null ) {
+					out.write("^^");
+					writeTerm(Node.createURI(datatype));
+				}
+			} else {
+				throw new RiotException("Not an RDF term: " + node);
+			}
+		}
+
+		private void writeIRI(String uri) throws IOException {
+			out.write('<');
+			for (int i = 0; i < uri.length(); i++) {
+				char ch = uri.charAt(i);
+				if ( ( ch == '>' ) || ( ch == '\\' ) || ( ch < 0x20 ) ) {
+					writeEscape(ch);
+				} else {
+					out.write(ch);
+				}
+			}
+			out.write('>');
+		}
+
+		private void writeString(String str) throws IOException {
+			for (int i = 0; i < str.length(); i++) {
+				char ch = str.charAt(i);
+				switch ( ch ) {
+				case '"': out.write("\\\""); break;
+				case '\\': out.write("\\\\"); break;
+				case '\n': out.write("\\n"); break;
+				case '\r': out.write("\\r"); break;
+				case '\t': out.write("\\t"); break;
+				default:
+					if ( ch < 0x20 ) {
+						writeEscape(ch);
+					} else {
+						out.write(ch);
+					}
+				}
+			}
+		}
+
+		private void writeEscape(char ch) throws IOException {
+			out.write("\\u");
+			out.write(Integer.toHexString(0x10000 | ch).substring(1).toUpperCase());
+		}
+
+		/**
+		 * @return where the local name of an IRI starts, if it can be written as a
+		 *         prefixed name, or -1
+		 */
+		private static int split(String uri) {
+			int split = Math.max(uri.lastIndexOf('/'), uri.lastIndexOf('#')) + 1;
+			if ( ( split <= 0 ) || ( split == uri.length() ) || !isName(uri, split, true) ) {
+				return -1;
+			}
+			return split;
+		}
+
+		/**
+		 * Names are kept to ASCII letters, digits, '_' and '-', which every Turtle
+		 * parser reads as a prefix or local name.
+		 */
+		private static boolean isName(String str, int from, boolean local) {
+			if ( from >= str.length() ) {
+				return local ? false : true;
+			}
+			char first = str.charAt(from);
+			if ( !( ( first >= 'a' ) && ( first <= 'z' ) ) && !( ( first >= 'A' ) && ( first <= 'Z' ) ) && !( local && ( first == '_' ) ) ) {
+				return false;
+			}
+			for (int i = from + 1; i < str.length(); i++) {
+				char ch = str.charAt(i);
+				if ( !( ( ch >= 'a' ) && ( ch <= 'z' ) ) && !( ( ch >= 'A' ) && ( ch <= 'Z' ) ) && !( ( ch >= '0' ) && ( ch <= '9' ) ) && ( ch != '_' ) && ( ch != '-' ) ) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+	}
+
+	/**
+	 * Writes RDF/XML, one rdf:Description per subject and window. Properties have to be
+	 * XML names, so the namespace of a predicate without a prefix of the graph is
+	 * declared on the rdf:Description that uses it.
+	 */
+	public static class RDFXMLWriter extends Writer {
+
+		public RDFXMLWriter(OutputStream out, PrefixMapping mapping, int windowSize) {
+			super(out, mapping, windowSize);
+			prefixes.remove(RDF_NS);
+			prefixes.put(RDF_NS, "rdf");
+		}
+
+		@Override
+		protected boolean isPrefix(String prefix) {
+			// j.n are taken by the namespaces declared as they are seen
+			return ( prefix.length() > 0 ) && !prefix.toLowerCase().startsWith("xml") && !"rdf".equals(prefix) && !prefix.startsWith("j.") && ( nameStart(prefix) == 0 );
+		}
+
+		@Override
+		protected void startDocument() throws IOException {
+			out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<rdf:RDF");
+			for (Map.Entry<String, String> entry : prefixes.entrySet()) {
+				out.write("\n    xmlns:");
+				out.write(entry.getValue());
+				out.write("=\"");
+				writeEscaped(entry.getKey(), true);
+				out.write('"');
+			}
+			out.write(">\n");
+		}
+
+		@Override
+		protected void writeWindow(Map<Node, Map<Node, List<Node>>> window) throws IOException {
+			Map<String, String> local = new LinkedHashMap<String, String>();
+			for (Map.Entry<Node, Map<Node, List<Node>>> subject : window.entrySet()) {
+				local.clear();
+				for (Node predicate : subject.getValue().keySet()) {
+					String namespace = namespace(predicate);
+					if ( !prefixes.containsKey(namespace) && !local.containsKey(namespace) ) {
+						local.put(namespace, "j." + local.size());
+					}
+				}
+
+				out.write("  <rdf:Description");
+				Node node = subject.getKey();
+				if ( node.isBlank() ) {
+					writeAttribute("rdf:nodeID", label(node));
+				} else if ( node.isURI() ) {
+					writeAttribute("rdf:about", node.getURI());
+				} else {
+					throw new RiotException("Not a subject: " + node);
+				}
+				for (Map.Entry<String, String> entry : local.entrySet()) {
+					writeAttribute("xmlns:" + entry.getValue(), entry.getKey());
+				}
+				out.write(">\n");
+
+				for (Map.Entry<Node, List<Node>> predicate : subject.getValue().entrySet()) {
+					String uri = predicate.getKey().getURI();
+					String namespace = namespace(predicate.getKey());
+					String prefix = prefixes.get(namespace);
+					String name = ( ( prefix != null ) ? prefix : local.get(namespace) ) + ":" + uri.substring(namespace.length());
+					for (Node object : predicate.getValue()) {
+						writeProperty(name, object);
+					}
+				}
+				out.write("  </rdf:Description>\n");
+			}
+		}
+
+		@Override
+		protected void endDocument() throws IOException {
+			out.write("</rdf:RDF>\n");
+		}
+
+		private void writeProperty(String name, Node object) throws IOException {
+			out.write("    <");
+			out.write(name);
+			if ( object.isURI() ) {
+				writeAttribute("rdf:resource", object.getURI());
+				out.write("/>\n");
+			} else if ( object.isBlank() ) {
+				writeAttribute("rdf:nodeID", label(object));
+				out.write("/>\n");
+			} else if ( object.isLiteral() ) {
+				String lang = object.getLiteralLanguage();
+				String datatype = object.getLiteralDatatypeURI();
+				if ( ( lang != null ) && ( lang.length() > 0 ) ) {
+					writeAttribute("xml:lang", lang);
+				} else if ( datatype != null ) {
+					writeAttribute("rdf:datatype", datatype);
+				}
+				out.write('>');
+				writeEscaped(object.getLiteralLexicalForm(), false);
+				out.write("</");
+				out.write(name);
+				out.write(">\n");
+			} else {
+				throw new RiotException("Not an RDF term: " + object);
+			}
+		}
+
+		private void writeAttribute(String name, String value) throws IOException {
+			out.write(' ');
+			out.write(name);
+			out.write("=\"");
+			writeEscaped(value, true);
+			out.write('"');
+		}
+
+		private void writeEscaped(String str, boolean attribute) throws IOException {
+			for (int i = 0; i < str.length(); i++) {
+				char ch = str.charAt(i);
+				switch ( ch ) {
+				case '&': out.write("&amp;"); break;
+				case '<': out.write("&lt;"); break;
+				case '>': out.write("&gt;"); break;
+				case '\r': out.write("&#xD;"); break;
+				case '"': out.write(attribute ? "&quot;" : "\""); break;
+				case '\n': out.write(attribute ? "&#xA;" : "\n"); break;
+				case '\t': out.write(attribute ? "&#x9;" : "\t"); break;
+				default: out.write(ch);
+				}
+			}
+		}
+
+		/**
+		 * @return the namespace of a predicate, up to the longest XML name it ends with
+		 * @throws InvalidPropertyURIException if it does not end with one
+		 */
+		private static String namespace(Node predicate) {
+			String uri = predicate.getURI();
+			int split = nameStart(uri);
+			if ( split <= 0 ) {
+				throw new InvalidPropertyURIException(uri);
+			}
+			return uri.substring(0, split);
+		}
+
+		/**
+		 * @return where the longest XML name at the end of a string starts, or -1
+		 */
+		private static int nameStart(String str) {
+			int i = str.length();
+			while ( ( i > 0 ) && isNameChar(str.charAt(i - 1)) ) {
+				i--;
+			}
+			while ( ( i < str.length() ) && !isNameStartChar(str.charAt(i)) ) {
+				i++;
+			}
+			return ( i < str.length() ) ? i : -1;
+		}
+
+		private static boolean isNameStartChar(char ch) {
+			return ( ( ch >= 'a' ) && ( ch <= 'z' ) ) || ( ( ch >= 'A' ) && ( ch <= 'Z' ) ) || ( ch == '_' ) || ( ch > 0x7f );
+		}
+
+		private static boolean isNameChar(char ch) {
+			return isNameStartChar(ch) || ( ( ch >= '0' ) && ( ch <= '9' ) ) || ( ch == '-' ) || ( ch == '.' );
+		}
+
+	}
+
+}
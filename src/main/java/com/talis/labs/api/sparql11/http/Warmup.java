@@ -0,0 +1,300 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.api.sparql11.http;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.locks.ReadWriteLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.shared.Lock;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+
+/**
+ * Gets a freshly started server ready for traffic: the datasets are opened as the
+ * application starts, then, if {@link #WARMUP_PROPERTY} asks for it, they are warmed
+ * up in the background while {@link #isReady()} tells a load balancer (through
+ * /ready) to keep traffic away.
+ *
+ * files reads the TDB files of every location once, so that they are in the OS file
+ * cache: the inner nodes of the B+Tree indexes first, then the node table and the
+ * GSPO index GETs go through, then the rest, stopping after {@link #MAX_BYTES_PROPERTY}.
+ *
+ * graphs reads, triple by triple, the graphs that were read most recently in the
+ * previous run. While running, the graphs read are remembered, up to
+ * {@link #HOT_GRAPHS_PROPERTY} of them, and saved every minute and on shutdown to
+ * {@link #HOT_GRAPHS_FILE_PROPERTY}.
+ */
+public class Warmup {
+
+	private static final Logger logger = LoggerFactory.getLogger(Warmup.class);
+
+	public static final String WARMUP_PROPERTY = "rdf-api.warmup";
+	public static final String MAX_BYTES_PROPERTY = "rdf-api.warmup.max-bytes";
+	public static final String HOT_GRAPHS_PROPERTY = "rdf-api.warmup.hot-graphs";
+	public static final String HOT_GRAPHS_FILE_PROPERTY = "rdf-api.warmup.hot-graphs-file";
+	public static final String DEFAULT_HOT_GRAPHS_FILE = "hot-graphs.txt";
+	public static final String FILES = "files";
+	public static final String GRAPHS = "graphs";
+
+	private static final long SAVE_PERIOD_MILLIS = 60 * 1000;
+
+	private boolean files = false;
+	private boolean graphs = false;
+	private long maxBytes = -1;
+	private int maxHotGraphs = 1000;
+	private File hotGraphsFile = null;
+
+	private volatile boolean started = false;
+	private volatile boolean ready = false;
+	private volatile String status = "starting";
+	private final Map<String, Boolean> hot = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+			return size() > maxHotGraphs;
+		}
+	};
+
+	public Warmup() {
+		List<String> what = Arrays.asList(System.getProperty(WARMUP_PROPERTY, "").split(","));
+		for (String s : what) {
+			if ( FILES.equals(s.trim()) ) {
+				files = true;
+			} else if ( GRAPHS.equals(s.trim()) ) {
+				graphs = true;
+			} else if ( s.trim().length() > 0 ) {
+				throw new IllegalArgumentException("Unknown " + WARMUP_PROPERTY + ": " + s);
+			}
+		}
+		maxBytes = Long.getLong(MAX_BYTES_PROPERTY, maxBytes);
+		maxHotGraphs = Integer.getInteger(HOT_GRAPHS_PROPERTY, maxHotGraphs);
+		String file = System.getProperty(HOT_GRAPHS_FILE_PROPERTY);
+		hotGraphsFile = new File(( file != null ) ? file : new File(DatasetResolver.getLocations().get(0), DEFAULT_HOT_GRAPHS_FILE).getPath());
+	}
+
+	/**
+	 * Starts warming up the datasets, only the first time it is called.
+	 */
+	public synchronized void start(final DatasetShards shards, final GraphLockManager locks) {
+		if ( started ) {
+			return;
+		}
+		started = true;
+		if ( graphs ) {
+			Timer timer = new Timer("rdf-api-hot-graphs", true);
+			timer.schedule(new TimerTask() {
+				@Override
+				public void run() {
+					save();
+				}
+			}, SAVE_PERIOD_MILLIS, SAVE_PERIOD_MILLIS);
+			Runtime.getRuntime().addShutdownHook(new Thread("rdf-api-hot-graphs") {
+				@Override
+				public void run() {
+					save();
+				}
+			});
+		}
+		if ( !files && !graphs ) {
+			status = "ready";
+			ready = true;
+			return;
+		}
+		Thread thread = new Thread("rdf-api-warmup") {
+			@Override
+			public void run() {
+				long start = System.currentTimeMillis();
+				try {
+					if ( files ) {
+						warmFiles();
+					}
+					if ( graphs ) {
+						warmGraphs(shards, locks);
+					}
+					logger.info("Warmed up in {}ms", System.currentTimeMillis() - start);
+				} catch (Exception e) {
+					// a cold server is better than no server
+					logger.warn("Warm-up failed, carrying on without it", e);
+				} finally {
+					status = "ready";
+					ready = true;
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public boolean isReady() {
+		return ready;
+	}
+
+	/**
+	 * @return what the warm-up is doing, or ready
+	 */
+	public String getStatus() {
+		return status;
+	}
+
+	/**
+	 * Remembers a graph that was read, for the next warm-up.
+	 */
+	public void touched(String uri) {
+		if ( graphs ) {
+			synchronized (hot) {
+				hot.put(uri, Boolean.TRUE);
+			}
+		}
+	}
+
+	private void warmFiles() throws IOException {
+		List<File> all = new ArrayList<File>();
+		for (String location : DatasetResolver.getLocations()) {
+			File[] children = new File(location).listFiles();
+			if ( children != null ) {
+				all.addAll(Arrays.asList(children));
+			}
+		}
+		List<File> ordered = new ArrayList<File>();
+		for (String suffix : new String[] { ".idn", "node2id.dat", "GSPO.dat", "nodes.dat", ".dat" }) {
+			for (File file : all) {
+				if ( file.isFile() && file.getName().endsWith(suffix) && !ordered.contains(file) ) {
+					ordered.add(file);
+				}
+			}
+		}
+		long total = 0;
+		byte[] buffer = new byte[1024 * 1024];
+		for (File file : ordered) {
+			if ( ( maxBytes >= 0 ) && ( total >= maxBytes ) ) {
+				logger.info("Warm-up stopped after {} bytes", total);
+				break;
+			}
+			status = "warming " + file;
+			InputStream in = new FileInputStream(file);
+			try {
+				int n = 0;
+				while ( ( ( maxBytes < 0 ) || ( total < maxBytes ) ) && ( ( n = in.read(buffer) ) > 0 ) ) {
+					total += n;
+				}
+			} finally {
+				in.close();
+			}
+		}
+		logger.info("Read {} bytes of {} TDB files", total, ordered.size());
+	}
+
+	private void warmGraphs(DatasetShards shards, GraphLockManager locks) throws IOException {
+		if ( !hotGraphsFile.exists() ) {
+			return;
+		}
+		List<String> uris = new ArrayList<String>();
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(hotGraphsFile), "UTF-8"));
+		try {
+			String line = null;
+			while ( ( ( line = in.readLine() ) != null ) && ( uris.size() < maxHotGraphs ) ) {
+				if ( line.trim().length() > 0 ) {
+					uris.add(line.trim());
+				}
+			}
+		} finally {
+			in.close();
+		}
+		long triples = 0;
+		for (String uri : uris) {
+			status = "warming " + uri;
+			triples += warmGraph(shards.getDataset(uri), shards.getCatalog(), locks.getLock(uri), uri);
+		}
+		logger.info("Read {} triples of {} graphs", triples, uris.size());
+	}
+
+	private long warmGraph(Dataset dataset, GraphCatalog catalog, ReadWriteLock graphLock, String uri) {
+		long count = 0;
+		graphLock.readLock().lock();
+		Lock lock = dataset.getLock();
+		try {
+			lock.enterCriticalSection(Lock.READ);
+			Graph graph = dataset.asDatasetGraph().getGraph(catalog.getNode(uri));
+			ExtendedIterator<Triple> iter = graph.find(Node.ANY, Node.ANY, Node.ANY);
+			try {
+				while ( iter.hasNext() ) {
+					iter.next();
+					count++;
+				}
+			} finally {
+				iter.close();
+			}
+		} finally {
+			lock.leaveCriticalSection();
+			graphLock.readLock().unlock();
+		}
+		return count;
+	}
+
+	/**
+	 * Writes the graphs read, most recently read first.
+	 */
+	synchronized void save() {
+		List<String> uris = null;
+		synchronized (hot) {
+			uris = new ArrayList<String>(hot.keySet());
+		}
+		if ( uris.isEmpty() ) {
+			return;
+		}
+		File tmp = new File(hotGraphsFile.getPath() + ".tmp");
+		try {
+			Writer out = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+			try {
+				for (int i = uris.size() - 1; i >= 0; i--) {
+					out.write(uris.get(i));
+					out.write('\n');
+				}
+			} finally {
+				out.close();
+			}
+			if ( !tmp.renameTo(hotGraphsFile) ) {
+				hotGraphsFile.delete();
+				tmp.renameTo(hotGraphsFile);
+			}
+		} catch (IOException e) {
+			logger.warn("Could not save the hot graphs to {}", hotGraphsFile, e);
+		}
+	}
+
+}
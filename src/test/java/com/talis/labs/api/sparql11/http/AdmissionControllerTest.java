@@ -0,0 +1,118 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.api.sparql11.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+public class AdmissionControllerTest {
+
+	@Test
+	public void testReadsAndWritesAreLimitedSeparately() throws Exception {
+		AdmissionController admission = new AdmissionController(new AdmissionController.Limiter("read", 1, 0, 0, 0), new AdmissionController.Limiter("write", 1, 0, 0, 0));
+		assertSame(admission.getReads(), admission.getLimiter("GET"));
+		assertSame(admission.getReads(), admission.getLimiter("HEAD"));
+		assertSame(admission.getWrites(), admission.getLimiter("PUT"));
+		assertSame(admission.getWrites(), admission.getLimiter("DELETE"));
+
+		assertTrue(admission.getLimiter("PUT").acquire());
+		assertFalse(admission.getLimiter("POST").acquire());
+		assertTrue(admission.getLimiter("GET").acquire());
+		assertEquals(1, admission.getWrites().getRejected());
+		assertEquals(0, admission.getReads().getRejected());
+
+		admission.getWrites().release(1000);
+		assertTrue(admission.getLimiter("PUT").acquire());
+	}
+
+	@Test
+	public void testQueuedRequestIsAdmittedOnRelease() throws Exception {
+		final AdmissionController.Limiter limiter = new AdmissionController.Limiter("write", 1, 1, 10000, 0);
+		assertTrue(limiter.acquire());
+
+		final CountDownLatch queued = new CountDownLatch(1);
+		final AtomicBoolean admitted = new AtomicBoolean(false);
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				queued.countDown();
+				admitted.set(limiter.acquire());
+			}
+		};
+		thread.start();
+		queued.await();
+		while ( limiter.getQueued() == 0 ) {
+			Thread.sleep(1);
+		}
+		// the queue holds one, there is no room for another
+		assertFalse(limiter.acquire());
+
+		limiter.release(1000);
+		thread.join(10000);
+		assertTrue(admitted.get());
+		assertEquals(1, limiter.getInFlight());
+		assertEquals(0, limiter.getQueued());
+	}
+
+	@Test
+	public void testQueuedRequestTimesOut() throws Exception {
+		AdmissionController.Limiter limiter = new AdmissionController.Limiter("write", 1, 1, 50, 0);
+		assertTrue(limiter.acquire());
+		long start = System.currentTimeMillis();
+		assertFalse(limiter.acquire());
+		assertTrue(System.currentTimeMillis() - start >= 50);
+		assertEquals(1, limiter.getRejected());
+		assertEquals(0, limiter.getQueued());
+	}
+
+	@Test
+	public void testAdaptiveLimit() throws Exception {
+		AdmissionController.Limiter limiter = new AdmissionController.Limiter("write", 10, 0, 0, 100);
+		assertTrue(limiter.acquire());
+		limiter.release(200 * 1000000L);
+		assertEquals(9, limiter.getLimit());
+
+		// a burst of slow requests only counts once per target period
+		assertTrue(limiter.acquire());
+		limiter.release(200 * 1000000L);
+		assertEquals(9, limiter.getLimit());
+
+		// fast requests raise the limit again, but only while it is all in use
+		for (int i = 0; i < 100; i++) {
+			assertTrue(limiter.acquire());
+			limiter.release(1000000L);
+		}
+		assertEquals(9, limiter.getLimit());
+		for (int i = 0; i < 100; i++) {
+			for (int j = 0; j < limiter.getLimit(); j++) {
+				assertTrue(limiter.acquire());
+			}
+			for (int j = limiter.getInFlight(); j > 0; j--) {
+				limiter.release(1000000L);
+			}
+		}
+		assertEquals(10, limiter.getLimit());
+	}
+
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.api.sparql11.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.openjena.atlas.lib.Sink;
+import org.openjena.riot.RiotException;
+
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.tdb.TDBFactory;
+import com.hp.hpl.jena.vocabulary.RDFS;
+
+public class BinaryRDFTest {
+
+	private static final String TURTLE =
+		"@prefix ex: <http://example.com/> .\n" +
+		"@prefix xsd: <http://www.w3.org/2001/XMLSchema#> .\n" +
+		"ex:s ex:p \"plain\", \"chat\"@fr, \"42\"^^xsd:int, ex:o, _:b1 .\n" +
+		"_:b1 ex:p _:b2 ; ex:q \"café ☃\" .\n" +
+		"<http://example.com/a#frag> ex:p \"\" .\n";
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		for (String lang : new String[] { "TURTLE", "RDF/XML", "N-TRIPLE" }) {
+			Model original = ModelFactory.createDefaultModel();
+			original.read(new StringReader(TURTLE), null, "TURTLE");
+			ByteArrayOutputStream text = new ByteArrayOutputStream();
+			original.write(text, lang);
+
+			Model model = ModelFactory.createDefaultModel();
+			model.read(new ByteArrayInputStream(text.toByteArray()), null, lang);
+			Model copy = roundTrip(model);
+			assertEquals(lang, model.size(), copy.size());
+			assertTrue(lang, model.isIsomorphicWith(copy));
+		}
+	}
+
+	@Test
+	public void testDictionary() throws Exception {
+		Model model = TDBFactory.createDataset().getDefaultModel();
+		for (int i = 0; i < 1000; i++) {
+			Resource resource = model.createResource("http://example.com/resource/" + i);
+			model.add(resource, RDFS.label, "label");
+			model.add(resource, RDFS.seeAlso, resource);
+		}
+		ByteArrayOutputStream binary = new ByteArrayOutputStream();
+		BinaryRDF.write(model.getGraph(), binary);
+		ByteArrayOutputStream ntriples = new ByteArrayOutputStream();
+		model.write(ntriples, "N-TRIPLE");
+
+		assertTrue(binary.size() * 4 < ntriples.size());
+		assertTrue(model.isIsomorphicWith(roundTrip(model)));
+	}
+
+	@Test(expected = RiotException.class)
+	public void testTruncated() throws Exception {
+		Model model = ModelFactory.createDefaultModel();
+		model.read(new StringReader(TURTLE), null, "TURTLE");
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		BinaryRDF.write(model.getGraph(), out);
+
+		byte[] bytes = out.toByteArray();
+		read(Arrays.copyOf(bytes, bytes.length - 1));
+	}
+
+	private static Model roundTrip(Model model) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		BinaryRDF.write(model.getGraph(), out);
+		return read(out.toByteArray());
+	}
+
+	private static Model read(byte[] bytes) {
+		final Model model = ModelFactory.createDefaultModel();
+		BinaryRDF.read(new ByteArrayInputStream(bytes), new Sink<Triple>() {
+			@Override
+			public void send(Triple triple) {
+				model.getGraph().add(triple);
+			}
+
+			@Override
+			public void flush() { }
+
+			@Override
+			public void close() { }
+		});
+		return model;
+	}
+
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.api.sparql11.http;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.ws.rs.core.StreamingOutput;
+
+import org.junit.Test;
+
+public class ContentEncodingTest {
+
+	@Test
+	public void testNegotiate() {
+		assertNull(ContentEncoding.negotiate(null));
+		assertNull(ContentEncoding.negotiate("identity"));
+		assertNull(ContentEncoding.negotiate("gzip;q=0"));
+		assertEquals("gzip", ContentEncoding.negotiate("gzip, deflate"));
+		assertEquals("gzip", ContentEncoding.negotiate("deflate, gzip"));
+		assertEquals("deflate", ContentEncoding.negotiate("gzip;q=0.5, deflate"));
+		assertEquals("gzip", ContentEncoding.negotiate("*"));
+	}
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		byte[] content = "<http://example.com/s> <http://example.com/p> \"o\" .\n".getBytes("UTF-8");
+		for (String coding : new String[] { ContentEncoding.GZIP, ContentEncoding.DEFLATE }) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			ContentEncoding.encode(content, coding).write(out);
+
+			InputStream in = ContentEncoding.decode(new ByteArrayInputStream(out.toByteArray()), coding);
+			ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+			int b;
+			while ( ( b = in.read() ) != -1 ) {
+				decoded.write(b);
+			}
+			assertArrayEquals(coding, content, decoded.toByteArray());
+		}
+	}
+
+	@Test
+	public void testFailedWrite() throws Exception {
+		StreamingOutput failing = new StreamingOutput() {
+			@Override
+			public void write(OutputStream out) throws IOException {
+				out.write(new byte[ContentEncoding.MIN_SIZE]);
+				throw new IOException("gone");
+			}
+		};
+		for (String coding : new String[] { ContentEncoding.GZIP, ContentEncoding.DEFLATE }) {
+			try {
+				ContentEncoding.encode(failing, coding).write(new ByteArrayOutputStream());
+				fail();
+			} catch (IOException e) {
+				// the failure of the writer, not one of releasing the compressor
+				assertEquals(coding, "gone", e.getMessage());
+			}
+		}
+	}
+
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.api.sparql11.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openjena.riot.Lang;
+import org.openjena.riot.RiotException;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.shared.Lock;
+import com.hp.hpl.jena.tdb.TDBFactory;
+
+public class DatasetLoaderTest {
+
+	private static String GRAPH_URI = "http://www.example.com/graph/";
+	private static Set<String> NONE = Collections.emptySet();
+
+	private Dataset dataset = null;
+	private DatasetShards shards = null;
+	private DatasetLoader loader = null;
+
+	@Before
+	public void setUp() throws Exception {
+		dataset = TDBFactory.createDataset();
+		GraphLockManager locks = new GraphLockManager();
+		GraphVersions versions = new GraphVersions();
+		shards = new DatasetShards(Collections.singletonList(dataset), locks, versions, new GraphCatalog());
+		loader = new DatasetLoader(shards, locks, versions, 3);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (shards != null) {
+			shards.close();
+			shards = null;
+		}
+		if (dataset != null) {
+			dataset.close();
+			dataset = null;
+		}
+	}
+
+	/**
+	 * @return the number of triples in the current generation of the graph
+	 */
+	private long size(String uri) {
+		// under the dataset lock, the previous generation may still be being removed
+		Lock lock = dataset.getLock();
+		try {
+			lock.enterCriticalSection(Lock.READ);
+			return dataset.asDatasetGraph().getGraph(shards.getCatalog().getNode(uri)).size();
+		} finally {
+			lock.leaveCriticalSection();
+		}
+	}
+
+	private static InputStream nquads(int graphs, int from, int to) throws UnsupportedEncodingException {
+		StringBuilder sb = new StringBuilder();
+		for (int g = 0; g < graphs; g++) {
+			for (int i = from; i < to; i++) {
+				sb.append("<http://example.com/s").append(i).append("> <http://www.w3.org/2000/01/rdf-schema#label> \"").append(i).append("\" <").append(GRAPH_URI).append(g).append("> .\n");
+			}
+		}
+		return new ByteArrayInputStream(sb.toString().getBytes("UTF-8"));
+	}
+
+	@Test
+	public void testLoad() throws Exception {
+		Map<String, Long> counts = loader.load(Lang.NQUADS, nquads(10, 0, 2), true, NONE, NONE);
+		assertEquals(10, counts.size());
+		for (int g = 0; g < 10; g++) {
+			assertEquals(new Long(2), counts.get(GRAPH_URI + g));
+			assertEquals(2, size(GRAPH_URI + g));
+		}
+		assertNoStagingGraphs();
+	}
+
+	@Test
+	public void testLoadTriG() throws Exception {
+		String trig = "@prefix ex: <http://example.com/> .\n" +
+			"<" + GRAPH_URI + "a> { ex:s ex:p ex:o1 , ex:o2 . }\n" +
+			"<" + GRAPH_URI + "b> { ex:s ex:p ex:o3 . }\n";
+		loader.load(Lang.TRIG, new ByteArrayInputStream(trig.getBytes("UTF-8")), true, NONE, NONE);
+		assertEquals(2, size(GRAPH_URI + "a"));
+		assertEquals(1, size(GRAPH_URI + "b"));
+	}
+
+	@Test
+	public void testReplaceAndMerge() throws Exception {
+		loader.load(Lang.NQUADS, nquads(3, 0, 5), false, NONE, NONE);
+		loader.load(Lang.NQUADS, nquads(3, 5, 7), true, NONE, Collections.singleton(GRAPH_URI + 1));
+		assertEquals(2, size(GRAPH_URI + 0));
+		assertEquals(7, size(GRAPH_URI + 1));
+		loader.load(Lang.NQUADS, nquads(3, 7, 8), false, Collections.singleton(GRAPH_URI + 2), NONE);
+		assertEquals(3, size(GRAPH_URI + 0));
+		assertEquals(1, size(GRAPH_URI + 2));
+	}
+
+	@Test(timeout = 10000)
+	public void testReplaceSwapsInANewGeneration() throws Exception {
+		String uri = GRAPH_URI + 0;
+		loader.load(Lang.NQUADS, nquads(1, 0, 5), true, NONE, NONE);
+		long generation = shards.getCatalog().getGeneration(uri);
+		Node previous = shards.getCatalog().getNode(uri);
+		loader.load(Lang.NQUADS, nquads(1, 5, 7), true, NONE, NONE);
+		assertTrue(shards.getCatalog().getGeneration(uri) > generation);
+		assertEquals(2, size(uri));
+		assertEquals(2, shards.getCatalog().get(uri).getTriples());
+
+		// the previous generation is removed in the background, and a scan agrees
+		GraphReclaimer.Job job = shards.getReclaimer().getJobs().get(shards.getReclaimer().getJobs().size() - 1);
+		assertEquals(previous, GraphCatalog.node(uri, job.getGeneration()));
+		job.await();
+		assertEquals(0, dataset.asDatasetGraph().getGraph(previous).size());
+		GraphCatalog scanned = new GraphCatalog(dataset);
+		assertEquals(shards.getCatalog().getGeneration(uri), scanned.getGeneration(uri));
+		assertEquals(2, scanned.get(uri).getTriples());
+	}
+
+	@Test
+	public void testParseErrorLeavesGraphsUntouched() throws Exception {
+		loader.load(Lang.NQUADS, nquads(2, 0, 5), true, NONE, NONE);
+		try {
+			loader.load(Lang.NQUADS, new ByteArrayInputStream(("<http://example.com/s> <http://example.com/p> \"o\" <" + GRAPH_URI + "0> .\nthis is not N-Quads\n").getBytes("UTF-8")), true, NONE, NONE);
+			fail();
+		} catch (RiotException e) {
+			// expected
+		}
+		assertEquals(5, size(GRAPH_URI + 0));
+		assertNoStagingGraphs();
+		// nor the generation it was being parsed into
+		assertTrue(shards.getReclaimer().getJobs().isEmpty());
+		assertEquals(2, new GraphCatalog(dataset).size());
+	}
+
+	@Test(expected = RiotException.class)
+	public void testDefaultGraphRejected() throws Exception {
+		loader.load(Lang.NQUADS, new ByteArrayInputStream("<http://example.com/s> <http://example.com/p> \"o\" .\n".getBytes("UTF-8")), true, NONE, NONE);
+	}
+
+	private void assertNoStagingGraphs() {
+		Iterator<String> names = dataset.listNames();
+		while (names.hasNext()) {
+			String name = names.next();
+			assertFalse(name, name.startsWith(GraphLoader.STAGING_GRAPH_PREFIX));
+		}
+	}
+
+}
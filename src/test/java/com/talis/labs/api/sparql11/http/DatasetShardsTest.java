@@ -0,0 +1,166 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.api.sparql11.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openjena.riot.Lang;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.tdb.TDBFactory;
+import com.hp.hpl.jena.vocabulary.RDFS;
+
+public class DatasetShardsTest {
+
+	private static String GRAPH_URI = "http://www.example.com/graph/";
+	private static Set<String> NONE = Collections.emptySet();
+	private static String LAYOUT = "from=first to=first,second";
+
+	private Dataset first = null;
+	private Dataset second = null;
+	private DatasetShards shards = null;
+
+	@Before
+	public void setUp() throws Exception {
+		first = TDBFactory.createDataset();
+		second = TDBFactory.createDataset();
+		shards = new DatasetShards(Arrays.asList(first, second), new GraphLockManager(), new GraphVersions());
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		shards.close();
+		first.close();
+		second.close();
+	}
+
+	@Test
+	public void testRing() throws Exception {
+		ShardRing three = new ShardRing(3);
+		ShardRing four = new ShardRing(4);
+		int[] counts = new int[4];
+		int moved = 0;
+		for (int i = 0; i < 10000; i++) {
+			String uri = GRAPH_URI + i;
+			assertEquals(three.shard(uri), new ShardRing(3).shard(uri));
+			counts[four.shard(uri)]++;
+			if ( three.shard(uri) != four.shard(uri) ) {
+				// graphs only ever move to the new shard
+				assertEquals(3, four.shard(uri));
+				moved++;
+			}
+		}
+		assertEquals(counts[3], moved);
+		for (int count : counts) {
+			assertTrue("unbalanced: " + Arrays.toString(counts), ( count > 1800 ) && ( count < 3200 ));
+		}
+		assertEquals(0, new ShardRing(1).shard(GRAPH_URI));
+	}
+
+	@Test
+	public void testLoadAcrossShards() throws Exception {
+		StringBuilder sb = new StringBuilder();
+		for (int g = 0; g < 20; g++) {
+			sb.append("<http://example.com/s> <http://example.com/p> \"").append(g).append("\" <").append(GRAPH_URI).append(g).append("> .\n");
+		}
+		Map<String, Long> counts = new DatasetLoader(shards, new GraphLockManager(), new GraphVersions(), 3).load(Lang.NQUADS, new ByteArrayInputStream(sb.toString().getBytes("UTF-8")), true, NONE, NONE);
+		assertEquals(20, counts.size());
+		for (int g = 0; g < 20; g++) {
+			String uri = GRAPH_URI + g;
+			Node name = shards.getCatalog().getNode(uri);
+			assertEquals(1, shards.getDataset(uri).asDatasetGraph().getGraph(name).size());
+			Dataset other = ( shards.getDataset(uri) == first ) ? second : first;
+			assertFalse(other.containsNamedModel(name.getURI()));
+		}
+		assertTrue(count(first) > 0);
+		assertTrue(count(second) > 0);
+		assertEquals(20, count(first) + count(second));
+	}
+
+	@Test
+	public void testRebalance() throws Exception {
+		for (int g = 0; g < 20; g++) {
+			first.getNamedModel(GRAPH_URI + g).createResource("http://example.com/s").addProperty(RDFS.label, "" + g);
+		}
+		File journal = File.createTempFile("rebalance", ".journal");
+		journal.delete();
+		ShardRebalancer rebalancer = new ShardRebalancer(Arrays.asList(first), Arrays.asList(first, second), LAYOUT, journal, 3, false);
+		rebalancer.run();
+		assertEquals(count(second), rebalancer.getGraphs());
+		assertEquals(count(second), rebalancer.getTriples());
+		assertEquals(20, count(first) + count(second));
+		for (int g = 0; g < 20; g++) {
+			String uri = GRAPH_URI + g;
+			assertEquals(1, shards.getDataset(uri).getNamedModel(uri).size());
+		}
+		assertFalse(journal.exists());
+	}
+
+	@Test
+	public void testRebalanceOtherLayout() throws Exception {
+		for (int g = 0; g < 20; g++) {
+			first.getNamedModel(GRAPH_URI + g).createResource("http://example.com/s").addProperty(RDFS.label, "" + g);
+		}
+		// left behind by a run into other locations, which copied a graph there
+		File journal = File.createTempFile("rebalance", ".journal");
+		Writer out = new OutputStreamWriter(new FileOutputStream(journal), "UTF-8");
+		out.write("layout from=first to=first,third\ncopied " + GRAPH_URI + 0 + "\n");
+		out.close();
+		try {
+			new ShardRebalancer(Arrays.asList(first), Arrays.asList(first, second), LAYOUT, journal, 3, false).run();
+			fail();
+		} catch (IllegalStateException e) {
+			// the graphs it lists are not deleted without having been copied
+		} finally {
+			journal.delete();
+		}
+		assertEquals(20, count(first));
+		assertEquals(0, count(second));
+	}
+
+	/**
+	 * @return the number of graphs in the dataset, leaving out those of the server itself
+	 */
+	private static int count(Dataset dataset) {
+		int count = 0;
+		for (Iterator<String> iter = dataset.listNames(); iter.hasNext(); ) {
+			if ( GraphCatalog.getUri(iter.next()) != null ) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+}
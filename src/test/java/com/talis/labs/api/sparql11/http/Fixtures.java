@@ -0,0 +1,39 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.api.sparql11.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Documents shared by the tests.
+ */
+public class Fixtures {
+
+	/**
+	 * @return one triple per subject from http://example.com/s{from} up to, not including, s{to}, labelled with its number
+	 */
+	public static InputStream ntriples(int from, int to) throws UnsupportedEncodingException {
+		StringBuilder sb = new StringBuilder();
+		for (int i = from; i < to; i++) {
+			sb.append("<http://example.com/s").append(i).append("> <http://www.w3.org/2000/01/rdf-schema#label> \"").append(i).append("\" .\n");
+		}
+		return new ByteArrayInputStream(sb.toString().getBytes("UTF-8"));
+	}
+
+}
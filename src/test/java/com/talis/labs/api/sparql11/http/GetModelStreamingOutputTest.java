@@ -0,0 +1,193 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.api.sparql11.http;
+
+import static com.talis.labs.api.sparql11.http.Fixtures.ntriples;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.ws.rs.WebApplicationException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openjena.riot.Lang;
+
+import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.shared.Lock;
+import com.hp.hpl.jena.tdb.TDBFactory;
+
+public class GetModelStreamingOutputTest {
+
+	private static String GRAPH_URI = "http://www.example.com/graph/";
+
+	private Dataset dataset = null;
+	private GraphLockManager locks = null;
+	private GraphVersions versions = null;
+	private GraphCatalog catalog = null;
+	private GraphReclaimer reclaimer = null;
+	private GraphLoader loader = null;
+
+	@Before
+	public void setUp() throws Exception {
+		dataset = TDBFactory.createDataset();
+		locks = new GraphLockManager();
+		versions = new GraphVersions();
+		catalog = new GraphCatalog();
+		reclaimer = new GraphReclaimer();
+		loader = new GraphLoader(dataset, locks, versions, catalog, reclaimer);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (reclaimer != null) {
+			reclaimer.close();
+			reclaimer = null;
+		}
+		if (dataset != null) {
+			dataset.close();
+			dataset = null;
+		}
+	}
+
+	@Test
+	public void testStreamingWriterIsMeasuredAndCached() throws Exception {
+		String uri = GRAPH_URI + "a";
+		loader.load(uri, Lang.NTRIPLES, ntriples(0, 5), true);
+		String mediaType = StreamingRDF.variant(RDFMediaType.APPLICATION_TURTLE_CURRENT, StreamingRDF.STREAMING);
+		GraphCache cache = new GraphCache();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new GetModelStreamingOutput(dataset, locks, versions, cache, catalog, uri, mediaType).write(out);
+		assertEquals(0, ((ReentrantReadWriteLock) locks.getLock(uri)).getReadLockCount());
+		assertEquals(out.size(), catalog.get(uri).getSize(mediaType));
+		assertEquals(out.toString("UTF-8"), new String(cache.get(uri, mediaType, versions.get(uri).getNumber()), "UTF-8"));
+
+		// too big for the cache, measured all the same
+		cache = new GraphCache(16 * 10);
+		out.reset();
+		new GetModelStreamingOutput(dataset, locks, versions, cache, catalog, uri, mediaType).write(out);
+		assertEquals(out.size(), catalog.get(uri).getSize(mediaType));
+		assertNull(cache.get(uri, mediaType, versions.get(uri).getNumber()));
+	}
+
+	@Test(timeout = 10000)
+	public void testSlowClientDoesNotHoldTheLocks() throws Exception {
+		String uri = GRAPH_URI + "a";
+		loader.load(uri, Lang.NTRIPLES, ntriples(0, 2000), true);
+		String mediaType = StreamingRDF.variant(RDFMediaType.APPLICATION_TURTLE_CURRENT, StreamingRDF.STREAMING);
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		new GetModelStreamingOutput(dataset, locks, versions, new GraphCache(0), catalog, uri, mediaType).write(expected);
+
+		StalledOutputStream client = new StalledOutputStream();
+		Future<Void> request = request(new GetModelStreamingOutput(dataset, locks, versions, new GraphCache(0), catalog, uri, mediaType, 1024), client);
+		client.reached.await();
+		// far more than the window, the rest is spooled and the locks released although the client has read nothing
+		locks.getLock(uri).writeLock().lock();
+		locks.getLock(uri).writeLock().unlock();
+		dataset.getLock().enterCriticalSection(Lock.WRITE);
+		dataset.getLock().leaveCriticalSection();
+		assertFalse(request.isDone());
+		client.resumed.countDown();
+		request.get();
+		assertEquals(expected.toString("UTF-8"), client.bytes.toString("UTF-8"));
+		assertEquals(expected.size(), catalog.get(uri).getSize(mediaType));
+	}
+
+	@Test
+	public void testStreamingWriterStopsWhenTheClientGoes() throws Exception {
+		String uri = GRAPH_URI + "a";
+		loader.load(uri, Lang.NTRIPLES, ntriples(0, 2000), true);
+		String mediaType = StreamingRDF.variant(RDFMediaType.APPLICATION_RDFXML, StreamingRDF.STREAMING);
+		try {
+			new GetModelStreamingOutput(dataset, locks, versions, new GraphCache(), catalog, uri, mediaType, 1024).write(new OutputStream() {
+				@Override
+				public void write(int b) throws IOException {
+					throw new IOException("gone");
+				}
+			});
+			fail();
+		} catch (IOException e) {
+			// as the container would have it, rather than a 500
+			assertEquals("gone", e.getMessage());
+		}
+		assertEquals(0, ((ReentrantReadWriteLock) locks.getLock(uri)).getReadLockCount());
+	}
+
+	@Test
+	public void testStreamingWriterNotFound() throws Exception {
+		String mediaType = StreamingRDF.variant(RDFMediaType.APPLICATION_NTRIPLES, StreamingRDF.STREAMING);
+		try {
+			new GetModelStreamingOutput(dataset, locks, versions, new GraphCache(), catalog, GRAPH_URI + "a", mediaType).write(new ByteArrayOutputStream());
+			fail();
+		} catch (WebApplicationException e) {
+			assertEquals(404, e.getResponse().getStatus());
+		}
+	}
+
+	/**
+	 * Writes the graph in the background, as the thread serving the request would.
+	 */
+	private static Future<Void> request(final GetModelStreamingOutput output, final OutputStream out) {
+		return Executors.newSingleThreadExecutor().submit(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				output.write(out);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * A client that reads nothing until it is resumed.
+	 */
+	private static class StalledOutputStream extends OutputStream {
+
+		private CountDownLatch reached = new CountDownLatch(1);
+		private CountDownLatch resumed = new CountDownLatch(1);
+		private ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			reached.countDown();
+			try {
+				resumed.await();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+			bytes.write(b, off, len);
+		}
+
+	}
+
+}
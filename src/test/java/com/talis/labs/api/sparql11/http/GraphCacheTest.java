@@ -0,0 +1,71 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.api.sparql11.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class GraphCacheTest {
+
+	private static String GRAPH_URI = "http://www.example.com/mygraph";
+
+	@Test
+	public void testHitOnlyForSameVersion() {
+		GraphCache cache = new GraphCache(16 * 100);
+		cache.put(GRAPH_URI, RDFMediaType.APPLICATION_NTRIPLES, 1, new byte[10]);
+
+		assertNotNull(cache.get(GRAPH_URI, RDFMediaType.APPLICATION_NTRIPLES, 1));
+		assertNull(cache.get(GRAPH_URI, RDFMediaType.APPLICATION_NTRIPLES, 2));
+		assertNull(cache.get(GRAPH_URI, RDFMediaType.APPLICATION_RDFXML, 1));
+		assertEquals(1, cache.getHits());
+		assertEquals(2, cache.getMisses());
+	}
+
+	@Test
+	public void testEvictsLeastRecentlyUsed() {
+		GraphCache cache = new GraphCache(16 * 100);
+		cache.put(GRAPH_URI + "1", RDFMediaType.APPLICATION_NTRIPLES, 1, new byte[100]);
+		cache.put(GRAPH_URI + "2", RDFMediaType.APPLICATION_NTRIPLES, 1, new byte[100]);
+		cache.get(GRAPH_URI + "1", RDFMediaType.APPLICATION_NTRIPLES, 1);
+		for (int i = 3; i < 18; i++) {
+			cache.put(GRAPH_URI + i, RDFMediaType.APPLICATION_NTRIPLES, 1, new byte[100]);
+		}
+
+		assertEquals(1, cache.getEvictions());
+		assertEquals(1600, cache.getBytes());
+		assertNotNull(cache.get(GRAPH_URI + "1", RDFMediaType.APPLICATION_NTRIPLES, 1));
+		assertNull(cache.get(GRAPH_URI + "2", RDFMediaType.APPLICATION_NTRIPLES, 1));
+	}
+
+	@Test
+	public void testInvalidatedByWrites() {
+		GraphVersions versions = new GraphVersions();
+		GraphCache cache = new GraphCache(16 * 100);
+		versions.addListener(cache);
+
+		long version = versions.get(GRAPH_URI).getNumber();
+		cache.put(GRAPH_URI, RDFMediaType.APPLICATION_NTRIPLES, version, new byte[10]);
+		cache.put(GRAPH_URI, RDFMediaType.APPLICATION_RDFXML, version, new byte[10]);
+		versions.bump(GRAPH_URI);
+
+		assertEquals(0, cache.getBytes());
+	}
+
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.api.sparql11.http;
+
+import static com.talis.labs.api.sparql11.http.Fixtures.ntriples;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.Collections;
+import java.util.Iterator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openjena.riot.Lang;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.shared.Lock;
+import com.hp.hpl.jena.tdb.TDBFactory;
+
+public class GraphCatalogTest {
+
+	private static String GRAPH_URI = "http://www.example.com/graph/";
+
+	private Dataset dataset = null;
+	private GraphLockManager locks = null;
+	private GraphVersions versions = null;
+	private GraphCatalog catalog = null;
+	private GraphReclaimer reclaimer = null;
+	private GraphLoader loader = null;
+
+	@Before
+	public void setUp() throws Exception {
+		dataset = TDBFactory.createDataset();
+		locks = new GraphLockManager();
+		versions = new GraphVersions();
+		catalog = new GraphCatalog();
+		// writes of up to 3 triples go through the group committer, bigger ones do not
+		GroupCommitter committer = new GroupCommitter(dataset, locks, versions, catalog, 0, 16, 3);
+		reclaimer = new GraphReclaimer();
+		loader = new GraphLoader(dataset, locks, versions, committer, reclaimer, 2);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (reclaimer != null) {
+			reclaimer.close();
+			reclaimer = null;
+		}
+		if (dataset != null) {
+			dataset.close();
+			dataset = null;
+		}
+	}
+
+	@Test
+	public void testWrites() throws Exception {
+		String uri = GRAPH_URI + "a";
+		assertFalse(catalog.contains(uri));
+		loader.load(uri, Lang.NTRIPLES, ntriples(0, 5), true);
+		assertEquals(5, catalog.get(uri).getTriples());
+		// adding triples the graph already has does not count them twice
+		loader.load(uri, Lang.NTRIPLES, ntriples(3, 7), false);
+		assertEquals(7, catalog.get(uri).getTriples());
+		loader.load(uri, Lang.NTRIPLES, ntriples(6, 8), false);
+		assertEquals(8, catalog.get(uri).getTriples());
+		loader.load(uri, Lang.NTRIPLES, ntriples(0, 2), true);
+		assertEquals(2, catalog.get(uri).getTriples());
+		assertEquals(size(catalog.getNode(uri)), catalog.get(uri).getTriples());
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new GetModelStreamingOutput(dataset, locks, versions, new GraphCache(0), catalog, uri, RDFMediaType.APPLICATION_NTRIPLES).write(out);
+		assertEquals(out.size(), catalog.get(uri).getSize(RDFMediaType.APPLICATION_NTRIPLES));
+		assertEquals(out.size(), catalog.get(uri).getBytes());
+		assertEquals(-1, catalog.get(uri).getSize(RDFMediaType.APPLICATION_RDFXML));
+		loader.load(uri, Lang.NTRIPLES, ntriples(2, 3), false);
+		assertEquals(-1, catalog.get(uri).getSize(RDFMediaType.APPLICATION_NTRIPLES));
+
+		// an empty graph does not exist
+		loader.load(uri, Lang.NTRIPLES, ntriples(0, 0), true);
+		assertFalse(catalog.contains(uri));
+		assertEquals(0, catalog.size());
+	}
+
+	@Test
+	public void testScanSaveAndLoad() throws Exception {
+		for (int g = 0; g < 3; g++) {
+			loader.load(GRAPH_URI + g, Lang.NTRIPLES, ntriples(0, g + 1), true);
+		}
+		GraphCatalog scanned = new GraphCatalog(dataset);
+		assertEquals(3, scanned.size());
+		assertEquals(6, scanned.getTriples());
+		for (int g = 0; g < 3; g++) {
+			assertEquals(catalog.get(GRAPH_URI + g).getTriples(), scanned.get(GRAPH_URI + g).getTriples());
+			assertEquals(catalog.get(GRAPH_URI + g).getBytes(), scanned.get(GRAPH_URI + g).getBytes());
+		}
+
+		long generation = catalog.allocate(GRAPH_URI + 1);
+		catalog.moveTo(GRAPH_URI + 1, generation);
+		File file = File.createTempFile("graph-catalog", ".txt");
+		catalog.save(file);
+		GraphCatalog loaded = new GraphCatalog();
+		assertTrue(loaded.load(file));
+		// a saved catalog is only good for one start
+		assertFalse(file.exists());
+		assertFalse(loaded.load(file));
+		assertEquals(2, loaded.size());
+		assertEquals(catalog.get(GRAPH_URI + 2).getBytes(), loaded.get(GRAPH_URI + 2).getBytes());
+		assertNull(loaded.get(GRAPH_URI + 3));
+		// deleted graphs keep their generation
+		assertNull(loaded.get(GRAPH_URI + 1));
+		assertEquals(generation, loaded.getGeneration(GRAPH_URI + 1));
+		assertEquals(GraphCatalog.node(GRAPH_URI + 1, generation), loaded.getNode(GRAPH_URI + 1));
+		assertEquals(0, loaded.getGeneration(GRAPH_URI + 2));
+	}
+
+	@Test
+	public void testSavedCatalogIsDeletedOnceItChanges() throws Exception {
+		loader.load(GRAPH_URI + "a", Lang.NTRIPLES, ntriples(0, 5), true);
+		File file = File.createTempFile("graph-catalog", ".txt");
+		catalog.save(file);
+		assertTrue(file.exists());
+		// a write that had not synced yet when the catalog was saved
+		loader.load(GRAPH_URI + "a", Lang.NTRIPLES, ntriples(5, 6), false);
+		assertFalse(file.exists());
+		assertFalse(new GraphCatalog().load(file));
+	}
+
+	@Test
+	public void testSavedCatalogMustAgreeWithTheDatasets() throws Exception {
+		String uri = GRAPH_URI + "a";
+		loader.load(uri, Lang.NTRIPLES, ntriples(0, 5), true);
+		File file = File.createTempFile("graph-catalog", ".txt");
+		catalog.save(file);
+		GraphCatalog loaded = new GraphCatalog();
+		assertTrue(loaded.load(file));
+		assertTrue(loaded.agrees(Collections.singletonList(dataset)));
+
+		// replaced in TDB after the catalog was saved
+		catalog.save(file);
+		Lock lock = dataset.getLock();
+		try {
+			lock.enterCriticalSection(Lock.WRITE);
+			GraphCatalog.setGeneration(dataset, uri, catalog.allocate(uri));
+		} finally {
+			lock.leaveCriticalSection();
+		}
+		loaded = new GraphCatalog();
+		assertTrue(loaded.load(file));
+		assertFalse(loaded.agrees(Collections.singletonList(dataset)));
+	}
+
+	@Test
+	public void testList() throws Exception {
+		for (String name : new String[] { "a/1", "a/2", "b/1", "b/2", "c" }) {
+			GraphCatalog.Change change = new GraphCatalog.Change(false);
+			catalog.update(GRAPH_URI + name, change);
+			assertFalse(catalog.contains(GRAPH_URI + name));
+			loader.load(GRAPH_URI + name, Lang.NTRIPLES, ntriples(0, 1), true);
+		}
+		assertEquals("a/1 a/2 b/1 b/2 c", names(catalog.list(null, null)));
+		assertEquals("b/1 b/2 c", names(catalog.list(null, GRAPH_URI + "a/2")));
+		assertEquals("b/1 b/2", names(catalog.list(GRAPH_URI + "b/", null)));
+		assertEquals("b/2", names(catalog.list(GRAPH_URI + "b/", GRAPH_URI + "b/1")));
+		assertEquals("b/1 b/2", names(catalog.list(GRAPH_URI + "b/", GRAPH_URI + "a/2")));
+		assertEquals("", names(catalog.list(GRAPH_URI + "b/", GRAPH_URI + "c")));
+	}
+
+	@Test
+	public void testEstimate() throws Exception {
+		Triple triple = new Triple(Node.createURI("http://example.com/s"), Node.createURI("http://example.com/p"), Node.createLiteral("x", "en", false));
+		assertEquals("<http://example.com/s> <http://example.com/p> \"x\"@en .\n".length(), GraphCatalog.estimate(triple));
+	}
+
+	/**
+	 * Reads under the dataset lock, the previous generation may still be being removed.
+	 */
+	private long size(Node name) {
+		Lock lock = dataset.getLock();
+		try {
+			lock.enterCriticalSection(Lock.READ);
+			return dataset.asDatasetGraph().getGraph(name).size();
+		} finally {
+			lock.leaveCriticalSection();
+		}
+	}
+
+	private static String names(Iterator<GraphCatalog.Entry> iter) {
+		StringBuilder sb = new StringBuilder();
+		while ( iter.hasNext() ) {
+			sb.append(( sb.length() > 0 ) ? " " : "").append(iter.next().getUri().substring(GRAPH_URI.length()));
+		}
+		return sb.toString();
+	}
+
+}
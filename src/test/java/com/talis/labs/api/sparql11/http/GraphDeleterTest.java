@@ -0,0 +1,319 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.api.sparql11.http;
+
+import static com.talis.labs.api.sparql11.http.Fixtures.ntriples;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Iterator;
+
+import javax.ws.rs.WebApplicationException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openjena.riot.Lang;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.shared.Lock;
+import com.hp.hpl.jena.sparql.core.DatasetGraph;
+import com.hp.hpl.jena.tdb.TDBFactory;
+import com.hp.hpl.jena.vocabulary.RDF;
+
+public class GraphDeleterTest {
+
+	private static String GRAPH_URI = "http://www.example.com/graph/";
+
+	private Dataset dataset = null;
+	private GraphLockManager locks = null;
+	private GraphVersions versions = null;
+	private GraphCatalog catalog = null;
+	private GraphReclaimer reclaimer = null;
+	private GraphLoader loader = null;
+	private GraphDeleter deleter = null;
+
+	@Before
+	public void setUp() throws Exception {
+		dataset = TDBFactory.createDataset();
+		locks = new GraphLockManager();
+		versions = new GraphVersions();
+		catalog = new GraphCatalog();
+		reclaimer = new GraphReclaimer(2, 0);
+		loader = new GraphLoader(dataset, locks, versions, new GroupCommitter(dataset, locks, versions, catalog), reclaimer);
+		// graphs of more than 3 triples are removed in the background
+		deleter = new GraphDeleter(dataset, locks, versions, catalog, reclaimer, 3);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		// removals still running must stop before the dataset is closed under them
+		if (reclaimer != null) {
+			reclaimer.close();
+			reclaimer = null;
+		}
+		if (dataset != null) {
+			dataset.close();
+			dataset = null;
+		}
+	}
+
+	private long size(Node name) {
+		// under the dataset lock, a removal may be running in the background
+		Lock lock = dataset.getLock();
+		try {
+			lock.enterCriticalSection(Lock.READ);
+			return dataset.asDatasetGraph().getGraph(name).size();
+		} finally {
+			lock.leaveCriticalSection();
+		}
+	}
+
+	/**
+	 * Loads a graph and puts it in the trash, as a delete the server did not finish would.
+	 */
+	private void trash(String uri, int triples) throws Exception {
+		loader.load(uri, Lang.NTRIPLES, ntriples(0, triples), true);
+		Node trash = Node.createURI(GraphReclaimer.TRASH_GRAPH);
+		dataset.asDatasetGraph().getGraph(trash).add(new Triple(Node.createURI(uri), RDF.type.asNode(), trash));
+	}
+
+	/**
+	 * @return the dataset, failing with an Error when read on the reclaimer's thread
+	 */
+	private Dataset failing() {
+		return new FailingDataset() {
+			@Override
+			protected void check() {
+				if ( "rdf-api-reclaimer".equals(Thread.currentThread().getName()) ) {
+					throw new Error("failing on purpose");
+				}
+			}
+		};
+	}
+
+	/**
+	 * @return the dataset, failing when a chunk is removed on any other thread than the reclaimer's
+	 */
+	private Dataset failingRemovals() {
+		return new FailingDataset() {
+			@Override
+			protected void check() {
+				if ( "rdf-api-reclaimer".equals(Thread.currentThread().getName()) ) {
+					return;
+				}
+				for (StackTraceElement element : new Throwable().getStackTrace()) {
+					if ( "removeChunk".equals(element.getMethodName()) ) {
+						throw new IllegalStateException("failing on purpose");
+					}
+				}
+			}
+		};
+	}
+
+	private abstract class FailingDataset implements Dataset {
+
+		protected abstract void check();
+
+
+		@Override
+		public Model getDefaultModel() {
+			return dataset.getDefaultModel();
+		}
+
+		@Override
+		public Model getNamedModel(String uri) {
+			return dataset.getNamedModel(uri);
+		}
+
+		@Override
+		public boolean containsNamedModel(String uri) {
+			return dataset.containsNamedModel(uri);
+		}
+
+		@Override
+		public Iterator<String> listNames() {
+			return dataset.listNames();
+		}
+
+		@Override
+		public Lock getLock() {
+			return dataset.getLock();
+		}
+
+		@Override
+		public DatasetGraph asDatasetGraph() {
+			check();
+			return dataset.asDatasetGraph();
+		}
+
+		@Override
+		public void close() {
+			dataset.close();
+		}
+
+	}
+
+	@Test
+	public void testDeleteSmallGraph() throws Exception {
+		String uri = GRAPH_URI + "small";
+		loader.load(uri, Lang.NTRIPLES, ntriples(0, 3), true);
+		Node name = catalog.getNode(uri);
+		long generation = catalog.getGeneration(uri);
+		assertNull(deleter.delete(uri, null));
+		assertFalse(catalog.contains(uri));
+		assertFalse(dataset.containsNamedModel(uri));
+		assertEquals(0, size(name));
+		assertTrue(GraphReclaimer.getTrash(dataset).isEmpty());
+		// moved to a new generation, as a bigger graph would be
+		assertTrue(catalog.getGeneration(uri) > generation);
+		assertEquals(2, versions.get(uri).getNumber());
+		assertTrue(reclaimer.getJobs().isEmpty());
+		try {
+			deleter.delete(uri, null);
+			fail();
+		} catch (WebApplicationException e) {
+			assertEquals(404, e.getResponse().getStatus());
+		}
+	}
+
+	@Test
+	public void testDeleteBigGraph() throws Exception {
+		String uri = GRAPH_URI + "big";
+		loader.load(uri, Lang.NTRIPLES, ntriples(0, 9), true);
+		GraphReclaimer.Job job = deleter.delete(uri, null);
+		assertNotNull(job);
+		// gone at once, and written again in a new generation
+		assertFalse(catalog.contains(uri));
+		long generation = catalog.getGeneration(uri);
+		assertTrue(generation > 0);
+		loader.load(uri, Lang.NTRIPLES, ntriples(100, 102), true);
+		assertEquals(2, catalog.get(uri).getTriples());
+		assertEquals(2, size(GraphCatalog.node(uri, generation)));
+
+		job.await();
+		assertEquals("done", job.getState());
+		assertEquals(9, job.getRemoved());
+		assertEquals(0, size(GraphCatalog.node(uri, 0)));
+		assertTrue(GraphReclaimer.getTrash(dataset).isEmpty());
+		assertEquals(2, size(GraphCatalog.node(uri, generation)));
+		assertEquals(1, reclaimer.getJobs().size());
+
+		// a catalog rebuilt from the dataset finds the new generation
+		GraphCatalog scanned = new GraphCatalog(dataset);
+		assertEquals(generation, scanned.getGeneration(uri));
+		assertEquals(2, scanned.get(uri).getTriples());
+	}
+
+	@Test
+	public void testTrashSurvivesRestart() throws Exception {
+		String uri = GRAPH_URI + "trash";
+		loader.load(uri, Lang.NTRIPLES, ntriples(0, 5), true);
+		// put in the trash, but the server stops before anything is removed
+		Node trash = Node.createURI(GraphReclaimer.TRASH_GRAPH);
+		dataset.asDatasetGraph().getGraph(trash).add(new Triple(Node.createURI(uri), RDF.type.asNode(), trash));
+		GraphCatalog.setGeneration(dataset, uri, 1);
+		GraphCatalog scanned = new GraphCatalog(dataset);
+		assertFalse(scanned.contains(uri));
+		assertEquals(1, scanned.getGeneration(uri));
+
+		GraphReclaimer resumed = new GraphReclaimer(2, 0);
+		try {
+			resumed.resume(dataset, scanned);
+			assertEquals(1, resumed.getJobs().size());
+			resumed.getJobs().get(0).await();
+			assertEquals(uri, resumed.getJobs().get(0).getUri());
+		} finally {
+			resumed.close();
+		}
+		assertEquals(0, size(Node.createURI(uri)));
+		assertTrue(GraphReclaimer.getTrash(dataset).isEmpty());
+	}
+
+	@Test(timeout = 10000)
+	public void testSmallGraphIsInTheTrashUntilRemoved() throws Exception {
+		String uri = GRAPH_URI + "small";
+		loader.load(uri, Lang.NTRIPLES, ntriples(0, 3), true);
+		Node name = catalog.getNode(uri);
+		// the removal fails after the trash, as a crash would stop it
+		GraphDeleter failing = new GraphDeleter(failingRemovals(), locks, versions, catalog, reclaimer, 3);
+		GraphReclaimer.Job job = failing.delete(uri, null);
+		assertNotNull(job);
+		assertFalse(catalog.contains(uri));
+		// a restart now would leave the graph out and remove the rest of it
+		GraphCatalog scanned = new GraphCatalog(dataset);
+		assertFalse(scanned.contains(uri));
+		assertEquals(catalog.getGeneration(uri), scanned.getGeneration(uri));
+
+		// and the rest is removed in the background
+		job.await();
+		assertEquals("done", job.getState());
+		assertEquals(0, size(name));
+		assertTrue(GraphReclaimer.getTrash(dataset).isEmpty());
+	}
+
+	@Test(timeout = 10000)
+	public void testErrorFailsOneRemovalOnly() throws Exception {
+		trash(GRAPH_URI + "a", 5);
+		reclaimer.resume(failing(), catalog);
+		GraphReclaimer.Job failed = reclaimer.getJobs().get(0);
+		failed.await();
+		assertEquals("failed", failed.getState());
+		assertEquals(5, size(Node.createURI(GRAPH_URI + "a")));
+
+		// the reclaimer carries on with the next graphs, the failed one included
+		trash(GRAPH_URI + "b", 5);
+		reclaimer.resume(dataset, catalog);
+		assertEquals(3, reclaimer.getJobs().size());
+		for (GraphReclaimer.Job job : reclaimer.getJobs().subList(1, 3)) {
+			job.await();
+			assertEquals("done", job.getState());
+		}
+		assertEquals(0, size(Node.createURI(GRAPH_URI + "a")));
+		assertEquals(0, size(Node.createURI(GRAPH_URI + "b")));
+		assertTrue(GraphReclaimer.getTrash(dataset).isEmpty());
+	}
+
+	@Test(timeout = 10000)
+	public void testCloseStopsRemovals() throws Exception {
+		trash(GRAPH_URI + "a", 100);
+		GraphReclaimer slow = new GraphReclaimer(2, 20);
+		slow.resume(dataset, catalog);
+		GraphReclaimer.Job job = slow.getJobs().get(0);
+		while ( job.getRemoved() == 0 ) {
+			Thread.sleep(10);
+		}
+		slow.close();
+		// returns, although the graph is not removed
+		job.await();
+		assertEquals("removing", job.getState());
+		long left = size(Node.createURI(GRAPH_URI + "a"));
+		assertTrue(left > 0);
+		Thread.sleep(100);
+		assertEquals(left, size(Node.createURI(GRAPH_URI + "a")));
+		// and it is still in the trash, to be removed after a restart
+		assertTrue(GraphReclaimer.getTrash(dataset).contains(Node.createURI(GRAPH_URI + "a")));
+	}
+
+}
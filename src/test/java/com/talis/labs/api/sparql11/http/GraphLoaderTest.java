@@ -0,0 +1,209 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.api.sparql11.http;
+
+import static com.talis.labs.api.sparql11.http.Fixtures.ntriples;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Iterator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openjena.atlas.lib.Sink;
+import org.openjena.riot.Lang;
+import org.openjena.riot.RiotException;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.shared.Lock;
+import com.hp.hpl.jena.tdb.TDBFactory;
+import com.hp.hpl.jena.vocabulary.RDFS;
+
+public class GraphLoaderTest {
+
+	private static String GRAPH_URI = "http://www.example.com/mygraph";
+
+	private Dataset dataset = null;
+	private GraphReclaimer reclaimer = null;
+	private GraphLoader loader = null;
+
+	@Before
+	public void setUp() throws Exception {
+		dataset = TDBFactory.createDataset();
+		reclaimer = new GraphReclaimer(2, 0);
+		loader = new GraphLoader(dataset, new GraphLockManager(), new GraphVersions(), new GraphCatalog(dataset), reclaimer, 2);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		// removals still running must stop before the dataset is closed under them
+		if (reclaimer != null) {
+			reclaimer.close();
+			reclaimer = null;
+		}
+		if (dataset != null) {
+			dataset.close();
+			dataset = null;
+		}
+	}
+
+	@Test
+	public void testLoad() throws Exception {
+		assertEquals(5, loader.load(GRAPH_URI, Lang.NTRIPLES, ntriples(0, 5), true));
+		assertEquals(5, model(GRAPH_URI).size());
+		assertNoStagingGraphs();
+	}
+
+	@Test
+	public void testLoadRDFXML() throws Exception {
+		Model model = ModelFactory.createDefaultModel();
+		model.read(ntriples(0, 5), "", "N-TRIPLE");
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		model.write(out, "RDF/XML");
+
+		loader.load(GRAPH_URI, Lang.RDFXML, new ByteArrayInputStream(out.toByteArray()), true);
+		assertTrue(model.isIsomorphicWith(model(GRAPH_URI)));
+	}
+
+	@Test
+	public void testCleanReplaces() throws Exception {
+		loader.load(GRAPH_URI, Lang.NTRIPLES, ntriples(0, 5), true);
+		loader.load(GRAPH_URI, Lang.NTRIPLES, ntriples(5, 8), true);
+		assertEquals(3, model(GRAPH_URI).size());
+	}
+
+	@Test
+	public void testNotCleanMerges() throws Exception {
+		loader.load(GRAPH_URI, Lang.NTRIPLES, ntriples(0, 5), false);
+		loader.load(GRAPH_URI, Lang.NTRIPLES, ntriples(5, 8), false);
+		assertEquals(8, model(GRAPH_URI).size());
+	}
+
+	@Test
+	public void testParseErrorLeavesGraphUntouched() throws Exception {
+		loader.load(GRAPH_URI, Lang.NTRIPLES, ntriples(0, 5), true);
+
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 7; i++) {
+			sb.append("<http://example.com/x").append(i).append("> <http://example.com/p> <http://example.com/o> .\n");
+		}
+		sb.append("this is not N-Triples\n");
+		try {
+			loader.load(GRAPH_URI, Lang.NTRIPLES, new ByteArrayInputStream(sb.toString().getBytes("UTF-8")), true);
+			fail();
+		} catch (RiotException e) {
+			// expected
+		}
+
+		assertEquals(5, model(GRAPH_URI).size());
+		assertNoStagingGraphs();
+	}
+
+	@Test
+	public void testReplaceSwapsGenerations() throws Exception {
+		final GraphLockManager locks = new GraphLockManager();
+		loader = new GraphLoader(dataset, locks, new GraphVersions(), new GraphCatalog(dataset), reclaimer, 2);
+		loader.load(GRAPH_URI, Lang.NTRIPLES, ntriples(0, 5), true);
+		final Node previous = new GraphCatalog(dataset).getNode(GRAPH_URI);
+
+		loader.load(GRAPH_URI, new GraphLoader.TripleSource() {
+			@Override
+			public void parse(Sink<Triple> sink) {
+				for (int i = 5; i < 8; i++) {
+					sink.send(Triple.create(Node.createURI("http://example.com/s" + i), RDFS.label.asNode(), Node.createLiteral("" + i)));
+				}
+				// half way through, readers still get the graph as it was, without waiting
+				assertTrue(locks.getLock(GRAPH_URI).readLock().tryLock());
+				locks.getLock(GRAPH_URI).readLock().unlock();
+				assertEquals(previous, new GraphCatalog(dataset).getNode(GRAPH_URI));
+				assertEquals(5, model(GRAPH_URI).size());
+			}
+		}, true, null);
+		assertEquals(3, model(GRAPH_URI).size());
+		assertFalse(previous.equals(new GraphCatalog(dataset).getNode(GRAPH_URI)));
+
+		// the previous generation is removed in the background
+		assertEquals(1, reclaimer.getJobs().size());
+		reclaimer.getJobs().get(0).await();
+		assertEquals(0, dataset.asDatasetGraph().getGraph(previous).size());
+		assertTrue(GraphReclaimer.getTrash(dataset).isEmpty());
+	}
+
+	@Test
+	public void testInterruptedReplaceIsTrashed() throws Exception {
+		loader.load(GRAPH_URI, Lang.NTRIPLES, ntriples(0, 5), true);
+		GraphCatalog catalog = new GraphCatalog(dataset);
+		Node current = catalog.getNode(GRAPH_URI);
+		// the server stops before the shadow becomes current
+		Node shadow = GraphCatalog.node(GRAPH_URI, catalog.allocate(GRAPH_URI));
+		dataset.asDatasetGraph().getGraph(shadow).add(Triple.create(Node.createURI("http://example.com/x"), RDFS.label.asNode(), Node.createLiteral("x")));
+
+		GraphCatalog scanned = new GraphCatalog(dataset);
+		assertEquals(current, scanned.getNode(GRAPH_URI));
+		assertEquals(5, scanned.get(GRAPH_URI).getTriples());
+		GraphReclaimer resumed = new GraphReclaimer(2, 0);
+		try {
+			resumed.resume(dataset, scanned);
+			assertEquals(1, resumed.getJobs().size());
+			resumed.getJobs().get(0).await();
+		} finally {
+			resumed.close();
+		}
+		assertEquals(0, dataset.asDatasetGraph().getGraph(shadow).size());
+		assertEquals(5, model(GRAPH_URI).size());
+		// and the next load does not reuse its generation
+		assertTrue(scanned.allocate(GRAPH_URI) > GraphCatalog.getGeneration(shadow));
+	}
+
+	/**
+	 * @return the current generation of a graph, as found after a restart
+	 */
+	/**
+	 * @return a copy of the current generation of the graph, taken under the dataset lock as the previous one may still be being removed
+	 */
+	private Model model(String uri) {
+		Lock lock = dataset.getLock();
+		try {
+			lock.enterCriticalSection(Lock.READ);
+			return ModelFactory.createDefaultModel().add(ModelFactory.createModelForGraph(dataset.asDatasetGraph().getGraph(new GraphCatalog(dataset).getNode(uri))));
+		} finally {
+			lock.leaveCriticalSection();
+		}
+	}
+
+	private void assertNoStagingGraphs() {
+		Node current = new GraphCatalog(dataset).getNode(GRAPH_URI);
+		Iterator<String> names = dataset.listNames();
+		while (names.hasNext()) {
+			String name = names.next();
+			assertFalse(name, name.startsWith(GraphLoader.STAGING_GRAPH_PREFIX));
+			// nor generations that never became current
+			assertFalse(name, GRAPH_URI.equals(GraphCatalog.getUri(name)) && !current.getURI().equals(name));
+		}
+		assertTrue(dataset.containsNamedModel(current.getURI()));
+	}
+
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.api.sparql11.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.sparql.core.DatasetGraphFactory;
+import com.hp.hpl.jena.tdb.TDBFactory;
+import com.hp.hpl.jena.vocabulary.RDFS;
+
+public class GraphPagerTest {
+
+	private static String GRAPH_URI = "http://www.example.com/mygraph";
+
+	private Dataset dataset = null;
+
+	@Before
+	public void setUp() throws Exception {
+		dataset = TDBFactory.createDataset();
+		fill(dataset.getNamedModel(GRAPH_URI));
+		fill(dataset.getNamedModel(GRAPH_URI + "2"));
+	}
+
+	private static void fill(Model model) {
+		for (int i = 0; i < 25; i++) {
+			model.add(model.createResource("http://example.com/s" + i), RDFS.label, "" + i);
+		}
+	}
+
+	@Test
+	public void testCursorTDB() {
+		GraphPager pager = new GraphPager(dataset.asDatasetGraph());
+		assertTrue(pager.page(GRAPH_URI, 0, 10, null).getNext().startsWith("k"));
+		assertAllPages(pager);
+	}
+
+	@Test
+	public void testCursorScan() {
+		GraphPager pager = new GraphPager(DatasetGraphFactory.create(dataset.asDatasetGraph()));
+		assertTrue(pager.page(GRAPH_URI, 0, 10, null).getNext().startsWith("o"));
+		assertAllPages(pager);
+	}
+
+	private static void assertAllPages(GraphPager pager) {
+		Set<Triple> seen = new HashSet<Triple>();
+		String cursor = null;
+		int pages = 0;
+		do {
+			GraphPager.Page page = pager.page(GRAPH_URI, 0, 10, cursor);
+			for (Triple triple : page.getTriples()) {
+				assertTrue(seen.add(triple));
+			}
+			cursor = page.getNext();
+			pages++;
+		} while ( cursor != null );
+
+		assertEquals(3, pages);
+		assertEquals(25, seen.size());
+	}
+
+	@Test
+	public void testOffset() {
+		GraphPager pager = new GraphPager(dataset.asDatasetGraph());
+		GraphPager.Page all = pager.page(GRAPH_URI, 0, 100, null);
+		GraphPager.Page page = pager.page(GRAPH_URI, 20, 10, null);
+
+		assertEquals(25, all.getTriples().size());
+		assertNull(all.getNext());
+		assertEquals(all.getTriples().subList(20, 25), page.getTriples());
+	}
+
+	@Test
+	public void testMissingGraph() {
+		GraphPager.Page page = new GraphPager(dataset.asDatasetGraph()).page("http://www.example.com/missing", 0, 10, null);
+		assertEquals(0, page.getTriples().size());
+		assertNull(page.getNext());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidCursor() {
+		new GraphPager(dataset.asDatasetGraph()).page(GRAPH_URI, 0, 10, "kzz");
+	}
+
+}
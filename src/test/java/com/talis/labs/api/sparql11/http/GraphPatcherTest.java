@@ -0,0 +1,145 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.api.sparql11.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+
+import javax.ws.rs.WebApplicationException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openjena.riot.RiotException;
+
+import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.tdb.TDBFactory;
+import com.hp.hpl.jena.vocabulary.RDFS;
+
+public class GraphPatcherTest {
+
+	private static String GRAPH_URI = "http://www.example.com/graph";
+
+	private Dataset dataset = null;
+	private GraphVersions versions = null;
+	private GraphCatalog catalog = null;
+	private GraphPatcher patcher = null;
+
+	@Before
+	public void setUp() throws Exception {
+		dataset = TDBFactory.createDataset();
+		Model model = dataset.getNamedModel(GRAPH_URI);
+		for (int i = 0; i < 5; i++) {
+			model.createResource("http://example.com/s" + i).addProperty(RDFS.label, "" + i);
+		}
+		versions = new GraphVersions();
+		catalog = new GraphCatalog(dataset);
+		patcher = new GraphPatcher(dataset, new GraphLockManager(), versions, catalog, 10);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (dataset != null) {
+			dataset.close();
+			dataset = null;
+		}
+	}
+
+	private static InputStream patch(String patch) throws UnsupportedEncodingException {
+		return new ByteArrayInputStream(patch.getBytes("UTF-8"));
+	}
+
+	private static String triple(int s, String label) {
+		return "<http://example.com/s" + s + "> <http://www.w3.org/2000/01/rdf-schema#label> " + label + " .\n";
+	}
+
+	@Test
+	public void testPatch() throws Exception {
+		GraphPatcher.Result result = patcher.patch(GRAPH_URI, patch("# a comment\n" + "D " + triple(0, "\"0\"") + "D " + triple(1, "\"x\"") + "A " + triple(0, "\"zero\"@en") + "A " + triple(1, "\"1\"") + "A " + triple(9, "\"9\"^^<http://www.w3.org/2001/XMLSchema#integer>")), null);
+		// the triple removed was there, the first one added was not, the second one was
+		assertEquals(1, result.getRemoved());
+		assertEquals(2, result.getAdded());
+		Model model = dataset.getNamedModel(GRAPH_URI);
+		assertEquals(6, model.size());
+		assertFalse(model.contains(model.createResource("http://example.com/s0"), RDFS.label, "0"));
+		assertTrue(model.contains(model.createResource("http://example.com/s0"), RDFS.label, "zero", "en"));
+		assertEquals(6, catalog.get(GRAPH_URI).getTriples());
+		assertEquals(1, versions.get(GRAPH_URI).getNumber());
+		assertEquals(new GraphCatalog(dataset).get(GRAPH_URI).getBytes(), catalog.get(GRAPH_URI).getBytes());
+	}
+
+	@Test
+	public void testChangesApplyInOrder() throws Exception {
+		patcher.patch(GRAPH_URI, patch("A " + triple(7, "\"7\"") + "D " + triple(7, "\"7\"") + "D " + triple(2, "\"2\"") + "A " + triple(2, "\"2\"")), null);
+		Model model = dataset.getNamedModel(GRAPH_URI);
+		assertFalse(model.contains(model.createResource("http://example.com/s7"), RDFS.label, "7"));
+		assertTrue(model.contains(model.createResource("http://example.com/s2"), RDFS.label, "2"));
+		// nothing changed in the end, so neither did the version
+		assertEquals(0, versions.get(GRAPH_URI).getNumber());
+	}
+
+	@Test
+	public void testRemovingEverything() throws Exception {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 5; i++) {
+			sb.append("D ").append(triple(i, "\"" + i + "\""));
+		}
+		assertEquals(5, patcher.patch(GRAPH_URI, patch(sb.toString()), null).getRemoved());
+		assertFalse(catalog.contains(GRAPH_URI));
+		assertFalse(dataset.containsNamedModel(GRAPH_URI));
+	}
+
+	@Test
+	public void testBadPatches() throws Exception {
+		String[] patches = { "X " + triple(0, "\"x\""), "A " + triple(0, "_:b0"), "A <http://example.com/s> <http://example.com/p> .\n", "A " + triple(0, "\"x\"").replace(" .", "") };
+		for (String bad : patches) {
+			try {
+				patcher.patch(GRAPH_URI, patch("A " + triple(8, "\"8\"") + bad), null);
+				fail(bad);
+			} catch (RiotException e) {
+				// nothing has been applied
+				assertEquals(5, dataset.getNamedModel(GRAPH_URI).size());
+			}
+		}
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 11; i++) {
+			sb.append("A ").append(triple(i, "\"new\""));
+		}
+		try {
+			patcher.patch(GRAPH_URI, patch(sb.toString()), null);
+			fail();
+		} catch (WebApplicationException e) {
+			assertEquals(413, e.getResponse().getStatus());
+		}
+		try {
+			patcher.patch(GRAPH_URI, patch("A " + triple(8, "\"8\"")), "\"" + versions.get(GRAPH_URI).getTag() + "-0\"");
+			patcher.patch(GRAPH_URI, patch("A " + triple(9, "\"9\"")), "\"" + versions.get("http://example.com/other").getTag() + "\"");
+			fail();
+		} catch (WebApplicationException e) {
+			assertEquals(412, e.getResponse().getStatus());
+		}
+		assertEquals(6, dataset.getNamedModel(GRAPH_URI).size());
+	}
+
+}
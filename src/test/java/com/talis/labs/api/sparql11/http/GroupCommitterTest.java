@@ -0,0 +1,132 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.api.sparql11.http;
+
+import static com.talis.labs.api.sparql11.http.Fixtures.ntriples;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.ws.rs.WebApplicationException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openjena.riot.Lang;
+
+import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.tdb.TDBFactory;
+
+public class GroupCommitterTest {
+
+	private static String GRAPH_URI = "http://www.example.com/graph/";
+
+	private Dataset dataset = null;
+	private GraphVersions versions = null;
+	private GroupCommitter committer = null;
+	private GraphReclaimer reclaimer = null;
+	private GraphLoader loader = null;
+
+	@Before
+	public void setUp() throws Exception {
+		dataset = TDBFactory.createDataset();
+		GraphLockManager locks = new GraphLockManager();
+		versions = new GraphVersions();
+		committer = new GroupCommitter(dataset, locks, versions, new GraphCatalog(dataset), 20, 16, 1000);
+		reclaimer = new GraphReclaimer();
+		loader = new GraphLoader(dataset, locks, versions, committer, reclaimer);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (reclaimer != null) {
+			reclaimer.close();
+			reclaimer = null;
+		}
+		if (dataset != null) {
+			dataset.close();
+			dataset = null;
+		}
+	}
+
+	@Test
+	public void testConcurrentWritesAreGrouped() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		List<Future<Long>> results = new ArrayList<Future<Long>>();
+		for (int i = 0; i < 64; i++) {
+			final int n = i;
+			results.add(executor.submit(new Callable<Long>() {
+				@Override
+				public Long call() throws Exception {
+					// half of the writes go to the same graph, merging
+					String uri = GRAPH_URI + ( ( n % 2 == 0 ) ? "shared" : n );
+					return loader.load(uri, Lang.NTRIPLES, ntriples(n * 3, n * 3 + 3), false);
+				}
+			}));
+		}
+		for (Future<Long> result : results) {
+			assertEquals(new Long(3), result.get());
+		}
+		executor.shutdown();
+
+		assertEquals(64, committer.getWrites());
+		assertTrue(committer.toString(), committer.getGroups() < 64);
+		assertEquals(96, dataset.getNamedModel(GRAPH_URI + "shared").size());
+		assertEquals(3, dataset.getNamedModel(GRAPH_URI + 1).size());
+		assertNoStagingGraphs();
+	}
+
+	@Test
+	public void testFailedPreconditionOnlyFailsItsWrite() throws Exception {
+		loader.load(GRAPH_URI + 1, Lang.NTRIPLES, ntriples(0, 5), true);
+		try {
+			loader.load(GRAPH_URI + 1, Lang.NTRIPLES, ntriples(5, 8), true, "\"not-the-current-version\"");
+			fail();
+		} catch (WebApplicationException e) {
+			assertEquals(412, e.getResponse().getStatus());
+		}
+		loader.load(GRAPH_URI + 1, Lang.NTRIPLES, ntriples(5, 8), true, versions.get(GRAPH_URI + 1).getEntityTag("").toString());
+
+		assertEquals(3, dataset.getNamedModel(GRAPH_URI + 1).size());
+		assertNoStagingGraphs();
+	}
+
+	@Test
+	public void testLargeWritesBypassGrouping() throws Exception {
+		loader.load(GRAPH_URI + 1, Lang.NTRIPLES, ntriples(0, 2000), true);
+		assertEquals(0, committer.getWrites());
+		assertEquals(2000, dataset.asDatasetGraph().getGraph(committer.getCatalog().getNode(GRAPH_URI + 1)).size());
+	}
+
+	private void assertNoStagingGraphs() {
+		Iterator<String> names = dataset.listNames();
+		while (names.hasNext()) {
+			String name = names.next();
+			assertFalse(name, name.startsWith(GraphLoader.STAGING_GRAPH_PREFIX));
+		}
+	}
+
+}
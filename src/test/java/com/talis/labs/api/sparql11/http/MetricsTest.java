@@ -0,0 +1,97 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.api.sparql11.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringWriter;
+
+import org.junit.Test;
+
+import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.shared.Lock;
+import com.hp.hpl.jena.tdb.TDBFactory;
+
+public class MetricsTest {
+
+	@Test
+	public void testHistogramBucketsAreCumulative() throws Exception {
+		Metrics metrics = new Metrics();
+		metrics.requestStarted("PUT");
+		metrics.requestFinished("PUT", RDFMediaType.APPLICATION_NTRIPLES + "; charset=utf-8", 201, 2000000L, 100, 0);
+		metrics.requestStarted("PUT");
+		metrics.requestFinished("PUT", RDFMediaType.APPLICATION_NTRIPLES, 201, 3000000000L, 100, 0);
+		String text = write(metrics);
+
+		String labels = "method=\"PUT\",media_type=\"application/n-triples\"";
+		assertTrue(text.contains("rdf_api_request_duration_seconds_bucket{" + labels + ",le=\"0.001\"} 0\n"));
+		assertTrue(text.contains("rdf_api_request_duration_seconds_bucket{" + labels + ",le=\"0.0025\"} 1\n"));
+		assertTrue(text.contains("rdf_api_request_duration_seconds_bucket{" + labels + ",le=\"2.5\"} 1\n"));
+		assertTrue(text.contains("rdf_api_request_duration_seconds_bucket{" + labels + ",le=\"5.0\"} 2\n"));
+		assertTrue(text.contains("rdf_api_request_duration_seconds_bucket{" + labels + ",le=\"+Inf\"} 2\n"));
+		assertTrue(text.contains("rdf_api_request_duration_seconds_count{" + labels + "} 2\n"));
+		assertTrue(text.contains("rdf_api_requests_in_flight{method=\"PUT\"} 0\n"));
+		assertTrue(text.contains("rdf_api_request_bytes_total{method=\"PUT\"} 200\n"));
+		assertTrue(text.contains("rdf_api_responses_total{method=\"PUT\",code=\"201\"} 2\n"));
+	}
+
+	@Test
+	public void testUnknownLabelValuesAreFolded() throws Exception {
+		Metrics metrics = new Metrics();
+		for (int i = 0; i < 10; i++) {
+			metrics.requestStarted("X-METHOD-" + i);
+			metrics.requestFinished("X-METHOD-" + i, "application/x-made-up-" + i, 405, 1000, 0, 0);
+			metrics.requestFinished("GET", "text/x-made-up-" + i + "; charset=utf-8", 406, 1000, 0, 0);
+		}
+		metrics.requestFinished("GET", "Text/Plain; charset=utf-8", 200, 1000, 0, 0);
+		String text = write(metrics);
+
+		assertTrue(text.contains("rdf_api_request_duration_seconds_count{method=\"other\",media_type=\"other\"} 10\n"));
+		assertTrue(text.contains("rdf_api_request_duration_seconds_count{method=\"GET\",media_type=\"other\"} 10\n"));
+		assertTrue(text.contains("rdf_api_request_duration_seconds_count{method=\"GET\",media_type=\"text/plain\"} 1\n"));
+		assertFalse(text.contains("X-METHOD"));
+		assertFalse(text.contains("made-up"));
+	}
+
+	@Test
+	public void testDatasetLockIsTimedOncePerOutermostSection() throws Exception {
+		Metrics metrics = new Metrics();
+		Dataset dataset = new MeteredDataset(TDBFactory.createDataset(), metrics);
+		Lock lock = dataset.getLock();
+		lock.enterCriticalSection(Lock.WRITE);
+		lock.enterCriticalSection(Lock.WRITE);
+		lock.leaveCriticalSection();
+		lock.leaveCriticalSection();
+		lock.enterCriticalSection(Lock.READ);
+		lock.leaveCriticalSection();
+		String text = write(metrics);
+
+		assertTrue(text.contains("rdf_api_dataset_lock_wait_seconds_count{mode=\"write\"} 1\n"));
+		assertTrue(text.contains("rdf_api_dataset_lock_hold_seconds_count{mode=\"write\"} 1\n"));
+		assertTrue(text.contains("rdf_api_dataset_lock_hold_seconds_count{mode=\"read\"} 1\n"));
+	}
+
+	private static String write(Metrics metrics) throws Exception {
+		StringWriter out = new StringWriter();
+		metrics.write(out);
+		assertEquals(-1, out.toString().indexOf("\n\n"));
+		return out.toString();
+	}
+
+}
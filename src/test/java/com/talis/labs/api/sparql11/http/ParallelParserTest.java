@@ -0,0 +1,169 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.api.sparql11.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.openjena.atlas.lib.Sink;
+import org.openjena.riot.Lang;
+import org.openjena.riot.RiotException;
+import org.openjena.riot.RiotReader;
+
+import com.hp.hpl.jena.graph.Factory;
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.sparql.core.Quad;
+
+public class ParallelParserTest {
+
+	// small chunks, so that even these documents are cut in many
+	private static final int CHUNK_BYTES = 64;
+
+	private static String ntriples(int size) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < size; i++) {
+			sb.append("<http://example.com/s").append(i % 7).append("> <http://example.com/p> \"").append(i).append("\" .\n");
+			// the same blank nodes all through the document
+			sb.append("_:b").append(i % 3).append(" <http://example.com/q> _:b").append(( i + 1 ) % 3).append(" .\n");
+		}
+		return sb.toString();
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> List<T> parse(ParallelParser parser, String document, Lang lang) throws Exception {
+		final List<T> items = new ArrayList<T>();
+		Sink<T> sink = new Sink<T>() {
+			@Override
+			public void send(T item) {
+				items.add(item);
+			}
+
+			@Override
+			public void flush() { }
+
+			@Override
+			public void close() { }
+		};
+		ByteArrayInputStream in = new ByteArrayInputStream(document.getBytes("UTF-8"));
+		if ( lang == Lang.NTRIPLES ) {
+			parser.parseTriples(in, null, (Sink<Triple>) sink);
+		} else {
+			parser.parseQuads(in, (Sink<Quad>) sink);
+		}
+		return items;
+	}
+
+	private static Graph graph(List<Triple> triples) {
+		Graph graph = Factory.createGraphMem();
+		for (Triple triple : triples) {
+			graph.add(triple);
+		}
+		return graph;
+	}
+
+	@Test
+	public void testSameAsRiot() throws Exception {
+		String document = ntriples(500);
+		final List<Triple> expected = new ArrayList<Triple>();
+		RiotReader.parseTriples(new ByteArrayInputStream(document.getBytes("UTF-8")), Lang.NTRIPLES, null, new Sink<Triple>() {
+			@Override
+			public void send(Triple triple) {
+				expected.add(triple);
+			}
+
+			@Override
+			public void flush() { }
+
+			@Override
+			public void close() { }
+		});
+
+		for (int threads : new int[] { 1, 2, 4 }) {
+			List<Triple> triples = parse(new ParallelParser(threads, CHUNK_BYTES), document, Lang.NTRIPLES);
+			assertEquals(expected.size(), triples.size());
+			// in document order, blank nodes aside
+			for (int i = 0; i < triples.size(); i += 2) {
+				assertEquals(expected.get(i), triples.get(i));
+			}
+			assertTrue(graph(expected).isIsomorphicWith(graph(triples)));
+		}
+	}
+
+	@Test
+	public void testBlankNodesAcrossChunks() throws Exception {
+		List<Triple> triples = parse(new ParallelParser(4, CHUNK_BYTES), ntriples(100), Lang.NTRIPLES);
+		List<Node> blankNodes = new ArrayList<Node>();
+		for (Triple triple : triples) {
+			if ( triple.getSubject().isBlank() && !blankNodes.contains(triple.getSubject()) ) {
+				blankNodes.add(triple.getSubject());
+			}
+		}
+		assertEquals(3, blankNodes.size());
+
+		// but not across documents
+		List<Triple> again = parse(new ParallelParser(4, CHUNK_BYTES), ntriples(100), Lang.NTRIPLES);
+		assertTrue(!blankNodes.contains(again.get(1).getSubject()));
+	}
+
+	@Test
+	public void testLongLines() throws Exception {
+		StringBuilder literal = new StringBuilder();
+		for (int i = 0; i < CHUNK_BYTES * 10; i++) {
+			literal.append('x');
+		}
+		String document = ntriples(10) + "<http://example.com/s> <http://example.com/p> \"" + literal + "\" .\n" + ntriples(10);
+		List<Triple> triples = parse(new ParallelParser(2, CHUNK_BYTES), document, Lang.NTRIPLES);
+		assertEquals(41, triples.size());
+		assertEquals(literal.toString(), triples.get(20).getObject().getLiteralLexicalForm());
+	}
+
+	@Test
+	public void testErrorLine() throws Exception {
+		String document = ntriples(100) + "<http://example.com/s> <http://example.com/p> .\n" + ntriples(100);
+		for (int threads : new int[] { 1, 4 }) {
+			try {
+				parse(new ParallelParser(threads, CHUNK_BYTES), document, Lang.NTRIPLES);
+				fail();
+			} catch (RiotException e) {
+				assertTrue(e.getMessage(), e.getMessage().contains("[line: 201,"));
+			}
+		}
+	}
+
+	@Test
+	public void testQuads() throws Exception {
+		StringBuilder document = new StringBuilder();
+		for (int i = 0; i < 300; i++) {
+			document.append("<http://example.com/s> <http://example.com/p> \"").append(i).append("\" <http://example.com/g").append(i % 5).append("> .\n");
+		}
+		List<Quad> quads = parse(new ParallelParser(4, CHUNK_BYTES), document.toString(), Lang.NQUADS);
+		assertEquals(300, quads.size());
+		for (int i = 0; i < quads.size(); i++) {
+			assertEquals(String.valueOf(i), quads.get(i).getObject().getLiteralLexicalForm());
+			assertEquals("http://example.com/g" + ( i % 5 ), quads.get(i).getGraph().getURI());
+		}
+	}
+
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.api.sparql11.http;
+
+import static com.talis.labs.api.sparql11.http.Fixtures.ntriples;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.ws.rs.WebApplicationException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openjena.riot.Lang;
+
+import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.query.Query;
+import com.hp.hpl.jena.query.QuerySolution;
+import com.hp.hpl.jena.query.ResultSet;
+import com.hp.hpl.jena.query.ResultSetFactory;
+import com.hp.hpl.jena.shared.Lock;
+import com.hp.hpl.jena.tdb.TDBFactory;
+
+public class QueryStreamingOutputTest {
+
+	private static String GRAPH_URI = "http://www.example.com/graph/";
+	private static Collection<String> NONE = Collections.emptyList();
+
+	private Dataset dataset = null;
+	private DatasetShards shards = null;
+
+	@Before
+	public void setUp() throws Exception {
+		dataset = TDBFactory.createDataset();
+		// a replace with no group committer swaps in a new generation of the graph
+		GraphReclaimer reclaimer = new GraphReclaimer(2, 0);
+		try {
+			GraphLoader loader = new GraphLoader(dataset, new GraphLockManager(), new GraphVersions(), new GraphCatalog(dataset), reclaimer, 2);
+			loader.load(GRAPH_URI + "a", Lang.NTRIPLES, ntriples(0, 5), true);
+			loader.load(GRAPH_URI + "a", Lang.NTRIPLES, ntriples(0, 3), true);
+			loader.load(GRAPH_URI + "b", Lang.NTRIPLES, ntriples(10, 12), true);
+			for (GraphReclaimer.Job job : reclaimer.getJobs()) {
+				job.await();
+			}
+		} finally {
+			reclaimer.close();
+		}
+		shards = new DatasetShards(dataset, new GraphLockManager(), new GraphVersions());
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (shards != null) {
+			shards.close();
+			shards = null;
+		}
+		if (dataset != null) {
+			dataset.close();
+			dataset = null;
+		}
+	}
+
+	private ResultSet select(String queryString, Collection<String> defaults, Collection<String> named, Long maxRows, long timeoutMillis) throws Exception {
+		Query query = Sparql11HttpRdfQueryResource.parse(queryString);
+		Sparql11HttpRdfQueryResource.limit(query, maxRows);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new QueryStreamingOutput(shards, null, query, RDFMediaType.APPLICATION_SPARQL_RESULTS_XML, defaults, named, timeoutMillis).write(out);
+		return ResultSetFactory.fromXML(new ByteArrayInputStream(out.toByteArray()));
+	}
+
+	@Test
+	public void testGraphsByTheirUri() throws Exception {
+		ResultSet results = select("SELECT ?g (COUNT(*) AS ?n) WHERE { GRAPH ?g { ?s ?p ?o } } GROUP BY ?g ORDER BY ?g", NONE, null, null, 0);
+		QuerySolution solution = results.next();
+		// the current generation only, under the graph URI
+		assertEquals(GRAPH_URI + "a", solution.getResource("g").getURI());
+		assertEquals(3, solution.getLiteral("n").getInt());
+		solution = results.next();
+		assertEquals(GRAPH_URI + "b", solution.getResource("g").getURI());
+		assertEquals(2, solution.getLiteral("n").getInt());
+		assertTrue(!results.hasNext());
+	}
+
+	@Test
+	public void testDefaultGraph() throws Exception {
+		// empty unless it is given
+		assertTrue(!select("SELECT * WHERE { ?s ?p ?o }", NONE, null, null, 0).hasNext());
+		assertEquals(5, count(select("SELECT * WHERE { ?s ?p ?o }", Arrays.asList(GRAPH_URI + "a", GRAPH_URI + "b"), null, null, 0)));
+		assertEquals(3, count(select("SELECT * FROM <" + GRAPH_URI + "a> WHERE { ?s ?p ?o }", Arrays.asList(GRAPH_URI + "a"), NONE, null, 0)));
+	}
+
+	@Test
+	public void testNamedGraphs() throws Exception {
+		ResultSet results = select("SELECT DISTINCT ?g WHERE { GRAPH ?g { ?s ?p ?o } }", NONE, Arrays.asList(GRAPH_URI + "b", GRAPH_URI + "missing"), null, 0);
+		assertEquals(GRAPH_URI + "b", results.next().getResource("g").getURI());
+		assertTrue(!results.hasNext());
+	}
+
+	@Test
+	public void testMaxRows() throws Exception {
+		assertEquals(2, count(select("SELECT * WHERE { GRAPH ?g { ?s ?p ?o } }", NONE, null, 2L, 0)));
+		assertEquals(1, count(select("SELECT * WHERE { GRAPH ?g { ?s ?p ?o } } LIMIT 1", NONE, null, 2L, 0)));
+	}
+
+	@Test
+	public void testTimeout() throws Exception {
+		load(GRAPH_URI + "c", 200);
+		try {
+			// eight million rows take far longer than a millisecond
+			select("SELECT (COUNT(*) AS ?n) WHERE { GRAPH <" + GRAPH_URI + "c> { ?a ?p ?b . ?c ?q ?d . ?e ?r ?f } }", NONE, null, null, 1);
+			fail();
+		} catch (WebApplicationException e) {
+			assertEquals(503, e.getResponse().getStatus());
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void testSlowClientDoesNotHoldTheLock() throws Exception {
+		load(GRAPH_URI + "c", 200);
+		StalledOutputStream client = new StalledOutputStream();
+		Future<Void> request = request(new QueryStreamingOutput(shards, null, Sparql11HttpRdfQueryResource.parse("SELECT * WHERE { GRAPH ?g { ?s ?p ?o } }"), RDFMediaType.APPLICATION_SPARQL_RESULTS_XML, NONE, null, 0), client);
+		client.reached.await();
+		// the results fit in the window, so the query is over although the client has read nothing
+		dataset.getLock().enterCriticalSection(Lock.WRITE);
+		dataset.getLock().leaveCriticalSection();
+		assertFalse(request.isDone());
+		client.resumed.countDown();
+		request.get();
+		assertEquals(205, count(ResultSetFactory.fromXML(new ByteArrayInputStream(client.bytes.toByteArray()))));
+	}
+
+	@Test(timeout = 10000)
+	public void testSlowClientTimesOut() throws Exception {
+		load(GRAPH_URI + "c", 200);
+		StalledOutputStream client = new StalledOutputStream();
+		Future<Void> request = request(new QueryStreamingOutput(shards, null, Sparql11HttpRdfQueryResource.parse("SELECT * WHERE { GRAPH ?g { ?s ?p ?o } }"), RDFMediaType.APPLICATION_SPARQL_RESULTS_XML, NONE, null, 200, 1024), client);
+		client.reached.await();
+		// the window is full, the query waits for the client until it runs out of time
+		dataset.getLock().enterCriticalSection(Lock.WRITE);
+		dataset.getLock().leaveCriticalSection();
+		client.resumed.countDown();
+		try {
+			request.get();
+			fail();
+		} catch (ExecutionException e) {
+			assertEquals(503, ((WebApplicationException) e.getCause()).getResponse().getStatus());
+		}
+	}
+
+	@Test
+	public void testDefaultGraphIsFoundOnceLocked() throws Exception {
+		CatalogDatasetGraph dsg = new CatalogDatasetGraph(shards, Arrays.asList(GRAPH_URI + "a"), null, 0);
+		// replaced after the query is set up, before it runs
+		load(GRAPH_URI + "a", 4);
+		dsg.lock();
+		try {
+			assertEquals(4, dsg.getDefaultGraph().size());
+		} finally {
+			dsg.unlock();
+		}
+	}
+
+	@Test
+	public void testRejected() throws Exception {
+		Set<String> queries = new HashSet<String>(Arrays.asList(
+			"SELECT * WHERE { ?s ?p",
+			"CONSTRUCT WHERE { ?s ?p ?o }",
+			"SELECT * WHERE { SERVICE <http://example.com/sparql> { ?s ?p ?o } }"
+		));
+		for (String query : queries) {
+			try {
+				Sparql11HttpRdfQueryResource.parse(query);
+				fail(query);
+			} catch (WebApplicationException e) {
+				assertEquals(400, e.getResponse().getStatus());
+			}
+		}
+	}
+
+	/**
+	 * Replaces a graph, with no group committer, so in a new generation.
+	 */
+	private void load(String uri, int triples) throws Exception {
+		GraphLoader loader = new GraphLoader(dataset, new GraphLockManager(), new GraphVersions(), shards.getCatalog(), shards.getReclaimer());
+		loader.load(uri, Lang.NTRIPLES, ntriples(0, triples), true);
+	}
+
+	/**
+	 * Writes the results in the background, as the thread serving the request would.
+	 */
+	private static Future<Void> request(final QueryStreamingOutput output, final OutputStream out) {
+		return Executors.newSingleThreadExecutor().submit(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				output.write(out);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * A client that reads nothing until it is resumed.
+	 */
+	private static class StalledOutputStream extends OutputStream {
+
+		private CountDownLatch reached = new CountDownLatch(1);
+		private CountDownLatch resumed = new CountDownLatch(1);
+		private ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			reached.countDown();
+			try {
+				resumed.await();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+			bytes.write(b, off, len);
+		}
+
+	}
+
+	private static int count(ResultSet results) {
+		int count = 0;
+		while ( results.hasNext() ) {
+			results.next();
+			count++;
+		}
+		return count;
+	}
+
+}
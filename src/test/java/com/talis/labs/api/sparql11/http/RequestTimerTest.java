@@ -0,0 +1,106 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.api.sparql11.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openjena.riot.Lang;
+
+import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.tdb.TDBFactory;
+
+public class RequestTimerTest {
+
+	private GraphReclaimer reclaimer = null;
+
+	@Before
+	public void setUp() {
+		reclaimer = new GraphReclaimer();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		RequestTimer.stop();
+		reclaimer.close();
+	}
+
+	@Test
+	public void testPhasesAddUp() throws Exception {
+		RequestTimer timer = new RequestTimer(0);
+		timer.add(RequestTimer.LOCK, 1000000L);
+		timer.add(RequestTimer.PARSE, 2500000L);
+		timer.add(RequestTimer.LOCK, 500000L);
+
+		assertEquals(1500000L, timer.getNanos(RequestTimer.LOCK));
+		assertEquals(2, timer.getTimes(RequestTimer.LOCK));
+		assertEquals("lock;dur=1.500, parse;dur=2.500, total;dur=10.000", timer.toServerTiming(10000000L));
+		assertEquals("lock=1.500ms/2 parse=2.500ms", timer.toString());
+	}
+
+	@Test
+	public void testNothingIsRecordedOutsideARequest() throws Exception {
+		RequestTimer.record(RequestTimer.PARSE, System.nanoTime());
+		RequestTimer.recordTriples(10);
+		RequestTimer timer = RequestTimer.start(System.nanoTime());
+
+		assertEquals(0, timer.getTimes(RequestTimer.PARSE));
+		assertEquals(-1, timer.getTriples());
+	}
+
+	@Test
+	public void testLoadPhasesAreRecorded() throws Exception {
+		Dataset dataset = new MeteredDataset(TDBFactory.createDataset(), new Metrics());
+		GraphLoader loader = new GraphLoader(dataset, new GraphLockManager(), new GraphVersions(), new GraphCatalog(dataset), reclaimer);
+		String data = "<http://example.org/s> <http://example.org/p> \"o\" .\n";
+		loader.load("http://example.org/g", Lang.NTRIPLES, new ByteArrayInputStream(data.getBytes("UTF-8")), false);
+
+		RequestTimer timer = RequestTimer.start(System.nanoTime());
+		loader.load("http://example.org/g", Lang.NTRIPLES, new ByteArrayInputStream(data.getBytes("UTF-8")), false);
+
+		assertEquals(1, timer.getTimes(RequestTimer.PARSE));
+		assertEquals(1, timer.getTimes(RequestTimer.GRAPH_LOCK));
+		assertEquals(1, timer.getTimes(RequestTimer.ADD));
+		assertEquals(1, timer.getTimes(RequestTimer.SYNC));
+		assertTrue(timer.getTimes(RequestTimer.LOCK) > 1);
+		assertTrue(timer.toServerTiming(System.nanoTime()).contains("parse;dur="));
+	}
+
+	@Test
+	public void testReplacePhasesAreRecorded() throws Exception {
+		Dataset dataset = new MeteredDataset(TDBFactory.createDataset(), new Metrics());
+		GraphLoader loader = new GraphLoader(dataset, new GraphLockManager(), new GraphVersions(), new GraphCatalog(dataset), reclaimer);
+		String data = "<http://example.org/s> <http://example.org/p> \"o\" .\n";
+		loader.load("http://example.org/g", Lang.NTRIPLES, new ByteArrayInputStream(data.getBytes("UTF-8")), false);
+
+		RequestTimer timer = RequestTimer.start(System.nanoTime());
+		loader.load("http://example.org/g", Lang.NTRIPLES, new ByteArrayInputStream(data.getBytes("UTF-8")), true);
+
+		assertEquals(1, timer.getTimes(RequestTimer.PARSE));
+		assertEquals(1, timer.getTimes(RequestTimer.SYNC));
+		assertEquals(1, timer.getTimes(RequestTimer.GRAPH_LOCK));
+		assertEquals(1, timer.getTimes(RequestTimer.SWAP));
+		// nothing is cleared, the previous generation is removed in the background
+		assertEquals(0, timer.getTimes(RequestTimer.CLEAR));
+	}
+
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.api.sparql11.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class ServerConfigTest {
+
+	private File file = null;
+
+	@After
+	public void tearDown() {
+		System.clearProperty(ServerConfig.PREFIX + "port");
+		System.clearProperty(ServerConfig.PREFIX + "max-threads");
+		System.clearProperty(ServerConfig.PREFIX + "max-request-bytes");
+		System.clearProperty(ServerConfig.PREFIX + "connector");
+		if ( file != null ) {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testDefaults() throws Exception {
+		ServerConfig config = new ServerConfig();
+		assertNull(config.getHost());
+		assertEquals(ServerConfig.DEFAULT_PORT, config.getPort());
+		assertEquals(ServerConfig.NIO, config.getConnector());
+		assertEquals(0, config.getMaxThreads());
+		assertFalse(config.isVirtualThreads());
+		assertFalse(config.getInitParameters().containsKey(RequestSizeFilter.MAX_REQUEST_BYTES));
+	}
+
+	@Test
+	public void testFileDoesNotOverrideSystemProperties() throws Exception {
+		Properties properties = new Properties();
+		properties.setProperty(ServerConfig.PREFIX + "port", "9090");
+		properties.setProperty(ServerConfig.PREFIX + "max-threads", "32");
+		properties.setProperty(ServerConfig.PREFIX + "max-request-bytes", "1000");
+		file = File.createTempFile("rdf-api", ".properties");
+		OutputStream out = new FileOutputStream(file);
+		try {
+			properties.store(out, null);
+		} finally {
+			out.close();
+		}
+		System.setProperty(ServerConfig.PREFIX + "port", "9191");
+
+		ServerConfig config = ServerConfig.load(new String[] { file.getPath() });
+		assertEquals(9191, config.getPort());
+		assertEquals(32, config.getMaxThreads());
+		assertEquals("1000", config.getInitParameters().get(RequestSizeFilter.MAX_REQUEST_BYTES));
+		assertTrue(config.getInitParameters().get("com.sun.jersey.spi.container.ContainerRequestFilters").contains(RequestSizeFilter.class.getName()));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnknownConnector() throws Exception {
+		System.setProperty(ServerConfig.PREFIX + "connector", "apr");
+		new ServerConfig();
+	}
+
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.api.sparql11.http;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+
+import org.junit.Test;
+
+public class SpoolOutputStreamTest {
+
+	private static byte[] bytes(int n) {
+		byte[] b = new byte[n];
+		for (int i = 0; i < n; i++) {
+			b[i] = (byte) i;
+		}
+		return b;
+	}
+
+	@Test
+	public void testInMemory() throws Exception {
+		SpoolOutputStream spool = new SpoolOutputStream(16);
+		try {
+			spool.write(bytes(16));
+			assertTrue(spool.isInMemory());
+			assertEquals(16, spool.size());
+
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			spool.writeTo(out);
+			assertArrayEquals(bytes(16), out.toByteArray());
+		} finally {
+			spool.dispose();
+		}
+	}
+
+	@Test
+	public void testOverflowToFile() throws Exception {
+		byte[] expected = bytes(100);
+		SpoolOutputStream spool = new SpoolOutputStream(16);
+		try {
+			spool.write(expected, 0, 10);
+			spool.write(expected[10]);
+			spool.write(expected, 11, 89);
+			assertFalse(spool.isInMemory());
+			assertEquals(100, spool.size());
+
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			spool.writeTo(out);
+			assertArrayEquals(expected, out.toByteArray());
+		} finally {
+			spool.dispose();
+		}
+	}
+
+}
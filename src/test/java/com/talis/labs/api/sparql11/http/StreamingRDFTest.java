@@ -0,0 +1,101 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.api.sparql11.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+
+import org.junit.Test;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+
+public class StreamingRDFTest {
+
+	private static final String TURTLE =
+		"@prefix ex: <http://example.com/> .\n" +
+		"@prefix xsd: <http://www.w3.org/2001/XMLSchema#> .\n" +
+		"ex:s a ex:Thing ; ex:p \"plain\", \"chat\"@fr, \"42\"^^xsd:int, ex:o, _:b1 .\n" +
+		"_:b1 ex:p _:b2 ; ex:q \"café ☃\" ; <http://other.example.org/ns#q> \"a \\\"quoted\\\" <tag> & \\\\ line\\nbreak\" .\n" +
+		"<http://example.com/a#frag> ex:p \"\" ; <http://other.example.org/1.0/p-q> <http://example.com/x?a=1&b=2> .\n" +
+		"<http://example.com/1> <http://example.com/p_1> <http://example.com/2> .\n";
+
+	private static byte[] write(Model model, String mediaType, int window) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		StreamingRDF.Writer writer = RDFMediaType.APPLICATION_TURTLE_CURRENT.equals(mediaType) ? new StreamingRDF.TurtleWriter(out, model, window) : new StreamingRDF.RDFXMLWriter(out, model, window);
+		ExtendedIterator<Triple> iter = model.getGraph().find(Node.ANY, Node.ANY, Node.ANY);
+		while ( iter.hasNext() ) {
+			writer.send(iter.next());
+		}
+		writer.close();
+		return out.toByteArray();
+	}
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		Model original = ModelFactory.createDefaultModel();
+		original.read(new StringReader(TURTLE), null, "TURTLE");
+		for (String mediaType : new String[] { RDFMediaType.APPLICATION_TURTLE_CURRENT, RDFMediaType.APPLICATION_RDFXML }) {
+			// a window of one triple writes every triple on its own
+			for (int window : new int[] { 1, 3, StreamingRDF.DEFAULT_WINDOW }) {
+				byte[] bytes = write(original, mediaType, window);
+				Model copy = ModelFactory.createDefaultModel();
+				copy.read(new ByteArrayInputStream(bytes), null, RDFMediaType.APPLICATION_TURTLE_CURRENT.equals(mediaType) ? "TURTLE" : "RDF/XML");
+				String message = mediaType + " " + window + "\n" + new String(bytes, "UTF-8");
+				assertEquals(message, original.size(), copy.size());
+				assertTrue(message, original.isIsomorphicWith(copy));
+			}
+		}
+	}
+
+	@Test
+	public void testPrefixes() throws Exception {
+		Model original = ModelFactory.createDefaultModel();
+		original.read(new StringReader(TURTLE), null, "TURTLE");
+
+		String turtle = new String(write(original, RDFMediaType.APPLICATION_TURTLE_CURRENT, StreamingRDF.DEFAULT_WINDOW), "UTF-8");
+		assertTrue(turtle, turtle.startsWith("@prefix "));
+		assertTrue(turtle, turtle.contains(" a ex:Thing"));
+		// namespaces without a prefix get one, declared before they are first used
+		assertTrue(turtle, turtle.contains(": <http://other.example.org/ns#> .\n"));
+		assertFalse(turtle, turtle.contains("<http://other.example.org/ns#q>"));
+		assertFalse(turtle, turtle.contains("22-rdf-syntax-ns#"));
+
+		String xml = new String(write(original, RDFMediaType.APPLICATION_RDFXML, StreamingRDF.DEFAULT_WINDOW), "UTF-8");
+		assertTrue(xml, xml.contains("xmlns:ex=\"http://example.com/\""));
+		assertTrue(xml, xml.contains("<ex:p "));
+	}
+
+	@Test
+	public void testVariant() throws Exception {
+		String streaming = StreamingRDF.variant(RDFMediaType.APPLICATION_TURTLE_CURRENT, StreamingRDF.STREAMING);
+		assertTrue(StreamingRDF.isStreaming(streaming));
+		assertEquals(RDFMediaType.APPLICATION_TURTLE_CURRENT, StreamingRDF.getMediaType(streaming));
+		assertEquals(RDFMediaType.APPLICATION_RDFXML, StreamingRDF.variant(RDFMediaType.APPLICATION_RDFXML, StreamingRDF.PRETTY));
+		// N-Triples is always written as it comes
+		assertEquals(RDFMediaType.APPLICATION_NTRIPLES, StreamingRDF.variant(RDFMediaType.APPLICATION_NTRIPLES, StreamingRDF.STREAMING));
+	}
+
+}
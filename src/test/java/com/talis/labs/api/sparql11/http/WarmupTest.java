@@ -0,0 +1,108 @@
+/*
+ * Copyright © 2011 Talis Systems Ltd.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.talis.labs.api.sparql11.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.hp.hpl.jena.query.Dataset;
+import com.hp.hpl.jena.tdb.TDBFactory;
+import com.hp.hpl.jena.vocabulary.RDFS;
+
+public class WarmupTest {
+
+	private static String GRAPH_URI = "http://www.example.com/graph/";
+
+	private File file = null;
+	private Dataset dataset = null;
+	private DatasetShards shards = null;
+
+	@Before
+	public void setUp() throws Exception {
+		file = File.createTempFile("hot-graphs", ".txt");
+		file.delete();
+		System.setProperty(Warmup.HOT_GRAPHS_FILE_PROPERTY, file.getPath());
+		dataset = TDBFactory.createDataset();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		System.clearProperty(Warmup.WARMUP_PROPERTY);
+		System.clearProperty(Warmup.HOT_GRAPHS_FILE_PROPERTY);
+		file.delete();
+		if (shards != null) {
+			shards.close();
+			shards = null;
+		}
+		dataset.close();
+	}
+
+	@Test
+	public void testReadyWithoutWarmup() throws Exception {
+		Warmup warmup = new Warmup();
+		shards = new DatasetShards(dataset, new GraphLockManager(), new GraphVersions());
+		warmup.start(shards, new GraphLockManager());
+		assertTrue(warmup.isReady());
+		warmup.touched(GRAPH_URI);
+		warmup.save();
+		assertTrue(!file.exists());
+	}
+
+	@Test
+	public void testHotGraphs() throws Exception {
+		System.setProperty(Warmup.WARMUP_PROPERTY, Warmup.GRAPHS);
+		for (int g = 0; g < 3; g++) {
+			dataset.getNamedModel(GRAPH_URI + g).createResource("http://example.com/s").addProperty(RDFS.label, "" + g);
+		}
+		Warmup before = new Warmup();
+		before.touched(GRAPH_URI + 0);
+		before.touched(GRAPH_URI + 1);
+		before.touched(GRAPH_URI + 2);
+		before.touched(GRAPH_URI + 0);
+		before.save();
+		List<String> lines = new ArrayList<String>();
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		for (String line = in.readLine(); line != null; line = in.readLine()) {
+			lines.add(line);
+		}
+		in.close();
+		// most recently read first
+		assertEquals(3, lines.size());
+		assertEquals(GRAPH_URI + 0, lines.get(0));
+		assertEquals(GRAPH_URI + 1, lines.get(2));
+
+		Warmup after = new Warmup();
+		shards = new DatasetShards(dataset, new GraphLockManager(), new GraphVersions());
+		after.start(shards, new GraphLockManager());
+		for (int i = 0; ( i < 100 ) && !after.isReady(); i++) {
+			Thread.sleep(50);
+		}
+		assertTrue(after.isReady());
+		assertEquals("ready", after.getStatus());
+	}
+
+}